@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble;
+
+import java.io.IOException;
+
+/**
+ * Call-back interface to receive the metadata of a blob before its contents
+ * are served (e.g. to set response headers before the first byte is
+ * written).
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ * @see BlobstoreService#serveBlob(BlobKey, BlobInfoCallback, java.io.OutputStream)
+ */
+@FunctionalInterface
+public interface BlobInfoCallback {
+
+	/**
+	 * Receives blob metadata.
+	 *
+	 * @param blobInfo
+	 *            metadata about the blob, or <code>null</code> if no such blob
+	 *            exists
+	 * @return <code>true</code> if the blob contents should be written to the
+	 *         output stream, or <code>false</code> if not (e.g. when the
+	 *         client already has an up-to-date copy)
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	boolean blobInfoRetrieved(BlobInfo blobInfo) throws IOException;
+
+}
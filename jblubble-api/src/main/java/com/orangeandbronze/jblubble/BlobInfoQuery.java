@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble;
+
+import java.util.Date;
+
+/**
+ * Criteria for {@link BlobstoreService#listBlobInfos(BlobInfoQuery,
+ * BlobInfoCallback) listing blobs}. Blobs are listed in the order of their
+ * keys (as defined by the implementation), starting after the given key
+ * (keyset pagination). This way, each page takes the same time, no matter
+ * how far into the listing it is.
+ *
+ * <pre>
+ * BlobInfoQuery query = new BlobInfoQuery(null, 100);
+ * query.setContentType("image/png");
+ * List&lt;BlobInfo&gt; page = blobstoreService.listBlobInfos(query);
+ * // next page
+ * query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+ * </pre>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class BlobInfoQuery {
+
+	private BlobKey afterKey;
+	private int limit;
+	private String contentType;
+	private Date createdFrom;
+	private Date createdBefore;
+
+	public BlobInfoQuery() {
+	}
+
+	/**
+	 * @param afterKey
+	 *            the key after which to start listing, or <code>null</code>
+	 *            to start from the first blob
+	 * @param limit
+	 *            the maximum number of blobs to list, or zero for no limit
+	 */
+	public BlobInfoQuery(BlobKey afterKey, int limit) {
+		setAfterKey(afterKey);
+		setLimit(limit);
+	}
+
+	/**
+	 * Copies the criteria of the given query (e.g. for a decorator to list
+	 * the blobs of its delegate, with another key to start after).
+	 */
+	public BlobInfoQuery(BlobInfoQuery query) {
+		if (query == null) {
+			throw new IllegalArgumentException(
+					"Query cannot be null");
+		}
+		this.afterKey = query.afterKey;
+		this.limit = query.limit;
+		this.contentType = query.contentType;
+		this.createdFrom = query.createdFrom;
+		this.createdBefore = query.createdBefore;
+	}
+
+	public BlobKey getAfterKey() {
+		return afterKey;
+	}
+
+	public void setAfterKey(BlobKey afterKey) {
+		this.afterKey = afterKey;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public void setLimit(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException(
+					"Limit cannot be negative");
+		}
+		this.limit = limit;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Only lists blobs with the given content type (if not <code>null</code>).
+	 */
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	public Date getCreatedFrom() {
+		return createdFrom;
+	}
+
+	/**
+	 * Only lists blobs created on or after the given date (if not
+	 * <code>null</code>).
+	 */
+	public void setCreatedFrom(Date createdFrom) {
+		this.createdFrom = createdFrom;
+	}
+
+	public Date getCreatedBefore() {
+		return createdBefore;
+	}
+
+	/**
+	 * Only lists blobs created before the given date (if not
+	 * <code>null</code>).
+	 */
+	public void setCreatedBefore(Date createdBefore) {
+		this.createdBefore = createdBefore;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given blob matches the content type
+	 * and date criteria (the key is not checked).
+	 */
+	public boolean matches(BlobInfo blobInfo) {
+		if (contentType != null && !contentType.equals(blobInfo.getContentType())) {
+			return false;
+		}
+		Date dateCreated = blobInfo.getDateCreated();
+		if (createdFrom != null && (dateCreated == null || dateCreated.before(createdFrom))) {
+			return false;
+		}
+		if (createdBefore != null && (dateCreated == null || !dateCreated.before(createdBefore))) {
+			return false;
+		}
+		return true;
+	}
+
+}
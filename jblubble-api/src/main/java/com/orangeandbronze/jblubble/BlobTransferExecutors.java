@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory of executors to run blob transfers on (e.g. uploads streamed into
+ * {@link BlobstoreService#createBlob(BlobstoreWriteCallback, String, String)},
+ * or ranges fetched in parallel).
+ * <p>
+ * Blob I/O (JDBC, files) is blocking. When there are thousands of
+ * concurrent transfers, platform threads become the limit. On Java 21 and
+ * later, {@link #newTransferExecutor(int)} runs each transfer on its own
+ * virtual thread, which is unmounted (instead of blocking a platform
+ * thread) while waiting for I/O. Virtual threads are looked up by
+ * reflection, so this still runs on Java 8 (with a pool of platform
+ * threads, bounded by the caller, instead).
+ * </p>
+ * <p>
+ * A virtual thread that blocks while holding a monitor (i.e. in a
+ * <code>synchronized</code> block) is pinned to its platform thread (up to
+ * Java 23). So, the copy paths and locks of the blobstore services that may
+ * block on I/O use {@link java.util.concurrent.locks.Lock locks} instead.
+ * Note that the number of concurrent transfers is still limited by other
+ * resources (e.g. the size of the connection pool).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public final class BlobTransferExecutors {
+
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+
+	static {
+		Method method;
+		try {
+			method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			// before Java 21
+			method = null;
+		}
+		NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = method;
+	}
+
+	private BlobTransferExecutors() {
+	}
+
+	/**
+	 * Returns <code>true</code> if virtual threads are available (i.e. on
+	 * Java 21 and later).
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Returns an executor that runs each task on a new virtual thread.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not available
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (!isVirtualThreadsAvailable()) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not available before Java 21");
+		}
+		try {
+			return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Returns an executor that runs each task on a new
+	 * {@link #newVirtualThreadExecutor() virtual thread} if available, or
+	 * else on a pool of platform threads. The pool has at most the given
+	 * number of threads (idle ones are stopped after a minute), and queues
+	 * the tasks that have to wait for one.
+	 *
+	 * @param maxPlatformThreads
+	 *            the maximum number of platform threads (e.g. the size of
+	 *            the connection pool), if virtual threads are not available
+	 */
+	public static ExecutorService newTransferExecutor(int maxPlatformThreads) {
+		if (maxPlatformThreads <= 0) {
+			throw new IllegalArgumentException(
+					"Max platform threads cannot be zero or less");
+		}
+		if (isVirtualThreadsAvailable()) {
+			return newVirtualThreadExecutor();
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				maxPlatformThreads, maxPlatformThreads, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<>());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+}
@@ -18,6 +18,8 @@ package com.orangeandbronze.jblubble;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Strategy interface for the creation and serving of large binary objects (or
@@ -182,6 +184,39 @@ public interface BlobstoreService {
 	void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
 			throws IOException, BlobstoreException;
 
+	/**
+	 * Retrieves the metadata of the blob with the given identifier, passes it
+	 * to the given call-back, and (if the call-back returns <code>true</code>)
+	 * writes the blob to the given output stream. Unlike calling
+	 * {@link #getBlobInfo(BlobKey)} and then
+	 * {@link #serveBlob(BlobKey, OutputStream)}, implementations can retrieve
+	 * both at once (e.g. with one query, on one connection).
+	 * <p>
+	 * The default implementation calls {@link #getBlobInfo(BlobKey)}, and then
+	 * {@link #serveBlob(BlobKey, OutputStream)}.
+	 * </p>
+	 *
+	 * @param blobKey
+	 *            the unique identifier
+	 * @param callback
+	 *            the call-back interface to receive the metadata (or
+	 *            <code>null</code> if no such blob exists) before anything is
+	 *            written to the output stream
+	 * @param out
+	 *            the output stream
+	 * @throws IOException
+	 *             if an I/O error occurred
+	 * @throws BlobstoreException
+	 *             if an error occurs while retrieving the blob
+	 * @since 1.2
+	 */
+	default void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		if (callback.blobInfoRetrieved(getBlobInfo(blobKey))) {
+			serveBlob(blobKey, out);
+		}
+	}
+
 	/**
 	 * Deletes the specified blobs.
 	 * 
@@ -211,4 +246,60 @@ public interface BlobstoreService {
 	void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
 			throws IOException, BlobstoreException;
 
+	/**
+	 * Lists the metadata of blobs that match the given query, in the order of
+	 * their keys (see {@link BlobInfoQuery}). Each is passed to the given
+	 * call-back as it is retrieved (e.g. from a database cursor), so that any
+	 * number of blobs can be listed in constant memory.
+	 * <p>
+	 * The default implementation throws
+	 * {@link UnsupportedOperationException}.
+	 * </p>
+	 *
+	 * @param query
+	 *            the criteria
+	 * @param callback
+	 *            the call-back interface to receive the metadata of each blob
+	 *            (never <code>null</code>), which returns <code>false</code>
+	 *            to stop listing
+	 * @return the key of the last blob passed to the call-back (i.e. the key
+	 *         to list the next page after), or <code>null</code> if there
+	 *         were none
+	 * @throws IOException
+	 *             if the call-back throws one
+	 * @throws BlobstoreException
+	 *             if an error occurs while listing the blobs
+	 * @throws UnsupportedOperationException
+	 *             if the implementation cannot list blobs
+	 * @since 1.2
+	 */
+	default BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		throw new UnsupportedOperationException(
+				getClass().getName() + " cannot list blobs");
+	}
+
+	/**
+	 * Lists the metadata of blobs that match the given query (e.g. a page of
+	 * them, with a {@link BlobInfoQuery#setLimit(int) limit}).
+	 *
+	 * @param query
+	 *            the criteria
+	 * @return the metadata of the matching blobs, in the order of their keys
+	 * @throws BlobstoreException
+	 *             if an error occurs while listing the blobs
+	 * @throws UnsupportedOperationException
+	 *             if the implementation cannot list blobs
+	 * @since 1.2
+	 */
+	default List<BlobInfo> listBlobInfos(BlobInfoQuery query) throws BlobstoreException {
+		List<BlobInfo> blobInfos = new ArrayList<>();
+		try {
+			listBlobInfos(query, blobInfos::add);
+		} catch (IOException e) {
+			throw new BlobstoreException(e); // not thrown by the call-back
+		}
+		return blobInfos;
+	}
+
 }
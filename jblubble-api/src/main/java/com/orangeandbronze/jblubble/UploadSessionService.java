@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble;
+
+import java.io.IOException;
+
+/**
+ * Strategy interface for creating blobs from chunks that are uploaded
+ * separately. Unlike
+ * {@link BlobstoreService#createBlob(java.io.InputStream, String, String)},
+ * a failed chunk does not require the entire upload to be restarted.
+ *
+ * <h3>Some Sample Use Cases</h3>
+ * <p>
+ * A client can resume an interrupted upload by asking for the number of bytes
+ * that have been received so far:
+ * </p>
+ *
+ * <pre>
+ * String sessionId = uploadSessionService.openSession(name, contentType);
+ * ... uploadSessionService.appendChunk(sessionId, 0, firstChunk);
+ * // connection lost, later...
+ * long offset = uploadSessionService.getUploadedLength(sessionId);
+ * ... uploadSessionService.appendChunk(sessionId, offset, nextChunk);
+ * BlobKey blobKey = uploadSessionService.commit(sessionId);
+ * </pre>
+ * <p>
+ * Chunks can be appended in any order, and in parallel. Chunks can also
+ * overlap (e.g. when a chunk is re-sent), in which case the overlapping bytes
+ * are expected to be the same.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public interface UploadSessionService {
+
+	/**
+	 * Starts a new upload session for a blob with the given name and content
+	 * type.
+	 *
+	 * @param name
+	 *            the name
+	 * @param contentType
+	 *            the MIME type of the blob (e.g. image/png, application/pdf)
+	 * @return the unique identifier of the upload session
+	 * @throws BlobstoreException
+	 *             if an error occurs while starting the session
+	 */
+	String openSession(String name, String contentType) throws BlobstoreException;
+
+	/**
+	 * Stores the given bytes at the given offset of the blob being uploaded.
+	 * Appending the same chunk again has no further effect.
+	 *
+	 * @param sessionId
+	 *            the unique identifier of the upload session
+	 * @param offset
+	 *            the index of the first byte of the chunk
+	 * @param bytes
+	 *            the chunk
+	 * @throws IOException
+	 *             if an I/O error occurred
+	 * @throws BlobstoreException
+	 *             if no such session exists, or if an error occurs while
+	 *             storing the chunk
+	 */
+	void appendChunk(String sessionId, long offset, byte[] bytes)
+			throws IOException, BlobstoreException;
+
+	/**
+	 * Returns the number of contiguous bytes (starting from the first byte)
+	 * that have been received so far. This is where an interrupted upload
+	 * can be resumed.
+	 *
+	 * @param sessionId
+	 *            the unique identifier of the upload session
+	 * @return the number of contiguous bytes received
+	 * @throws BlobstoreException
+	 *             if no such session exists
+	 */
+	long getUploadedLength(String sessionId) throws BlobstoreException;
+
+	/**
+	 * Creates the blob from the uploaded chunks, and ends the session.
+	 *
+	 * @param sessionId
+	 *            the unique identifier of the upload session
+	 * @return the unique identifier to retrieve the blob
+	 * @throws IOException
+	 *             if an I/O error occurred
+	 * @throws BlobstoreException
+	 *             if no such session exists, if there are missing chunks, or
+	 *             if an error occurs while storing the blob
+	 */
+	BlobKey commit(String sessionId) throws IOException, BlobstoreException;
+
+	/**
+	 * Ends the session, and discards the uploaded chunks. Does nothing if no
+	 * such session exists.
+	 *
+	 * @param sessionId
+	 *            the unique identifier of the upload session
+	 * @throws BlobstoreException
+	 *             if an error occurs while discarding the chunks
+	 */
+	void abort(String sessionId) throws BlobstoreException;
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.gc;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Compact (and approximate) set of blob keys. A key that was added is always
+ * found. A key that was not added is found with the given (false positive)
+ * probability. This takes about 9.6 bits per key for a 1% false positive
+ * probability, regardless of the length of the keys.
+ * <p>
+ * Not thread-safe.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class BlobKeyBloomFilter {
+
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final MessageDigest md5;
+
+	/**
+	 * @param expectedKeys
+	 *            the number of keys expected to be added
+	 * @param falsePositiveProbability
+	 *            the probability (e.g. 0.01) of finding a key that was not
+	 *            added, once the expected number of keys have been added
+	 */
+	public BlobKeyBloomFilter(long expectedKeys, double falsePositiveProbability) {
+		if (expectedKeys <= 0) {
+			throw new IllegalArgumentException(
+					"Expected keys cannot be zero or less");
+		}
+		if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+			throw new IllegalArgumentException(
+					"False positive probability must be between zero and one");
+		}
+		double ln2 = Math.log(2);
+		long words = (long) Math.ceil(
+				-expectedKeys * Math.log(falsePositiveProbability) / (ln2 * ln2) / Long.SIZE);
+		if (words > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException(
+					"Too many expected keys for the false positive probability");
+		}
+		this.bits = new long[(int) Math.max(words, 1)];
+		this.bitCount = (long) bits.length * Long.SIZE;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * ln2));
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * Returns the size of the filter in bytes.
+	 */
+	public long getSize() {
+		return bitCount / Byte.SIZE;
+	}
+
+	public void add(BlobKey blobKey) {
+		long[] hashes = hash(blobKey);
+		for (int i = 0; i < hashCount; i++) {
+			long index = index(hashes, i);
+			bits[(int) (index >>> 6)] |= 1L << index;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the given key might have been added, or
+	 * <code>false</code> if it definitely was not added.
+	 */
+	public boolean mightContain(BlobKey blobKey) {
+		long[] hashes = hash(blobKey);
+		for (int i = 0; i < hashCount; i++) {
+			long index = index(hashes, i);
+			if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long index(long[] hashes, int i) {
+		// double hashing, see Kirsch and Mitzenmacher
+		return ((hashes[0] + i * hashes[1]) & Long.MAX_VALUE) % bitCount;
+	}
+
+	private long[] hash(BlobKey blobKey) {
+		byte[] digest = md5.digest(blobKey.stringValue().getBytes(StandardCharsets.UTF_8));
+		long h1 = 0;
+		long h2 = 0;
+		for (int i = 0; i < 8; i++) {
+			h1 = (h1 << 8) | (digest[i] & 0xff);
+			h2 = (h2 << 8) | (digest[i + 8] & 0xff);
+		}
+		return new long[] { h1, h2 };
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.gc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+
+/**
+ * Mark-and-sweep garbage collector of blobs that are no longer referenced
+ * (e.g. by application rows).
+ * <p>
+ * The live keys (e.g. <code>SELECT photo_id FROM person</code>) are marked in
+ * a {@link BlobKeyBloomFilter Bloom filter}, so that memory stays bounded
+ * regardless of the number of keys. The stored keys are then swept, and the
+ * keys not found in the filter are orphans. Since the filter has false
+ * positives (but no false negatives), a small fraction of orphans may be
+ * missed (until the next run), but a live blob is never collected.
+ * </p>
+ * <p>
+ * Blobs created shortly before the collection started (within the
+ * {@link #setGracePeriod(long) grace period}) are never collected, since
+ * they may not be referenced yet. By default, orphans are only reported
+ * (i.e. logged). Enable {@link #setDeleting(boolean) deleting} to delete
+ * them.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class OrphanCollector {
+
+	public static final long DEFAULT_EXPECTED_LIVE_KEYS = 1000000;
+	public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+	public static final long DEFAULT_GRACE_PERIOD = 60 * 60 * 1000L; // 1 hour
+	public static final int DEFAULT_DELETE_CHUNK_SIZE = 100; // blobs
+
+	/**
+	 * Result of a collection.
+	 */
+	public static class Report {
+
+		private final long liveKeys;
+		private final long scannedKeys;
+		private final long orphans;
+		private final long deleted;
+
+		Report(long liveKeys, long scannedKeys, long orphans, long deleted) {
+			this.liveKeys = liveKeys;
+			this.scannedKeys = scannedKeys;
+			this.orphans = orphans;
+			this.deleted = deleted;
+		}
+
+		public long getLiveKeys() {
+			return liveKeys;
+		}
+
+		public long getScannedKeys() {
+			return scannedKeys;
+		}
+
+		public long getOrphans() {
+			return orphans;
+		}
+
+		public long getDeleted() {
+			return deleted;
+		}
+
+		@Override
+		public String toString() {
+			return "live keys: " + liveKeys + ", scanned keys: " + scannedKeys
+					+ ", orphans: " + orphans + ", deleted: " + deleted;
+		}
+
+	}
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final BlobstoreService blobstoreService;
+	private long expectedLiveKeys = DEFAULT_EXPECTED_LIVE_KEYS;
+	private double falsePositiveProbability = DEFAULT_FALSE_POSITIVE_PROBABILITY;
+	private long gracePeriod = DEFAULT_GRACE_PERIOD;
+	private boolean deleting;
+	private int deleteChunkSize = DEFAULT_DELETE_CHUNK_SIZE;
+
+	public OrphanCollector(BlobstoreService blobstoreService) {
+		if (blobstoreService == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		this.blobstoreService = blobstoreService;
+	}
+
+	public long getExpectedLiveKeys() {
+		return expectedLiveKeys;
+	}
+
+	/**
+	 * Sets the number of live keys the filter is sized for. If more keys are
+	 * marked, more orphans are missed.
+	 */
+	public void setExpectedLiveKeys(long expectedLiveKeys) {
+		if (expectedLiveKeys <= 0) {
+			throw new IllegalArgumentException(
+					"Expected live keys cannot be zero or less");
+		}
+		this.expectedLiveKeys = expectedLiveKeys;
+	}
+
+	public double getFalsePositiveProbability() {
+		return falsePositiveProbability;
+	}
+
+	/**
+	 * Sets the probability of an orphan being missed (i.e. mistaken as live).
+	 */
+	public void setFalsePositiveProbability(double falsePositiveProbability) {
+		if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+			throw new IllegalArgumentException(
+					"False positive probability must be between zero and one");
+		}
+		this.falsePositiveProbability = falsePositiveProbability;
+	}
+
+	public long getGracePeriod() {
+		return gracePeriod;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) before the collection started, during
+	 * which created blobs are not collected.
+	 */
+	public void setGracePeriod(long gracePeriod) {
+		if (gracePeriod < 0) {
+			throw new IllegalArgumentException(
+					"Grace period cannot be negative");
+		}
+		this.gracePeriod = gracePeriod;
+	}
+
+	public boolean isDeleting() {
+		return deleting;
+	}
+
+	/**
+	 * Sets whether orphans are deleted, or only reported.
+	 */
+	public void setDeleting(boolean deleting) {
+		this.deleting = deleting;
+	}
+
+	public int getDeleteChunkSize() {
+		return deleteChunkSize;
+	}
+
+	public void setDeleteChunkSize(int deleteChunkSize) {
+		if (deleteChunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Delete chunk size cannot be zero or less");
+		}
+		this.deleteChunkSize = deleteChunkSize;
+	}
+
+	/**
+	 * Collects the stored blobs that are not live. Both are only iterated
+	 * once, and can be streamed (e.g. from a database cursor).
+	 *
+	 * @param liveKeys
+	 *            the keys of blobs that are still referenced
+	 * @param storedKeys
+	 *            the keys of blobs in the blobstore
+	 */
+	public Report collect(Iterable<BlobKey> liveKeys, Iterable<BlobKey> storedKeys)
+			throws BlobstoreException {
+		long startTime = System.currentTimeMillis();
+		BlobKeyBloomFilter filter = new BlobKeyBloomFilter(
+				getExpectedLiveKeys(), getFalsePositiveProbability());
+		long liveCount = 0;
+		for (BlobKey blobKey : liveKeys) {
+			if (blobKey != null) {
+				filter.add(blobKey);
+				liveCount++;
+			}
+		}
+		if (liveCount > getExpectedLiveKeys()) {
+			LOGGER.warn("Marked {} live keys, but filter is sized for {} (more orphans will be missed)",
+					liveCount, getExpectedLiveKeys());
+		}
+		LOGGER.debug("Marked {} live keys in {} byte filter", liveCount, filter.getSize());
+		long createdBefore = startTime - getGracePeriod();
+		long scannedCount = 0;
+		long orphanCount = 0;
+		long deletedCount = 0;
+		List<BlobKey> orphans = new ArrayList<>(getDeleteChunkSize());
+		for (BlobKey blobKey : storedKeys) {
+			scannedCount++;
+			if (filter.mightContain(blobKey)) {
+				continue;
+			}
+			BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+			if (blobInfo == null || blobInfo.getDateCreated() == null
+					|| blobInfo.getDateCreated().getTime() >= createdBefore) {
+				continue;
+			}
+			orphanCount++;
+			LOGGER.info("Orphaned blob [{}] ({} bytes, created {})",
+					blobKey, blobInfo.getSize(), blobInfo.getDateCreated());
+			if (isDeleting()) {
+				orphans.add(blobKey);
+				if (orphans.size() == getDeleteChunkSize()) {
+					deletedCount += delete(orphans);
+				}
+			}
+		}
+		if (!orphans.isEmpty()) {
+			deletedCount += delete(orphans);
+		}
+		Report report = new Report(liveCount, scannedCount, orphanCount, deletedCount);
+		LOGGER.info("Collected orphaned blobs in {} ms ({})",
+				System.currentTimeMillis() - startTime, report);
+		return report;
+	}
+
+	private long delete(List<BlobKey> orphans) throws BlobstoreException {
+		long deleted = 0;
+		for (int updateCount : blobstoreService.delete(
+				orphans.toArray(new BlobKey[orphans.size()]))) {
+			if (updateCount != 0) {
+				deleted++;
+			}
+		}
+		orphans.clear();
+		return deleted;
+	}
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.metrics;
+
+/**
+ * A value that can go up and down (e.g. number of bytes written, or number
+ * of operations in progress).
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+@FunctionalInterface
+public interface Counter {
+
+	/**
+	 * Adds the given (possibly negative) amount.
+	 */
+	void add(long delta);
+
+}
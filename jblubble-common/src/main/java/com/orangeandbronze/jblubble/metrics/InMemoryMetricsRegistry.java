@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link MetricsRegistry} that keeps metrics in memory. This needs no other
+ * libraries, and is handy for tests, or for logging metrics periodically.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+
+	private final ConcurrentMap<String, LongCounter> counters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	@Override
+	public LongCounter counter(String name) {
+		LongCounter counter = counters.get(name);
+		if (counter == null) {
+			counter = counters.computeIfAbsent(name, (n) -> {
+				LongCounter c = new LongCounter();
+				counterCreated(n, c);
+				return c;
+			});
+		}
+		return counter;
+	}
+
+	@Override
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = histograms.computeIfAbsent(name, (n) -> {
+				LatencyHistogram h = new LatencyHistogram();
+				histogramCreated(n, h);
+				return h;
+			});
+		}
+		return histogram;
+	}
+
+	/**
+	 * Called once when a counter is created. Does nothing by default.
+	 */
+	protected void counterCreated(String name, LongCounter counter) {
+	}
+
+	/**
+	 * Called once when a histogram is created. Does nothing by default.
+	 */
+	protected void histogramCreated(String name, LatencyHistogram histogram) {
+	}
+
+	/**
+	 * Returns the counters (sorted by name).
+	 */
+	public SortedMap<String, LongCounter> getCounters() {
+		return Collections.unmodifiableSortedMap(new TreeMap<>(counters));
+	}
+
+	/**
+	 * Returns the histograms (sorted by name).
+	 */
+	public SortedMap<String, LatencyHistogram> getHistograms() {
+		return Collections.unmodifiableSortedMap(new TreeMap<>(histograms));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, LongCounter> entry : getCounters().entrySet()) {
+			sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+			sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+}
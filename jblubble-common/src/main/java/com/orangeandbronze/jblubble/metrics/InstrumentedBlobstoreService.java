@@ -0,0 +1,323 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreReadCallback;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * {@link BlobstoreService Blobstore service} decorator that records metrics
+ * of each call to another blobstore service. For each operation (i.e.
+ * <code>createBlob</code>, <code>getBlobInfo</code>, <code>serveBlob</code>,
+ * <code>delete</code>, and <code>readBlob</code>), the following are
+ * recorded (with the given prefix):
+ * <ul>
+ * <li><code>&lt;prefix&gt;.&lt;operation&gt;.latency</code> &mdash; histogram
+ * of latencies, in nanoseconds</li>
+ * <li><code>&lt;prefix&gt;.&lt;operation&gt;.inFlight</code> &mdash; counter
+ * of calls in progress</li>
+ * <li><code>&lt;prefix&gt;.&lt;operation&gt;.errors.&lt;exception&gt;</code>
+ * &mdash; counter of failed calls, by simple name of exception type</li>
+ * <li><code>&lt;prefix&gt;.createBlob.bytesIn</code>,
+ * <code>&lt;prefix&gt;.serveBlob.bytesOut</code>, and
+ * <code>&lt;prefix&gt;.readBlob.bytesOut</code> &mdash; counters of bytes
+ * written to, and read from, the blobstore</li>
+ * </ul>
+ * <p>
+ * For <code>readBlob</code>, the latency includes the time spent by the
+ * call-back. For <code>serveBlob</code>, it includes the time spent writing
+ * to the given output stream (e.g. to a slow client).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class InstrumentedBlobstoreService implements BlobstoreService {
+
+	public static final String DEFAULT_PREFIX = "blobstore";
+
+	protected final BlobstoreService delegate;
+	private final MetricsRegistry metricsRegistry;
+	private final String prefix;
+
+	private final Operation createBlob;
+	private final Operation getBlobInfo;
+	private final Operation serveBlob;
+	private final Operation delete;
+	private final Operation readBlob;
+	private final Operation listBlobInfos;
+	private final Counter bytesIn;
+	private final Counter servedBytesOut;
+	private final Counter readBytesOut;
+
+	public InstrumentedBlobstoreService(
+			BlobstoreService delegate, MetricsRegistry metricsRegistry) {
+		this(delegate, metricsRegistry, DEFAULT_PREFIX);
+	}
+
+	public InstrumentedBlobstoreService(
+			BlobstoreService delegate, MetricsRegistry metricsRegistry, String prefix) {
+		if (delegate == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		if (metricsRegistry == null) {
+			throw new IllegalArgumentException(
+					"Metrics registry cannot be null");
+		}
+		if (prefix == null || prefix.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Prefix cannot be null or empty");
+		}
+		this.delegate = delegate;
+		this.metricsRegistry = metricsRegistry;
+		this.prefix = prefix;
+		// Look up metrics once, so that recording does not involve a look-up
+		this.createBlob = new Operation("createBlob");
+		this.getBlobInfo = new Operation("getBlobInfo");
+		this.serveBlob = new Operation("serveBlob");
+		this.delete = new Operation("delete");
+		this.readBlob = new Operation("readBlob");
+		this.listBlobInfos = new Operation("listBlobInfos");
+		this.bytesIn = metricsRegistry.counter(createBlob.name + ".bytesIn");
+		this.servedBytesOut = metricsRegistry.counter(serveBlob.name + ".bytesOut");
+		this.readBytesOut = metricsRegistry.counter(readBlob.name + ".bytesOut");
+	}
+
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		long startTime = createBlob.start();
+		CountingInputStream countingIn = new CountingInputStream(in);
+		try {
+			BlobKey blobKey = delegate.createBlob(countingIn, name, contentType);
+			createBlob.succeeded(startTime);
+			return blobKey;
+		} catch (IOException | RuntimeException | Error e) {
+			createBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			bytesIn.add(countingIn.getByteCount());
+		}
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		long startTime = createBlob.start();
+		long[] byteCount = new long[1];
+		try {
+			BlobKey blobKey = delegate.createBlob((out) -> {
+				CountingOutputStream countingOut = new CountingOutputStream(out);
+				try {
+					return callback.writeToOutputStream(countingOut);
+				} finally {
+					byteCount[0] += countingOut.getByteCount();
+				}
+			}, name, contentType);
+			createBlob.succeeded(startTime);
+			return blobKey;
+		} catch (IOException | RuntimeException | Error e) {
+			createBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			bytesIn.add(byteCount[0]);
+		}
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		long startTime = getBlobInfo.start();
+		try {
+			BlobInfo blobInfo = delegate.getBlobInfo(blobKey);
+			getBlobInfo.succeeded(startTime);
+			return blobInfo;
+		} catch (RuntimeException | Error e) {
+			getBlobInfo.failed(startTime, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		long startTime = serveBlob.start();
+		CountingOutputStream countingOut = new CountingOutputStream(out);
+		try {
+			delegate.serveBlob(blobKey, countingOut);
+			serveBlob.succeeded(startTime);
+		} catch (IOException | RuntimeException | Error e) {
+			serveBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			servedBytesOut.add(countingOut.getByteCount());
+		}
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		long startTime = serveBlob.start();
+		CountingOutputStream countingOut = new CountingOutputStream(out);
+		try {
+			delegate.serveBlob(blobKey, countingOut, start);
+			serveBlob.succeeded(startTime);
+		} catch (IOException | RuntimeException | Error e) {
+			serveBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			servedBytesOut.add(countingOut.getByteCount());
+		}
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		long startTime = serveBlob.start();
+		CountingOutputStream countingOut = new CountingOutputStream(out);
+		try {
+			delegate.serveBlob(blobKey, countingOut, start, end);
+			serveBlob.succeeded(startTime);
+		} catch (IOException | RuntimeException | Error e) {
+			serveBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			servedBytesOut.add(countingOut.getByteCount());
+		}
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		long startTime = serveBlob.start();
+		CountingOutputStream countingOut = new CountingOutputStream(out);
+		try {
+			delegate.serveBlob(blobKey, callback, countingOut);
+			serveBlob.succeeded(startTime);
+		} catch (IOException | RuntimeException | Error e) {
+			serveBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			servedBytesOut.add(countingOut.getByteCount());
+		}
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		long startTime = delete.start();
+		try {
+			int[] updateCounts = delegate.delete(blobKeys);
+			delete.succeeded(startTime);
+			return updateCounts;
+		} catch (RuntimeException | Error e) {
+			delete.failed(startTime, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		long startTime = readBlob.start();
+		long[] byteCount = new long[1];
+		try {
+			delegate.readBlob(blobKey, (in) -> {
+				CountingInputStream countingIn = new CountingInputStream(in);
+				try {
+					callback.readInputStream(countingIn);
+				} finally {
+					byteCount[0] += countingIn.getByteCount();
+				}
+			});
+			readBlob.succeeded(startTime);
+		} catch (IOException | RuntimeException | Error e) {
+			readBlob.failed(startTime, e);
+			throw e;
+		} finally {
+			readBytesOut.add(byteCount[0]);
+		}
+	}
+
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		long startTime = listBlobInfos.start();
+		try {
+			BlobKey lastKey = delegate.listBlobInfos(query, callback);
+			listBlobInfos.succeeded(startTime);
+			return lastKey;
+		} catch (IOException | RuntimeException | Error e) {
+			listBlobInfos.failed(startTime, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Metrics of an operation.
+	 */
+	private class Operation {
+
+		final String name;
+		final Histogram latency;
+		final Counter inFlight;
+
+		Operation(String operationName) {
+			this.name = prefix + "." + operationName;
+			this.latency = metricsRegistry.histogram(name + ".latency");
+			this.inFlight = metricsRegistry.counter(name + ".inFlight");
+		}
+
+		long start() {
+			inFlight.add(1);
+			return System.nanoTime();
+		}
+
+		void succeeded(long startTime) {
+			latency.record(System.nanoTime() - startTime);
+			inFlight.add(-1);
+		}
+
+		void failed(long startTime, Throwable t) {
+			latency.record(System.nanoTime() - startTime);
+			inFlight.add(-1);
+			metricsRegistry.counter(
+					name + ".errors." + t.getClass().getSimpleName()).add(1);
+		}
+
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link InMemoryMetricsRegistry} that also exposes each metric as an MXBean
+ * (e.g. to be viewed with JConsole or VisualVM). Histograms expose their
+ * count, mean, maximum, and common percentiles.
+ * <p>
+ * Each metric is registered as
+ * <code>&lt;domain&gt;:type=Counter|Histogram,name=&lt;metric name&gt;</code>.
+ * Call {@link #close()} to unregister them.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class JmxMetricsRegistry extends InMemoryMetricsRegistry implements AutoCloseable {
+
+	public static final String DEFAULT_DOMAIN = "com.orangeandbronze.jblubble";
+
+	public interface CounterMXBean {
+		long getCount();
+	}
+
+	public interface HistogramMXBean {
+		long getCount();
+		double getMean();
+		long getMax();
+		long get50thPercentile();
+		long get95thPercentile();
+		long get99thPercentile();
+		long get999thPercentile();
+	}
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final MBeanServer mBeanServer;
+	private final String domain;
+	private final Set<ObjectName> registeredNames = new CopyOnWriteArraySet<>();
+
+	public JmxMetricsRegistry() {
+		this(ManagementFactory.getPlatformMBeanServer(), DEFAULT_DOMAIN);
+	}
+
+	public JmxMetricsRegistry(MBeanServer mBeanServer, String domain) {
+		if (mBeanServer == null) {
+			throw new IllegalArgumentException(
+					"MBean server cannot be null");
+		}
+		if (domain == null || domain.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Domain cannot be null or empty");
+		}
+		this.mBeanServer = mBeanServer;
+		this.domain = domain;
+	}
+
+	public ObjectName getObjectName(String type, String name) throws JMException {
+		return new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(name));
+	}
+
+	@Override
+	protected void counterCreated(String name, LongCounter counter) {
+		register("Counter", name, (CounterMXBean) counter::getCount);
+	}
+
+	@Override
+	protected void histogramCreated(String name, LatencyHistogram histogram) {
+		register("Histogram", name, new HistogramMXBean() {
+			@Override
+			public long getCount() {
+				return histogram.getCount();
+			}
+
+			@Override
+			public double getMean() {
+				return histogram.getMean();
+			}
+
+			@Override
+			public long getMax() {
+				return histogram.getMax();
+			}
+
+			@Override
+			public long get50thPercentile() {
+				return histogram.getValueAtPercentile(50.0);
+			}
+
+			@Override
+			public long get95thPercentile() {
+				return histogram.getValueAtPercentile(95.0);
+			}
+
+			@Override
+			public long get99thPercentile() {
+				return histogram.getValueAtPercentile(99.0);
+			}
+
+			@Override
+			public long get999thPercentile() {
+				return histogram.getValueAtPercentile(99.9);
+			}
+		});
+	}
+
+	private void register(String type, String name, Object mxBean) {
+		try {
+			ObjectName objectName = getObjectName(type, name);
+			mBeanServer.registerMBean(mxBean, objectName);
+			registeredNames.add(objectName);
+		} catch (JMException e) {
+			// Metrics are still recorded, but are not visible through JMX
+			LOGGER.warn("Unable to register metric [{}] with JMX: {}", name, e.toString());
+		}
+	}
+
+	/**
+	 * Unregisters the metrics from the MBean server.
+	 */
+	@Override
+	public void close() {
+		for (ObjectName objectName : registeredNames) {
+			try {
+				mBeanServer.unregisterMBean(objectName);
+			} catch (JMException e) {
+				LOGGER.debug("Unable to unregister [{}]: {}", objectName, e.toString());
+			}
+		}
+		registeredNames.clear();
+	}
+
+}
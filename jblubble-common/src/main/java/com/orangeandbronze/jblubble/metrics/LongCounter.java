@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Counter} backed by a {@link LongAdder}, which keeps contention low
+ * when updated from many threads.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class LongCounter implements Counter {
+
+	private final LongAdder count = new LongAdder();
+
+	@Override
+	public void add(long delta) {
+		count.add(delta);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(getCount());
+	}
+
+}
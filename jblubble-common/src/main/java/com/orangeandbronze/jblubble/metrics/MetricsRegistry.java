@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.metrics;
+
+/**
+ * Service provider interface to record metrics. Implement this to send
+ * metrics to a monitoring system. See {@link InMemoryMetricsRegistry} and
+ * {@link JmxMetricsRegistry} for implementations that need no other
+ * libraries.
+ * <p>
+ * Implementations are expected to return the same metric for the same name,
+ * and to be thread-safe.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public interface MetricsRegistry {
+
+	/**
+	 * Returns the counter with the given name, creating it if needed.
+	 */
+	Counter counter(String name);
+
+	/**
+	 * Returns the histogram with the given name, creating it if needed.
+	 */
+	Histogram histogram(String name);
+
+}
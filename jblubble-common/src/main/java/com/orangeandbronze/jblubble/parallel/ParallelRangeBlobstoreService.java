@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.parallel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreReadCallback;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * {@link BlobstoreService Blobstore service} decorator that serves large
+ * blobs by fetching ranges of {@link #setRangeSize(int) range size} bytes
+ * concurrently (each with
+ * {@link BlobstoreService#serveBlob(BlobKey, OutputStream, long, long)} of
+ * another blobstore service, i.e. on its own connection or channel), instead
+ * of one sequential stream.
+ * <p>
+ * Ranges are written to the output stream in order. Up to
+ * {@link #setParallelism(int) parallelism} ranges are fetched (or are
+ * waiting to be written) at a time, each into its own buffer. So, the
+ * buffers that keep ranges fetched out of order take up to
+ * <code>parallelism &times; rangeSize</code> bytes. The next range is fetched
+ * once the oldest one has been written.
+ * </p>
+ * <p>
+ * Blobs (or requested byte ranges) smaller than the
+ * {@link #setParallelThreshold(long) parallel threshold} are served
+ * sequentially by the other blobstore service. Serving a whole blob (i.e.
+ * without a byte range) looks up its size first. All other operations are
+ * passed on as is.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class ParallelRangeBlobstoreService implements BlobstoreService {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final int DEFAULT_RANGE_SIZE = 0x400000; // 4 megabytes
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 0x1000000; // 16 megabytes
+
+	protected final BlobstoreService delegate;
+	private final ExecutorService executor;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private int rangeSize = DEFAULT_RANGE_SIZE;
+	private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 * @param delegate
+	 *            the blobstore service that fetches each range
+	 * @param executor
+	 *            the executor that runs the fetches (with at least
+	 *            {@link #getParallelism() parallelism} threads, for them to
+	 *            run concurrently)
+	 */
+	public ParallelRangeBlobstoreService(BlobstoreService delegate, ExecutorService executor) {
+		if (delegate == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException(
+					"Executor cannot be null");
+		}
+		this.delegate = delegate;
+		this.executor = executor;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the maximum number of ranges of a blob that are fetched (or are
+	 * buffered, waiting to be written) at a time.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException(
+					"Parallelism cannot be zero or less");
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getRangeSize() {
+		return rangeSize;
+	}
+
+	/**
+	 * Sets the number of bytes in each range (except maybe the last one).
+	 */
+	public void setRangeSize(int rangeSize) {
+		if (rangeSize <= 0) {
+			throw new IllegalArgumentException(
+					"Range size cannot be zero or less");
+		}
+		this.rangeSize = rangeSize;
+	}
+
+	public long getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * Sets the number of bytes below which blobs (or requested byte ranges)
+	 * are served sequentially.
+	 */
+	public void setParallelThreshold(long parallelThreshold) {
+		if (parallelThreshold < 0) {
+			throw new IllegalArgumentException(
+					"Parallel threshold cannot be negative");
+		}
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return delegate.createBlob(in, name, contentType);
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return delegate.createBlob(callback, name, contentType);
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		return delegate.getBlobInfo(blobKey);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		serveBlob(blobKey, out, 0);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		BlobInfo blobInfo = delegate.getBlobInfo(blobKey);
+		if (blobInfo == null || blobInfo.getSize() - start < parallelThreshold) {
+			// let the other blobstore report blobs that are not found
+			delegate.serveBlob(blobKey, out, start);
+			return;
+		}
+		serveRanges(blobKey, out, start, blobInfo.getSize() - 1);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		if (end - start + 1 < parallelThreshold) {
+			delegate.serveBlob(blobKey, out, start, end);
+			return;
+		}
+		serveRanges(blobKey, out, start, end);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		BlobInfo blobInfo = delegate.getBlobInfo(blobKey);
+		if (blobInfo == null || blobInfo.getSize() < parallelThreshold) {
+			delegate.serveBlob(blobKey, callback, out);
+			return;
+		}
+		if (callback.blobInfoRetrieved(blobInfo)) {
+			serveRanges(blobKey, out, 0, blobInfo.getSize() - 1);
+		}
+	}
+
+	/**
+	 * Fetches the given byte range (inclusive) in ranges of
+	 * {@link #getRangeSize() range size} bytes, with up to
+	 * {@link #getParallelism() parallelism} ranges at a time, and writes them
+	 * in order.
+	 */
+	protected void serveRanges(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		Deque<Future<ByteArrayOutputStream>> window = new ArrayDeque<>(parallelism);
+		long next = start;
+		try {
+			while (next <= end && window.size() < parallelism) {
+				window.add(fetchRange(blobKey, next, Math.min(next + rangeSize - 1, end)));
+				next += rangeSize;
+			}
+			while (!window.isEmpty()) {
+				ByteArrayOutputStream range = getRange(window.peek());
+				window.remove();
+				range.writeTo(out);
+				if (next <= end) {
+					window.add(fetchRange(blobKey, next, Math.min(next + rangeSize - 1, end)));
+					next += rangeSize;
+				}
+			}
+		} finally {
+			for (Future<ByteArrayOutputStream> future : window) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private Future<ByteArrayOutputStream> fetchRange(BlobKey blobKey, long start, long end) {
+		return executor.submit(() -> {
+			ByteArrayOutputStream range = new ByteArrayOutputStream((int) (end - start + 1));
+			delegate.serveBlob(blobKey, range, start, end);
+			return range;
+		});
+	}
+
+	private static ByteArrayOutputStream getRange(Future<ByteArrayOutputStream> future)
+			throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new BlobstoreException("Error when fetching range", cause);
+		}
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		return delegate.delete(blobKeys);
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		delegate.readBlob(blobKey, callback);
+	}
+
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		return delegate.listBlobInfos(query, callback);
+	}
+
+	@Override
+	public List<BlobInfo> listBlobInfos(BlobInfoQuery query) throws BlobstoreException {
+		return delegate.listBlobInfos(query);
+	}
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.sharding;
+
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Call-back interface to be notified when a blob is moved to another shard
+ * (e.g. while rebalancing). Since the shard is part of the key, references to
+ * the old key should be replaced with the new key.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+@FunctionalInterface
+public interface BlobMovedListener {
+
+	/**
+	 * Called after the blob has been copied, and before the blob with the old
+	 * key is deleted. If this throws an exception, the old blob is kept, and
+	 * the copy is deleted.
+	 *
+	 * @param oldKey
+	 *            the key of the blob before it was moved
+	 * @param newKey
+	 *            the key of the blob in its new shard
+	 */
+	void blobMoved(BlobKey oldKey, BlobKey newKey);
+
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.sharding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreReadCallback;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * {@link BlobstoreService Blobstore service} that distributes blobs across
+ * several other blobstore services (i.e. shards), like JDBC blobstores with
+ * different data sources, or file system blobstores with different root
+ * directories.
+ * <p>
+ * Each new blob is given a random token, and is stored in the shard that
+ * owns the token on a consistent hash ring (where each shard has a number of
+ * {@link #getVirtualNodes() virtual nodes}). The shard and the token are
+ * encoded in the key (as <code>shard:token:key</code>), so that a blob is
+ * found without looking it up in a directory. The token is also stored with
+ * the blob (in front of its name in the shard), so that
+ * {@link #listBlobInfos(BlobInfoQuery, BlobInfoCallback) listed} blobs have
+ * the same keys as the ones returned when they were created.
+ * </p>
+ * <p>
+ * When a {@link #addShard(String, BlobstoreService) shard is added}, it takes
+ * over some of the tokens of the other shards. New blobs are distributed
+ * across all shards right away. Existing blobs stay where they are (and can
+ * still be read with their keys), until they are
+ * {@link #rebalance(BlobMovedListener) rebalanced}. Since a moved
+ * blob gets a new key, a {@link BlobMovedListener listener} is notified of
+ * each move. Only the blobs whose tokens were taken over are moved (about
+ * 1/N of the blobs, when going to N shards).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class ShardedBlobstoreService implements BlobstoreService {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private static final int REBALANCE_PAGE_SIZE = 100;
+
+	private static final char SEPARATOR = ':';
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final int virtualNodes;
+	// copy-on-write, since shards are rarely added
+	private volatile Map<String, BlobstoreService> shards;
+	private volatile NavigableMap<Integer, String> ring;
+
+	public ShardedBlobstoreService(Map<String, BlobstoreService> shards) {
+		this(shards, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ShardedBlobstoreService(
+			Map<String, BlobstoreService> shards, int virtualNodes) {
+		if (shards == null || shards.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Shards cannot be null or empty");
+		}
+		if (virtualNodes <= 0) {
+			throw new IllegalArgumentException(
+					"Virtual nodes cannot be zero or less");
+		}
+		this.virtualNodes = virtualNodes;
+		this.shards = Collections.emptyMap();
+		this.ring = new TreeMap<>();
+		for (Map.Entry<String, BlobstoreService> shard : shards.entrySet()) {
+			addShard(shard.getKey(), shard.getValue());
+		}
+	}
+
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	/**
+	 * Returns the shards, by identifier.
+	 */
+	public Map<String, BlobstoreService> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Adds a shard. New blobs are stored in it right away. To move existing
+	 * blobs to it, {@link #rebalance(BlobMovedListener) rebalance} them.
+	 *
+	 * @param shardId
+	 *            the identifier of the shard, which becomes part of the keys
+	 *            of the blobs stored in it (and so, should never change)
+	 * @param blobstoreService
+	 *            the shard
+	 */
+	public synchronized void addShard(String shardId, BlobstoreService blobstoreService) {
+		if (shardId == null || shardId.isEmpty()
+				|| shardId.indexOf(SEPARATOR) != -1) {
+			throw new IllegalArgumentException(
+					"Shard identifier cannot be null or empty, or contain '"
+							+ SEPARATOR + "'");
+		}
+		if (blobstoreService == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		if (shards.containsKey(shardId)) {
+			throw new IllegalArgumentException(
+					"Shard already exists: " + shardId);
+		}
+		NavigableMap<Integer, String> newRing = new TreeMap<>(ring);
+		for (int i = 0; i < virtualNodes; i++) {
+			// first come, first served on (unlikely) collisions
+			newRing.putIfAbsent(hash(shardId + "#" + i), shardId);
+		}
+		Map<String, BlobstoreService> newShards = new LinkedHashMap<>(shards);
+		newShards.put(shardId, blobstoreService);
+		this.shards = Collections.unmodifiableMap(newShards);
+		this.ring = newRing;
+	}
+
+	private static int hash(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(
+					s.getBytes(StandardCharsets.UTF_8));
+			return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16)
+					| ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+		} catch (NoSuchAlgorithmException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	/**
+	 * Returns the identifier of the shard that owns the given token.
+	 */
+	protected String getShardId(int token) {
+		NavigableMap<Integer, String> ring = this.ring;
+		Map.Entry<Integer, String> node = ring.ceilingEntry(token);
+		return (node != null ? node : ring.firstEntry()).getValue();
+	}
+
+	/**
+	 * A key of this blobstore, split into its parts.
+	 */
+	protected static class ShardedKey {
+
+		final String shardId;
+		final int token;
+		final BlobKey blobKey; // key in the shard
+
+		ShardedKey(String shardId, int token, BlobKey blobKey) {
+			this.shardId = shardId;
+			this.token = token;
+			this.blobKey = blobKey;
+		}
+
+		static ShardedKey parse(BlobKey blobKey) {
+			if (blobKey == null) {
+				throw new IllegalArgumentException(
+						"Blob key cannot be null");
+			}
+			String value = blobKey.stringValue();
+			int i = value.indexOf(SEPARATOR);
+			int j = value.indexOf(SEPARATOR, i + 1);
+			if (i <= 0 || j <= i + 1) {
+				throw new IllegalArgumentException(
+						"Not a sharded blob key: " + blobKey);
+			}
+			try {
+				return new ShardedKey(
+						value.substring(0, i),
+						Integer.parseUnsignedInt(value.substring(i + 1, j), 16),
+						new BlobKey(value.substring(j + 1)));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(
+						"Not a sharded blob key: " + blobKey, e);
+			}
+		}
+
+		BlobKey toBlobKey() {
+			return new BlobKey(String.format("%s%c%08x%c%s",
+					shardId, SEPARATOR, token, SEPARATOR, blobKey.stringValue()));
+		}
+
+	}
+
+	/**
+	 * Returns the name under which a blob is stored in its shard: the token
+	 * (in hex), followed by the name (if not <code>null</code>).
+	 */
+	static String toStoredName(int token, String name) {
+		String storedToken = String.format("%08x", token);
+		return name == null ? storedToken : storedToken + SEPARATOR + name;
+	}
+
+	/**
+	 * Returns the token stored with the given blob of a shard. Blobs that
+	 * were stored without a token (e.g. before the shard was added) get one
+	 * derived from their keys in the shard.
+	 */
+	static int getToken(BlobInfo shardBlobInfo) {
+		String storedName = shardBlobInfo.getName();
+		if (hasStoredToken(storedName)) {
+			return Integer.parseUnsignedInt(storedName.substring(0, 8), 16);
+		}
+		return hash(shardBlobInfo.getBlobKey().stringValue());
+	}
+
+	static String getName(BlobInfo shardBlobInfo) {
+		String storedName = shardBlobInfo.getName();
+		if (!hasStoredToken(storedName)) {
+			return storedName;
+		}
+		return storedName.length() == 8 ? null : storedName.substring(9);
+	}
+
+	private static boolean hasStoredToken(String storedName) {
+		if (storedName == null || storedName.length() < 8
+				|| (storedName.length() > 8 && storedName.charAt(8) != SEPARATOR)) {
+			return false;
+		}
+		for (int i = 0; i < 8; i++) {
+			if (Character.digit(storedName.charAt(i), 16) == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static BlobInfo toBlobInfo(BlobKey blobKey, BlobInfo shardBlobInfo) {
+		return new BlobInfo(blobKey, getName(shardBlobInfo), shardBlobInfo.getContentType(),
+				shardBlobInfo.getSize(), shardBlobInfo.getDateCreated(), shardBlobInfo.getMd5Hash());
+	}
+
+	protected BlobstoreService getShard(String shardId) {
+		BlobstoreService shard = shards.get(shardId);
+		if (shard == null) {
+			throw new BlobstoreException("Shard not found: " + shardId);
+		}
+		return shard;
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		int token = ThreadLocalRandom.current().nextInt();
+		String shardId = getShardId(token);
+		return new ShardedKey(shardId, token, getShard(shardId).createBlob(
+				in, toStoredName(token, name), contentType)).toBlobKey();
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		int token = ThreadLocalRandom.current().nextInt();
+		String shardId = getShardId(token);
+		return new ShardedKey(shardId, token, getShard(shardId).createBlob(
+				callback, toStoredName(token, name), contentType)).toBlobKey();
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		BlobInfo blobInfo = getShard(key.shardId).getBlobInfo(key.blobKey);
+		if (blobInfo == null) {
+			return null;
+		}
+		return toBlobInfo(blobKey, blobInfo);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		getShard(key.shardId).serveBlob(key.blobKey, out);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		getShard(key.shardId).serveBlob(key.blobKey, out, start);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		getShard(key.shardId).serveBlob(key.blobKey, out, start, end);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		getShard(key.shardId).serveBlob(key.blobKey, (blobInfo) -> {
+			return callback.blobInfoRetrieved(
+					blobInfo == null ? null : toBlobInfo(blobKey, blobInfo));
+		}, out);
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		ShardedKey[] keys = new ShardedKey[blobKeys.length];
+		// positions of keys, by shard
+		Map<String, List<Integer>> positions = new LinkedHashMap<>();
+		for (int i = 0; i < blobKeys.length; i++) {
+			keys[i] = ShardedKey.parse(blobKeys[i]);
+			positions.computeIfAbsent(keys[i].shardId, (k) -> new ArrayList<>()).add(i);
+		}
+		// One call per shard
+		int[] updateCounts = new int[blobKeys.length];
+		for (Map.Entry<String, List<Integer>> shardPositions : positions.entrySet()) {
+			List<Integer> indices = shardPositions.getValue();
+			BlobKey[] shardKeys = new BlobKey[indices.size()];
+			for (int i = 0; i < shardKeys.length; i++) {
+				shardKeys[i] = keys[indices.get(i)].blobKey;
+			}
+			int[] shardUpdateCounts = getShard(shardPositions.getKey()).delete(shardKeys);
+			for (int i = 0; i < shardKeys.length; i++) {
+				updateCounts[indices.get(i)] = shardUpdateCounts[i];
+			}
+		}
+		return updateCounts;
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		getShard(key.shardId).readBlob(key.blobKey, callback);
+	}
+
+	/**
+	 * Lists the blobs of each shard (in the order the shards were added), in
+	 * the order of their keys in the shard. The listed keys are the same as
+	 * the ones returned when the blobs were created (since their tokens are
+	 * stored with them).
+	 */
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		List<String> shardIds = new ArrayList<>(shards.keySet());
+		int first = 0;
+		BlobKey afterKey = null;
+		if (query.getAfterKey() != null) {
+			ShardedKey key = ShardedKey.parse(query.getAfterKey());
+			first = shardIds.indexOf(key.shardId);
+			if (first == -1) {
+				throw new BlobstoreException("Shard not found: " + key.shardId);
+			}
+			afterKey = key.blobKey;
+		}
+		BlobKey lastKey = null;
+		int remaining = query.getLimit();
+		boolean[] stopped = new boolean[1];
+		for (int i = first; i < shardIds.size() && !stopped[0]; i++) {
+			String shardId = shardIds.get(i);
+			BlobInfoQuery shardQuery = new BlobInfoQuery(query);
+			shardQuery.setAfterKey(i == first ? afterKey : null);
+			shardQuery.setLimit(remaining);
+			int[] listed = new int[1];
+			BlobKey[] lastListedKey = new BlobKey[1];
+			BlobKey shardLastKey = getShard(shardId).listBlobInfos(shardQuery, (blobInfo) -> {
+				listed[0]++;
+				BlobKey blobKey = new ShardedKey(shardId, getToken(blobInfo),
+						blobInfo.getBlobKey()).toBlobKey();
+				lastListedKey[0] = blobKey;
+				stopped[0] = !callback.blobInfoRetrieved(toBlobInfo(blobKey, blobInfo));
+				return !stopped[0];
+			});
+			if (shardLastKey != null) {
+				// only the key in the shard matters when listing after it
+				lastKey = lastListedKey[0] != null
+						&& ShardedKey.parse(lastListedKey[0]).blobKey.equals(shardLastKey)
+								? lastListedKey[0]
+								: new ShardedKey(shardId, hash(shardLastKey.stringValue()),
+										shardLastKey).toBlobKey();
+			}
+			if (remaining > 0) {
+				remaining -= listed[0];
+				if (remaining == 0) {
+					break;
+				}
+			}
+		}
+		return lastKey;
+	}
+
+	/**
+	 * Returns <code>true</code> if the blob with the given key is not in the
+	 * shard that now owns its token (i.e. it would be moved when rebalanced).
+	 */
+	public boolean isMisplaced(BlobKey blobKey) {
+		ShardedKey key = ShardedKey.parse(blobKey);
+		return !key.shardId.equals(getShardId(key.token));
+	}
+
+	/**
+	 * Moves the blob with the given key to the shard that now owns its token,
+	 * if it is not there yet.
+	 *
+	 * @return the new key of the blob, or the same key if it was not moved
+	 * @throws BlobstoreException
+	 *             if the blob is not found, or an error occurs while moving
+	 *             the blob
+	 */
+	public BlobKey rebalance(BlobKey blobKey, BlobMovedListener listener)
+			throws IOException, BlobstoreException {
+		if (listener == null) {
+			throw new IllegalArgumentException(
+					"Listener cannot be null");
+		}
+		ShardedKey key = ShardedKey.parse(blobKey);
+		String shardId = getShardId(key.token);
+		if (key.shardId.equals(shardId)) {
+			return blobKey;
+		}
+		BlobstoreService source = getShard(key.shardId);
+		BlobstoreService target = getShard(shardId);
+		BlobInfo blobInfo = source.getBlobInfo(key.blobKey);
+		if (blobInfo == null) {
+			throw new BlobstoreException("Blob not found: " + blobKey);
+		}
+		BlobKey newKey = new ShardedKey(shardId, key.token,
+				target.createBlob((out) -> {
+					source.serveBlob(key.blobKey, out);
+					return blobInfo.getSize();
+				}, toStoredName(key.token, getName(blobInfo)),
+						blobInfo.getContentType())).toBlobKey();
+		try {
+			listener.blobMoved(blobKey, newKey);
+		} catch (RuntimeException e) {
+			delete(newKey);
+			throw e;
+		}
+		source.delete(key.blobKey);
+		LOGGER.debug("Moved blob [{}] to [{}]", blobKey, newKey);
+		return newKey;
+	}
+
+	/**
+	 * Moves the blobs that are not in the shards that now own their tokens,
+	 * walking the {@link #listBlobInfos(BlobInfoQuery, BlobInfoCallback)
+	 * listings} of the shards a page at a time. A blob that fails to move is
+	 * logged and skipped.
+	 *
+	 * @return the number of blobs moved
+	 */
+	public int rebalance(BlobMovedListener listener)
+			throws IOException, BlobstoreException {
+		if (listener == null) {
+			throw new IllegalArgumentException(
+					"Listener cannot be null");
+		}
+		int moved = 0;
+		BlobInfoQuery query = new BlobInfoQuery(null, REBALANCE_PAGE_SIZE);
+		List<BlobInfo> page;
+		while (!(page = listBlobInfos(query)).isEmpty()) {
+			for (BlobInfo blobInfo : page) {
+				BlobKey blobKey = blobInfo.getBlobKey();
+				try {
+					if (isMisplaced(blobKey)) {
+						// moved to another shard, which may list it again
+						rebalance(blobKey, listener);
+						moved++;
+					}
+				} catch (IOException | RuntimeException e) {
+					LOGGER.warn("Failed to move blob [{}]: {}", blobKey, e.toString());
+				}
+			}
+			query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+		}
+		return moved;
+	}
+
+	/**
+	 * Same as {@link #rebalance(BlobMovedListener)}, but in the background
+	 * (using the given executor).
+	 *
+	 * @return the number of blobs moved, when done
+	 */
+	public CompletableFuture<Integer> rebalanceAsync(
+			BlobMovedListener listener, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return rebalance(listener);
+			} catch (IOException e) {
+				throw new BlobstoreException(e);
+			}
+		}, executor);
+	}
+
+}
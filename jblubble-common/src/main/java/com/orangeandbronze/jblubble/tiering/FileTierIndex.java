@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.tiering;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+
+/**
+ * {@link TierIndex Tier index} that keeps entries in memory, and appends
+ * changes to a log file. The log file is read (and compacted) when the index
+ * is created.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class FileTierIndex extends InMemoryTierIndex {
+
+	private static final String PUT = "put";
+	private static final String REMOVE = "remove";
+	private static final String ENCODING = "UTF-8";
+
+	private final File file;
+	// not a monitor, so that virtual threads are not pinned while appending
+	private final Lock lock = new ReentrantLock();
+
+	public FileTierIndex(File file) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException(
+					"File cannot be null");
+		}
+		this.file = file;
+		if (file.exists()) {
+			load();
+			compact();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(
+				file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (PUT.equals(fields[0]) && fields.length == 8) {
+					entries.put(new BlobKey(decode(fields[1])), new BlobInfo(
+							new BlobKey(decode(fields[2])),
+							decode(fields[3]),
+							decode(fields[4]),
+							Long.parseLong(fields[5]),
+							fields[6].isEmpty() ? null : new Date(Long.parseLong(fields[6])),
+							decode(fields[7])));
+				} else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+					entries.remove(new BlobKey(decode(fields[1])));
+				}
+				// else, ignore (e.g. partially written last line)
+			}
+		}
+	}
+
+	private void compact() throws IOException {
+		File compactedFile = new File(file.getPath() + ".tmp");
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(compactedFile), StandardCharsets.UTF_8))) {
+			for (Map.Entry<BlobKey, BlobInfo> entry : entries.entrySet()) {
+				writer.write(putLine(entry.getKey(), entry.getValue()));
+			}
+		}
+		Files.move(compactedFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public void put(BlobKey blobKey, BlobInfo coldBlobInfo) {
+		lock.lock();
+		try {
+			append(putLine(blobKey, coldBlobInfo));
+			super.put(blobKey, coldBlobInfo);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void remove(BlobKey blobKey) {
+		lock.lock();
+		try {
+			if (entries.containsKey(blobKey)) {
+				append(REMOVE + "\t" + encode(blobKey.stringValue()) + "\n");
+				super.remove(blobKey);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static String putLine(BlobKey blobKey, BlobInfo coldBlobInfo) {
+		return PUT
+				+ "\t" + encode(blobKey.stringValue())
+				+ "\t" + encode(coldBlobInfo.getBlobKey().stringValue())
+				+ "\t" + encode(coldBlobInfo.getName())
+				+ "\t" + encode(coldBlobInfo.getContentType())
+				+ "\t" + coldBlobInfo.getSize()
+				+ "\t" + (coldBlobInfo.getDateCreated() == null ? ""
+						: coldBlobInfo.getDateCreated().getTime())
+				+ "\t" + encode(coldBlobInfo.getMd5Hash())
+				+ "\n";
+	}
+
+	private void append(String line) {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} catch (IOException e) {
+			throw new BlobstoreException("Error when writing to tier index", e);
+		}
+	}
+
+	// null is written as an empty field
+	private static String encode(String value) {
+		try {
+			return value == null ? "" : URLEncoder.encode(value, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	private static String decode(String value) throws UnsupportedEncodingException {
+		return value.isEmpty() ? null : URLDecoder.decode(value, ENCODING);
+	}
+
+}
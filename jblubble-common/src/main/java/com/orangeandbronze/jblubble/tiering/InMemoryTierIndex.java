@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.tiering;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * {@link TierIndex Tier index} that keeps entries in memory only. The entries
+ * are lost when the application stops, so this is only suitable for tests.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class InMemoryTierIndex implements TierIndex {
+
+	// in the order of their key values, for listing
+	protected final NavigableMap<BlobKey, BlobInfo> entries =
+			new ConcurrentSkipListMap<>(Comparator.comparing(BlobKey::stringValue));
+
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public BlobInfo get(BlobKey blobKey) {
+		return entries.get(blobKey);
+	}
+
+	@Override
+	public void put(BlobKey blobKey, BlobInfo coldBlobInfo) {
+		entries.put(blobKey, coldBlobInfo);
+	}
+
+	@Override
+	public void remove(BlobKey blobKey) {
+		entries.remove(blobKey);
+	}
+
+	@Override
+	public Map<BlobKey, BlobInfo> getEntries(BlobKey afterKey) {
+		return Collections.unmodifiableMap(
+				afterKey == null ? entries : entries.tailMap(afterKey, false));
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.tiering;
+
+import java.util.Map;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Keeps track of blobs that were moved to the cold tier of a
+ * {@link TieredBlobstoreService tiered blobstore service}. Looked up on every
+ * read, so implementations are expected to keep the entries in memory.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public interface TierIndex {
+
+	/**
+	 * Returns the blob info of the cold copy of the blob with the given key,
+	 * or <code>null</code> if the blob has not been moved. The returned blob
+	 * info has the key of the cold copy, and the original date created.
+	 */
+	BlobInfo get(BlobKey blobKey);
+
+	/**
+	 * Records that the blob with the given key was moved to the cold tier.
+	 */
+	void put(BlobKey blobKey, BlobInfo coldBlobInfo);
+
+	/**
+	 * Forgets the blob with the given key (e.g. after it was deleted).
+	 */
+	void remove(BlobKey blobKey);
+
+	/**
+	 * Returns the blobs that were moved to the cold tier (with the same blob
+	 * info as {@link #get(BlobKey)}), in the order of their key values,
+	 * starting after the given key (or from the first, if <code>null</code>).
+	 * This is used to list them a page at a time, so implementations are
+	 * expected to return a view (e.g. of a sorted map) instead of a copy.
+	 */
+	Map<BlobKey, BlobInfo> getEntries(BlobKey afterKey);
+
+}
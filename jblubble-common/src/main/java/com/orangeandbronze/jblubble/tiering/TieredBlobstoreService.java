@@ -0,0 +1,522 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.tiering;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreReadCallback;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * {@link BlobstoreService Blobstore service} with two tiers: a hot tier (e.g.
+ * a JDBC blobstore) where new blobs are created, and a cold tier (e.g. a file
+ * system blobstore) where blobs that have not been read for a while are
+ * {@link #migrate() moved}.
+ * <p>
+ * Blobs keep their (hot tier) keys when moved. A {@link TierIndex tier index}
+ * keeps track of the moved blobs, so that reads are redirected to the cold
+ * tier.
+ * </p>
+ * <p>
+ * Reads are tracked in memory only (i.e. no write per read). Since these are
+ * lost when the application stops, a blob is only considered cold after it
+ * has not been read for the {@link #setColdAfter(long) cold-after period},
+ * <em>and</em> reads have been tracked for at least that long (i.e. nothing is
+ * moved during that period after starting). Only the reads of the most
+ * recently read blobs are {@link #setMaxTrackedReads(int) tracked}. A blob
+ * whose read is no longer tracked is considered read as late as the latest
+ * read that is no longer tracked.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class TieredBlobstoreService implements BlobstoreService {
+
+	public static final long DEFAULT_COLD_AFTER = TimeUnit.DAYS.toMillis(30);
+	public static final long DEFAULT_ACCESS_TIME_GRANULARITY = TimeUnit.MINUTES.toMillis(1);
+	public static final int DEFAULT_MAX_TRACKED_READS = 100000;
+
+	private static final int MIGRATION_PAGE_SIZE = 100;
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	protected final BlobstoreService hotTier;
+	protected final BlobstoreService coldTier;
+	protected final TierIndex tierIndex;
+	private long coldAfter = DEFAULT_COLD_AFTER;
+	private long accessTimeGranularity = DEFAULT_ACCESS_TIME_GRANULARITY;
+	private volatile int maxTrackedReads = DEFAULT_MAX_TRACKED_READS;
+
+	// when reads started being tracked
+	private final long trackingStartTime;
+	// not a monitor, so that virtual threads are not pinned while waiting
+	private final Lock accessTimesLock = new ReentrantLock();
+	// guarded by accessTimesLock, least recently read first
+	private final Map<BlobKey, Long> accessTimes = new LinkedHashMap<BlobKey, Long>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BlobKey, Long> eldest) {
+			if (size() <= maxTrackedReads) {
+				return false;
+			}
+			evictedAccessTime = Math.max(evictedAccessTime, eldest.getValue());
+			return true;
+		}
+	};
+	// latest read time that is no longer tracked, guarded by accessTimesLock
+	private long evictedAccessTime;
+
+	public TieredBlobstoreService(
+			BlobstoreService hotTier, BlobstoreService coldTier, TierIndex tierIndex) {
+		if (hotTier == null || coldTier == null) {
+			throw new IllegalArgumentException(
+					"Blobstore services cannot be null");
+		}
+		if (tierIndex == null) {
+			throw new IllegalArgumentException(
+					"Tier index cannot be null");
+		}
+		this.hotTier = hotTier;
+		this.coldTier = coldTier;
+		this.tierIndex = tierIndex;
+		this.trackingStartTime = currentTimeMillis();
+	}
+
+	public long getColdAfter() {
+		return coldAfter;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a blob has not been read before it is
+	 * moved to the cold tier.
+	 */
+	public void setColdAfter(long coldAfter) {
+		if (coldAfter <= 0) {
+			throw new IllegalArgumentException(
+					"Cold-after period cannot be zero or less");
+		}
+		this.coldAfter = coldAfter;
+	}
+
+	public long getAccessTimeGranularity() {
+		return accessTimeGranularity;
+	}
+
+	/**
+	 * Sets how much (in milliseconds) a tracked read time can lag behind.
+	 * Reads of the same blob within this period only update the read time
+	 * once.
+	 */
+	public void setAccessTimeGranularity(long accessTimeGranularity) {
+		if (accessTimeGranularity < 0) {
+			throw new IllegalArgumentException(
+					"Access time granularity cannot be negative");
+		}
+		this.accessTimeGranularity = accessTimeGranularity;
+	}
+
+	public int getMaxTrackedReads() {
+		return maxTrackedReads;
+	}
+
+	/**
+	 * Sets the number of blobs whose reads are tracked. When exceeded, the
+	 * least recently read blob is no longer tracked, and every blob that is
+	 * not tracked is considered read at the same time as that blob. So, this
+	 * should be larger than the number of blobs read within the cold-after
+	 * period.
+	 */
+	public void setMaxTrackedReads(int maxTrackedReads) {
+		if (maxTrackedReads <= 0) {
+			throw new IllegalArgumentException(
+					"Max tracked reads cannot be zero or less");
+		}
+		this.maxTrackedReads = maxTrackedReads;
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	protected void accessed(BlobKey blobKey) {
+		long now = currentTimeMillis();
+		accessTimesLock.lock();
+		try {
+			Long accessTime = accessTimes.get(blobKey);
+			if (accessTime == null || now - accessTime > accessTimeGranularity) {
+				accessTimes.put(blobKey, now);
+			}
+		} finally {
+			accessTimesLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the time (in milliseconds) the blob with the given key was last
+	 * read, or (if not tracked) the latest time a blob that is no longer
+	 * tracked was read.
+	 */
+	protected long getAccessTime(BlobKey blobKey) {
+		accessTimesLock.lock();
+		try {
+			Long accessTime = accessTimes.get(blobKey);
+			return accessTime != null ? accessTime : evictedAccessTime;
+		} finally {
+			accessTimesLock.unlock();
+		}
+	}
+
+	private void forget(BlobKey blobKey) {
+		accessTimesLock.lock();
+		try {
+			accessTimes.remove(blobKey);
+		} finally {
+			accessTimesLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the blob is in the cold tier.
+	 */
+	public boolean isCold(BlobKey blobKey) {
+		return tierIndex.get(blobKey) != null;
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return hotTier.createBlob(in, name, contentType);
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return hotTier.createBlob(callback, name, contentType);
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		BlobInfo coldBlobInfo = tierIndex.get(blobKey);
+		if (coldBlobInfo == null) {
+			BlobInfo blobInfo = hotTier.getBlobInfo(blobKey);
+			if (blobInfo != null) {
+				return blobInfo;
+			}
+			// may have been moved in the meantime
+			coldBlobInfo = tierIndex.get(blobKey);
+			if (coldBlobInfo == null) {
+				return null;
+			}
+		}
+		return new BlobInfo(blobKey, coldBlobInfo.getName(), coldBlobInfo.getContentType(),
+				coldBlobInfo.getSize(), coldBlobInfo.getDateCreated(), coldBlobInfo.getMd5Hash());
+	}
+
+	@FunctionalInterface
+	protected interface TierOperation {
+		void apply(BlobstoreService tier, BlobKey tierKey) throws IOException;
+	}
+
+	/**
+	 * Applies the given operation to the tier where the blob is, and records
+	 * the read.
+	 */
+	protected void read(BlobKey blobKey, TierOperation operation)
+			throws IOException, BlobstoreException {
+		accessed(blobKey);
+		BlobInfo coldBlobInfo = tierIndex.get(blobKey);
+		if (coldBlobInfo == null) {
+			try {
+				operation.apply(hotTier, blobKey);
+				return;
+			} catch (BlobstoreException e) {
+				// may have been moved in the meantime
+				coldBlobInfo = tierIndex.get(blobKey);
+				if (coldBlobInfo == null) {
+					throw e;
+				}
+			}
+		}
+		operation.apply(coldTier, coldBlobInfo.getBlobKey());
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		read(blobKey, (tier, tierKey) -> tier.serveBlob(tierKey, out));
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		read(blobKey, (tier, tierKey) -> tier.serveBlob(tierKey, out, start));
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		read(blobKey, (tier, tierKey) -> tier.serveBlob(tierKey, out, start, end));
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		accessed(blobKey);
+		BlobInfo coldBlobInfo = tierIndex.get(blobKey);
+		if (coldBlobInfo == null) {
+			// A blob that is not found may have been moved in the meantime
+			boolean[] found = new boolean[1];
+			hotTier.serveBlob(blobKey, (blobInfo) -> {
+				found[0] = blobInfo != null;
+				return found[0] && callback.blobInfoRetrieved(blobInfo);
+			}, out);
+			if (found[0]) {
+				return;
+			}
+			coldBlobInfo = tierIndex.get(blobKey);
+			if (coldBlobInfo == null) {
+				callback.blobInfoRetrieved(null);
+				return;
+			}
+		}
+		// Blob info is already known
+		if (callback.blobInfoRetrieved(getBlobInfo(blobKey))) {
+			coldTier.serveBlob(coldBlobInfo.getBlobKey(), out);
+		}
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		read(blobKey, (tier, tierKey) -> tier.readBlob(tierKey, callback));
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		int[] updateCounts = hotTier.delete(blobKeys);
+		for (int i = 0; i < blobKeys.length; i++) {
+			BlobInfo coldBlobInfo = tierIndex.get(blobKeys[i]);
+			if (coldBlobInfo != null) {
+				updateCounts[i] += coldTier.delete(coldBlobInfo.getBlobKey())[0];
+				tierIndex.remove(blobKeys[i]);
+			}
+			forget(blobKeys[i]);
+		}
+		return updateCounts;
+	}
+
+	/**
+	 * Lists the blobs in the hot tier (in the order of its keys), followed by
+	 * the blobs in the cold tier (in the order of their key values), using
+	 * the {@link TierIndex tier index}. Blobs that are moved to the cold tier
+	 * while a listing is paged through may be skipped or listed twice.
+	 */
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		BlobKey afterKey = query.getAfterKey();
+		int remaining = query.getLimit();
+		BlobKey lastKey = null;
+		if (afterKey == null || !isCold(afterKey)) {
+			int[] listed = new int[1];
+			boolean[] stopped = new boolean[1];
+			lastKey = hotTier.listBlobInfos(query, (blobInfo) -> {
+				listed[0]++;
+				stopped[0] = !callback.blobInfoRetrieved(blobInfo);
+				return !stopped[0];
+			});
+			if (stopped[0] || (remaining > 0 && (remaining -= listed[0]) == 0)) {
+				return lastKey;
+			}
+			afterKey = null;
+		}
+		int listed = 0;
+		for (Map.Entry<BlobKey, BlobInfo> entry : tierIndex.getEntries(afterKey).entrySet()) {
+			BlobKey blobKey = entry.getKey();
+			BlobInfo coldBlobInfo = entry.getValue();
+			BlobInfo blobInfo = new BlobInfo(blobKey, coldBlobInfo.getName(),
+					coldBlobInfo.getContentType(), coldBlobInfo.getSize(),
+					coldBlobInfo.getDateCreated(), coldBlobInfo.getMd5Hash());
+			if (!query.matches(blobInfo)) {
+				continue;
+			}
+			lastKey = blobKey;
+			if (!callback.blobInfoRetrieved(blobInfo) || ++listed == remaining) {
+				break;
+			}
+		}
+		return lastKey;
+	}
+
+	/**
+	 * Moves the blob with the given key to the cold tier, if it is cold (i.e.
+	 * created and not read within the cold-after period).
+	 *
+	 * @return <code>true</code> if the blob was moved
+	 * @throws BlobstoreException
+	 *             if an error occurs while moving the blob
+	 */
+	public boolean migrate(BlobKey blobKey) throws IOException, BlobstoreException {
+		if (isCold(blobKey)) {
+			return false;
+		}
+		BlobInfo blobInfo = hotTier.getBlobInfo(blobKey);
+		if (blobInfo == null) {
+			return false;
+		}
+		return migrate(blobInfo);
+	}
+
+	/**
+	 * Moves the given blob of the hot tier to the cold tier, if it is cold. A
+	 * blob without a creation date is considered created when reads started
+	 * being tracked.
+	 */
+	protected boolean migrate(BlobInfo blobInfo) throws IOException, BlobstoreException {
+		BlobKey blobKey = blobInfo.getBlobKey();
+		long lastAccessTime = Math.max(trackingStartTime, getAccessTime(blobKey));
+		if (blobInfo.getDateCreated() != null) {
+			lastAccessTime = Math.max(lastAccessTime, blobInfo.getDateCreated().getTime());
+		}
+		if (currentTimeMillis() - lastAccessTime < coldAfter) {
+			return false;
+		}
+		BlobKey coldKey = coldTier.createBlob((out) -> {
+			hotTier.serveBlob(blobKey, out);
+			return blobInfo.getSize();
+		}, blobInfo.getName(), blobInfo.getContentType());
+		BlobInfo coldBlobInfo = coldTier.getBlobInfo(coldKey);
+		if (coldBlobInfo == null || coldBlobInfo.getSize() != blobInfo.getSize()
+				|| (blobInfo.getMd5Hash() != null && coldBlobInfo.getMd5Hash() != null
+						&& !blobInfo.getMd5Hash().equals(coldBlobInfo.getMd5Hash()))) {
+			coldTier.delete(coldKey);
+			throw new BlobstoreException(
+					"Copy of blob in cold tier does not match: " + blobKey);
+		}
+		tierIndex.put(blobKey, new BlobInfo(coldKey, blobInfo.getName(),
+				blobInfo.getContentType(), blobInfo.getSize(),
+				blobInfo.getDateCreated(), blobInfo.getMd5Hash()));
+		hotTier.delete(blobKey);
+		forget(blobKey);
+		LOGGER.debug("Moved blob [{}] to cold tier as [{}]", blobKey, coldKey);
+		return true;
+	}
+
+	/**
+	 * Moves the cold blobs among the given keys (e.g. all keys known to the
+	 * application) to the cold tier. A blob that fails to move is logged and
+	 * skipped.
+	 *
+	 * @return the number of blobs moved
+	 */
+	public int migrate(Iterable<BlobKey> blobKeys) {
+		int moved = 0;
+		for (BlobKey blobKey : blobKeys) {
+			try {
+				if (migrate(blobKey)) {
+					moved++;
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.warn("Failed to move blob [{}] to cold tier: {}", blobKey, e.toString());
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Moves the cold blobs of the hot tier to the cold tier, walking the
+	 * {@link BlobstoreService#listBlobInfos(BlobInfoQuery, BlobInfoCallback)
+	 * listing} of the hot tier a page at a time. A blob that fails to move is
+	 * logged and skipped.
+	 *
+	 * @return the number of blobs moved
+	 */
+	public int migrate() throws IOException, BlobstoreException {
+		int moved = 0;
+		BlobInfoQuery query = new BlobInfoQuery(null, MIGRATION_PAGE_SIZE);
+		List<BlobInfo> page;
+		while (!(page = hotTier.listBlobInfos(query)).isEmpty()) {
+			for (BlobInfo blobInfo : page) {
+				try {
+					if (migrate(blobInfo)) {
+						moved++;
+					}
+				} catch (IOException | RuntimeException e) {
+					LOGGER.warn("Failed to move blob [{}] to cold tier: {}",
+							blobInfo.getBlobKey(), e.toString());
+				}
+			}
+			query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+		}
+		return moved;
+	}
+
+	/**
+	 * Schedules {@link #migrate() migration} of the blobs listed by the hot
+	 * tier in the background, with the given delay between runs.
+	 */
+	public ScheduledFuture<?> scheduleMigration(ScheduledExecutorService executor,
+			long delay, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try {
+				int moved = migrate();
+				LOGGER.info("Moved {} blob(s) to cold tier", moved);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Error while moving blobs to cold tier", e);
+			}
+		}, delay, delay, unit);
+	}
+
+	/**
+	 * Schedules {@link #migrate(Iterable) migration} in the background, with
+	 * the given delay between runs.
+	 *
+	 * @param candidates
+	 *            supplies the keys to consider on each run
+	 */
+	public ScheduledFuture<?> scheduleMigration(ScheduledExecutorService executor,
+			Supplier<? extends Iterable<BlobKey>> candidates, long delay, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try {
+				int moved = migrate(candidates.get());
+				LOGGER.info("Moved {} blob(s) to cold tier", moved);
+			} catch (RuntimeException e) {
+				LOGGER.error("Error while moving blobs to cold tier", e);
+			}
+		}, delay, delay, unit);
+	}
+
+}
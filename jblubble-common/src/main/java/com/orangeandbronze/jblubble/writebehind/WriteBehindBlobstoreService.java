@@ -0,0 +1,1127 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.writebehind;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreReadCallback;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * {@link BlobstoreService Blobstore service} decorator that accepts new
+ * blobs into a local spool directory, and returns their keys right away. The
+ * spooled blobs are then drained (i.e. created) to another blobstore service
+ * (e.g. a JDBC blobstore) in the background, with at most
+ * {@link #setDrainConcurrency(int) drain concurrency} blobs being created at
+ * a time. This keeps upload bursts from turning into as many concurrent
+ * transactions.
+ * <p>
+ * Each blob is written (and synced) to its own spool file, and is then
+ * appended to a journal (<code>journal.log</code> in the spool directory),
+ * before its key is returned. Blobs that are spooled at the same time share
+ * one sync of the journal (i.e. group commit). Drained blobs are recorded in
+ * the journal a {@link #setDrainBatchSize(int) batch} at a time (i.e. one
+ * sync per batch), and their spool files are deleted. The journal is
+ * compacted when the blobstore is created, and after every
+ * {@link #setCompactionThreshold(int) compaction threshold} drained (or
+ * deleted) blobs. Blobs that were not drained before the application stopped
+ * are drained again. Since a blob may have been created in the other
+ * blobstore just before the application stopped (and before it was
+ * recorded), a blob may be drained more than once. The extra copies are not
+ * referenced, and can be collected as orphans.
+ * </p>
+ * <p>
+ * Blobs keep their (spool) keys, which start with {@value #KEY_PREFIX}.
+ * Spooled blobs are read from their spool files until they are drained, and
+ * from the other blobstore afterwards. Only spooled blobs are kept in memory.
+ * The keys of drained blobs (in the other blobstore) are kept in small key
+ * files (in the <code>drained</code> subdirectory), which are written when
+ * the blobs are drained (and synced when the journal is compacted). Keys
+ * without the prefix (i.e. blobs created directly in the other blobstore) are
+ * passed on as is. Since spooled blobs are not in the other blobstore yet,
+ * they are {@link #listBlobInfos(BlobInfoQuery, BlobInfoCallback) listed}
+ * after the blobs of the other blobstore.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class WriteBehindBlobstoreService implements BlobstoreService {
+
+	public static final String KEY_PREFIX = "spool-";
+	public static final int DEFAULT_DRAIN_CONCURRENCY = 2;
+	public static final int DEFAULT_DRAIN_BATCH_SIZE = 20;
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
+	private static final String JOURNAL_FILE_NAME = "journal.log";
+	private static final String SPOOL_FILE_SUFFIX = ".spool";
+	private static final String KEYS_DIRECTORY_NAME = "drained";
+	private static final String SPOOLED = "spooled";
+	private static final String DRAINED = "drained";
+	private static final String REMOVE = "remove";
+	private static final String ENCODING = "UTF-8";
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private static class Entry {
+		final BlobInfo blobInfo;
+		// changed while holding the lock (drained entries are only kept if
+		// their key files cannot be written)
+		volatile BlobKey drainedKey;
+		volatile boolean removed;
+
+		Entry(BlobInfo blobInfo) {
+			this.blobInfo = blobInfo;
+		}
+	}
+
+	// lines appended to the journal while another group is being written
+	private static class JournalGroup {
+		final StringBuilder lines = new StringBuilder();
+		boolean written;
+		IOException failure;
+	}
+
+	protected final BlobstoreService delegate;
+	private final File spoolDirectory;
+	private final File journalFile;
+	private final File keysDirectory;
+	private final Executor executor;
+	private int drainConcurrency = DEFAULT_DRAIN_CONCURRENCY;
+	private int drainBatchSize = DEFAULT_DRAIN_BATCH_SIZE;
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	// in the order of their key values, for listing
+	private final NavigableMap<BlobKey, Entry> entries =
+			new ConcurrentSkipListMap<>(Comparator.comparing(BlobKey::stringValue));
+	private final BlockingDeque<Entry> pending = new LinkedBlockingDeque<>();
+	private final AtomicInteger activeDrainers = new AtomicInteger();
+	// not a monitor, so that virtual threads are not pinned while appending
+	private final Lock lock = new ReentrantLock();
+	private final Condition allDrained = lock.newCondition();
+	// spooled blobs that are neither drained nor deleted, guarded by lock
+	private int undrained;
+	// not held while syncing, so that other threads can queue their lines
+	private final Lock journalLock = new ReentrantLock();
+	private final Condition journalWritten = journalLock.newCondition();
+	// guarded by journalLock
+	private JournalGroup openGroup = new JournalGroup();
+	private boolean journalWriting;
+	// drained (or deleted) blobs recorded since the journal was compacted
+	private final AtomicInteger recorded = new AtomicInteger();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	/**
+	 * Creates the blobstore, and starts draining the blobs that were spooled
+	 * (but not drained) before.
+	 *
+	 * @param delegate
+	 *            the blobstore service where spooled blobs are drained to
+	 * @param spoolDirectory
+	 *            the directory of spool files, key files and the journal
+	 *            (created if it does not exist)
+	 * @param executor
+	 *            the executor that runs the drains (with at least
+	 *            {@link #getDrainConcurrency() drain concurrency} threads,
+	 *            for them to run concurrently)
+	 * @throws IOException
+	 *             if the journal cannot be read (or compacted)
+	 */
+	public WriteBehindBlobstoreService(
+			BlobstoreService delegate, File spoolDirectory, Executor executor)
+			throws IOException {
+		if (delegate == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		if (spoolDirectory == null) {
+			throw new IllegalArgumentException(
+					"Spool directory cannot be null");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException(
+					"Executor cannot be null");
+		}
+		this.delegate = delegate;
+		this.spoolDirectory = spoolDirectory;
+		this.journalFile = new File(spoolDirectory, JOURNAL_FILE_NAME);
+		this.keysDirectory = new File(spoolDirectory, KEYS_DIRECTORY_NAME);
+		this.executor = executor;
+		Files.createDirectories(spoolDirectory.toPath());
+		if (journalFile.exists()) {
+			compact();
+			load();
+		}
+		deleteUnusedSpoolFiles();
+		drain();
+	}
+
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	public int getDrainConcurrency() {
+		return drainConcurrency;
+	}
+
+	/**
+	 * Sets the maximum number of blobs that are drained (i.e. created in the
+	 * other blobstore) at a time.
+	 */
+	public void setDrainConcurrency(int drainConcurrency) {
+		if (drainConcurrency <= 0) {
+			throw new IllegalArgumentException(
+					"Drain concurrency cannot be zero or less");
+		}
+		this.drainConcurrency = drainConcurrency;
+	}
+
+	public int getDrainBatchSize() {
+		return drainBatchSize;
+	}
+
+	/**
+	 * Sets the maximum number of blobs that each drain takes from the spool at
+	 * a time, before recording them (with one sync of the journal).
+	 */
+	public void setDrainBatchSize(int drainBatchSize) {
+		if (drainBatchSize <= 0) {
+			throw new IllegalArgumentException(
+					"Drain batch size cannot be zero or less");
+		}
+		this.drainBatchSize = drainBatchSize;
+	}
+
+	public int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the number of blobs that are drained (or deleted) before the
+	 * journal is compacted (by the drain that reaches it).
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		if (compactionThreshold <= 0) {
+			throw new IllegalArgumentException(
+					"Compaction threshold cannot be zero or less");
+		}
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Returns the number of spooled blobs that have not been drained yet.
+	 */
+	public int getUndrainedCount() {
+		lock.lock();
+		try {
+			return undrained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the blob is still in the spool (i.e. not
+	 * drained yet).
+	 */
+	public boolean isSpooled(BlobKey blobKey) {
+		Entry entry = entries.get(blobKey);
+		return entry != null && entry.drainedKey == null;
+	}
+
+	protected File spoolFile(BlobKey blobKey) {
+		return new File(spoolDirectory, blobKey.stringValue() + SPOOL_FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns the file with the key of the (drained) blob in the other
+	 * blobstore. Key files are spread over subdirectories (named after the
+	 * first two characters of the random part of the key), so that no
+	 * directory gets too large.
+	 */
+	protected File keyFile(BlobKey blobKey) {
+		String key = blobKey.stringValue();
+		String subdirectory = key.length() >= KEY_PREFIX.length() + 2
+				? key.substring(KEY_PREFIX.length(), KEY_PREFIX.length() + 2) : "";
+		return new File(new File(keysDirectory, subdirectory), key);
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return createBlob((out) -> {
+			return IOUtils.copyLarge(in, out);
+		}, name, contentType);
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		BlobKey blobKey = new BlobKey(KEY_PREFIX + UUID.randomUUID());
+		File spoolFile = spoolFile(blobKey);
+		MessageDigest md5 = newMd5();
+		long size;
+		try (FileOutputStream fileOut = new FileOutputStream(spoolFile)) {
+			CountingOutputStream out = new CountingOutputStream(
+					new DigestOutputStream(new BufferedOutputStream(fileOut), md5));
+			// keep the call-back from closing the file before it is synced
+			callback.writeToOutputStream(new CloseShieldOutputStream(out));
+			out.flush();
+			fileOut.getFD().sync();
+			size = out.getByteCount();
+		} catch (IOException | RuntimeException e) {
+			spoolFile.delete();
+			throw e;
+		}
+		Entry entry = new Entry(new BlobInfo(blobKey, name, contentType,
+				size, new Date(), toHex(md5.digest())));
+		try {
+			append(spooledLine(entry.blobInfo));
+		} catch (RuntimeException e) {
+			spoolFile.delete();
+			throw e;
+		}
+		lock.lock();
+		try {
+			entries.put(blobKey, entry);
+			undrained++;
+		} finally {
+			lock.unlock();
+		}
+		pending.add(entry);
+		drain();
+		return blobKey;
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		Entry entry = entries.get(blobKey);
+		if (entry == null && !isSpoolKey(blobKey)) {
+			return delegate.getBlobInfo(blobKey);
+		}
+		if (entry != null && entry.drainedKey == null) {
+			return entry.blobInfo;
+		}
+		BlobKey drainedKey = drainedKey(blobKey, entry);
+		if (drainedKey == null) {
+			return null;
+		}
+		BlobInfo blobInfo = delegate.getBlobInfo(drainedKey);
+		if (blobInfo == null) {
+			return null;
+		}
+		return new BlobInfo(blobKey, blobInfo.getName(), blobInfo.getContentType(),
+				blobInfo.getSize(), blobInfo.getDateCreated(), blobInfo.getMd5Hash());
+	}
+
+	protected boolean isSpoolKey(BlobKey blobKey) {
+		return blobKey.stringValue().startsWith(KEY_PREFIX);
+	}
+
+	/**
+	 * Returns the key of the drained blob in the other blobstore, or
+	 * <code>null</code> if the blob was not drained (or was deleted).
+	 */
+	private BlobKey drainedKey(BlobKey blobKey, Entry entry) throws BlobstoreException {
+		if (entry != null && entry.drainedKey != null) {
+			return entry.drainedKey;
+		}
+		try {
+			return new BlobKey(new String(
+					Files.readAllBytes(keyFile(blobKey).toPath()), StandardCharsets.UTF_8));
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new BlobstoreException("Error when reading key of drained blob", e);
+		}
+	}
+
+	@FunctionalInterface
+	protected interface SpoolOperation {
+		void apply(FileChannel spoolFile) throws IOException;
+	}
+
+	@FunctionalInterface
+	protected interface DelegateOperation {
+		void apply(BlobKey delegateKey) throws IOException;
+	}
+
+	/**
+	 * Applies the given operation to the spool file of the blob, if it has not
+	 * been drained yet. Otherwise, applies the other operation with the key
+	 * of the blob in the other blobstore.
+	 */
+	protected void read(BlobKey blobKey,
+			SpoolOperation spoolOperation, DelegateOperation delegateOperation)
+			throws IOException, BlobstoreException {
+		Entry entry = entries.get(blobKey);
+		if (entry == null && !isSpoolKey(blobKey)) {
+			delegateOperation.apply(blobKey);
+			return;
+		}
+		if (entry != null && entry.drainedKey == null) {
+			try (FileChannel spoolFile = FileChannel.open(
+					spoolFile(blobKey).toPath(), StandardOpenOption.READ)) {
+				spoolOperation.apply(spoolFile);
+				return;
+			} catch (NoSuchFileException e) {
+				// may have been drained (or deleted) in the meantime
+			}
+		}
+		BlobKey drainedKey = drainedKey(blobKey, entry);
+		if (drainedKey == null) {
+			throw new BlobstoreException("Blob not found: " + blobKey);
+		}
+		delegateOperation.apply(drainedKey);
+	}
+
+	private static void transfer(FileChannel spoolFile, long position, long count, OutputStream out)
+			throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		long end = Math.min(position + count, spoolFile.size());
+		while (position < end) {
+			position += spoolFile.transferTo(position, end - position, channel);
+		}
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		read(blobKey,
+				(spoolFile) -> transfer(spoolFile, 0, Long.MAX_VALUE, out),
+				(delegateKey) -> delegate.serveBlob(delegateKey, out));
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		read(blobKey,
+				(spoolFile) -> transfer(spoolFile, start, Long.MAX_VALUE, out),
+				(delegateKey) -> delegate.serveBlob(delegateKey, out, start));
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		read(blobKey,
+				(spoolFile) -> transfer(spoolFile, start, end - start + 1, out),
+				(delegateKey) -> delegate.serveBlob(delegateKey, out, start, end));
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		if (entries.containsKey(blobKey) || isSpoolKey(blobKey)) {
+			BlobstoreService.super.serveBlob(blobKey, callback, out);
+		} else {
+			delegate.serveBlob(blobKey, callback, out);
+		}
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		read(blobKey,
+				(spoolFile) -> callback.readInputStream(Channels.newInputStream(spoolFile)),
+				(delegateKey) -> delegate.readBlob(delegateKey, callback));
+	}
+
+	/**
+	 * Lists the blobs in the other blobstore (in the order of its keys),
+	 * followed by the blobs that are still spooled (in the order of their
+	 * keys). Drained blobs are listed with their keys in the other blobstore
+	 * (which this blobstore passes on as is). Blobs that are drained while a
+	 * listing is paged through may be skipped or listed twice.
+	 */
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		BlobKey afterKey = query.getAfterKey();
+		int remaining = query.getLimit();
+		BlobKey lastKey = null;
+		if (afterKey == null || !isSpoolKey(afterKey)) {
+			int[] listed = new int[1];
+			boolean[] stopped = new boolean[1];
+			lastKey = delegate.listBlobInfos(query, (blobInfo) -> {
+				listed[0]++;
+				stopped[0] = !callback.blobInfoRetrieved(blobInfo);
+				return !stopped[0];
+			});
+			if (stopped[0] || (remaining > 0 && (remaining -= listed[0]) == 0)) {
+				return lastKey;
+			}
+			afterKey = null;
+		}
+		int listed = 0;
+		for (Entry entry : (afterKey == null ? entries : entries.tailMap(afterKey, false)).values()) {
+			if (entry.drainedKey != null || entry.removed) {
+				continue;
+			}
+			BlobInfo blobInfo = entry.blobInfo;
+			BlobKey blobKey = blobInfo.getBlobKey();
+			if (!query.matches(blobInfo)) {
+				continue;
+			}
+			lastKey = blobKey;
+			if (!callback.blobInfoRetrieved(blobInfo) || ++listed == remaining) {
+				break;
+			}
+		}
+		return lastKey;
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		int[] updateCounts = new int[blobKeys.length];
+		List<Integer> passedOn = new ArrayList<>();
+		for (int i = 0; i < blobKeys.length; i++) {
+			Entry entry = entries.get(blobKeys[i]);
+			if (entry == null && !isSpoolKey(blobKeys[i])) {
+				passedOn.add(i);
+				continue;
+			}
+			if (entry != null && entry.removed) {
+				continue;
+			}
+			BlobKey drainedKey = entry != null ? entry.drainedKey : drainedKey(blobKeys[i], null);
+			if (entry == null && drainedKey == null) {
+				continue;
+			}
+			append(removeLine(blobKeys[i]));
+			recorded.incrementAndGet();
+			if (entry != null) {
+				lock.lock();
+				try {
+					if (entry.removed) {
+						continue;
+					}
+					entry.removed = true;
+					entries.remove(blobKeys[i]);
+					// may have been drained in the meantime
+					drainedKey = entry.drainedKey;
+					if (drainedKey == null) {
+						drained(1);
+					}
+				} finally {
+					lock.unlock();
+				}
+				if (drainedKey == null) {
+					// a drain in progress deletes its copy when it is done
+					spoolFile(blobKeys[i]).delete();
+					updateCounts[i] = 1;
+					continue;
+				}
+			}
+			keyFile(blobKeys[i]).delete();
+			updateCounts[i] = delegate.delete(drainedKey)[0];
+		}
+		if (!passedOn.isEmpty()) {
+			BlobKey[] delegateKeys = new BlobKey[passedOn.size()];
+			for (int j = 0; j < delegateKeys.length; j++) {
+				delegateKeys[j] = blobKeys[passedOn.get(j)];
+			}
+			int[] delegateCounts = delegate.delete(delegateKeys);
+			for (int j = 0; j < delegateKeys.length; j++) {
+				updateCounts[passedOn.get(j)] = delegateCounts[j];
+			}
+		}
+		return updateCounts;
+	}
+
+	/**
+	 * Starts draining spooled blobs in the background, with up to
+	 * {@link #getDrainConcurrency() drain concurrency} drains. This is called
+	 * after each blob is spooled. A drain stops at the first blob that fails
+	 * to drain (e.g. while the other blobstore is down), and leaves it in the
+	 * spool, so call this again (e.g. {@link #scheduleDrain scheduled}) to
+	 * retry.
+	 */
+	public void drain() {
+		int active;
+		while ((active = activeDrainers.get()) < drainConcurrency
+				&& (long) active * drainBatchSize < pending.size()) {
+			if (activeDrainers.compareAndSet(active, active + 1)) {
+				try {
+					executor.execute(this::drainPending);
+				} catch (RejectedExecutionException e) {
+					activeDrainers.decrementAndGet();
+					LOGGER.warn("Drain of spooled blobs was rejected: {}", e.toString());
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Schedules {@link #drain() draining} in the background, with the given
+	 * delay between runs (e.g. to retry blobs that failed to drain).
+	 */
+	public ScheduledFuture<?> scheduleDrain(ScheduledExecutorService executor,
+			long delay, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try {
+				drain();
+			} catch (RuntimeException e) {
+				LOGGER.error("Error while draining spooled blobs", e);
+			}
+		}, delay, delay, unit);
+	}
+
+	/**
+	 * Waits until all spooled blobs are drained (or deleted), or the given
+	 * time has elapsed.
+	 *
+	 * @return <code>true</code> if all spooled blobs are drained
+	 */
+	public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (undrained > 0) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = allDrained.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// called while holding the lock
+	private void drained(int count) {
+		undrained -= count;
+		if (undrained == 0) {
+			allDrained.signalAll();
+		}
+	}
+
+	private void drainPending() {
+		boolean failed = false;
+		try {
+			List<Entry> batch = new ArrayList<>(drainBatchSize);
+			while (!failed && pending.drainTo(batch, drainBatchSize) > 0) {
+				failed = !drainBatch(batch);
+				batch.clear();
+				if (recorded.get() >= compactionThreshold) {
+					compactQuietly();
+				}
+			}
+		} catch (RuntimeException e) {
+			failed = true;
+			LOGGER.error("Error while draining spooled blobs", e);
+		} finally {
+			activeDrainers.decrementAndGet();
+		}
+		// blobs may have been spooled while this drain was stopping
+		if (!failed) {
+			drain();
+		}
+	}
+
+	/**
+	 * Creates the given blobs in the other blobstore, and records them (with
+	 * one sync of the journal). Stops at the first blob that fails, and puts
+	 * it (and the rest of the batch) back at the head of the spool. Blobs
+	 * whose spool files are missing cannot be drained, and are removed.
+	 *
+	 * @return <code>false</code> if a blob failed to drain
+	 */
+	private boolean drainBatch(List<Entry> batch) {
+		Map<Entry, BlobKey> drainedKeys = new LinkedHashMap<>();
+		List<Entry> missing = new ArrayList<>();
+		int failedIndex = -1;
+		for (int i = 0; i < batch.size(); i++) {
+			Entry entry = batch.get(i);
+			if (entry.removed) {
+				continue;
+			}
+			BlobInfo blobInfo = entry.blobInfo;
+			try (InputStream in = Files.newInputStream(
+					spoolFile(blobInfo.getBlobKey()).toPath())) {
+				drainedKeys.put(entry, delegate.createBlob(
+						in, blobInfo.getName(), blobInfo.getContentType()));
+			} catch (NoSuchFileException e) {
+				// deleted in the meantime, or lost (and cannot be drained)
+				if (!entry.removed) {
+					LOGGER.error("Spool file of blob [{}] is missing", blobInfo.getBlobKey());
+					missing.add(entry);
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.warn("Failed to drain blob [{}]: {}", blobInfo.getBlobKey(), e.toString());
+				failedIndex = i;
+				break;
+			}
+		}
+		if (failedIndex >= 0) {
+			for (int i = batch.size() - 1; i >= failedIndex; i--) {
+				pending.addFirst(batch.get(i));
+			}
+		}
+		StringBuilder lines = new StringBuilder();
+		for (Map.Entry<Entry, BlobKey> drained : drainedKeys.entrySet()) {
+			// if removed in the meantime, the journal ignores the line
+			lines.append(drainedLine(
+					drained.getKey().blobInfo.getBlobKey(), drained.getValue()));
+		}
+		for (Entry entry : missing) {
+			lines.append(removeLine(entry.blobInfo.getBlobKey()));
+		}
+		if (lines.length() > 0) {
+			try {
+				append(lines.toString());
+			} catch (RuntimeException e) {
+				LOGGER.warn("Failed to record drained blobs: {}", e.toString());
+				// the rest of the batch is already back in the spool
+				for (int i = (failedIndex < 0 ? batch.size() : failedIndex) - 1; i >= 0; i--) {
+					pending.addFirst(batch.get(i));
+				}
+				// not recorded, so these are drained again later
+				delegate.delete(drainedKeys.values().toArray(new BlobKey[drainedKeys.size()]));
+				return false;
+			}
+		}
+		recorded.addAndGet(drainedKeys.size() + missing.size());
+		// not synced, since the journal has the drained keys until it is compacted
+		Set<Entry> keyFilesWritten = new HashSet<>();
+		for (Map.Entry<Entry, BlobKey> drained : drainedKeys.entrySet()) {
+			try {
+				writeKeyFile(drained.getKey().blobInfo.getBlobKey(), drained.getValue(), false);
+				keyFilesWritten.add(drained.getKey());
+			} catch (IOException e) {
+				LOGGER.warn("Failed to write key of drained blob [{}]: {}",
+						drained.getKey().blobInfo.getBlobKey(), e.toString());
+			}
+		}
+		List<BlobKey> orphanedKeys = new ArrayList<>();
+		lock.lock();
+		try {
+			int count = 0;
+			for (Map.Entry<Entry, BlobKey> drained : drainedKeys.entrySet()) {
+				Entry entry = drained.getKey();
+				if (entry.removed) {
+					orphanedKeys.add(drained.getValue());
+					keyFile(entry.blobInfo.getBlobKey()).delete();
+				} else {
+					entry.drainedKey = drained.getValue();
+					if (keyFilesWritten.contains(entry)) {
+						// read from its key file from now on
+						entries.remove(entry.blobInfo.getBlobKey());
+					}
+					count++;
+				}
+			}
+			for (Entry entry : missing) {
+				if (!entry.removed) {
+					entry.removed = true;
+					entries.remove(entry.blobInfo.getBlobKey());
+					count++;
+				}
+			}
+			for (Entry entry : drainedKeys.keySet()) {
+				// reads that already opened the spool file can still finish
+				spoolFile(entry.blobInfo.getBlobKey()).delete();
+			}
+			drained(count);
+		} finally {
+			lock.unlock();
+		}
+		if (!orphanedKeys.isEmpty()) {
+			delegate.delete(orphanedKeys.toArray(new BlobKey[orphanedKeys.size()]));
+		}
+		LOGGER.debug("Drained {} spooled blob(s)", drainedKeys.size());
+		return failedIndex < 0;
+	}
+
+	private void writeKeyFile(BlobKey blobKey, BlobKey drainedKey, boolean sync)
+			throws IOException {
+		File keyFile = keyFile(blobKey);
+		Files.createDirectories(keyFile.getParentFile().toPath());
+		try (FileOutputStream out = new FileOutputStream(keyFile)) {
+			out.write(drainedKey.stringValue().getBytes(StandardCharsets.UTF_8));
+			if (sync) {
+				out.getFD().sync();
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		Map<BlobKey, Entry> loaded = new LinkedHashMap<>();
+		replay(0, journalFile.length(), loaded, new HashSet<>());
+		StringBuilder lines = new StringBuilder();
+		for (Entry entry : loaded.values()) {
+			// drained blobs are in their key files after compaction
+			BlobKey blobKey = entry.blobInfo.getBlobKey();
+			if (entry.drainedKey == null) {
+				if (!spoolFile(blobKey).exists()) {
+					LOGGER.error("Spool file of blob [{}] is missing", blobKey);
+					lines.append(removeLine(blobKey));
+					continue;
+				}
+				pending.add(entry);
+				entries.put(blobKey, entry);
+				undrained++;
+			}
+		}
+		if (lines.length() > 0) {
+			append(lines.toString());
+		}
+		LOGGER.info("Loaded {} spooled blob(s) from journal", undrained);
+	}
+
+	/**
+	 * Applies the lines of the journal (from and to the given positions) to
+	 * the given blobs, and adds the keys of removed blobs to the given set.
+	 */
+	private void replay(long from, long to, Map<BlobKey, Entry> replayed, Set<BlobKey> removed)
+			throws IOException {
+		if (!journalFile.exists()) {
+			return;
+		}
+		try (InputStream in = new FileInputStream(journalFile)) {
+			IOUtils.skipFully(in, from);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new BoundedInputStream(in, to - from), StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (SPOOLED.equals(fields[0]) && fields.length == 7) {
+					BlobKey blobKey = new BlobKey(decode(fields[1]));
+					replayed.put(blobKey, new Entry(new BlobInfo(
+							blobKey,
+							decode(fields[2]),
+							decode(fields[3]),
+							Long.parseLong(fields[4]),
+							new Date(Long.parseLong(fields[5])),
+							decode(fields[6]))));
+				} else if (DRAINED.equals(fields[0]) && fields.length == 3) {
+					Entry entry = replayed.get(new BlobKey(decode(fields[1])));
+					if (entry != null) {
+						entry.drainedKey = new BlobKey(decode(fields[2]));
+					}
+				} else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+					BlobKey blobKey = new BlobKey(decode(fields[1]));
+					replayed.remove(blobKey);
+					removed.add(blobKey);
+				}
+				// else, ignore (e.g. partially written last line)
+			}
+		}
+	}
+
+	private void compactQuietly() {
+		try {
+			compact();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Failed to compact spool journal: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the blobs that are still spooled, after the
+	 * keys of drained blobs are written (and synced) to their key files. Most
+	 * of the journal is read while blobs are still being spooled and drained.
+	 * Only the lines that were appended in the meantime are read while other
+	 * appends wait.
+	 */
+	private void compact() throws IOException {
+		if (!compacting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Map<BlobKey, Entry> replayed = new LinkedHashMap<>();
+			Set<BlobKey> removed = new HashSet<>();
+			long length = awaitJournal(false);
+			replay(0, length, replayed, removed);
+			Set<BlobKey> synced = syncKeyFiles(replayed, removed, Collections.emptySet());
+			awaitJournal(true);
+			try {
+				recorded.set(0);
+				removed.clear();
+				replay(length, journalFile.length(), replayed, removed);
+				syncKeyFiles(replayed, removed, synced);
+				File compactedFile = new File(journalFile.getPath() + ".tmp");
+				try (FileOutputStream out = new FileOutputStream(compactedFile)) {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(
+							out, StandardCharsets.UTF_8));
+					for (Entry entry : replayed.values()) {
+						if (entry.drainedKey == null) {
+							writer.write(spooledLine(entry.blobInfo));
+						}
+					}
+					writer.flush();
+					out.getFD().sync();
+				}
+				Files.move(compactedFile.toPath(), journalFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				releaseJournal();
+			}
+			LOGGER.debug("Compacted spool journal");
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Writes (and syncs) the key files of the given drained blobs, except for
+	 * those already synced, and deletes the key files of removed blobs.
+	 *
+	 * @return the blobs whose key files were synced
+	 */
+	private Set<BlobKey> syncKeyFiles(Map<BlobKey, Entry> replayed, Set<BlobKey> removed,
+			Set<BlobKey> alreadySynced) throws IOException {
+		Set<BlobKey> synced = new HashSet<>();
+		Set<File> directories = new HashSet<>();
+		for (Entry entry : replayed.values()) {
+			BlobKey blobKey = entry.blobInfo.getBlobKey();
+			if (entry.drainedKey != null && !alreadySynced.contains(blobKey)) {
+				writeKeyFile(blobKey, entry.drainedKey, true);
+				directories.add(keyFile(blobKey).getParentFile());
+				synced.add(blobKey);
+			}
+		}
+		for (File directory : directories) {
+			syncDirectory(directory);
+		}
+		for (BlobKey blobKey : removed) {
+			keyFile(blobKey).delete();
+		}
+		return synced;
+	}
+
+	// so that new key files are not lost, skipped where not supported (e.g. Windows)
+	private static void syncDirectory(File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Waits for the journal write in progress (if any), and returns the length
+	 * of the journal. If exclusive, other writes wait until the journal is
+	 * {@link #releaseJournal() released}.
+	 */
+	private long awaitJournal(boolean exclusive) {
+		journalLock.lock();
+		try {
+			while (journalWriting) {
+				journalWritten.awaitUninterruptibly();
+			}
+			journalWriting = exclusive;
+			return journalFile.length();
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	private void releaseJournal() {
+		journalLock.lock();
+		try {
+			journalWriting = false;
+			journalWritten.signalAll();
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	// e.g. spooled but not recorded before the application stopped
+	private void deleteUnusedSpoolFiles() {
+		File[] spoolFiles = spoolDirectory.listFiles(
+				(dir, name) -> name.endsWith(SPOOL_FILE_SUFFIX));
+		if (spoolFiles == null) {
+			return;
+		}
+		for (File spoolFile : spoolFiles) {
+			String name = spoolFile.getName();
+			BlobKey blobKey = new BlobKey(
+					name.substring(0, name.length() - SPOOL_FILE_SUFFIX.length()));
+			if (!isSpooled(blobKey)) {
+				LOGGER.debug("Deleting unused spool file [{}]", spoolFile);
+				spoolFile.delete();
+			}
+		}
+	}
+
+	private static String spooledLine(BlobInfo blobInfo) {
+		return SPOOLED
+				+ "\t" + encode(blobInfo.getBlobKey().stringValue())
+				+ "\t" + encode(blobInfo.getName())
+				+ "\t" + encode(blobInfo.getContentType())
+				+ "\t" + blobInfo.getSize()
+				+ "\t" + blobInfo.getDateCreated().getTime()
+				+ "\t" + encode(blobInfo.getMd5Hash())
+				+ "\n";
+	}
+
+	private static String drainedLine(BlobKey blobKey, BlobKey drainedKey) {
+		return DRAINED
+				+ "\t" + encode(blobKey.stringValue())
+				+ "\t" + encode(drainedKey.stringValue())
+				+ "\n";
+	}
+
+	private static String removeLine(BlobKey blobKey) {
+		return REMOVE
+				+ "\t" + encode(blobKey.stringValue())
+				+ "\n";
+	}
+
+	/**
+	 * Appends the given lines to the journal, and returns after they are
+	 * synced. Lines that are appended while another thread is syncing are
+	 * written (and synced) together afterwards (i.e. group commit), so that
+	 * concurrent uploads do not wait for one sync each.
+	 */
+	private void append(String lines) {
+		journalLock.lock();
+		try {
+			JournalGroup group = openGroup;
+			group.lines.append(lines);
+			while (!group.written) {
+				if (journalWriting) {
+					journalWritten.awaitUninterruptibly();
+					continue;
+				}
+				// the open group (with the lines of this thread) is written next
+				journalWriting = true;
+				openGroup = new JournalGroup();
+				journalLock.unlock();
+				IOException failure = null;
+				try {
+					write(group.lines);
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					journalLock.lock();
+					journalWriting = false;
+					group.written = true;
+					group.failure = failure;
+					journalWritten.signalAll();
+				}
+			}
+			if (group.failure != null) {
+				throw new BlobstoreException(
+						"Error when writing to spool journal", group.failure);
+			}
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	private void write(CharSequence lines) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+			out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	// null is written as an empty field
+	private static String encode(String value) {
+		try {
+			return value == null ? "" : URLEncoder.encode(value, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	private static String decode(String value) throws UnsupportedEncodingException {
+		return value.isEmpty() ? null : URLDecoder.decode(value, ENCODING);
+	}
+
+}
@@ -0,0 +1,171 @@
+package com.orangeandbronze.jblubble;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blobstore service that keeps blobs in memory. Used to test decorators.
+ */
+public class InMemoryBlobstoreService implements BlobstoreService {
+
+	private static class Blob {
+		final BlobInfo blobInfo;
+		final byte[] content;
+
+		Blob(BlobInfo blobInfo, byte[] content) {
+			this.blobInfo = blobInfo;
+			this.content = content;
+		}
+	}
+
+	private final Map<BlobKey, Blob> blobs = new ConcurrentHashMap<>();
+	private final AtomicLong nextId = new AtomicLong();
+	private final String keyPrefix;
+
+	public InMemoryBlobstoreService() {
+		this("");
+	}
+
+	public InMemoryBlobstoreService(String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+	}
+
+	public int size() {
+		return blobs.size();
+	}
+
+	public boolean contains(BlobKey blobKey) {
+		return blobs.containsKey(blobKey);
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return createBlob((out) -> {
+			byte[] buffer = new byte[4096];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+			return -1L;
+		}, name, contentType);
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		callback.writeToOutputStream(out);
+		byte[] content = out.toByteArray();
+		BlobKey blobKey = new BlobKey(keyPrefix + nextId.incrementAndGet());
+		blobs.put(blobKey, new Blob(new BlobInfo(blobKey, name, contentType,
+				content.length, new Date(), md5Hash(content)), content));
+		return blobKey;
+	}
+
+	public static String md5Hash(byte[] content) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		Blob blob = blobs.get(blobKey);
+		return blob != null ? blob.blobInfo : null;
+	}
+
+	private Blob getBlob(BlobKey blobKey) {
+		Blob blob = blobs.get(blobKey);
+		if (blob == null) {
+			throw new BlobstoreException("Blob not found: " + blobKey);
+		}
+		return blob;
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		out.write(getBlob(blobKey).content);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		byte[] content = getBlob(blobKey).content;
+		out.write(content, (int) start, content.length - (int) start);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		byte[] content = getBlob(blobKey).content;
+		out.write(Arrays.copyOfRange(content, (int) start, (int) end + 1));
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		int[] updateCounts = new int[blobKeys.length];
+		for (int i = 0; i < blobKeys.length; i++) {
+			updateCounts[i] = blobs.remove(blobKeys[i]) != null ? 1 : 0;
+		}
+		return updateCounts;
+	}
+
+	/**
+	 * Lists blobs in the order they were created (i.e. by ID).
+	 */
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		List<BlobInfo> blobInfos = new ArrayList<>();
+		for (Blob blob : blobs.values()) {
+			blobInfos.add(blob.blobInfo);
+		}
+		blobInfos.sort(Comparator.comparingLong((blobInfo) -> id(blobInfo.getBlobKey())));
+		long afterId = query.getAfterKey() != null ? id(query.getAfterKey()) : 0;
+		BlobKey lastKey = null;
+		int count = 0;
+		for (BlobInfo blobInfo : blobInfos) {
+			if (id(blobInfo.getBlobKey()) <= afterId || !query.matches(blobInfo)) {
+				continue;
+			}
+			lastKey = blobInfo.getBlobKey();
+			if (!callback.blobInfoRetrieved(blobInfo)
+					|| ++count == query.getLimit()) {
+				break;
+			}
+		}
+		return lastKey;
+	}
+
+	private long id(BlobKey blobKey) {
+		return Long.parseLong(blobKey.stringValue().substring(keyPrefix.length()));
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		callback.readInputStream(new ByteArrayInputStream(getBlob(blobKey).content));
+	}
+
+}
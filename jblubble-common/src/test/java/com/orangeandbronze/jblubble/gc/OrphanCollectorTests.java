@@ -0,0 +1,86 @@
+package com.orangeandbronze.jblubble.gc;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.InMemoryBlobstoreService;
+
+public class OrphanCollectorTests {
+
+	private InMemoryBlobstoreService blobstoreService;
+	private OrphanCollector orphanCollector;
+	private List<BlobKey> storedKeys;
+	private List<BlobKey> liveKeys;
+
+	@Before
+	public void setUp() throws Exception {
+		blobstoreService = new InMemoryBlobstoreService();
+		orphanCollector = new OrphanCollector(blobstoreService);
+		orphanCollector.setExpectedLiveKeys(100);
+		storedKeys = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			storedKeys.add(blobstoreService.createBlob(
+					new ByteArrayInputStream(new byte[] { (byte) i }), "blob" + i, "text/plain"));
+		}
+		liveKeys = new ArrayList<>(storedKeys.subList(0, 60));
+		Thread.sleep(5);
+	}
+
+	@Test
+	public void reportsOrphansWithoutDeleting() throws Exception {
+		orphanCollector.setGracePeriod(0);
+		OrphanCollector.Report report = orphanCollector.collect(liveKeys, storedKeys);
+		assertEquals(60, report.getLiveKeys());
+		assertEquals(100, report.getScannedKeys());
+		// false positives may hide a few orphans
+		assertTrue(report.getOrphans() > 30 && report.getOrphans() <= 40);
+		assertEquals(0, report.getDeleted());
+		assertEquals(100, blobstoreService.size());
+	}
+
+	@Test
+	public void deletesOrphansButNotLiveBlobs() throws Exception {
+		orphanCollector.setGracePeriod(0);
+		orphanCollector.setDeleting(true);
+		orphanCollector.setDeleteChunkSize(7);
+		OrphanCollector.Report report = orphanCollector.collect(liveKeys, storedKeys);
+		assertEquals(report.getOrphans(), report.getDeleted());
+		assertEquals(100 - report.getDeleted(), blobstoreService.size());
+		for (BlobKey blobKey : liveKeys) {
+			assertTrue(blobstoreService.contains(blobKey));
+		}
+	}
+
+	@Test
+	public void recentBlobsAreNotCollected() throws Exception {
+		orphanCollector.setDeleting(true);
+		OrphanCollector.Report report = orphanCollector.collect(liveKeys, storedKeys);
+		assertEquals(0, report.getOrphans());
+		assertEquals(100, blobstoreService.size());
+	}
+
+	@Test
+	public void bloomFilterHasNoFalseNegatives() throws Exception {
+		BlobKeyBloomFilter filter = new BlobKeyBloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add(new BlobKey(String.valueOf(i)));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain(new BlobKey(String.valueOf(i))));
+			if (filter.mightContain(new BlobKey("not-" + i))) {
+				falsePositives++;
+			}
+		}
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 200);
+		assertTrue(filter.getSize() < 10000 * 10 / 8 + 8);
+	}
+
+}
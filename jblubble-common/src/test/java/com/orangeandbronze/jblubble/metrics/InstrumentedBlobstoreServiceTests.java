@@ -0,0 +1,103 @@
+package com.orangeandbronze.jblubble.metrics;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.InMemoryBlobstoreService;
+
+public class InstrumentedBlobstoreServiceTests {
+
+	private MBeanServer mBeanServer;
+	private JmxMetricsRegistry metricsRegistry;
+	private InstrumentedBlobstoreService blobstoreService;
+
+	@Before
+	public void setUp() throws Exception {
+		mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		metricsRegistry = new JmxMetricsRegistry(mBeanServer, "jblubble.test");
+		blobstoreService = new InstrumentedBlobstoreService(
+				new InMemoryBlobstoreService(), metricsRegistry);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		metricsRegistry.close();
+	}
+
+	@Test
+	public void recordsLatenciesAndBytes() throws Exception {
+		BlobKey blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(new byte[1000]), "a.bin", "application/octet-stream");
+		blobstoreService.createBlob((out) -> {
+			out.write(new byte[500]);
+			return 500L;
+		}, "b.bin", "application/octet-stream");
+		assertNotNull(blobstoreService.getBlobInfo(blobKey));
+		blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream());
+		blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream(), 100, 199);
+		blobstoreService.readBlob(blobKey, (in) -> {
+			in.read(new byte[10]);
+		});
+		blobstoreService.delete(blobKey);
+
+		assertEquals(2, metricsRegistry.histogram("blobstore.createBlob.latency").getCount());
+		assertEquals(1, metricsRegistry.histogram("blobstore.getBlobInfo.latency").getCount());
+		assertEquals(2, metricsRegistry.histogram("blobstore.serveBlob.latency").getCount());
+		assertEquals(1, metricsRegistry.histogram("blobstore.readBlob.latency").getCount());
+		assertEquals(1, metricsRegistry.histogram("blobstore.delete.latency").getCount());
+		assertEquals(1500, metricsRegistry.counter("blobstore.createBlob.bytesIn").getCount());
+		assertEquals(1100, metricsRegistry.counter("blobstore.serveBlob.bytesOut").getCount());
+		assertEquals(10, metricsRegistry.counter("blobstore.readBlob.bytesOut").getCount());
+		assertEquals(0, metricsRegistry.counter("blobstore.serveBlob.inFlight").getCount());
+	}
+
+	@Test
+	public void countsErrorsByType() throws Exception {
+		try {
+			blobstoreService.serveBlob(new BlobKey("missing"), new ByteArrayOutputStream());
+			fail("Expecting exception");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		try {
+			blobstoreService.createBlob((out) -> {
+				out.write(new byte[10]);
+				throw new IOException("Client went away");
+			}, "a.bin", "application/octet-stream");
+			fail("Expecting exception");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(1, metricsRegistry.counter(
+				"blobstore.serveBlob.errors.BlobstoreException").getCount());
+		assertEquals(1, metricsRegistry.counter(
+				"blobstore.createBlob.errors.IOException").getCount());
+		assertEquals(10, metricsRegistry.counter("blobstore.createBlob.bytesIn").getCount());
+		assertEquals(0, metricsRegistry.counter("blobstore.createBlob.inFlight").getCount());
+	}
+
+	@Test
+	public void exposesMetricsThroughJmx() throws Exception {
+		blobstoreService.getBlobInfo(new BlobKey("missing"));
+		assertEquals(1L, mBeanServer.getAttribute(metricsRegistry.getObjectName(
+				"Histogram", "blobstore.getBlobInfo.latency"), "Count"));
+		assertEquals(0L, mBeanServer.getAttribute(metricsRegistry.getObjectName(
+				"Counter", "blobstore.getBlobInfo.inFlight"), "Count"));
+		metricsRegistry.close();
+		assertFalse(mBeanServer.isRegistered(metricsRegistry.getObjectName(
+				"Counter", "blobstore.getBlobInfo.inFlight")));
+	}
+
+}
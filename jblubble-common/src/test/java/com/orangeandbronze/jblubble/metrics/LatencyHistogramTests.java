@@ -0,0 +1,53 @@
+package com.orangeandbronze.jblubble.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTests {
+
+	@Test
+	public void bucketsAreContiguousAndCoverTheirValues() throws Exception {
+		long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789L, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(LatencyHistogram.highestValueAt(index) >= value);
+			if (index > 0) {
+				assertTrue(LatencyHistogram.highestValueAt(index - 1) < value);
+			}
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueAt(
+				LatencyHistogram.indexOf(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void percentilesAreWithinPrecision() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value * 1000);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000000, histogram.getMax());
+		assertEquals(5000500.0, histogram.getMean(), 0.001);
+		assertWithinPrecision(5000000, histogram.getValueAtPercentile(50.0));
+		assertWithinPrecision(9900000, histogram.getValueAtPercentile(99.0));
+		assertWithinPrecision(9990000, histogram.getValueAtPercentile(99.9));
+		assertEquals(10000000, histogram.getValueAtPercentile(100.0));
+	}
+
+	private static void assertWithinPrecision(long expected, long actual) {
+		assertTrue("Expected " + expected + " but was " + actual,
+				Math.abs(actual - expected) <= expected * 0.04);
+	}
+
+	@Test
+	public void emptyAndNegative() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99.0));
+		assertEquals(0.0, histogram.getMean(), 0.0);
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.orangeandbronze.jblubble.parallel;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.InMemoryBlobstoreService;
+
+public class ParallelRangeBlobstoreServiceTests {
+
+	private byte[] content;
+	private List<long[]> fetchedRanges;
+	private AtomicInteger inFlight;
+	private int maxInFlight;
+	private long failingStart = -1;
+	private ExecutorService executor;
+	private ParallelRangeBlobstoreService blobstoreService;
+	private BlobKey blobKey;
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[1000];
+		new Random(42).nextBytes(content);
+		fetchedRanges = new CopyOnWriteArrayList<>();
+		inFlight = new AtomicInteger();
+		Random delays = new Random(7);
+		InMemoryBlobstoreService delegate = new InMemoryBlobstoreService() {
+			@Override
+			public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+					throws IOException, BlobstoreException {
+				int current = inFlight.incrementAndGet();
+				synchronized (ParallelRangeBlobstoreServiceTests.this) {
+					maxInFlight = Math.max(maxInFlight, current);
+				}
+				try {
+					fetchedRanges.add(new long[] { start, end });
+					if (start == failingStart) {
+						throw new IOException("Range failed");
+					}
+					// complete out of order
+					Thread.sleep(delays.nextInt(5));
+					super.serveBlob(blobKey, out, start, end);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		};
+		executor = Executors.newFixedThreadPool(8);
+		blobstoreService = new ParallelRangeBlobstoreService(delegate, executor);
+		blobstoreService.setRangeSize(64);
+		blobstoreService.setParallelism(3);
+		blobstoreService.setParallelThreshold(100);
+		blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(content), "large.bin", "application/octet-stream");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void servesRangesInOrder() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		assertArrayEquals(content, out.toByteArray());
+		assertEquals(16, fetchedRanges.size());
+		assertTrue(maxInFlight <= 3);
+
+		out.reset();
+		fetchedRanges.clear();
+		blobstoreService.serveBlob(blobKey, out, 100, 899);
+		assertArrayEquals(Arrays.copyOfRange(content, 100, 900), out.toByteArray());
+		assertEquals(13, fetchedRanges.size());
+
+		out.reset();
+		blobstoreService.serveBlob(blobKey, (blobInfo) -> {
+			assertEquals(1000, blobInfo.getSize());
+			return true;
+		}, out);
+		assertArrayEquals(content, out.toByteArray());
+	}
+
+	@Test
+	public void servesSmallRangesSequentially() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out, 950);
+		assertArrayEquals(Arrays.copyOfRange(content, 950, 1000), out.toByteArray());
+		out.reset();
+		blobstoreService.serveBlob(blobKey, out, 10, 59);
+		assertArrayEquals(Arrays.copyOfRange(content, 10, 60), out.toByteArray());
+		assertEquals(1, fetchedRanges.size());
+	}
+
+	@Test
+	public void failedRangeFailsServe() throws Exception {
+		failingStart = 320;
+		try {
+			blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream());
+			fail("Expecting failure of range");
+		} catch (IOException e) {
+			assertEquals("Range failed", e.getMessage());
+		}
+	}
+
+	@Test(expected = BlobstoreException.class)
+	public void blobNotFound() throws Exception {
+		blobstoreService.serveBlob(new BlobKey("missing"), new ByteArrayOutputStream());
+	}
+
+}
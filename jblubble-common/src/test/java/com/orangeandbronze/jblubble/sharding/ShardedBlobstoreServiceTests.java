@@ -0,0 +1,241 @@
+package com.orangeandbronze.jblubble.sharding;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.InMemoryBlobstoreService;
+
+public class ShardedBlobstoreServiceTests {
+
+	private InMemoryBlobstoreService shard1;
+	private InMemoryBlobstoreService shard2;
+	private ShardedBlobstoreService blobstoreService;
+
+	@Before
+	public void setUp() throws Exception {
+		shard1 = new InMemoryBlobstoreService();
+		shard2 = new InMemoryBlobstoreService();
+		Map<String, BlobstoreService> shards = new LinkedHashMap<>();
+		shards.put("s1", shard1);
+		shards.put("s2", shard2);
+		blobstoreService = new ShardedBlobstoreService(shards);
+	}
+
+	private BlobKey createBlob(String content) throws Exception {
+		return blobstoreService.createBlob(
+				new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+				content + ".txt", "text/plain");
+	}
+
+	private String serveBlob(BlobKey blobKey) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void distributesBlobsAcrossShards() throws Exception {
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			blobKeys.add(createBlob("blob" + i));
+		}
+		assertEquals(1000, shard1.size() + shard2.size());
+		assertTrue(shard1.size() > 300);
+		assertTrue(shard2.size() > 300);
+		for (int i = 0; i < 1000; i += 97) {
+			BlobKey blobKey = blobKeys.get(i);
+			assertTrue(blobKey.stringValue().startsWith("s1:")
+					|| blobKey.stringValue().startsWith("s2:"));
+			assertEquals("blob" + i, serveBlob(blobKey));
+			BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+			assertEquals(blobKey, blobInfo.getBlobKey());
+			assertEquals("blob" + i + ".txt", blobInfo.getName());
+		}
+	}
+
+	@Test
+	public void deletesFromEachShard() throws Exception {
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			blobKeys.add(createBlob("blob" + i));
+		}
+		blobKeys.add(3, new BlobKey("s2:00000000:999"));
+		int[] updateCounts = blobstoreService.delete(
+				blobKeys.toArray(new BlobKey[blobKeys.size()]));
+		for (int i = 0; i < updateCounts.length; i++) {
+			assertEquals(i == 3 ? 0 : 1, updateCounts[i]);
+		}
+		assertEquals(0, shard1.size() + shard2.size());
+	}
+
+	@Test
+	public void rebalancesOnlyBlobsOfNewShard() throws Exception {
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 900; i++) {
+			blobKeys.add(createBlob("blob" + i));
+		}
+		InMemoryBlobstoreService shard3 = new InMemoryBlobstoreService();
+		blobstoreService.addShard("s3", shard3);
+		// existing blobs can still be read
+		assertEquals("blob0", serveBlob(blobKeys.get(0)));
+
+		Map<BlobKey, BlobKey> moves = new HashMap<>();
+		int moved = blobstoreService.rebalanceAsync(moves::put, Runnable::run).get();
+		assertEquals(moves.size(), moved);
+		// about a third moves, and only to the new shard
+		assertTrue(moved > 200 && moved < 400);
+		assertEquals(moved, shard3.size());
+		assertEquals(900, shard1.size() + shard2.size() + shard3.size());
+		for (int i = 0; i < 900; i++) {
+			BlobKey blobKey = blobKeys.get(i);
+			BlobKey newKey = moves.getOrDefault(blobKey, blobKey);
+			assertFalse(blobstoreService.isMisplaced(newKey));
+			if (newKey != blobKey) {
+				assertTrue(newKey.stringValue().startsWith("s3:"));
+				assertNull(blobstoreService.getBlobInfo(blobKey));
+				assertEquals("blob" + i, serveBlob(newKey));
+				assertEquals("blob" + i + ".txt", blobstoreService.getBlobInfo(newKey).getName());
+			}
+		}
+		// nothing else to move
+		assertEquals(0, blobstoreService.rebalance(moves::put));
+	}
+
+	@Test
+	public void keepsBlobWhenListenerFails() throws Exception {
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			blobKeys.add(createBlob("blob"));
+		}
+		blobstoreService.addShard("s3", new InMemoryBlobstoreService());
+		BlobKey blobKey = null;
+		for (BlobKey candidate : blobKeys) {
+			if (blobstoreService.isMisplaced(candidate)) {
+				blobKey = candidate;
+			}
+		}
+		assertNotNull(blobKey);
+		int blobCount = count();
+		try {
+			blobstoreService.rebalance(blobKey, (oldKey, newKey) -> {
+				throw new IllegalStateException("Reference not updated");
+			});
+			fail("Expecting exception from listener");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(blobCount, count());
+		assertEquals("blob", serveBlob(blobKey));
+	}
+
+	private int count() {
+		int count = 0;
+		for (BlobstoreService shard : blobstoreService.getShards().values()) {
+			count += ((InMemoryBlobstoreService) shard).size();
+		}
+		return count;
+	}
+
+	@Test
+	public void rebalancesBlobsStoredBeforeShardWasAdded() throws Exception {
+		InMemoryBlobstoreService shard3 = new InMemoryBlobstoreService();
+		for (int i = 0; i < 30; i++) {
+			shard3.createBlob(new ByteArrayInputStream(new byte[] { (byte) i }),
+					"blob" + i + ".bin", null);
+		}
+		blobstoreService.addShard("s3", shard3);
+		List<BlobInfo> blobInfos = blobstoreService.listBlobInfos(new BlobInfoQuery());
+		assertEquals(30, blobInfos.size());
+		for (BlobInfo blobInfo : blobInfos) {
+			// with a token derived from the key in the shard
+			assertEquals(blobInfo.getName(),
+					blobstoreService.getBlobInfo(blobInfo.getBlobKey()).getName());
+		}
+		Map<BlobKey, BlobKey> moves = new HashMap<>();
+		int moved = blobstoreService.rebalance(moves::put);
+		assertTrue(moved > 10 && moved < 30);
+		assertEquals(30 - moved, shard3.size());
+		for (BlobInfo blobInfo : blobstoreService.listBlobInfos(new BlobInfoQuery())) {
+			assertFalse(blobstoreService.isMisplaced(blobInfo.getBlobKey()));
+			assertTrue(blobInfo.getName().matches("blob\\d+\\.bin"));
+		}
+		assertEquals(0, blobstoreService.rebalance(moves::put));
+	}
+
+	@Test
+	public void keepsNullName() throws Exception {
+		BlobKey blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(new byte[1]), null, null);
+		assertNull(blobstoreService.getBlobInfo(blobKey).getName());
+		assertNull(blobstoreService.listBlobInfos(new BlobInfoQuery()).get(0).getName());
+	}
+
+	@Test(expected = BlobstoreException.class)
+	public void failsOnUnknownShard() throws Exception {
+		serveBlob(new BlobKey("s9:00000000:1"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsKeyWithoutShard() throws Exception {
+		blobstoreService.getBlobInfo(new BlobKey("1"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsKeyWithoutToken() throws Exception {
+		blobstoreService.getBlobInfo(new BlobKey("s1::1"));
+	}
+
+	@Test
+	public void listsBlobsOfEachShard() throws Exception {
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			blobKeys.add(createBlob("blob" + i));
+		}
+		List<BlobInfo> blobInfos = new ArrayList<>();
+		BlobInfoQuery query = new BlobInfoQuery(null, 3);
+		List<BlobInfo> page;
+		while (!(page = blobstoreService.listBlobInfos(query)).isEmpty()) {
+			assertTrue(page.size() <= 3);
+			blobInfos.addAll(page);
+			query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+		}
+		assertEquals(20, blobInfos.size());
+		// shards in order
+		int shard2Start = shard1.size();
+		for (int i = 0; i < blobInfos.size(); i++) {
+			String listedKey = blobInfos.get(i).getBlobKey().stringValue();
+			assertTrue(listedKey.startsWith(i < shard2Start ? "s1:" : "s2:"));
+		}
+		// same keys as when created
+		for (BlobKey blobKey : blobKeys) {
+			BlobInfo listed = null;
+			for (BlobInfo blobInfo : blobInfos) {
+				if (blobInfo.getBlobKey().equals(blobKey)) {
+					listed = blobInfo;
+				}
+			}
+			assertNotNull(listed);
+			assertEquals(serveBlob(blobKey) + ".txt", listed.getName());
+		}
+		BlobInfoQuery images = new BlobInfoQuery();
+		images.setContentType("image/png");
+		assertTrue(blobstoreService.listBlobInfos(images).isEmpty());
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.orangeandbronze.jblubble.tiering;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.InMemoryBlobstoreService;
+
+public class TieredBlobstoreServiceTests {
+
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private InMemoryBlobstoreService hotTier;
+	private InMemoryBlobstoreService coldTier;
+	private InMemoryTierIndex tierIndex;
+	private long currentTime;
+	private TieredBlobstoreService blobstoreService;
+
+	@Before
+	public void setUp() throws Exception {
+		hotTier = new InMemoryBlobstoreService("hot");
+		coldTier = new InMemoryBlobstoreService("cold");
+		tierIndex = new InMemoryTierIndex();
+		currentTime = System.currentTimeMillis();
+		blobstoreService = createBlobstoreService(tierIndex);
+		blobstoreService.setColdAfter(30 * DAY);
+	}
+
+	private TieredBlobstoreService createBlobstoreService(TierIndex tierIndex) {
+		return new TieredBlobstoreService(hotTier, coldTier, tierIndex) {
+			@Override
+			protected long currentTimeMillis() {
+				return currentTime;
+			}
+		};
+	}
+
+	private BlobKey createBlob(String content) throws Exception {
+		return blobstoreService.createBlob(
+				new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+				content + ".txt", "text/plain");
+	}
+
+	private String serveBlob(BlobKey blobKey) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void movesBlobsNotReadWithinPeriod() throws Exception {
+		BlobKey unread = createBlob("unread");
+		BlobKey read = createBlob("read");
+		BlobInfo unreadInfo = blobstoreService.getBlobInfo(unread);
+		assertEquals(0, blobstoreService.migrate(Arrays.asList(unread, read)));
+
+		currentTime += 20 * DAY;
+		assertEquals("read", serveBlob(read));
+		currentTime += 15 * DAY;
+		assertEquals(1, blobstoreService.migrate(Arrays.asList(unread, read)));
+		assertTrue(blobstoreService.isCold(unread));
+		assertFalse(blobstoreService.isCold(read));
+		assertFalse(hotTier.contains(unread));
+		assertEquals(1, coldTier.size());
+
+		// Reads are redirected, with the same key and blob info
+		assertEquals("unread", serveBlob(unread));
+		assertEquals(unreadInfo, blobstoreService.getBlobInfo(unread));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(unread, out, 2, 3);
+		assertEquals("re", out.toString("UTF-8"));
+
+		assertArrayEquals(new int[] { 1, 1 }, blobstoreService.delete(unread, read));
+		assertEquals(0, hotTier.size());
+		assertEquals(0, coldTier.size());
+		assertEquals(0, tierIndex.size());
+	}
+
+	@Test
+	public void doesNotMoveBeforeReadsWereTrackedForPeriod() throws Exception {
+		BlobKey blobKey = createBlob("old");
+		currentTime += 60 * DAY;
+		// restarted, so reads before now are unknown
+		blobstoreService = createBlobstoreService(tierIndex);
+		blobstoreService.setColdAfter(30 * DAY);
+		assertFalse(blobstoreService.migrate(blobKey));
+		currentTime += 30 * DAY;
+		assertTrue(blobstoreService.migrate(blobKey));
+	}
+
+	@Test
+	public void movesBlobsListedByHotTier() throws Exception {
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 250; i++) {
+			blobKeys.add(createBlob("blob" + i));
+		}
+		currentTime += 20 * DAY;
+		assertEquals("blob7", serveBlob(blobKeys.get(7)));
+		currentTime += 15 * DAY;
+		assertEquals(249, blobstoreService.migrate());
+		assertEquals(1, hotTier.size());
+		assertTrue(hotTier.contains(blobKeys.get(7)));
+		assertEquals(0, blobstoreService.migrate());
+	}
+
+	@Test
+	public void untrackedReadsAreConsideredAsRecentAsLatestUntrackedRead() throws Exception {
+		blobstoreService.setMaxTrackedReads(1);
+		BlobKey blobKey1 = createBlob("one");
+		BlobKey blobKey2 = createBlob("two");
+		currentTime += 20 * DAY;
+		serveBlob(blobKey1);
+		currentTime += DAY;
+		// no longer tracks the read of blobKey1
+		serveBlob(blobKey2);
+		currentTime += 15 * DAY;
+		assertEquals(0, blobstoreService.migrate());
+		currentTime += 15 * DAY;
+		assertEquals(2, blobstoreService.migrate());
+	}
+
+	@Test
+	public void movesBlobWithoutCreationDate() throws Exception {
+		File file = new File(temporaryFolder.getRoot(), "tier-index.log");
+		hotTier = new InMemoryBlobstoreService("hot") {
+			@Override
+			public BlobInfo getBlobInfo(BlobKey blobKey) {
+				BlobInfo blobInfo = super.getBlobInfo(blobKey);
+				return blobInfo == null ? null : new BlobInfo(blobKey, blobInfo.getName(),
+						blobInfo.getContentType(), blobInfo.getSize(), null, blobInfo.getMd5Hash());
+			}
+		};
+		blobstoreService = createBlobstoreService(new FileTierIndex(file));
+		blobstoreService.setColdAfter(30 * DAY);
+		BlobKey blobKey = createBlob("undated");
+		currentTime += 31 * DAY;
+		assertTrue(blobstoreService.migrate(blobKey));
+
+		blobstoreService = createBlobstoreService(new FileTierIndex(file));
+		assertNull(blobstoreService.getBlobInfo(blobKey).getDateCreated());
+		assertEquals("undated", serveBlob(blobKey));
+	}
+
+	@Test
+	public void fileTierIndexSurvivesRestart() throws Exception {
+		File file = new File(temporaryFolder.getRoot(), "tier-index.log");
+		blobstoreService = createBlobstoreService(new FileTierIndex(file));
+		blobstoreService.setColdAfter(30 * DAY);
+		BlobKey blobKey1 = createBlob("one");
+		BlobKey blobKey2 = createBlob("two");
+		currentTime += 31 * DAY;
+		assertEquals(2, blobstoreService.migrate(Arrays.asList(blobKey1, blobKey2)));
+		blobstoreService.delete(blobKey2);
+
+		FileTierIndex tierIndex = new FileTierIndex(file);
+		assertEquals(1, tierIndex.size());
+		blobstoreService = createBlobstoreService(tierIndex);
+		assertTrue(blobstoreService.isCold(blobKey1));
+		assertEquals("one", serveBlob(blobKey1));
+		assertEquals("one.txt", blobstoreService.getBlobInfo(blobKey1).getName());
+		assertNull(blobstoreService.getBlobInfo(blobKey2));
+	}
+
+	@Test
+	public void listsHotTierFollowedByColdTier() throws Exception {
+		BlobKey cold1 = createBlob("cold1");
+		BlobKey cold2 = createBlob("cold2");
+		currentTime += 35 * DAY;
+		BlobKey hot = createBlob("hot");
+		assertEquals("hot", serveBlob(hot));
+		assertEquals(2, blobstoreService.migrate(Arrays.asList(cold1, cold2, hot)));
+
+		List<BlobKey> listed = new ArrayList<>();
+		BlobInfoQuery query = new BlobInfoQuery(null, 2);
+		List<BlobInfo> page;
+		while (!(page = blobstoreService.listBlobInfos(query)).isEmpty()) {
+			for (BlobInfo blobInfo : page) {
+				listed.add(blobInfo.getBlobKey());
+			}
+			query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+		}
+		assertEquals(Arrays.asList(hot, cold1, cold2), listed);
+
+		List<BlobInfo> blobInfos = blobstoreService.listBlobInfos(new BlobInfoQuery(hot, 0));
+		assertEquals(2, blobInfos.size());
+		assertEquals(cold1, blobInfos.get(0).getBlobKey());
+		assertEquals("cold1.txt", blobInfos.get(0).getName());
+		BlobInfoQuery images = new BlobInfoQuery();
+		images.setContentType("image/png");
+		assertTrue(blobstoreService.listBlobInfos(images).isEmpty());
+	}
+
+}
@@ -0,0 +1,337 @@
+package com.orangeandbronze.jblubble.writebehind;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.InMemoryBlobstoreService;
+
+public class WriteBehindBlobstoreServiceTests {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File spoolDirectory;
+	private ExecutorService executor;
+	// drains wait for this, unless released
+	private CountDownLatch released;
+	private AtomicInteger failures;
+	private AtomicInteger concurrentCreates;
+	private int maxConcurrentCreates;
+	private InMemoryBlobstoreService delegate;
+	private WriteBehindBlobstoreService blobstoreService;
+
+	@Before
+	public void setUp() throws Exception {
+		spoolDirectory = new File(temporaryFolder.getRoot(), "spool");
+		executor = Executors.newFixedThreadPool(8);
+		released = new CountDownLatch(0);
+		failures = new AtomicInteger();
+		concurrentCreates = new AtomicInteger();
+		delegate = new InMemoryBlobstoreService() {
+			@Override
+			public BlobKey createBlob(InputStream in, String name, String contentType)
+					throws IOException, BlobstoreException {
+				int concurrent = concurrentCreates.incrementAndGet();
+				try {
+					synchronized (WriteBehindBlobstoreServiceTests.this) {
+						maxConcurrentCreates = Math.max(maxConcurrentCreates, concurrent);
+					}
+					released.await();
+					if (failures.getAndDecrement() > 0) {
+						throw new BlobstoreException("Database is down");
+					}
+					return super.createBlob(in, name, contentType);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} finally {
+					concurrentCreates.decrementAndGet();
+				}
+			}
+		};
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, executor);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		released.countDown();
+		executor.shutdownNow();
+	}
+
+	private BlobKey createBlob(String content) throws Exception {
+		return blobstoreService.createBlob(
+				new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+				content + ".txt", "text/plain");
+	}
+
+	private String serveBlob(BlobKey blobKey) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		return out.toString("UTF-8");
+	}
+
+	private String serveBlob(BlobKey blobKey, long start, long end) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out, start, end);
+		return out.toString("UTF-8");
+	}
+
+	private int countSpoolFiles() {
+		return spoolDirectory.list((dir, name) -> name.endsWith(".spool")).length;
+	}
+
+	@Test
+	public void servesFromSpoolUntilDrained() throws Exception {
+		released = new CountDownLatch(1);
+		BlobKey blobKey = createBlob("spooled");
+		assertTrue(blobstoreService.isSpooled(blobKey));
+		assertEquals(0, delegate.size());
+
+		BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+		assertEquals(blobKey, blobInfo.getBlobKey());
+		assertEquals("spooled.txt", blobInfo.getName());
+		assertEquals(7, blobInfo.getSize());
+		assertEquals(InMemoryBlobstoreService.md5Hash(
+				"spooled".getBytes(StandardCharsets.UTF_8)), blobInfo.getMd5Hash());
+		assertEquals("spooled", serveBlob(blobKey));
+		assertEquals("poo", serveBlob(blobKey, 1, 3));
+
+		released.countDown();
+		assertTrue(blobstoreService.awaitDrained(5, TimeUnit.SECONDS));
+		assertFalse(blobstoreService.isSpooled(blobKey));
+		assertEquals(1, delegate.size());
+		assertEquals(0, countSpoolFiles());
+
+		// Same key and blob info, now from the other blobstore
+		assertEquals("spooled", serveBlob(blobKey));
+		assertEquals("poo", serveBlob(blobKey, 1, 3));
+		assertEquals(blobInfo.getMd5Hash(), blobstoreService.getBlobInfo(blobKey).getMd5Hash());
+		assertEquals(blobKey, blobstoreService.getBlobInfo(blobKey).getBlobKey());
+
+		assertArrayEquals(new int[] { 1 }, blobstoreService.delete(blobKey));
+		assertEquals(0, delegate.size());
+		assertNull(blobstoreService.getBlobInfo(blobKey));
+	}
+
+	@Test
+	public void drainsWithBoundedConcurrency() throws Exception {
+		blobstoreService.setDrainConcurrency(2);
+		blobstoreService.setDrainBatchSize(3);
+		released = new CountDownLatch(1);
+		List<BlobKey> blobKeys = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			blobKeys.add(createBlob("blob-" + i));
+		}
+		assertEquals(20, blobstoreService.getUndrainedCount());
+		released.countDown();
+		assertTrue(blobstoreService.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(20, delegate.size());
+		assertTrue(maxConcurrentCreates <= 2);
+		for (int i = 0; i < 20; i++) {
+			assertEquals("blob-" + i, serveBlob(blobKeys.get(i)));
+		}
+	}
+
+	@Test
+	public void spoolsConcurrently() throws Exception {
+		released = new CountDownLatch(1);
+		List<Future<BlobKey>> futures = new ArrayList<>();
+		ExecutorService uploads = Executors.newFixedThreadPool(8);
+		try {
+			for (int i = 0; i < 40; i++) {
+				final String content = "blob-" + i;
+				futures.add(uploads.submit(() -> createBlob(content)));
+			}
+			for (Future<BlobKey> future : futures) {
+				future.get();
+			}
+		} finally {
+			uploads.shutdown();
+		}
+		assertEquals(40, blobstoreService.getUndrainedCount());
+
+		// all of them were recorded in the journal
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, command -> {});
+		assertEquals(40, blobstoreService.getUndrainedCount());
+		for (int i = 0; i < 40; i++) {
+			assertEquals("blob-" + i, serveBlob(futures.get(i).get()));
+		}
+	}
+
+	@Test
+	public void retriesFailedDrains() throws Exception {
+		failures.set(1);
+		BlobKey blobKey = createBlob("retried");
+		assertFalse(blobstoreService.awaitDrained(200, TimeUnit.MILLISECONDS));
+		assertTrue(blobstoreService.isSpooled(blobKey));
+		assertEquals("retried", serveBlob(blobKey));
+
+		blobstoreService.drain();
+		assertTrue(blobstoreService.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(1, delegate.size());
+		assertEquals("retried", serveBlob(blobKey));
+	}
+
+	@Test
+	public void deletesSpooledBlobs() throws Exception {
+		released = new CountDownLatch(1);
+		BlobKey blobKey = createBlob("deleted");
+		assertArrayEquals(new int[] { 1 }, blobstoreService.delete(blobKey));
+		assertEquals(0, blobstoreService.getUndrainedCount());
+		assertNull(blobstoreService.getBlobInfo(blobKey));
+		try {
+			serveBlob(blobKey);
+			fail("Expecting deleted blob to be not found");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		released.countDown();
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.SECONDS);
+		// a drain in progress deletes its copy
+		assertEquals(0, delegate.size());
+		assertEquals(0, countSpoolFiles());
+	}
+
+	@Test
+	public void removesBlobsWithMissingSpoolFiles() throws Exception {
+		List<Runnable> drains = new ArrayList<>();
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, drains::add);
+		BlobKey lost = createBlob("lost");
+		BlobKey kept = createBlob("kept");
+		assertTrue(new File(spoolDirectory, lost.stringValue() + ".spool").delete());
+		for (Runnable drain : drains) {
+			drain.run();
+		}
+		assertTrue(blobstoreService.awaitDrained(0, TimeUnit.SECONDS));
+		assertEquals(1, delegate.size());
+		assertNull(blobstoreService.getBlobInfo(lost));
+		assertEquals("kept", serveBlob(kept));
+
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, executor);
+		assertEquals(0, blobstoreService.getUndrainedCount());
+		assertNull(blobstoreService.getBlobInfo(lost));
+		assertEquals("kept", serveBlob(kept));
+	}
+
+	@Test
+	public void passesOnKeysOfOtherBlobstore() throws Exception {
+		BlobKey blobKey = delegate.createBlob(
+				new ByteArrayInputStream("direct".getBytes(StandardCharsets.UTF_8)),
+				"direct.txt", "text/plain");
+		assertEquals("direct.txt", blobstoreService.getBlobInfo(blobKey).getName());
+		assertEquals("direct", serveBlob(blobKey));
+		assertArrayEquals(new int[] { 1, 0 }, blobstoreService.delete(
+				blobKey, new BlobKey(WriteBehindBlobstoreService.KEY_PREFIX + "unknown")));
+		assertEquals(0, delegate.size());
+	}
+
+	@Test
+	public void survivesRestart() throws Exception {
+		// nothing is drained before the restart
+		List<Runnable> drains = new ArrayList<>();
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, drains::add);
+		BlobKey blobKey1 = createBlob("one");
+		BlobKey blobKey2 = createBlob("two");
+		BlobKey blobKey3 = createBlob("three");
+		blobstoreService.delete(blobKey2);
+		assertEquals(2, countSpoolFiles());
+		assertEquals(0, delegate.size());
+		// spooled, but not recorded in the journal
+		assertTrue(new File(spoolDirectory, "stray.spool").createNewFile());
+
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, executor);
+		BlobKey blobKey4 = createBlob("four");
+		assertTrue(blobstoreService.awaitDrained(5, TimeUnit.SECONDS));
+		assertEquals(3, delegate.size());
+		assertEquals(0, countSpoolFiles());
+		assertEquals("one", serveBlob(blobKey1));
+		assertNull(blobstoreService.getBlobInfo(blobKey2));
+		assertEquals("three", serveBlob(blobKey3));
+		assertEquals("four", serveBlob(blobKey4));
+
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, executor);
+		assertEquals(0, blobstoreService.getUndrainedCount());
+		assertEquals("three.txt", blobstoreService.getBlobInfo(blobKey3).getName());
+	}
+
+	@Test
+	public void compactsJournalAfterThreshold() throws Exception {
+		List<Runnable> drains = new ArrayList<>();
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, drains::add);
+		blobstoreService.setCompactionThreshold(2);
+		BlobKey blobKey1 = createBlob("one");
+		BlobKey blobKey2 = createBlob("two");
+		BlobKey blobKey3 = createBlob("three");
+		File journalFile = new File(spoolDirectory, "journal.log");
+		assertEquals(3, Files.readAllLines(journalFile.toPath()).size());
+		drains.get(0).run();
+		// drained blobs are no longer in the journal
+		assertTrue(Files.readAllLines(journalFile.toPath()).isEmpty());
+		assertEquals("one", serveBlob(blobKey1));
+		assertEquals("two.txt", blobstoreService.getBlobInfo(blobKey2).getName());
+
+		assertArrayEquals(new int[] { 1 }, blobstoreService.delete(blobKey3));
+		blobstoreService = new WriteBehindBlobstoreService(delegate, spoolDirectory, executor);
+		assertEquals(0, blobstoreService.getUndrainedCount());
+		assertEquals("one", serveBlob(blobKey1));
+		assertEquals("two", serveBlob(blobKey2));
+		assertNull(blobstoreService.getBlobInfo(blobKey3));
+		assertEquals(2, delegate.size());
+	}
+
+	@Test
+	public void listsOtherBlobstoreFollowedBySpooledBlobs() throws Exception {
+		BlobKey drained = createBlob("drained");
+		assertTrue(blobstoreService.awaitDrained(5, TimeUnit.SECONDS));
+		released = new CountDownLatch(1);
+		List<BlobKey> spooled = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			spooled.add(createBlob("spooled" + i));
+		}
+		spooled.sort((a, b) -> a.stringValue().compareTo(b.stringValue()));
+
+		List<BlobInfo> blobInfos = new ArrayList<>();
+		BlobInfoQuery query = new BlobInfoQuery(null, 2);
+		List<BlobInfo> page;
+		while (!(page = blobstoreService.listBlobInfos(query)).isEmpty()) {
+			blobInfos.addAll(page);
+			query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+		}
+		assertEquals(4, blobInfos.size());
+		// drained blobs are listed with their keys in the other blobstore
+		BlobKey delegateKey = blobInfos.get(0).getBlobKey();
+		assertFalse(delegateKey.equals(drained));
+		assertEquals("drained", serveBlob(delegateKey));
+		for (int i = 0; i < spooled.size(); i++) {
+			assertEquals(spooled.get(i), blobInfos.get(i + 1).getBlobKey());
+		}
+		released.countDown();
+		assertTrue(blobstoreService.awaitDrained(5, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Measures the hot path of metadata lookups: formatting the SQL, and
+ * preparing and executing the statement (with and without the pool's
+ * statement cache). Run with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlobInfoLookupBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Sql {
+
+		private String sqlTemplate =
+				"SELECT name, content_type, size, date_created, md5_hash FROM %s WHERE id = ?";
+		private JdbcBlobstoreService blobstoreService;
+
+		@Setup
+		public void setUp() {
+			blobstoreService = new JdbcBlobstoreService(new BasicDataSource());
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class Database {
+
+		@Param({"false", "true"})
+		public boolean poolPreparedStatements;
+
+		private BasicDataSource dataSource;
+		private JdbcBlobstoreService blobstoreService;
+		private BlobKey blobKey;
+
+		@Setup
+		public void setUp() throws Exception {
+			dataSource = new BasicDataSource();
+			dataSource.setUrl("jdbc:hsqldb:mem:benchmark");
+			dataSource.setUsername("sa");
+			dataSource.setPoolPreparedStatements(poolPreparedStatements);
+			DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(
+					new ClassPathResource("com/orangeandbronze/jblubble/jdbc/create-lob-table.sql")),
+					dataSource);
+			blobstoreService = new JdbcBlobstoreService(dataSource);
+			blobKey = blobstoreService.createBlob(new ByteArrayInputStream(new byte[1024]),
+					"benchmark.bin", "application/octet-stream");
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			try (Connection connection = dataSource.getConnection();
+					Statement statement = connection.createStatement()) {
+				statement.execute("SHUTDOWN");
+			}
+			dataSource.close();
+		}
+
+	}
+
+	@Benchmark
+	public String formatSqlOnEachCall(Sql sql) {
+		return String.format(sql.sqlTemplate, sql.blobstoreService.getTableName());
+	}
+
+	@Benchmark
+	public String formatSqlOnce(Sql sql) {
+		return sql.blobstoreService.getSelectNonContentFieldsByIdSql();
+	}
+
+	@Benchmark
+	public BlobInfo getBlobInfo(Database database) {
+		return database.blobstoreService.getBlobInfo(database.blobKey);
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Compares creating (and deleting) blobs with {@link JdbcBlobstoreService}
+ * and {@link HsqldbBlobstoreService} on an embedded HSQLDB file database.
+ * The contents are generated as they are read, so any memory held is held by
+ * the blobstore. Each fork runs with a 256 MB heap.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=HsqldbBlobstoreServiceBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx256m")
+@State(Scope.Benchmark)
+public class HsqldbBlobstoreServiceBenchmark {
+
+	@Param({"jdbc", "hsqldb"})
+	public String implementation;
+
+	@Param({"65536", "8388608"})
+	public int size;
+
+	private File directory;
+	private BasicDataSource dataSource;
+	private JdbcBlobstoreService blobstoreService;
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("hsqldb-benchmark").toFile();
+		dataSource = new BasicDataSource();
+		dataSource.setUrl("jdbc:hsqldb:file:" + new File(directory, "benchmark"));
+		dataSource.setUsername("sa");
+		DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(
+				new ClassPathResource("com/orangeandbronze/jblubble/jdbc/create-lob-table.sql")),
+				dataSource);
+		if ("hsqldb".equals(implementation)) {
+			HsqldbBlobstoreService hsqldbBlobstoreService = new HsqldbBlobstoreService(dataSource);
+			hsqldbBlobstoreService.setLogSize(200);
+			hsqldbBlobstoreService.setCheckpointInterval(100);
+			hsqldbBlobstoreService.configureDatabase();
+			blobstoreService = hsqldbBlobstoreService;
+		} else {
+			blobstoreService = new JdbcBlobstoreService(dataSource);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		try (Connection connection = dataSource.getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute("SHUTDOWN");
+		}
+		dataSource.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public BlobKey createAndDeleteBlob() throws Exception {
+		BlobKey blobKey = blobstoreService.createBlob(
+				new GeneratedInputStream(size), "benchmark.bin", "application/octet-stream");
+		blobstoreService.delete(blobKey);
+		return blobKey;
+	}
+
+	/**
+	 * Generates the given number of bytes, without holding them.
+	 */
+	private static class GeneratedInputStream extends InputStream {
+
+		private long remaining;
+
+		GeneratedInputStream(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			remaining--;
+			return (int) (remaining & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = (int) Math.min(len, remaining);
+			Arrays.fill(b, off, off + n, (byte) remaining);
+			remaining -= n;
+			return n;
+		}
+
+	}
+
+}
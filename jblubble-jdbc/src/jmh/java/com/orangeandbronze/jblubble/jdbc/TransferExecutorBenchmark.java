@@ -0,0 +1,132 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobTransferExecutors;
+
+/**
+ * Load test of many concurrent transfers, each serving a blob to a slow
+ * client (that takes 25 milliseconds per write of 8 kilobytes), on a fixed
+ * pool of platform threads, and on virtual threads. Blobs are spill buffered, so that
+ * connections are not held while writing to the clients. Virtual threads
+ * need Java 21 or later. Run with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=TransferExecutor
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferExecutorBenchmark {
+
+	private static final int FIXED_POOL_SIZE = 200;
+	private static final long CLIENT_WRITE_DELAY = 25; // milliseconds
+
+	@Param({"fixed", "virtual"})
+	public String executorType;
+
+	@Param({"2000"})
+	public int transfers;
+
+	private BasicDataSource dataSource;
+	private JdbcBlobstoreService blobstoreService;
+	private BlobKey blobKey;
+	private ExecutorService executor;
+
+	@Setup
+	public void setUp() throws Exception {
+		if ("virtual".equals(executorType)) {
+			executor = BlobTransferExecutors.newVirtualThreadExecutor();
+		} else {
+			executor = Executors.newFixedThreadPool(FIXED_POOL_SIZE);
+		}
+		dataSource = new BasicDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:transfers");
+		dataSource.setUsername("sa");
+		dataSource.setMaxTotal(20);
+		DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(
+				new ClassPathResource("com/orangeandbronze/jblubble/jdbc/create-lob-table.sql")),
+				dataSource);
+		blobstoreService = new JdbcBlobstoreService(dataSource);
+		blobstoreService.setSpillBuffering(true);
+		blobKey = blobstoreService.createBlob(new ByteArrayInputStream(new byte[0x10000]),
+				"benchmark.bin", "application/octet-stream");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		try (Connection connection = dataSource.getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute("SHUTDOWN");
+		}
+		dataSource.close();
+	}
+
+	@Benchmark
+	public void serveToSlowClients() throws Exception {
+		List<Future<?>> futures = new ArrayList<>(transfers);
+		for (int i = 0; i < transfers; i++) {
+			futures.add(executor.submit(() -> {
+				blobstoreService.serveBlob(blobKey, new SlowClientOutputStream());
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	private static class SlowClientOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				Thread.sleep(CLIENT_WRITE_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+	}
+
+}
@@ -15,12 +15,39 @@
  */
 package com.orangeandbronze.jblubble.jdbc;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreService;
@@ -30,10 +57,25 @@ public abstract class AbstractJdbcBlobstoreService implements BlobstoreService {
 
 	public static final int DEFAULT_BUFFER_SIZE = 0x2000; // 8192 bytes, or 8 kilobytes
 	public static final String DEFAULT_TABLE_NAME = "lobs";
+	public static final long DEFAULT_CONNECTION_HOLD_WARNING_THRESHOLD = 10000; // milliseconds
+	public static final int DEFAULT_SPILL_THRESHOLD = 0x40000; // 256 kilobytes
+	public static final int DEFAULT_DELETE_CHUNK_SIZE = 1000; // blobs
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
 
 	protected final DataSource dataSource;
 	private String tableName = DEFAULT_TABLE_NAME;
+	private String contentTableName;
 	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private long connectionHoldWarningThreshold = DEFAULT_CONNECTION_HOLD_WARNING_THRESHOLD;
+	private BlobReadTraceListener readTraceListener;
+	private boolean spillBuffering;
+	private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+	private File spillDirectory;
+	private int deleteChunkSize = DEFAULT_DELETE_CHUNK_SIZE;
+	private boolean softDelete;
+	private long deleteChunkPause;
+	private volatile Map<String, String> formattedSql = new ConcurrentHashMap<>();
 
 	public AbstractJdbcBlobstoreService(DataSource dataSource) {
 		if (dataSource == null) {
@@ -49,6 +91,85 @@ public abstract class AbstractJdbcBlobstoreService implements BlobstoreService {
 
 	public void setTableName(String tableName) {
 		this.tableName = tableName;
+		this.formattedSql = new ConcurrentHashMap<>();
+	}
+
+	public String getContentTableName() {
+		return contentTableName;
+	}
+
+	/**
+	 * Sets the table that stores the contents of blobs (split schema), or
+	 * <code>null</code> if contents are stored in the
+	 * {@link #getTableName() table} with the metadata (the default). With a
+	 * split schema, the table holds the metadata only (e.g.
+	 * <code>lobs_meta</code>), so that metadata queries (e.g. listing,
+	 * retention and dedup lookups) do not read pages of contents. The
+	 * content table (e.g. <code>lobs_content</code>) has the same
+	 * <code>id</code>, and rows are deleted with their metadata (by a foreign
+	 * key with <code>ON DELETE CASCADE</code>). See
+	 * <code>create-lob-split-tables.sql</code>.
+	 *
+	 * @see SplitSchemaMigrator
+	 */
+	public void setContentTableName(String contentTableName) {
+		this.contentTableName = contentTableName;
+		this.formattedSql = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns <code>true</code> if contents are stored in a separate
+	 * {@link #getContentTableName() content table}.
+	 */
+	public boolean isSplitSchema() {
+		return contentTableName != null;
+	}
+
+	public boolean isSoftDelete() {
+		return softDelete;
+	}
+
+	/**
+	 * Sets whether {@link #delete(BlobKey...)} (and the chunked deletes,
+	 * like {@link #deleteOlderThan(Date)}) only marks blobs as deleted (by
+	 * setting the <code>date_deleted</code> column), instead of removing
+	 * them. Marked blobs are no longer found, and their storage is reclaimed
+	 * later (e.g. in the background) by {@link #reclaimDeleted(Date)}.
+	 */
+	public void setSoftDelete(boolean softDelete) {
+		this.softDelete = softDelete;
+		this.formattedSql = new ConcurrentHashMap<>();
+	}
+
+	private static final String NOT_DELETED_CONDITION = " AND date_deleted IS NULL";
+
+	/**
+	 * Returns the given SQL template with the {@link #getTableName() table
+	 * name} filled in (as <code>%1$s</code>), and the condition that excludes
+	 * {@link #isSoftDelete() soft deleted} blobs (as <code>%2$s</code>, if
+	 * any). Contents are selected from <code>%3$s</code>, which is the table
+	 * joined with the {@link #getContentTableName() content table} (with a
+	 * split schema), and inserted into <code>%4$s</code>. Each template is
+	 * formatted only once (until the table names or soft delete change), so
+	 * that the <code>getXxxSql()</code> methods do not call
+	 * {@link String#format(String, Object...)} on every operation. This also
+	 * keeps passing the same SQL string instance to
+	 * {@link java.sql.Connection#prepareStatement(String)}, which is what
+	 * statement caches (of pools and drivers) are keyed on.
+	 */
+	protected String formatSql(String sqlTemplate) {
+		Map<String, String> cache = formattedSql;
+		String sql = cache.get(sqlTemplate);
+		if (sql == null) {
+			sql = String.format(sqlTemplate, getTableName(),
+					isSoftDelete() ? NOT_DELETED_CONDITION : "",
+					isSplitSchema()
+							? getTableName() + " JOIN " + getContentTableName() + " USING (id)"
+							: getTableName(),
+					isSplitSchema() ? getContentTableName() : getTableName());
+			cache.put(sqlTemplate, sql);
+		}
+		return sql;
 	}
 
 	public int getBufferSize() {
@@ -63,33 +184,639 @@ public abstract class AbstractJdbcBlobstoreService implements BlobstoreService {
 		this.bufferSize = bufferSize;
 	}
 
+	public long getConnectionHoldWarningThreshold() {
+		return connectionHoldWarningThreshold;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) that a connection can be held while
+	 * reading a blob before a warning is logged. Zero or less disables the
+	 * warning.
+	 */
+	public void setConnectionHoldWarningThreshold(long connectionHoldWarningThreshold) {
+		this.connectionHoldWarningThreshold = connectionHoldWarningThreshold;
+	}
+
+	public BlobReadTraceListener getReadTraceListener() {
+		return readTraceListener;
+	}
+
+	/**
+	 * Sets the listener that receives the {@link BlobReadTrace trace} of
+	 * each blob read. Traces are also logged at debug level.
+	 */
+	public void setReadTraceListener(BlobReadTraceListener readTraceListener) {
+		this.readTraceListener = readTraceListener;
+	}
+
+	/**
+	 * Called when a blob read (i.e. serving or reading a blob) has ended,
+	 * and the connection has been released.
+	 */
+	protected void readTraced(BlobReadTrace trace) {
+		LOGGER.debug("Read blob: {}", trace);
+		long threshold = getConnectionHoldWarningThreshold();
+		if (threshold > 0 && trace.getConnectionHoldTime()
+				> TimeUnit.MILLISECONDS.toNanos(threshold)) {
+			LOGGER.warn("Connection held for more than {} ms while reading blob: {}",
+					threshold, trace);
+		}
+		if (readTraceListener != null) {
+			readTraceListener.readTraced(trace);
+		}
+	}
+
+	public boolean isSpillBuffering() {
+		return spillBuffering;
+	}
+
+	/**
+	 * Sets whether served blobs are first read (at full speed) into a buffer,
+	 * so that the connection is released <em>before</em> the blob is written
+	 * to the output stream (e.g. to a slow client). This way, the number of
+	 * pooled connections needed no longer depends on how fast clients read.
+	 * The buffer is kept in memory up to the
+	 * {@link #setSpillThreshold(int) spill threshold}, and in a temporary
+	 * file beyond that.
+	 */
+	public void setSpillBuffering(boolean spillBuffering) {
+		this.spillBuffering = spillBuffering;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the number of bytes (per served blob) kept in memory before
+	 * spilling to a temporary file.
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		if (spillThreshold < 0) {
+			throw new IllegalArgumentException(
+					"Spill threshold cannot be negative");
+		}
+		this.spillThreshold = spillThreshold;
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Sets the directory of temporary files. If <code>null</code> (the
+	 * default), the system's temporary directory is used.
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public int getDeleteChunkSize() {
+		return deleteChunkSize;
+	}
+
+	/**
+	 * Sets the maximum number of blobs deleted (and committed) at a time by
+	 * {@link #deleteOlderThan(Date)}, {@link #deleteWhere(String, String)},
+	 * and {@link #delete(Iterable)}.
+	 */
+	public void setDeleteChunkSize(int deleteChunkSize) {
+		if (deleteChunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Delete chunk size cannot be zero or less");
+		}
+		this.deleteChunkSize = deleteChunkSize;
+	}
+
+	public long getDeleteChunkPause() {
+		return deleteChunkPause;
+	}
+
+	/**
+	 * Sets the time (in milliseconds) to pause between deleted chunks, so
+	 * that a large purge does not hog the database (e.g. locks, or
+	 * write-ahead log). Zero (the default) means no pause.
+	 */
+	public void setDeleteChunkPause(long deleteChunkPause) {
+		if (deleteChunkPause < 0) {
+			throw new IllegalArgumentException(
+					"Delete chunk pause cannot be negative");
+		}
+		this.deleteChunkPause = deleteChunkPause;
+	}
+
+	/**
+	 * Call-back interface to write the blob contents (while holding a
+	 * connection).
+	 */
+	@FunctionalInterface
+	protected interface ContentWriter {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Writes the blob contents to the given output stream. If
+	 * {@link #isSpillBuffering() spill buffering} is enabled, the contents
+	 * are written to a buffer first, and the buffer is written to the given
+	 * output stream only after the writer returns (i.e. after the connection
+	 * has been released).
+	 */
+	protected void serveContent(OutputStream out, ContentWriter writer) throws IOException {
+		if (!isSpillBuffering()) {
+			writer.writeTo(out);
+			return;
+		}
+		DeferredFileOutputStream buffer = new DeferredFileOutputStream(
+				getSpillThreshold(), "jblubble-", ".tmp", getSpillDirectory());
+		try {
+			try {
+				writer.writeTo(buffer);
+			} finally {
+				buffer.close();
+			}
+			// not buffer.writeTo(out), which writes (e.g. to a slow client)
+			// while holding a monitor, pinning virtual threads
+			try (InputStream in = buffer.isInMemory()
+					? new ByteArrayInputStream(buffer.getData())
+					: new FileInputStream(buffer.getFile())) {
+				copy(in, out);
+			}
+		} finally {
+			File file = buffer.getFile();
+			if (file != null && !file.delete()) {
+				LOGGER.warn("Unable to delete spill file [{}]", file);
+			}
+		}
+	}
+
 	private static final String INSERT_SQL =
 			"INSERT INTO %s (name, content_type, content, size, date_created, md5_hash) "
 			+ "VALUES (?, ?, ?, ?, ?, ?)";
 
 	protected String getInsertSql() {
-		return String.format(INSERT_SQL, getTableName());
+		return formatSql(INSERT_SQL);
+	}
+
+	// Split schema (content is inserted separately)
+	private static final String INSERT_METADATA_SQL =
+			"INSERT INTO %1$s (name, content_type, size, date_created, md5_hash) "
+			+ "VALUES (?, ?, ?, ?, ?)";
+
+	protected String getInsertMetadataSql() {
+		return formatSql(INSERT_METADATA_SQL);
+	}
+
+	private static final String INSERT_CONTENT_SQL =
+			"INSERT INTO %4$s (id, content) VALUES (?, ?)";
+
+	protected String getInsertContentSql() {
+		return formatSql(INSERT_CONTENT_SQL);
 	}
-	
+
 	private static final String SELECT_CONTENT_BY_ID_SQL =
-			"SELECT content FROM %s WHERE id = ?";
+			"SELECT content FROM %3$s WHERE id = ?%2$s";
 
 	protected String getSelectContentByIdSql() {
-		return String.format(SELECT_CONTENT_BY_ID_SQL, getTableName());
+		return formatSql(SELECT_CONTENT_BY_ID_SQL);
 	}
 
 	private static final String SELECT_NON_CONTENT_FIELDS_BY_ID_SQL =
-			"SELECT name, content_type, size, date_created, md5_hash FROM %s WHERE id = ?";
+			"SELECT name, content_type, size, date_created, md5_hash FROM %1$s WHERE id = ?%2$s";
 
 	protected String getSelectNonContentFieldsByIdSql() {
-		return String.format(SELECT_NON_CONTENT_FIELDS_BY_ID_SQL, getTableName());
+		return formatSql(SELECT_NON_CONTENT_FIELDS_BY_ID_SQL);
+	}
+
+	private static final String SELECT_ALL_FIELDS_BY_ID_SQL =
+			"SELECT content, name, content_type, size, date_created, md5_hash FROM %3$s WHERE id = ?%2$s";
+
+	protected String getSelectAllFieldsByIdSql() {
+		return formatSql(SELECT_ALL_FIELDS_BY_ID_SQL);
+	}
+
+	/**
+	 * Returns the blob info from the current row of the given result set.
+	 */
+	protected BlobInfo toBlobInfo(BlobKey blobKey, ResultSet rs) throws SQLException {
+		return new BlobInfo(
+				blobKey,
+				rs.getString("name"),
+				rs.getString("content_type"),
+				rs.getLong("size"),
+				rs.getTimestamp("date_created"),
+				rs.getString("md5_hash"));
 	}
 
 	private static final String DELETE_BY_ID_SQL =
-			"DELETE FROM lobs WHERE id = ?";
+			"DELETE FROM %s WHERE id = ?";
+
+	private static final String SOFT_DELETE_BY_ID_SQL =
+			"UPDATE %s SET date_deleted = LOCALTIMESTAMP WHERE id = ? AND date_deleted IS NULL";
 
+	/**
+	 * Returns the SQL used by {@link #delete(BlobKey...)}, which only marks
+	 * the blob as deleted if {@link #isSoftDelete() soft delete} is enabled.
+	 */
 	protected String getDeleteByIdSql() {
-		return String.format(DELETE_BY_ID_SQL, getTableName());
+		return formatSql(isSoftDelete() ? SOFT_DELETE_BY_ID_SQL : DELETE_BY_ID_SQL);
+	}
+
+	private static final String SELECT_IDS_OLDER_THAN_SQL =
+			"SELECT id FROM %1$s WHERE date_created < ?%2$s AND id > ? ORDER BY id";
+
+	protected String getSelectIdsOlderThanSql() {
+		return formatSql(SELECT_IDS_OLDER_THAN_SQL);
+	}
+
+	private static final String DELETE_OLDER_THAN_BY_ID_RANGE_SQL =
+			"DELETE FROM %s WHERE date_created < ? AND id BETWEEN ? AND ?";
+
+	private static final String SOFT_DELETE_OLDER_THAN_BY_ID_RANGE_SQL =
+			"UPDATE %1$s SET date_deleted = LOCALTIMESTAMP WHERE date_created < ? "
+			+ "AND id BETWEEN ? AND ?%2$s";
+
+	/**
+	 * Returns the SQL used by {@link #deleteOlderThan(Date)}, which only
+	 * marks the blobs as deleted if {@link #isSoftDelete() soft delete} is
+	 * enabled.
+	 */
+	protected String getDeleteOlderThanByIdRangeSql() {
+		return formatSql(isSoftDelete()
+				? SOFT_DELETE_OLDER_THAN_BY_ID_RANGE_SQL
+				: DELETE_OLDER_THAN_BY_ID_RANGE_SQL);
+	}
+
+	private static final String SELECT_IDS_BY_NAME_AND_CONTENT_TYPE_SQL =
+			"SELECT id FROM %1$s WHERE COALESCE(name, '') LIKE ? AND COALESCE(content_type, '') LIKE ?%2$s "
+			+ "AND id > ? ORDER BY id";
+
+	protected String getSelectIdsByNameAndContentTypeSql() {
+		return formatSql(SELECT_IDS_BY_NAME_AND_CONTENT_TYPE_SQL);
+	}
+
+	private static final String DELETE_BY_NAME_AND_CONTENT_TYPE_AND_ID_RANGE_SQL =
+			"DELETE FROM %s WHERE COALESCE(name, '') LIKE ? AND COALESCE(content_type, '') LIKE ? "
+			+ "AND id BETWEEN ? AND ?";
+
+	private static final String SOFT_DELETE_BY_NAME_AND_CONTENT_TYPE_AND_ID_RANGE_SQL =
+			"UPDATE %1$s SET date_deleted = LOCALTIMESTAMP "
+			+ "WHERE COALESCE(name, '') LIKE ? AND COALESCE(content_type, '') LIKE ? "
+			+ "AND id BETWEEN ? AND ?%2$s";
+
+	/**
+	 * Returns the SQL used by {@link #deleteWhere(String, String)}, which
+	 * only marks the blobs as deleted if {@link #isSoftDelete() soft delete}
+	 * is enabled.
+	 */
+	protected String getDeleteByNameAndContentTypeAndIdRangeSql() {
+		return formatSql(isSoftDelete()
+				? SOFT_DELETE_BY_NAME_AND_CONTENT_TYPE_AND_ID_RANGE_SQL
+				: DELETE_BY_NAME_AND_CONTENT_TYPE_AND_ID_RANGE_SQL);
+	}
+
+	/**
+	 * Deletes the blobs created before the given date, in chunks of (up to)
+	 * {@link #getDeleteChunkSize() delete chunk size} blobs. Each chunk is
+	 * committed separately, so this should not be called within a
+	 * transaction. If this fails, the chunks deleted so far stay deleted.
+	 * Like {@link #delete(BlobKey...)}, this only marks the blobs as deleted
+	 * if {@link #isSoftDelete() soft delete} is enabled.
+	 *
+	 * @return the number of deleted blobs
+	 */
+	public long deleteOlderThan(Date date) throws BlobstoreException {
+		if (date == null) {
+			throw new IllegalArgumentException(
+					"Date cannot be null");
+		}
+		return deleteInChunks(
+				getSelectIdsOlderThanSql(), getDeleteOlderThanByIdRangeSql(),
+				new Timestamp(date.getTime()));
+	}
+
+	/**
+	 * Deletes the blobs whose name and content type match the given SQL
+	 * <code>LIKE</code> patterns (e.g. <code>"%.tmp"</code>), in chunks
+	 * (see {@link #deleteOlderThan(Date)}). A <code>null</code> pattern
+	 * matches any value.
+	 *
+	 * @return the number of deleted blobs
+	 */
+	public long deleteWhere(String namePattern, String contentTypePattern)
+			throws BlobstoreException {
+		if (namePattern == null && contentTypePattern == null) {
+			throw new IllegalArgumentException(
+					"Name pattern and content type pattern cannot both be null");
+		}
+		return deleteInChunks(
+				getSelectIdsByNameAndContentTypeSql(),
+				getDeleteByNameAndContentTypeAndIdRangeSql(),
+				namePattern != null ? namePattern : "%",
+				contentTypePattern != null ? contentTypePattern : "%");
+	}
+
+	/**
+	 * Deletes the matching blobs one chunk at a time. The IDs of the next
+	 * chunk are selected (in order) with the given query, and the chunk is
+	 * deleted with a single statement for its range of IDs (instead of one
+	 * per blob). The given parameters are set on both statements, followed
+	 * by the last ID of the previous chunk (for the query), or the first
+	 * and last ID of the chunk (for the delete).
+	 *
+	 * @return the number of deleted blobs
+	 */
+	protected long deleteInChunks(
+			String selectIdsSql, String deleteByIdRangeSql, Object... parameters)
+			throws BlobstoreException {
+		long deleted = 0;
+		try (Connection connection = dataSource.getConnection()) {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				long lastId = Long.MIN_VALUE;
+				while (true) {
+					long firstId = 0;
+					int count = 0;
+					try (PreparedStatement ps = connection.prepareStatement(selectIdsSql)) {
+						int i = setParameters(ps, parameters);
+						ps.setLong(i, lastId);
+						ps.setMaxRows(getDeleteChunkSize());
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								lastId = rs.getLong(1);
+								if (count++ == 0) {
+									firstId = lastId;
+								}
+							}
+						}
+					}
+					if (count == 0) {
+						connection.commit();
+						break;
+					}
+					try (PreparedStatement ps = connection.prepareStatement(deleteByIdRangeSql)) {
+						int i = setParameters(ps, parameters);
+						ps.setLong(i++, firstId);
+						ps.setLong(i, lastId);
+						deleted += ps.executeUpdate();
+					}
+					connection.commit();
+					LOGGER.debug("Deleted chunk of {} blobs (ids {} to {})", count, firstId, lastId);
+					if (count < getDeleteChunkSize()) {
+						break;
+					}
+					pauseBetweenChunks();
+				}
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException(
+					"Error when deleting blobs (" + deleted + " deleted)", e);
+		}
+		return deleted;
+	}
+
+	private static final String SELECT_IDS_DELETED_BEFORE_SQL =
+			"SELECT id FROM %s WHERE date_deleted < ? AND id > ? ORDER BY id";
+
+	protected String getSelectIdsDeletedBeforeSql() {
+		return formatSql(SELECT_IDS_DELETED_BEFORE_SQL);
+	}
+
+	private static final String DELETE_DELETED_BEFORE_BY_ID_RANGE_SQL =
+			"DELETE FROM %s WHERE date_deleted < ? AND id BETWEEN ? AND ?";
+
+	protected String getDeleteDeletedBeforeByIdRangeSql() {
+		return formatSql(DELETE_DELETED_BEFORE_BY_ID_RANGE_SQL);
+	}
+
+	/**
+	 * Removes the blobs that were {@link #isSoftDelete() soft deleted} before
+	 * the given date, in chunks (see {@link #deleteOlderThan(Date)}).
+	 *
+	 * @return the number of removed blobs
+	 */
+	public long reclaimDeleted(Date deletedBefore) throws BlobstoreException {
+		if (deletedBefore == null) {
+			throw new IllegalArgumentException(
+					"Date cannot be null");
+		}
+		return deleteInChunks(
+				getSelectIdsDeletedBeforeSql(), getDeleteDeletedBeforeByIdRangeSql(),
+				new Timestamp(deletedBefore.getTime()));
+	}
+
+	/**
+	 * Schedules {@link #reclaimDeleted(Date) reclamation} in the background,
+	 * with the given delay between runs. Each run removes the blobs that were
+	 * soft deleted before it started. Use the
+	 * {@link #setDeleteChunkPause(long) delete chunk pause} to keep the runs
+	 * from competing with requests.
+	 */
+	public ScheduledFuture<?> scheduleReclaiming(
+			ScheduledExecutorService executor, long delay, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try {
+				long reclaimed = reclaimDeleted(new Date());
+				LOGGER.info("Reclaimed {} deleted blob(s)", reclaimed);
+			} catch (RuntimeException e) {
+				LOGGER.error("Error while reclaiming deleted blobs", e);
+			}
+		}, delay, delay, unit);
+	}
+
+	private static final String SELECT_IDS_AFTER_ID_SQL =
+			"SELECT id FROM %1$s WHERE id > ?%2$s ORDER BY id";
+
+	protected String getSelectIdsAfterIdSql() {
+		return formatSql(SELECT_IDS_AFTER_ID_SQL);
+	}
+
+	/**
+	 * Returns the keys of all blobs (in order), e.g. to sweep for orphans
+	 * (see <code>OrphanCollector</code> in <code>jblubble-common</code>). The
+	 * keys are fetched lazily, one chunk of (up to)
+	 * {@link #getDeleteChunkSize() delete chunk size} keys at a time, and no
+	 * connection is held in between.
+	 */
+	public Iterable<BlobKey> getBlobKeys() {
+		return () -> new Iterator<BlobKey>() {
+
+			private Iterator<BlobKey> chunk = Collections.emptyIterator();
+			private long lastId = Long.MIN_VALUE;
+			private boolean lastChunk;
+
+			@Override
+			public boolean hasNext() {
+				if (!chunk.hasNext() && !lastChunk) {
+					List<BlobKey> blobKeys = selectBlobKeysAfter(lastId);
+					lastChunk = blobKeys.size() < getDeleteChunkSize();
+					if (!blobKeys.isEmpty()) {
+						lastId = Long.valueOf(blobKeys.get(blobKeys.size() - 1).stringValue());
+					}
+					chunk = blobKeys.iterator();
+				}
+				return chunk.hasNext();
+			}
+
+			@Override
+			public BlobKey next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return chunk.next();
+			}
+
+		};
+	}
+
+	private List<BlobKey> selectBlobKeysAfter(long id) throws BlobstoreException {
+		try (
+				Connection connection = dataSource.getConnection();
+				PreparedStatement ps = connection.prepareStatement(
+						getSelectIdsAfterIdSql());
+			) {
+			ps.setLong(1, id);
+			ps.setMaxRows(getDeleteChunkSize());
+			List<BlobKey> blobKeys = new ArrayList<>(getDeleteChunkSize());
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					blobKeys.add(new BlobKey(String.valueOf(rs.getLong(1))));
+				}
+			}
+			return blobKeys;
+		} catch (SQLException e) {
+			throw new BlobstoreException(
+					"Error when retrieving blob keys", e);
+		}
+	}
+
+	private static final int LIST_FETCH_SIZE = 100; // rows
+
+	/**
+	 * Lists blobs in the order of their IDs, with one query (e.g. a
+	 * server-side cursor, for drivers that support it). Since the query is
+	 * seek-based (<code>WHERE id &gt; ?</code>), each page takes the same time.
+	 * The connection is held until listing stops.
+	 */
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		List<Object> parameters = new ArrayList<>();
+		StringBuilder sqlTemplate = new StringBuilder(
+				"SELECT id, name, content_type, size, date_created, md5_hash FROM %1$s WHERE id > ?");
+		parameters.add(query.getAfterKey() != null
+				? Long.valueOf(query.getAfterKey().stringValue()) : Long.MIN_VALUE);
+		if (query.getContentType() != null) {
+			sqlTemplate.append(" AND content_type = ?");
+			parameters.add(query.getContentType());
+		}
+		if (query.getCreatedFrom() != null) {
+			sqlTemplate.append(" AND date_created >= ?");
+			parameters.add(new Timestamp(query.getCreatedFrom().getTime()));
+		}
+		if (query.getCreatedBefore() != null) {
+			sqlTemplate.append(" AND date_created < ?");
+			parameters.add(new Timestamp(query.getCreatedBefore().getTime()));
+		}
+		sqlTemplate.append("%2$s ORDER BY id");
+		BlobKey lastKey = null;
+		try (Connection connection = dataSource.getConnection()) {
+			// some drivers (e.g. PostgreSQL) only use cursors in transactions
+			boolean autoCommit = connection.getAutoCommit();
+			if (autoCommit) {
+				connection.setAutoCommit(false);
+			}
+			try (PreparedStatement ps = connection.prepareStatement(
+					formatSql(sqlTemplate.toString()))) {
+				setParameters(ps, parameters.toArray());
+				if (query.getLimit() > 0) {
+					ps.setMaxRows(query.getLimit());
+				}
+				ps.setFetchSize(query.getLimit() > 0
+						? Math.min(query.getLimit(), LIST_FETCH_SIZE) : LIST_FETCH_SIZE);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						BlobKey blobKey = new BlobKey(String.valueOf(rs.getLong("id")));
+						lastKey = blobKey;
+						if (!callback.blobInfoRetrieved(toBlobInfo(blobKey, rs))) {
+							break;
+						}
+					}
+				}
+			} finally {
+				if (autoCommit) {
+					connection.commit();
+					connection.setAutoCommit(true);
+				}
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException(
+					"Error when listing blobs", e);
+		}
+		return lastKey;
+	}
+
+	private static int setParameters(PreparedStatement ps, Object... parameters)
+			throws SQLException {
+		int i = 1;
+		for (Object parameter : parameters) {
+			ps.setObject(i++, parameter);
+		}
+		return i;
+	}
+
+	/**
+	 * Deletes the given blobs (e.g. from a query of expired blobs) in chunks
+	 * of (up to) {@link #getDeleteChunkSize() delete chunk size} blobs, with
+	 * {@link #delete(BlobKey...)}. The blob keys are only iterated as needed.
+	 *
+	 * @return the number of deleted blobs
+	 */
+	public long delete(Iterable<BlobKey> blobKeys) throws BlobstoreException {
+		long deleted = 0;
+		List<BlobKey> chunk = new ArrayList<>(getDeleteChunkSize());
+		for (BlobKey blobKey : blobKeys) {
+			chunk.add(blobKey);
+			if (chunk.size() == getDeleteChunkSize()) {
+				deleted += deleteChunk(chunk);
+				chunk.clear();
+				pauseBetweenChunks();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			deleted += deleteChunk(chunk);
+		}
+		return deleted;
+	}
+
+	private long deleteChunk(List<BlobKey> chunk) throws BlobstoreException {
+		long deleted = 0;
+		for (int rowCount : delete(chunk.toArray(new BlobKey[chunk.size()]))) {
+			if (rowCount > 0) {
+				deleted += rowCount;
+			} else if (rowCount == Statement.SUCCESS_NO_INFO) {
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	private void pauseBetweenChunks() throws BlobstoreException {
+		long pause = getDeleteChunkPause();
+		if (pause > 0) {
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BlobstoreException(
+						"Interrupted while deleting blobs", e);
+			}
+		}
 	}
 
 	protected void copy(InputStream in, OutputStream out) throws IOException {
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Timings of the phases of reading a blob from the database. This is used to
+ * see how long a pooled connection is held, and why (e.g. a slow client
+ * reading the blob contents).
+ * <p>
+ * The phases are:
+ * </p>
+ * <ol>
+ * <li>acquire &mdash; getting a connection</li>
+ * <li>query &mdash; executing the query</li>
+ * <li>open &mdash; getting the {@link Blob} from the result set</li>
+ * <li>first byte &mdash; until the first byte of the blob is read</li>
+ * <li>stream &mdash; reading the rest (and passing it on, e.g. to a
+ * client)</li>
+ * <li>free &mdash; freeing the blob, and releasing the connection</li>
+ * </ol>
+ * <p>
+ * Durations are in nanoseconds, and are <code>-1</code> if the phase was not
+ * reached (e.g. on failure, or if the blob was empty).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class BlobReadTrace {
+
+	private final BlobKey blobKey;
+	private final long startTime;
+	private long connectionAcquiredTime;
+	private long queryExecutedTime;
+	private long blobOpenedTime;
+	private long firstByteTime;
+	private long blobReadTime;
+	private long connectionReleasedTime;
+	private long bytesRead;
+	private Throwable failure;
+
+	public BlobReadTrace(BlobKey blobKey) {
+		this.blobKey = blobKey;
+		this.startTime = System.nanoTime();
+	}
+
+	public void connectionAcquired() {
+		connectionAcquiredTime = System.nanoTime();
+	}
+
+	public void queryExecuted() {
+		queryExecutedTime = System.nanoTime();
+	}
+
+	/**
+	 * Marks the blob as opened, and returns a blob that marks when its first
+	 * byte is read (and counts the bytes read).
+	 */
+	public Blob blobOpened(Blob blob) {
+		blobOpenedTime = System.nanoTime();
+		return new TracingBlob(blob);
+	}
+
+	public void blobRead() {
+		blobReadTime = System.nanoTime();
+	}
+
+	public void connectionReleased() {
+		connectionReleasedTime = System.nanoTime();
+	}
+
+	public void failed(Throwable failure) {
+		this.failure = failure;
+	}
+
+	public BlobKey getBlobKey() {
+		return blobKey;
+	}
+
+	private static long between(long from, long to) {
+		return (from == 0 || to == 0) ? -1 : (to - from);
+	}
+
+	public long getAcquireTime() {
+		return between(startTime, connectionAcquiredTime);
+	}
+
+	public long getQueryTime() {
+		return between(connectionAcquiredTime, queryExecutedTime);
+	}
+
+	public long getOpenTime() {
+		return between(queryExecutedTime, blobOpenedTime);
+	}
+
+	public long getFirstByteTime() {
+		return between(blobOpenedTime, firstByteTime);
+	}
+
+	public long getStreamTime() {
+		return between(firstByteTime != 0 ? firstByteTime : blobOpenedTime, blobReadTime);
+	}
+
+	public long getFreeTime() {
+		return between(blobReadTime, connectionReleasedTime);
+	}
+
+	/**
+	 * Returns the time from the start until the first byte of the blob was
+	 * read.
+	 */
+	public long getTimeToFirstByte() {
+		return between(startTime, firstByteTime);
+	}
+
+	/**
+	 * Returns the time the connection was held.
+	 */
+	public long getConnectionHoldTime() {
+		return between(connectionAcquiredTime, connectionReleasedTime);
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Returns the exception that caused the read to fail, or
+	 * <code>null</code> if the read succeeded.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	private static String toMillis(long nanos) {
+		return nanos < 0 ? "-" : String.format("%.3f",
+				(double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+	}
+
+	/**
+	 * Returns the trace as <code>key=value</code> pairs (with times in
+	 * milliseconds), which is easy to parse from logs.
+	 */
+	@Override
+	public String toString() {
+		return "blobKey=" + blobKey
+				+ " acquireMs=" + toMillis(getAcquireTime())
+				+ " queryMs=" + toMillis(getQueryTime())
+				+ " openMs=" + toMillis(getOpenTime())
+				+ " firstByteMs=" + toMillis(getFirstByteTime())
+				+ " streamMs=" + toMillis(getStreamTime())
+				+ " freeMs=" + toMillis(getFreeTime())
+				+ " ttfbMs=" + toMillis(getTimeToFirstByte())
+				+ " holdMs=" + toMillis(getConnectionHoldTime())
+				+ " bytes=" + bytesRead
+				+ (failure != null ? " failure=" + failure.getClass().getSimpleName() : "");
+	}
+
+	private void bytesRead(int n) {
+		if (n > 0) {
+			if (firstByteTime == 0) {
+				firstByteTime = System.nanoTime();
+			}
+			bytesRead += n;
+		}
+	}
+
+	private class TracingInputStream extends FilterInputStream {
+
+		TracingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			bytesRead(b != -1 ? 1 : 0);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			bytesRead(n);
+			return n;
+		}
+
+	}
+
+	private class TracingBlob implements Blob {
+
+		private final Blob blob;
+
+		TracingBlob(Blob blob) {
+			this.blob = blob;
+		}
+
+		@Override
+		public long length() throws SQLException {
+			return blob.length();
+		}
+
+		@Override
+		public byte[] getBytes(long pos, int length) throws SQLException {
+			byte[] bytes = blob.getBytes(pos, length);
+			bytesRead(bytes.length);
+			return bytes;
+		}
+
+		@Override
+		public InputStream getBinaryStream() throws SQLException {
+			return new TracingInputStream(blob.getBinaryStream());
+		}
+
+		@Override
+		public InputStream getBinaryStream(long pos, long length) throws SQLException {
+			return new TracingInputStream(blob.getBinaryStream(pos, length));
+		}
+
+		@Override
+		public long position(byte[] pattern, long start) throws SQLException {
+			return blob.position(pattern, start);
+		}
+
+		@Override
+		public long position(Blob pattern, long start) throws SQLException {
+			return blob.position(pattern, start);
+		}
+
+		@Override
+		public int setBytes(long pos, byte[] bytes) throws SQLException {
+			return blob.setBytes(pos, bytes);
+		}
+
+		@Override
+		public int setBytes(long pos, byte[] bytes, int offset, int len) throws SQLException {
+			return blob.setBytes(pos, bytes, offset, len);
+		}
+
+		@Override
+		public OutputStream setBinaryStream(long pos) throws SQLException {
+			return blob.setBinaryStream(pos);
+		}
+
+		@Override
+		public void truncate(long len) throws SQLException {
+			blob.truncate(len);
+		}
+
+		@Override
+		public void free() throws SQLException {
+			blob.free();
+		}
+
+	}
+
+}
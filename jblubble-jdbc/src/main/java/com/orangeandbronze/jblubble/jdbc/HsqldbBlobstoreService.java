@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * {@link JdbcBlobstoreService} tuned for embedded (in-process) HSQLDB.
+ * <p>
+ * With HSQLDB, {@link Connection#createBlob() connection.createBlob()}
+ * returns a BLOB that is kept in memory (as a byte array) until it is
+ * inserted. So, {@link JdbcBlobstoreService} holds the entire contents of
+ * each new blob in memory. This implementation inserts an empty BLOB first,
+ * and then writes the contents to HSQLDB's lob store in chunks (of
+ * {@link #setLobChunkSize(int) lob chunk size}), through an updatable result
+ * set. Only one chunk is held in memory at a time.
+ * </p>
+ * <p>
+ * Database-wide settings for embedded use (e.g. cached tables, lob scale and
+ * compression, log size) are applied by {@link #configureDatabase()}. Since
+ * HSQLDB checkpoints (i.e. rewrites its data files) whenever the log reaches
+ * its size, a larger log size and a {@link #setCheckpointInterval(int)
+ * checkpoint after every few blobs} batches the checkpoints.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class HsqldbBlobstoreService extends JdbcBlobstoreService {
+
+	public static final int DEFAULT_LOB_CHUNK_SIZE = 0x100000; // 1 megabyte
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private int lobChunkSize = DEFAULT_LOB_CHUNK_SIZE;
+	private boolean cachedTables = true;
+	private int lobScale;
+	private boolean lobCompressed;
+	private int logSize;
+	private int checkpointInterval;
+	private final AtomicInteger createdSinceCheckpoint = new AtomicInteger();
+
+	public HsqldbBlobstoreService(DataSource dataSource) {
+		super(dataSource);
+	}
+
+	/**
+	 * Not supported, since content is always streamed to the lob store.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             unless the given threshold is zero
+	 */
+	@Override
+	public void setInlineThreshold(int inlineThreshold) {
+		if (inlineThreshold != 0) {
+			throw new UnsupportedOperationException(
+					"Inline storage is not supported with streamed HSQLDB lobs");
+		}
+	}
+
+	public int getLobChunkSize() {
+		return lobChunkSize;
+	}
+
+	/**
+	 * Sets the number of bytes written to the lob store at a time. Larger
+	 * chunks mean fewer (and faster) writes, but more memory per transfer.
+	 */
+	public void setLobChunkSize(int lobChunkSize) {
+		if (lobChunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Lob chunk size cannot be zero or less");
+		}
+		this.lobChunkSize = lobChunkSize;
+	}
+
+	public boolean isCachedTables() {
+		return cachedTables;
+	}
+
+	/**
+	 * Sets whether the table(s) are made <code>CACHED</code> (i.e. rows are
+	 * kept on disk, and only some are cached in memory) by
+	 * {@link #configureDatabase()}. Defaults to <code>true</code>, since
+	 * <code>MEMORY</code> tables (the default of HSQLDB) keep all rows in
+	 * memory, and are read entirely when the database is opened. In-memory
+	 * (<code>mem:</code>) databases keep all tables in memory anyway.
+	 */
+	public void setCachedTables(boolean cachedTables) {
+		this.cachedTables = cachedTables;
+	}
+
+	public int getLobScale() {
+		return lobScale;
+	}
+
+	/**
+	 * Sets the unit of lob store allocation (in kilobytes: 1, 2, 4, 8, 16, or
+	 * 32) applied by {@link #configureDatabase()}, or zero to leave it alone
+	 * (HSQLDB defaults to 32). Smaller units waste less space when most blobs
+	 * are small. This can only be changed while the database has no lobs.
+	 */
+	public void setLobScale(int lobScale) {
+		if (lobScale != 0 && (lobScale > 32 || Integer.bitCount(lobScale) != 1)) {
+			throw new IllegalArgumentException(
+					"Lob scale must be 1, 2, 4, 8, 16, or 32 (or zero)");
+		}
+		this.lobScale = lobScale;
+	}
+
+	public boolean isLobCompressed() {
+		return lobCompressed;
+	}
+
+	/**
+	 * Sets whether lobs are compressed in the lob store, as applied by
+	 * {@link #configureDatabase()}. This trades CPU for disk space (and I/O),
+	 * and pays off for compressible contents (e.g. text, but not images).
+	 * This can only be changed while the database has no lobs.
+	 */
+	public void setLobCompressed(boolean lobCompressed) {
+		this.lobCompressed = lobCompressed;
+	}
+
+	public int getLogSize() {
+		return logSize;
+	}
+
+	/**
+	 * Sets the size (in megabytes) of the log that triggers a checkpoint, as
+	 * applied by {@link #configureDatabase()}, or zero to leave it alone
+	 * (HSQLDB defaults to 50).
+	 */
+	public void setLogSize(int logSize) {
+		if (logSize < 0) {
+			throw new IllegalArgumentException(
+					"Log size cannot be negative");
+		}
+		this.logSize = logSize;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Sets the number of blobs created between checkpoints, or zero to leave
+	 * checkpoints to HSQLDB (the default). The checkpoint is run after the
+	 * blob that reaches the interval is committed.
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		if (checkpointInterval < 0) {
+			throw new IllegalArgumentException(
+					"Checkpoint interval cannot be negative");
+		}
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Applies the database-wide settings for embedded use (cached tables, lob
+	 * scale and compression, and log size) to the database. The table(s) must
+	 * exist. Lob scale and compression can only be changed before any blob is
+	 * created.
+	 */
+	public void configureDatabase() throws BlobstoreException {
+		List<String> statements = new ArrayList<>();
+		if (cachedTables) {
+			statements.add(formatSql(SET_TABLE_TYPE_CACHED_SQL));
+			if (isSplitSchema()) {
+				statements.add(String.format(SET_TABLE_TYPE_CACHED_SQL, getContentTableName()));
+			}
+		}
+		if (lobScale > 0) {
+			statements.add("SET FILES LOB SCALE " + lobScale);
+		}
+		if (lobCompressed) {
+			statements.add("SET FILES LOB COMPRESSED TRUE");
+		}
+		if (logSize > 0) {
+			statements.add("SET FILES LOG SIZE " + logSize);
+		}
+		try (Connection connection = dataSource.getConnection();
+				Statement statement = connection.createStatement()) {
+			for (String sql : statements) {
+				LOGGER.debug("Configuring database: {}", sql);
+				statement.execute(sql);
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException("Error when configuring database", e);
+		}
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		boolean resetCommitMode = false;
+		try (Connection connection = dataSource.getConnection()) {
+			if (connection.getAutoCommit()) {
+				connection.setAutoCommit(false);
+				resetCommitMode = true;
+			}
+			long generatedId;
+			try {
+				try (PreparedStatement ps = connection.prepareStatement(
+						getInsertSql(), Statement.RETURN_GENERATED_KEYS)) {
+					ps.setString(1, name);
+					ps.setString(2, contentType);
+					ps.setTimestamp(3, new java.sql.Timestamp(
+							new java.util.Date().getTime()));
+					if (ps.executeUpdate() == 0) {
+						throw new BlobstoreException(
+								"Creating blob failed, no rows created.");
+					}
+					generatedId = getGeneratedKey(ps);
+				}
+				if (isSplitSchema()) {
+					try (PreparedStatement ps = connection.prepareStatement(
+							getInsertEmptyContentSql())) {
+						ps.setLong(1, generatedId);
+						ps.executeUpdate();
+					}
+				}
+				long size;
+				String md5Hash;
+				try (PreparedStatement ps = connection.prepareStatement(
+						getSelectContentForUpdateSql(),
+						ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE)) {
+					ps.setLong(1, generatedId);
+					try (ResultSet rs = ps.executeQuery()) {
+						if (!rs.next()) {
+							throw new BlobstoreException(
+									"Creating blob failed, no rows created.");
+						}
+						Blob contentBlob = rs.getBlob(2);
+						MessageDigest md5;
+						try {
+							md5 = MessageDigest.getInstance(MD5_ALGORITHM_NAME);
+						} catch (NoSuchAlgorithmException e) {
+							throw new BlobstoreException(e);
+						}
+						LobOutputStream out = new LobOutputStream(contentBlob);
+						try (DigestOutputStream digestOutputStream =
+								new DigestOutputStream(out, md5)) {
+							size = callback.writeToOutputStream(digestOutputStream);
+						}
+						if (size == -1L) {
+							size = out.position - 1;
+						}
+						md5Hash = new String(encodeHex(md5.digest()));
+						rs.updateBlob(2, contentBlob);
+						rs.updateRow();
+					}
+				}
+				try (PreparedStatement ps = connection.prepareStatement(
+						getUpdateSizeSql())) {
+					ps.setLong(1, size);
+					ps.setString(2, md5Hash);
+					ps.setLong(3, generatedId);
+					if (ps.executeUpdate() == 0) {
+						throw new BlobstoreException(
+								"Creating blob failed, no rows created.");
+					}
+				}
+				if (resetCommitMode) {
+					connection.commit();
+				}
+			} catch (Exception e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				if (resetCommitMode) {
+					connection.setAutoCommit(true);
+				}
+			}
+			if (resetCommitMode) {
+				checkpointIfDue(connection);
+			}
+			BlobKey blobKey = new BlobKey(String.valueOf(generatedId));
+			written(blobKey);
+			return blobKey;
+		} catch (SQLException e) {
+			throw new BlobstoreException("Error when creating blob", e);
+		}
+	}
+
+	/**
+	 * Runs a checkpoint if the {@link #setCheckpointInterval(int) checkpoint
+	 * interval} has been reached.
+	 */
+	protected void checkpointIfDue(Connection connection) throws SQLException {
+		if (checkpointInterval == 0
+				|| createdSinceCheckpoint.incrementAndGet() < checkpointInterval) {
+			return;
+		}
+		createdSinceCheckpoint.set(0);
+		LOGGER.debug("Running checkpoint after {} blob(s)", checkpointInterval);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CHECKPOINT");
+		}
+	}
+
+	/**
+	 * Writes to a BLOB in chunks (of {@link #getLobChunkSize() lob chunk
+	 * size}) with {@link Blob#setBytes(long, byte[], int, int)}.
+	 */
+	private class LobOutputStream extends OutputStream {
+
+		private final Blob blob;
+		private final byte[] chunk = new byte[lobChunkSize];
+		private int count;
+		long position = 1;
+
+		LobOutputStream(Blob blob) {
+			this.blob = blob;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, chunk.length - count);
+				System.arraycopy(b, off, chunk, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == chunk.length) {
+					flush();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			try {
+				blob.setBytes(position, chunk, 0, count);
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+			position += count;
+			count = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+	}
+
+	// Creates an empty blob
+	private static final String INSERT_EMPTY_BLOB_SQL =
+			"INSERT INTO %s (name, content_type, content, size, date_created, md5_hash) "
+			+ "VALUES (?, ?, X'', -1, ?, null)";
+
+	// Split schema (an empty blob is inserted separately)
+	private static final String INSERT_METADATA_OF_EMPTY_BLOB_SQL =
+			"INSERT INTO %1$s (name, content_type, size, date_created, md5_hash) "
+			+ "VALUES (?, ?, -1, ?, null)";
+
+	@Override
+	protected String getInsertSql() {
+		return formatSql(isSplitSchema() ? INSERT_METADATA_OF_EMPTY_BLOB_SQL : INSERT_EMPTY_BLOB_SQL);
+	}
+
+	private static final String INSERT_EMPTY_CONTENT_SQL =
+			"INSERT INTO %4$s (id, content) VALUES (?, X'')";
+
+	protected String getInsertEmptyContentSql() {
+		return formatSql(INSERT_EMPTY_CONTENT_SQL);
+	}
+
+	// Updatable (only one table)
+	private static final String SELECT_CONTENT_FOR_UPDATE_SQL =
+			"SELECT id, content FROM %4$s WHERE id = ?";
+
+	protected String getSelectContentForUpdateSql() {
+		return formatSql(SELECT_CONTENT_FOR_UPDATE_SQL);
+	}
+
+	// Updates size and MD5 hash values
+	private static final String UPDATE_SIZE_AND_MD5_HASH_SQL =
+			"UPDATE %s SET size = ?, md5_hash = ? WHERE id = ?";
+
+	protected String getUpdateSizeSql() {
+		return formatSql(UPDATE_SIZE_AND_MD5_HASH_SQL);
+	}
+
+	private static final String SET_TABLE_TYPE_CACHED_SQL = "SET TABLE %s TYPE CACHED";
+
+}
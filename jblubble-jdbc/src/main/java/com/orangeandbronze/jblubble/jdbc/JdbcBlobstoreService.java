@@ -17,6 +17,8 @@ package com.orangeandbronze.jblubble.jdbc;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -29,12 +31,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 
 import javax.sql.DataSource;
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialException;
 
 import org.apache.commons.io.output.CountingOutputStream;
 
 import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreReadCallback;
@@ -54,15 +60,97 @@ import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
  * <li>date_created</li>
  * <li>md5_hash</li>
  * </ul>
+ * <p>
+ * The content columns can also be kept in a separate
+ * {@link #setContentTableName(String) content table} (split schema).
+ * </p>
+ *
+ * <p>
+ * Reads (i.e. {@link #getBlobInfo(BlobKey)}, <code>serveBlob</code>, and
+ * {@link #readBlob(BlobKey, BlobstoreReadCallback)}) can be routed to
+ * {@link #setReadReplicas(ReadReplicas) read replicas}. Blobs that were
+ * recently written are still read from the primary data source.
+ * </p>
+ * <p>
+ * Small blobs can be stored {@link #setInlineThreshold(int) inline} (in a
+ * <code>inline_content</code> VARBINARY column), to avoid the overhead of
+ * BLOBs (i.e. LOB handles, and extra round trips) for tiny payloads.
+ * </p>
  *
  * @author Lorenzo Dee
  */
 public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 
+	private ReadReplicas readReplicas;
+	private int inlineThreshold;
+
 	public JdbcBlobstoreService(DataSource dataSource) {
 		super(dataSource);
 	}
 
+	public ReadReplicas getReadReplicas() {
+		return readReplicas;
+	}
+
+	/**
+	 * Sets the read replicas used for reads, or <code>null</code> to read
+	 * from the primary data source only (the default).
+	 *
+	 * @since 1.2
+	 */
+	public void setReadReplicas(ReadReplicas readReplicas) {
+		this.readReplicas = readReplicas;
+	}
+
+	public int getInlineThreshold() {
+		return inlineThreshold;
+	}
+
+	/**
+	 * Sets the maximum size (in bytes) of blobs that are stored inline (i.e.
+	 * in the <code>inline_content</code> VARBINARY column of the table, which
+	 * must be at least this long), instead of as BLOBs. Zero (the default)
+	 * disables this. Once blobs have been stored inline, this should not be
+	 * disabled again (or they can no longer be read).
+	 *
+	 * @since 1.2
+	 */
+	public void setInlineThreshold(int inlineThreshold) {
+		if (inlineThreshold < 0) {
+			throw new IllegalArgumentException(
+					"Inline threshold cannot be negative");
+		}
+		this.inlineThreshold = inlineThreshold;
+	}
+
+	/**
+	 * Returns a connection to read the blob with the given key. This is from
+	 * a read replica, unless there are none available, or the blob was
+	 * recently written.
+	 *
+	 * @since 1.2
+	 */
+	protected Connection getReadConnection(BlobKey blobKey) throws SQLException {
+		if (readReplicas != null && !readReplicas.isRecentlyWritten(blobKey)) {
+			Connection connection = readReplicas.getConnection();
+			if (connection != null) {
+				return connection;
+			}
+		}
+		return dataSource.getConnection();
+	}
+
+	/**
+	 * Called after the blob with the given key was created or deleted.
+	 *
+	 * @since 1.2
+	 */
+	protected void written(BlobKey blobKey) {
+		if (readReplicas != null) {
+			readReplicas.written(blobKey);
+		}
+	}
+
 	protected long getGeneratedKey(PreparedStatement ps) throws SQLException {
 		long generatedId;
 		try (ResultSet generatedKeys = ps.getGeneratedKeys()) {
@@ -81,23 +169,14 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 			String name, String contentType)
 					throws IOException, BlobstoreException {
 		try {
-			try (
-					Connection connection = dataSource.getConnection();
-					PreparedStatement ps = connection.prepareStatement(
-							getInsertSql(),
-							Statement.RETURN_GENERATED_KEYS);
-				) {
-				ps.setString(1, name);
-				ps.setString(2, contentType);
-				Blob content = connection.createBlob();
+			try (Connection connection = dataSource.getConnection()) {
+				ContentOutputStream content = new ContentOutputStream(connection);
 				try {
 					long size;
 					String md5Hash = null;
-					OutputStream out = new BufferedOutputStream(
-							content.setBinaryStream(1L), getBufferSize());
 					try {
 						CountingOutputStream countingOutputStream =
-								new CountingOutputStream(out);
+								new CountingOutputStream(content);
 						try {
 							MessageDigest md5;
 							try {
@@ -118,20 +197,14 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 							countingOutputStream.close();
 						}
 					} finally {
-						out.close();
+						content.close();
 					}
-					ps.setBlob(3, content);
-					ps.setLong(4, size);
-					ps.setTimestamp(5, new java.sql.Timestamp(
-							new java.util.Date().getTime()));
-					ps.setString(6, md5Hash);
-					int rowCount = ps.executeUpdate();
-					if (rowCount == 0) {
-						throw new BlobstoreException(
-								"Creating blob failed, no rows created.");
-					}
-					long generatedId = getGeneratedKey(ps);
-					return new BlobKey(String.valueOf(generatedId));
+					long generatedId = isSplitSchema()
+							? insertMetadataAndContent(connection, name, contentType, content, size, md5Hash)
+							: insert(connection, name, contentType, content, size, md5Hash);
+					BlobKey blobKey = new BlobKey(String.valueOf(generatedId));
+					written(blobKey);
+					return blobKey;
 				} finally {
 					content.free();
 				}
@@ -141,11 +214,237 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 		}
 	}
 
+	private long insert(Connection connection, String name, String contentType,
+			ContentOutputStream content, long size, String md5Hash) throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				inlineThreshold > 0 ? getInsertWithInlineContentSql() : getInsertSql(),
+				Statement.RETURN_GENERATED_KEYS)) {
+			ps.setString(1, name);
+			ps.setString(2, contentType);
+			setContent(ps, 3, 7, content);
+			ps.setLong(4, size);
+			ps.setTimestamp(5, new java.sql.Timestamp(
+					new java.util.Date().getTime()));
+			ps.setString(6, md5Hash);
+			int rowCount = ps.executeUpdate();
+			if (rowCount == 0) {
+				throw new BlobstoreException(
+						"Creating blob failed, no rows created.");
+			}
+			return getGeneratedKey(ps);
+		}
+	}
+
+	/**
+	 * Inserts the metadata, and then the content (with the generated ID) in
+	 * the same transaction.
+	 */
+	private long insertMetadataAndContent(Connection connection, String name, String contentType,
+			ContentOutputStream content, long size, String md5Hash) throws SQLException {
+		boolean resetCommitMode = false;
+		if (connection.getAutoCommit()) {
+			connection.setAutoCommit(false);
+			resetCommitMode = true;
+		}
+		try {
+			long generatedId;
+			try (PreparedStatement ps = connection.prepareStatement(
+					getInsertMetadataSql(), Statement.RETURN_GENERATED_KEYS)) {
+				ps.setString(1, name);
+				ps.setString(2, contentType);
+				ps.setLong(3, size);
+				ps.setTimestamp(4, new java.sql.Timestamp(
+						new java.util.Date().getTime()));
+				ps.setString(5, md5Hash);
+				if (ps.executeUpdate() == 0) {
+					throw new BlobstoreException(
+							"Creating blob failed, no rows created.");
+				}
+				generatedId = getGeneratedKey(ps);
+			}
+			try (PreparedStatement ps = connection.prepareStatement(
+					inlineThreshold > 0
+							? getInsertContentWithInlineContentSql()
+							: getInsertContentSql())) {
+				ps.setLong(1, generatedId);
+				setContent(ps, 2, 3, content);
+				ps.executeUpdate();
+			}
+			if (resetCommitMode) {
+				connection.commit();
+			}
+			return generatedId;
+		} catch (SQLException | RuntimeException e) {
+			if (resetCommitMode) {
+				connection.rollback();
+			}
+			throw e;
+		} finally {
+			if (resetCommitMode) {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
+	private void setContent(PreparedStatement ps, int contentIndex, int inlineContentIndex,
+			ContentOutputStream content) throws SQLException {
+		if (content.blob != null) {
+			ps.setBlob(contentIndex, content.blob);
+		} else {
+			ps.setNull(contentIndex, Types.BLOB);
+		}
+		if (inlineThreshold > 0) {
+			if (content.inlineContent != null) {
+				ps.setBytes(inlineContentIndex, content.inlineContent.toByteArray());
+			} else {
+				ps.setNull(inlineContentIndex, Types.VARBINARY);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the content in memory, while it is within the inline threshold.
+	 * Beyond that, the content is written to a BLOB.
+	 */
+	private class ContentOutputStream extends OutputStream {
+
+		private final Connection connection;
+		ByteArrayOutputStream inlineContent;
+		Blob blob;
+		private OutputStream blobOut;
+
+		ContentOutputStream(Connection connection) throws SQLException {
+			this.connection = connection;
+			if (inlineThreshold > 0) {
+				inlineContent = new ByteArrayOutputStream();
+			} else {
+				createBlob();
+			}
+		}
+
+		private void createBlob() throws SQLException {
+			blob = connection.createBlob();
+			blobOut = new BufferedOutputStream(
+					blob.setBinaryStream(1L), getBufferSize());
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (blobOut == null) {
+				if (inlineContent.size() + len <= inlineThreshold) {
+					inlineContent.write(b, off, len);
+					return;
+				}
+				try {
+					createBlob();
+				} catch (SQLException e) {
+					throw new IOException(e);
+				}
+				inlineContent.writeTo(blobOut);
+				inlineContent = null;
+			}
+			blobOut.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (blobOut != null) {
+				blobOut.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (blobOut != null) {
+				blobOut.close();
+			}
+		}
+
+		void free() throws SQLException {
+			if (blob != null) {
+				blob.free();
+			}
+		}
+
+	}
+
+	/**
+	 * In-memory BLOB for content that was stored inline.
+	 */
+	@SuppressWarnings("serial")
+	private static class InlineBlob extends SerialBlob {
+
+		private final byte[] bytes;
+
+		InlineBlob(byte[] bytes) throws SQLException {
+			super(bytes);
+			this.bytes = bytes;
+		}
+
+		@Override
+		public InputStream getBinaryStream(long pos, long length) throws SerialException {
+			// Unlike SerialBlob, allows empty ranges (e.g. of empty blobs)
+			if (pos < 1 || length < 0 || pos - 1 + length > bytes.length) {
+				throw new SerialException("Invalid position or length");
+			}
+			return new ByteArrayInputStream(bytes, (int) pos - 1, (int) length);
+		}
+
+	}
+
+	private static final String INSERT_WITH_INLINE_CONTENT_SQL =
+			"INSERT INTO %s (name, content_type, content, size, date_created, md5_hash, inline_content) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	protected String getInsertWithInlineContentSql() {
+		return formatSql(INSERT_WITH_INLINE_CONTENT_SQL);
+	}
+
+	private static final String INSERT_CONTENT_WITH_INLINE_CONTENT_SQL =
+			"INSERT INTO %4$s (id, content, inline_content) VALUES (?, ?, ?)";
+
+	protected String getInsertContentWithInlineContentSql() {
+		return formatSql(INSERT_CONTENT_WITH_INLINE_CONTENT_SQL);
+	}
+
+	private static final String SELECT_ALL_FIELDS_AND_INLINE_CONTENT_BY_ID_SQL =
+			"SELECT content, inline_content, name, content_type, size, date_created, md5_hash "
+			+ "FROM %3$s WHERE id = ?%2$s";
+
+	protected String getSelectAllFieldsAndInlineContentByIdSql() {
+		return formatSql(SELECT_ALL_FIELDS_AND_INLINE_CONTENT_BY_ID_SQL);
+	}
+
+	/**
+	 * Returns the SQL to retrieve the content (with the other fields, if
+	 * requested) of a blob.
+	 */
+	protected String getSelectContentSql(boolean includeBlobInfo) {
+		if (inlineThreshold > 0) {
+			return includeBlobInfo
+					? getSelectAllFieldsAndInlineContentByIdSql()
+					: getSelectContentAndInlineContentByIdSql();
+		}
+		return includeBlobInfo ? getSelectAllFieldsByIdSql() : getSelectContentByIdSql();
+	}
+
+	private static final String SELECT_CONTENT_AND_INLINE_CONTENT_BY_ID_SQL =
+			"SELECT content, inline_content FROM %3$s WHERE id = ?%2$s";
+
+	protected String getSelectContentAndInlineContentByIdSql() {
+		return formatSql(SELECT_CONTENT_AND_INLINE_CONTENT_BY_ID_SQL);
+	}
+
 	@Override
 	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
 		try {
 			try (
-					Connection connection = dataSource.getConnection();
+					Connection connection = getReadConnection(blobKey);
 					PreparedStatement ps = connection.prepareStatement(
 							getSelectNonContentFieldsByIdSql());
 				) {
@@ -154,13 +453,7 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 					if (!rs.next()) {
 						return null;
 					}
-					return new BlobInfo(
-							blobKey,
-							rs.getString("name"),
-							rs.getString("content_type"),
-							rs.getLong("size"),
-							rs.getTimestamp("date_created"),
-							rs.getString("md5_hash"));
+					return toBlobInfo(blobKey, rs);
 				}
 			}
 		} catch (SQLException e) {
@@ -187,19 +480,37 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 		serveBlobInternal(blobKey, out, start, end, true);
 	}
 
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		serveContent(out, (contentOut) -> {
+			readBlobInternal(blobKey, callback, new BlobHandler() {
+				@Override
+				public void handleBlob(Blob blob) throws SQLException, IOException {
+					try (InputStream in = new BufferedInputStream(
+							blob.getBinaryStream(), getBufferSize())) {
+						copy(in, contentOut);
+					}
+				}
+			});
+		});
+	}
+
 	protected void serveBlobInternal(
 			BlobKey blobKey, OutputStream out, long start, long end, boolean useEnd)
 			throws IOException, BlobstoreException {
-		readBlobInternal(blobKey, new BlobHandler() {
-			@Override
-			public void handleBlob(Blob blob) throws SQLException, IOException {
-				long pos = start + 1; // for java.sql.Blob the first byte is at position 1
-				long length = useEnd ? (end - start + 1) : blob.length();
-				try (InputStream in = new BufferedInputStream(
-						blob.getBinaryStream(pos, length), getBufferSize())) {
-					copy(in, out);
+		serveContent(out, (contentOut) -> {
+			readBlobInternal(blobKey, new BlobHandler() {
+				@Override
+				public void handleBlob(Blob blob) throws SQLException, IOException {
+					long pos = start + 1; // for java.sql.Blob the first byte is at position 1
+					long length = useEnd ? (end - start + 1) : blob.length();
+					try (InputStream in = new BufferedInputStream(
+							blob.getBinaryStream(pos, length), getBufferSize())) {
+						copy(in, contentOut);
+					}
 				}
-			}
+			});
 		});
 	}
 
@@ -221,7 +532,11 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 					ps.setLong(1, Long.valueOf(blobKey.stringValue()));
 					ps.addBatch();
 				}
-				return ps.executeBatch();
+				int[] rowCounts = ps.executeBatch();
+				for (BlobKey blobKey : blobKeys) {
+					written(blobKey);
+				}
+				return rowCounts;
 			}
 		} catch (SQLException e) {
 			throw new BlobstoreException(
@@ -249,29 +564,77 @@ public class JdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 
 	protected void readBlobInternal(BlobKey blobKey, BlobHandler blobHandler)
 		throws IOException, BlobstoreException {
+		readBlobInternal(blobKey, null, blobHandler);
+	}
+
+	/**
+	 * Reads the blob, and traces each phase of the read. If a blob info
+	 * call-back is given, the other fields are retrieved with the same query,
+	 * and passed to the call-back before the blob is handled.
+	 */
+	protected void readBlobInternal(BlobKey blobKey,
+			BlobInfoCallback blobInfoCallback, BlobHandler blobHandler)
+		throws IOException, BlobstoreException {
+		BlobReadTrace trace = new BlobReadTrace(blobKey);
 		try {
 			try (
-					Connection connection = dataSource.getConnection();
+					Connection connection = getConnection(trace);
 					PreparedStatement ps = connection.prepareStatement(
-							getSelectContentByIdSql());
+							getSelectContentSql(blobInfoCallback != null));
 				) {
 				ps.setLong(1, Long.valueOf(blobKey.stringValue()));
 				try (ResultSet rs = ps.executeQuery()) {
-					if (!rs.next()) {
-						throw new BlobstoreException(
-								"Blob not found: " + blobKey);
-					}
-					Blob blob = rs.getBlob(1);
-					try {
-						blobHandler.handleBlob(blob);
-					} finally {
-						blob.free();
-					}
+					handleResult(blobKey, rs, blobInfoCallback, blobHandler, trace);
 				}
 			}
 		} catch (SQLException e) {
+			trace.failed(e);
 			throw new BlobstoreException("Error when retrieving blob", e);
+		} catch (IOException | RuntimeException e) {
+			trace.failed(e);
+			throw e;
+		} finally {
+			trace.connectionReleased();
+			readTraced(trace);
 		}
 	}
 
+	/**
+	 * Handles the result of the query (see
+	 * {@link #getSelectContentSql(boolean)}) that retrieves the blob.
+	 */
+	protected void handleResult(BlobKey blobKey, ResultSet rs,
+			BlobInfoCallback blobInfoCallback, BlobHandler blobHandler,
+			BlobReadTrace trace) throws SQLException, IOException {
+		if (!rs.next()) {
+			if (blobInfoCallback == null) {
+				throw new BlobstoreException(
+						"Blob not found: " + blobKey);
+			}
+			trace.queryExecuted();
+			blobInfoCallback.blobInfoRetrieved(null);
+			return;
+		}
+		trace.queryExecuted();
+		if (blobInfoCallback != null
+				&& !blobInfoCallback.blobInfoRetrieved(toBlobInfo(blobKey, rs))) {
+			return;
+		}
+		byte[] inlineContent = inlineThreshold > 0 ? rs.getBytes("inline_content") : null;
+		Blob blob = trace.blobOpened(inlineContent != null
+				? new InlineBlob(inlineContent) : rs.getBlob(1));
+		try {
+			blobHandler.handleBlob(blob);
+			trace.blobRead();
+		} finally {
+			blob.free();
+		}
+	}
+
+	protected Connection getConnection(BlobReadTrace trace) throws SQLException {
+		Connection connection = getReadConnection(trace.getBlobKey());
+		trace.connectionAcquired();
+		return connection;
+	}
+
 }
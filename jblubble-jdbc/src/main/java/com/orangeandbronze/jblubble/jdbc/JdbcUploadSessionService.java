@@ -0,0 +1,512 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.UploadSessionService;
+
+/**
+ * {@link UploadSessionService Upload session service} implementation that
+ * stages chunks in database tables. When committed, the chunks are streamed
+ * (in order) to
+ * {@link BlobstoreService#createBlob(com.orangeandbronze.jblubble.BlobstoreWriteCallback, String, String)}
+ * of the given blobstore service, which computes the size and MD5 hash in
+ * the same pass. Thus, this works with any of the JDBC blobstore service
+ * implementations.
+ * <p>
+ * This implementation uses two tables. One for the sessions, with the
+ * following columns:
+ * </p>
+ * <ul>
+ * <li>id</li>
+ * <li>name</li>
+ * <li>content_type</li>
+ * <li>date_created</li>
+ * </ul>
+ * <p>
+ * And another for the chunks, with the following columns:
+ * </p>
+ * <ul>
+ * <li>session_id</li>
+ * <li>chunk_offset</li>
+ * <li>size</li>
+ * <li>content</li>
+ * </ul>
+ * <p>
+ * Appending, committing, and aborting lock the session row (with
+ * <code>SELECT ... FOR UPDATE</code>) until their transactions end. So, a
+ * commit never misses a chunk that is being appended, and a session is
+ * committed at most once. Chunks of the same session are appended one at a
+ * time (chunks of different sessions are still appended concurrently).
+ * </p>
+ * <p>
+ * Sessions that are neither committed nor aborted stay in the tables. They
+ * can be purged using their <code>date_created</code>.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class JdbcUploadSessionService implements UploadSessionService {
+
+	public static final int DEFAULT_BUFFER_SIZE = 0x2000; // 8192 bytes, or 8 kilobytes
+	public static final String DEFAULT_SESSION_TABLE_NAME = "lob_upload_sessions";
+	public static final String DEFAULT_CHUNK_TABLE_NAME = "lob_chunks";
+
+	protected final DataSource dataSource;
+	protected final BlobstoreService blobstoreService;
+	private String sessionTableName = DEFAULT_SESSION_TABLE_NAME;
+	private String chunkTableName = DEFAULT_CHUNK_TABLE_NAME;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	public JdbcUploadSessionService(DataSource dataSource, BlobstoreService blobstoreService) {
+		if (dataSource == null) {
+			throw new IllegalArgumentException(
+					"Datasource cannot be null");
+		}
+		if (blobstoreService == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		this.dataSource = dataSource;
+		this.blobstoreService = blobstoreService;
+	}
+
+	public String getSessionTableName() {
+		return sessionTableName;
+	}
+
+	public void setSessionTableName(String sessionTableName) {
+		this.sessionTableName = sessionTableName;
+	}
+
+	public String getChunkTableName() {
+		return chunkTableName;
+	}
+
+	public void setChunkTableName(String chunkTableName) {
+		this.chunkTableName = chunkTableName;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException(
+					"Buffer size cannot be zero or less");
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	private static final String INSERT_SESSION_SQL =
+			"INSERT INTO %s (id, name, content_type, date_created) VALUES (?, ?, ?, ?)";
+
+	protected String getInsertSessionSql() {
+		return String.format(INSERT_SESSION_SQL, getSessionTableName());
+	}
+
+	private static final String SELECT_SESSION_BY_ID_SQL =
+			"SELECT name, content_type FROM %s WHERE id = ?";
+
+	protected String getSelectSessionByIdSql() {
+		return String.format(SELECT_SESSION_BY_ID_SQL, getSessionTableName());
+	}
+
+	private static final String SELECT_SESSION_BY_ID_FOR_UPDATE_SQL =
+			"SELECT name, content_type FROM %s WHERE id = ? FOR UPDATE";
+
+	protected String getSelectSessionByIdForUpdateSql() {
+		return String.format(SELECT_SESSION_BY_ID_FOR_UPDATE_SQL, getSessionTableName());
+	}
+
+	private static final String DELETE_SESSION_BY_ID_SQL =
+			"DELETE FROM %s WHERE id = ?";
+
+	protected String getDeleteSessionByIdSql() {
+		return String.format(DELETE_SESSION_BY_ID_SQL, getSessionTableName());
+	}
+
+	private static final String UPDATE_CHUNK_SQL =
+			"UPDATE %s SET size = ?, content = ? WHERE session_id = ? AND chunk_offset = ?";
+
+	protected String getUpdateChunkSql() {
+		return String.format(UPDATE_CHUNK_SQL, getChunkTableName());
+	}
+
+	private static final String INSERT_CHUNK_SQL =
+			"INSERT INTO %s (session_id, chunk_offset, size, content) VALUES (?, ?, ?, ?)";
+
+	protected String getInsertChunkSql() {
+		return String.format(INSERT_CHUNK_SQL, getChunkTableName());
+	}
+
+	private static final String SELECT_CHUNK_SIZES_BY_SESSION_ID_SQL =
+			"SELECT chunk_offset, size FROM %s WHERE session_id = ? ORDER BY chunk_offset";
+
+	protected String getSelectChunkSizesBySessionIdSql() {
+		return String.format(SELECT_CHUNK_SIZES_BY_SESSION_ID_SQL, getChunkTableName());
+	}
+
+	private static final String SELECT_CHUNKS_BY_SESSION_ID_SQL =
+			"SELECT chunk_offset, size, content FROM %s WHERE session_id = ? ORDER BY chunk_offset";
+
+	protected String getSelectChunksBySessionIdSql() {
+		return String.format(SELECT_CHUNKS_BY_SESSION_ID_SQL, getChunkTableName());
+	}
+
+	private static final String DELETE_CHUNKS_BY_SESSION_ID_SQL =
+			"DELETE FROM %s WHERE session_id = ?";
+
+	protected String getDeleteChunksBySessionIdSql() {
+		return String.format(DELETE_CHUNKS_BY_SESSION_ID_SQL, getChunkTableName());
+	}
+
+	@Override
+	public String openSession(String name, String contentType) throws BlobstoreException {
+		String sessionId = UUID.randomUUID().toString();
+		try {
+			try (
+					Connection connection = dataSource.getConnection();
+					PreparedStatement ps = connection.prepareStatement(
+							getInsertSessionSql());
+				) {
+				ps.setString(1, sessionId);
+				ps.setString(2, name);
+				ps.setString(3, contentType);
+				ps.setTimestamp(4, new java.sql.Timestamp(
+						new java.util.Date().getTime()));
+				ps.executeUpdate();
+				return sessionId;
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException("Error when opening upload session", e);
+		}
+	}
+
+	@Override
+	public void appendChunk(String sessionId, long offset, byte[] bytes)
+			throws IOException, BlobstoreException {
+		if (offset < 0) {
+			throw new IllegalArgumentException(
+					"Offset cannot be negative");
+		}
+		if (bytes == null) {
+			throw new IllegalArgumentException(
+					"Bytes cannot be null");
+		}
+		try {
+			try (Connection connection = dataSource.getConnection()) {
+				boolean autoCommit = connection.getAutoCommit();
+				connection.setAutoCommit(false);
+				try {
+					// Not committed while this chunk is being appended
+					lockSession(connection, sessionId);
+					// A re-sent chunk replaces the previous one
+					if (!updateChunk(connection, sessionId, offset, bytes)) {
+						try {
+							insertChunk(connection, sessionId, offset, bytes);
+						} catch (SQLException e) {
+							if (!isIntegrityConstraintViolation(e)) {
+								throw e;
+							}
+							// The same chunk was inserted concurrently
+							// (e.g. re-sent while the first was still
+							// being appended), so replace it instead
+							connection.rollback();
+							if (!updateChunk(connection, sessionId, offset, bytes)) {
+								throw e;
+							}
+						}
+					}
+					connection.commit();
+				} catch (SQLException | RuntimeException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(autoCommit);
+				}
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException("Error when appending chunk", e);
+		}
+	}
+
+	private boolean updateChunk(
+			Connection connection, String sessionId, long offset, byte[] bytes)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				getUpdateChunkSql())) {
+			ps.setLong(1, bytes.length);
+			ps.setBytes(2, bytes);
+			ps.setString(3, sessionId);
+			ps.setLong(4, offset);
+			return ps.executeUpdate() > 0;
+		}
+	}
+
+	private void insertChunk(
+			Connection connection, String sessionId, long offset, byte[] bytes)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				getInsertChunkSql())) {
+			ps.setString(1, sessionId);
+			ps.setLong(2, offset);
+			ps.setLong(3, bytes.length);
+			ps.setBytes(4, bytes);
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the given exception is caused by an
+	 * integrity constraint violation (e.g. a duplicate primary key). Not all
+	 * JDBC drivers throw {@link SQLIntegrityConstraintViolationException}, so
+	 * the SQL state class (<code>23</code>) is checked too.
+	 */
+	protected boolean isIntegrityConstraintViolation(SQLException e) {
+		if (e instanceof SQLIntegrityConstraintViolationException) {
+			return true;
+		}
+		String sqlState = e.getSQLState();
+		return sqlState != null && sqlState.startsWith("23");
+	}
+
+	@Override
+	public long getUploadedLength(String sessionId) throws BlobstoreException {
+		try {
+			try (Connection connection = dataSource.getConnection()) {
+				checkSessionExists(connection, sessionId);
+				return getContiguousLength(connection, sessionId, false);
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException(
+					"Error when getting uploaded length", e);
+		}
+	}
+
+	/**
+	 * Returns the number of contiguous bytes (starting from the first byte)
+	 * of the staged chunks.
+	 *
+	 * @param failOnGap
+	 *            whether to fail if there are chunks after the contiguous
+	 *            bytes (i.e. there are missing chunks)
+	 */
+	private long getContiguousLength(
+			Connection connection, String sessionId, boolean failOnGap)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				getSelectChunkSizesBySessionIdSql())) {
+			ps.setString(1, sessionId);
+			try (ResultSet rs = ps.executeQuery()) {
+				long length = 0;
+				while (rs.next()) {
+					long chunkOffset = rs.getLong(1);
+					if (chunkOffset > length) {
+						if (failOnGap) {
+							throw new BlobstoreException(
+									"Upload session has missing chunks after byte "
+											+ length + ": " + sessionId);
+						}
+						break;
+					}
+					length = Math.max(length, chunkOffset + rs.getLong(2));
+				}
+				return length;
+			}
+		}
+	}
+
+	@Override
+	public BlobKey commit(String sessionId) throws IOException, BlobstoreException {
+		try {
+			try (Connection connection = dataSource.getConnection()) {
+				boolean autoCommit = connection.getAutoCommit();
+				connection.setAutoCommit(false);
+				BlobKey blobKey = null;
+				try {
+					String name;
+					String contentType;
+					// Locks the session, so that no chunk is appended, and
+					// the session is not committed again, in the meantime
+					try (PreparedStatement ps = connection.prepareStatement(
+							getSelectSessionByIdForUpdateSql())) {
+						ps.setString(1, sessionId);
+						try (ResultSet rs = ps.executeQuery()) {
+							if (!rs.next()) {
+								throw new BlobstoreException(
+										"Upload session not found: " + sessionId);
+							}
+							name = rs.getString("name");
+							contentType = rs.getString("content_type");
+						}
+					}
+					getContiguousLength(connection, sessionId, true);
+					try (PreparedStatement ps = connection.prepareStatement(
+							getSelectChunksBySessionIdSql())) {
+						ps.setString(1, sessionId);
+						try (ResultSet rs = ps.executeQuery()) {
+							blobKey = blobstoreService.createBlob(
+									(out) -> writeChunks(rs, out), name, contentType);
+						}
+					}
+					deleteSession(connection, sessionId);
+					connection.commit();
+					return blobKey;
+				} catch (SQLException | IOException | RuntimeException e) {
+					connection.rollback();
+					if (blobKey != null) {
+						// The session is kept, and can be committed again
+						blobstoreService.delete(blobKey);
+					}
+					throw e;
+				} finally {
+					connection.setAutoCommit(autoCommit);
+				}
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException("Error when committing upload session", e);
+		}
+	}
+
+	/**
+	 * Writes the chunks in order, skipping bytes that overlap with previous
+	 * chunks.
+	 */
+	private long writeChunks(ResultSet rs, OutputStream out) throws IOException {
+		byte[] buffer = new byte[getBufferSize()];
+		long position = 0;
+		try {
+			while (rs.next()) {
+				long chunkOffset = rs.getLong(1);
+				long chunkSize = rs.getLong(2);
+				if (chunkOffset > position) {
+					throw new IOException("Missing chunk at byte " + position);
+				}
+				if (chunkOffset + chunkSize <= position) {
+					continue;
+				}
+				try (InputStream in = rs.getBinaryStream(3)) {
+					long skip = position - chunkOffset;
+					while (skip > 0) {
+						long skipped = in.skip(skip);
+						if (skipped <= 0) {
+							throw new IOException("Chunk is shorter than its size");
+						}
+						skip -= skipped;
+					}
+					int len;
+					while ((len = in.read(buffer)) != -1) {
+						out.write(buffer, 0, len);
+						position += len;
+					}
+				}
+			}
+		} catch (SQLException e) {
+			throw new IOException("Error when reading chunks", e);
+		}
+		return position;
+	}
+
+	@Override
+	public void abort(String sessionId) throws BlobstoreException {
+		try {
+			try (Connection connection = dataSource.getConnection()) {
+				boolean autoCommit = connection.getAutoCommit();
+				connection.setAutoCommit(false);
+				try {
+					// Waits for a commit (or append) that is in progress
+					try (PreparedStatement ps = connection.prepareStatement(
+							getSelectSessionByIdForUpdateSql())) {
+						ps.setString(1, sessionId);
+						ps.executeQuery().close();
+					}
+					deleteSession(connection, sessionId);
+					connection.commit();
+				} catch (SQLException | RuntimeException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(autoCommit);
+				}
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException("Error when aborting upload session", e);
+		}
+	}
+
+	/**
+	 * Locks the session row until the end of the transaction.
+	 */
+	private void lockSession(Connection connection, String sessionId)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				getSelectSessionByIdForUpdateSql())) {
+			ps.setString(1, sessionId);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					throw new BlobstoreException(
+							"Upload session not found: " + sessionId);
+				}
+			}
+		}
+	}
+
+	private void checkSessionExists(Connection connection, String sessionId)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				getSelectSessionByIdSql())) {
+			ps.setString(1, sessionId);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					throw new BlobstoreException(
+							"Upload session not found: " + sessionId);
+				}
+			}
+		}
+	}
+
+	private void deleteSession(Connection connection, String sessionId)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+				getDeleteChunksBySessionIdSql())) {
+			ps.setString(1, sessionId);
+			ps.executeUpdate();
+		}
+		try (PreparedStatement ps = connection.prepareStatement(
+				getDeleteSessionByIdSql())) {
+			ps.setString(1, sessionId);
+			ps.executeUpdate();
+		}
+	}
+
+}
@@ -27,11 +27,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.orangeandbronze.jblubble.BlobInfoCallback;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
@@ -61,10 +68,26 @@ import com.orangeandbronze.jblubble.jdbc.JdbcBlobstoreService;
  */
 public class PgJdbcBlobstoreService extends JdbcBlobstoreService {
 
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
 	public PgJdbcBlobstoreService(DataSource dataSource) {
 		super(dataSource);
 	}
 
+	/**
+	 * Not supported, since content is always stored as a large object.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             unless the given threshold is zero
+	 */
+	@Override
+	public void setInlineThreshold(int inlineThreshold) {
+		if (inlineThreshold != 0) {
+			throw new UnsupportedOperationException(
+					"Inline storage is not supported with PostgreSQL large objects");
+		}
+	}
+
 	@Override
 	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
 			throws IOException, BlobstoreException {
@@ -89,6 +112,13 @@ public class PgJdbcBlobstoreService extends JdbcBlobstoreService {
 								"Creating blob failed, no rows created.");
 					}
 					final long generatedId = getGeneratedKey(ps);
+					if (isSplitSchema()) {
+						try (PreparedStatement ps1 = connection.prepareStatement(
+								getInsertEmptyContentSql())) {
+							ps1.setLong(1, generatedId);
+							ps1.executeUpdate();
+						}
+					}
 					long size;
 					String md5Hash = null;
 					try (PreparedStatement ps2 = connection.prepareStatement(
@@ -158,7 +188,9 @@ public class PgJdbcBlobstoreService extends JdbcBlobstoreService {
 					if (resetCommitMode) {
 						connection.commit();
 					}
-					return new BlobKey(String.valueOf(generatedId));
+					BlobKey blobKey = new BlobKey(String.valueOf(generatedId));
+					written(blobKey);
+					return blobKey;
 				}
 			} catch (Exception e) {
 				connection.rollback();
@@ -178,9 +210,21 @@ public class PgJdbcBlobstoreService extends JdbcBlobstoreService {
 			"INSERT INTO %s (name, content_type, content, size, date_created, md5_hash) "
 			+ "VALUES (?, ?, lo_creat(-1), -1, ?, null)";
 
+	// Split schema (an empty blob is inserted separately)
+	private static final String INSERT_METADATA_OF_EMPTY_BLOB_SQL =
+			"INSERT INTO %1$s (name, content_type, size, date_created, md5_hash) "
+			+ "VALUES (?, ?, -1, ?, null)";
+
 	@Override
 	protected String getInsertSql() {
-		return String.format(INSERT_EMPTY_BLOB_SQL, getTableName());
+		return formatSql(isSplitSchema() ? INSERT_METADATA_OF_EMPTY_BLOB_SQL : INSERT_EMPTY_BLOB_SQL);
+	}
+
+	private static final String INSERT_EMPTY_CONTENT_SQL =
+			"INSERT INTO %4$s (id, content) VALUES (?, lo_creat(-1))";
+
+	protected String getInsertEmptyContentSql() {
+		return formatSql(INSERT_EMPTY_CONTENT_SQL);
 	}
 	
 	// Updates size and MD5 hash values
@@ -188,33 +232,172 @@ public class PgJdbcBlobstoreService extends JdbcBlobstoreService {
 			"UPDATE %s SET size = ?, md5_hash = ? WHERE id = ?";
 
 	protected String getUpdateSizeSql() {
-		return String.format(UPDATE_SIZE_AND_MD5_HASH_SQL, getTableName());
+		return formatSql(UPDATE_SIZE_AND_MD5_HASH_SQL);
+	}
+
+	// Large objects of the current user that no row refers to
+	private static final String SELECT_ORPHANED_LARGE_OBJECTS_SQL =
+			"SELECT m.oid FROM pg_largeobject_metadata m "
+			+ "WHERE m.lomowner = (SELECT r.oid FROM pg_roles r WHERE r.rolname = current_user) "
+			+ "AND m.oid::bigint > ? "
+			+ "%s"
+			+ "ORDER BY m.oid";
+
+	private static final String NOT_REFERRED_TO_CONDITION =
+			"AND NOT EXISTS (SELECT 1 FROM %s r WHERE r.%s = m.oid) ";
+
+	// [schema.]table.column
+	private static final Pattern REFERENCING_COLUMN_PATTERN = Pattern.compile(
+			"([A-Za-z_][A-Za-z0-9_$]*\\.)?[A-Za-z_][A-Za-z0-9_$]*\\.[A-Za-z_][A-Za-z0-9_$]*");
+
+	/**
+	 * @param referencingColumns
+	 *            the columns (as <code>[schema.]table.column</code>) that
+	 *            refer to large objects, besides the content column of this
+	 *            blobstore
+	 */
+	protected String getSelectOrphanedLargeObjectsSql(Collection<String> referencingColumns) {
+		StringBuilder conditions = new StringBuilder(String.format(
+				NOT_REFERRED_TO_CONDITION,
+				isSplitSchema() ? getContentTableName() : getTableName(), "content"));
+		for (String referencingColumn : referencingColumns) {
+			int i = referencingColumn.lastIndexOf('.');
+			conditions.append(String.format(NOT_REFERRED_TO_CONDITION,
+					referencingColumn.substring(0, i), referencingColumn.substring(i + 1)));
+		}
+		return String.format(SELECT_ORPHANED_LARGE_OBJECTS_SQL, conditions);
+	}
+
+	private static final String UNLINK_LARGE_OBJECT_SQL = "SELECT lo_unlink(?::oid)";
+
+	/**
+	 * Counts the large objects that are no longer referred to by any blob,
+	 * nor by any of the given columns, e.g. when rows were deleted without
+	 * the <code>lo_unlink</code> rule (see <code>create-lob-table-pg.sql</code>).
+	 * Nothing is unlinked. Use this to check the count before
+	 * {@link #unlinkOrphanedLargeObjects(Collection) unlinking} them.
+	 * <p>
+	 * Only large objects owned by the current (database) user are considered.
+	 * So, <em>every</em> other table and column (of this or other
+	 * applications) that refers to large objects of the same user must be
+	 * given. Otherwise, their large objects are counted as orphans too.
+	 * </p>
+	 *
+	 * @param referencingColumns
+	 *            the other columns (as <code>[schema.]table.column</code>)
+	 *            that refer to large objects of the current user, or an
+	 *            empty collection if there are none (the content column of
+	 *            this blobstore is always checked)
+	 * @return the number of orphaned large objects
+	 */
+	public long countOrphanedLargeObjects(Collection<String> referencingColumns)
+			throws BlobstoreException {
+		return collectOrphanedLargeObjects(false, referencingColumns);
+	}
+
+	/**
+	 * Unlinks the large objects that are no longer referred to by any blob,
+	 * nor by any of the given columns (see
+	 * {@link #countOrphanedLargeObjects(Collection)}). The large objects are
+	 * processed in chunks of (up to) {@link #getDeleteChunkSize() delete
+	 * chunk size}, with a commit after each chunk.
+	 * <p>
+	 * Unlinking cannot be undone. If a table or column that refers to large
+	 * objects of the current user is left out, its large objects are
+	 * unlinked.
+	 * </p>
+	 *
+	 * @param referencingColumns
+	 *            the other columns (as <code>[schema.]table.column</code>)
+	 *            that refer to large objects of the current user, or an
+	 *            empty collection if there are none (the content column of
+	 *            this blobstore is always checked)
+	 * @return the number of unlinked large objects
+	 */
+	public long unlinkOrphanedLargeObjects(Collection<String> referencingColumns)
+			throws BlobstoreException {
+		return collectOrphanedLargeObjects(true, referencingColumns);
+	}
+
+	private long collectOrphanedLargeObjects(boolean unlinking, Collection<String> referencingColumns)
+			throws BlobstoreException {
+		if (referencingColumns == null) {
+			throw new IllegalArgumentException(
+					"Referencing columns cannot be null");
+		}
+		for (String referencingColumn : referencingColumns) {
+			if (referencingColumn == null
+					|| !REFERENCING_COLUMN_PATTERN.matcher(referencingColumn).matches()) {
+				throw new IllegalArgumentException(
+						"Not a [schema.]table.column: " + referencingColumn);
+			}
+		}
+		String sql = getSelectOrphanedLargeObjectsSql(referencingColumns);
+		long orphans = 0;
+		try (Connection connection = dataSource.getConnection()) {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				long lastOid = -1;
+				boolean lastChunk = false;
+				while (!lastChunk) {
+					List<Long> oids = new ArrayList<>(getDeleteChunkSize());
+					try (PreparedStatement ps = connection.prepareStatement(sql)) {
+						ps.setLong(1, lastOid);
+						ps.setMaxRows(getDeleteChunkSize());
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								oids.add(rs.getLong(1));
+							}
+						}
+					}
+					lastChunk = oids.size() < getDeleteChunkSize();
+					if (!oids.isEmpty()) {
+						lastOid = oids.get(oids.size() - 1);
+					}
+					orphans += oids.size();
+					if (unlinking && !oids.isEmpty()) {
+						try (PreparedStatement ps = connection.prepareStatement(
+								UNLINK_LARGE_OBJECT_SQL)) {
+							for (Long oid : oids) {
+								ps.setLong(1, oid);
+								ps.execute();
+							}
+						}
+						LOGGER.info("Unlinked {} orphaned large object(s)", oids.size());
+					}
+					connection.commit();
+				}
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException(
+					"Error when collecting orphaned large objects", e);
+		}
+		return orphans;
 	}
 
 	@Override
-	protected void readBlobInternal(BlobKey blobKey, BlobHandler blobHandler)
+	protected void readBlobInternal(BlobKey blobKey,
+			BlobInfoCallback blobInfoCallback, BlobHandler blobHandler)
 			throws IOException, BlobstoreException {
+		BlobReadTrace trace = new BlobReadTrace(blobKey);
 		try {
 			boolean resetCommitMode = false;
-			try (Connection connection = dataSource.getConnection()) {
+			try (Connection connection = getConnection(trace)) {
 				if (connection.getAutoCommit()) {
 					connection.setAutoCommit(false);
 					resetCommitMode = true;
 				}
 				try (PreparedStatement ps = connection.prepareStatement(
-								getSelectContentByIdSql())) {
+								getSelectContentSql(blobInfoCallback != null))) {
 					ps.setLong(1, Long.valueOf(blobKey.stringValue()));
 					try (ResultSet rs = ps.executeQuery()) {
-						if (!rs.next()) {
-							throw new BlobstoreException(
-									"Blob not found: " + blobKey);
-						}
-						Blob blob = rs.getBlob(1);
-						try {
-							blobHandler.handleBlob(blob);
-						} finally {
-							blob.free();
-						}
+						handleResult(blobKey, rs, blobInfoCallback, blobHandler, trace);
 					}
 					if (resetCommitMode) {
 						connection.commit();
@@ -222,7 +405,14 @@ public class PgJdbcBlobstoreService extends JdbcBlobstoreService {
 				}
 			}
 		} catch (SQLException e) {
+			trace.failed(e);
 			throw new BlobstoreException("Error when retrieving blob", e);
+		} catch (IOException | RuntimeException e) {
+			trace.failed(e);
+			throw e;
+		} finally {
+			trace.connectionReleased();
+			readTraced(trace);
 		}
 	}
 	
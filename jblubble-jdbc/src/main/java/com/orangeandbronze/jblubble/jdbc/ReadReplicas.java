@@ -0,0 +1,333 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobKey;
+
+/**
+ * Read replicas (i.e. data sources) that reads can be routed to, instead of
+ * the primary data source.
+ * <p>
+ * A replica is selected {@link Selection#ROUND_ROBIN round-robin} (the
+ * default), or by {@link Selection#LEAST_LOADED least number of connections
+ * in use}. A replica that fails to provide a connection is taken out of the
+ * rotation for the {@link #setRetryInterval(long) retry interval}. Replicas
+ * can also be checked (e.g. periodically) via {@link #checkHealth()}.
+ * </p>
+ * <p>
+ * Since replicas may lag behind the primary, blobs that were written within
+ * the {@link #setReadYourWritesWindow(long) read-your-writes window} are read
+ * from the primary.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class ReadReplicas {
+
+	public static final long DEFAULT_RETRY_INTERVAL = 30000; // milliseconds
+	public static final long DEFAULT_READ_YOUR_WRITES_WINDOW = 5000; // milliseconds
+	public static final int DEFAULT_VALIDATION_TIMEOUT = 5; // seconds
+
+	/**
+	 * How a replica is selected.
+	 */
+	public enum Selection {
+		ROUND_ROBIN, LEAST_LOADED
+	}
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final List<Replica> replicas;
+	private final AtomicInteger next = new AtomicInteger();
+	private Selection selection = Selection.ROUND_ROBIN;
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+	private long readYourWritesWindow = DEFAULT_READ_YOUR_WRITES_WINDOW;
+	private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+
+	// blob keys written recently, and when (in nanoseconds)
+	private final Map<BlobKey, Long> recentWrites = new ConcurrentHashMap<>();
+	private final Queue<BlobKey> recentWritesInOrder = new ConcurrentLinkedQueue<>();
+
+	public ReadReplicas(DataSource... dataSources) {
+		this(Arrays.asList(dataSources));
+	}
+
+	public ReadReplicas(List<DataSource> dataSources) {
+		if (dataSources == null || dataSources.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Data sources cannot be null or empty");
+		}
+		List<Replica> replicas = new ArrayList<>(dataSources.size());
+		for (DataSource dataSource : dataSources) {
+			if (dataSource == null) {
+				throw new IllegalArgumentException(
+						"Data sources cannot be null");
+			}
+			replicas.add(new Replica(dataSource));
+		}
+		this.replicas = replicas;
+	}
+
+	public Selection getSelection() {
+		return selection;
+	}
+
+	public void setSelection(Selection selection) {
+		if (selection == null) {
+			throw new IllegalArgumentException(
+					"Selection cannot be null");
+		}
+		this.selection = selection;
+	}
+
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) a failed replica is left out, before it
+	 * is tried again.
+	 */
+	public void setRetryInterval(long retryInterval) {
+		if (retryInterval < 0) {
+			throw new IllegalArgumentException(
+					"Retry interval cannot be negative");
+		}
+		this.retryInterval = retryInterval;
+	}
+
+	public long getReadYourWritesWindow() {
+		return readYourWritesWindow;
+	}
+
+	/**
+	 * Sets how long (in milliseconds) after being written a blob is read
+	 * from the primary. This should be longer than the expected replication
+	 * lag. Zero disables this.
+	 */
+	public void setReadYourWritesWindow(long readYourWritesWindow) {
+		if (readYourWritesWindow < 0) {
+			throw new IllegalArgumentException(
+					"Read-your-writes window cannot be negative");
+		}
+		this.readYourWritesWindow = readYourWritesWindow;
+	}
+
+	public int getValidationTimeout() {
+		return validationTimeout;
+	}
+
+	/**
+	 * Sets the timeout (in seconds) used by {@link #checkHealth()} when
+	 * validating a connection.
+	 */
+	public void setValidationTimeout(int validationTimeout) {
+		if (validationTimeout < 0) {
+			throw new IllegalArgumentException(
+					"Validation timeout cannot be negative");
+		}
+		this.validationTimeout = validationTimeout;
+	}
+
+	/**
+	 * Returns the number of replicas that are currently in the rotation.
+	 */
+	public int getAvailableCount() {
+		long now = System.nanoTime();
+		int count = 0;
+		for (Replica replica : replicas) {
+			if (replica.isAvailable(now)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Records that the blob with the given key was written (i.e. created or
+	 * deleted), so that it is read from the primary for a while.
+	 */
+	public void written(BlobKey blobKey) {
+		if (readYourWritesWindow == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		recentWrites.put(blobKey, now);
+		recentWritesInOrder.add(blobKey);
+		// Forget writes that are older than the window
+		long windowNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesWindow);
+		BlobKey oldest;
+		while ((oldest = recentWritesInOrder.peek()) != null) {
+			Long writeTime = recentWrites.get(oldest);
+			if (writeTime != null && now - writeTime < windowNanos) {
+				break;
+			}
+			if (recentWritesInOrder.remove(oldest) && writeTime != null) {
+				recentWrites.remove(oldest, writeTime);
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the blob with the given key was written
+	 * within the read-your-writes window.
+	 */
+	public boolean isRecentlyWritten(BlobKey blobKey) {
+		Long writeTime = recentWrites.get(blobKey);
+		return writeTime != null && System.nanoTime() - writeTime
+				< TimeUnit.MILLISECONDS.toNanos(readYourWritesWindow);
+	}
+
+	/**
+	 * Returns a connection from one of the available replicas, or
+	 * <code>null</code> if none is available (in which case the primary
+	 * should be used).
+	 */
+	public Connection getConnection() {
+		for (int attempt = 0; attempt < replicas.size(); attempt++) {
+			Replica replica = select();
+			if (replica == null) {
+				break;
+			}
+			try {
+				return replica.getConnection(selection == Selection.LEAST_LOADED);
+			} catch (SQLException e) {
+				replica.failed(e);
+			}
+		}
+		return null;
+	}
+
+	private Replica select() {
+		long now = System.nanoTime();
+		int size = replicas.size();
+		int start = Math.floorMod(next.getAndIncrement(), size);
+		Replica selected = null;
+		for (int i = 0; i < size; i++) {
+			Replica replica = replicas.get((start + i) % size);
+			if (!replica.isAvailable(now)) {
+				continue;
+			}
+			if (selection == Selection.ROUND_ROBIN) {
+				return replica;
+			}
+			if (selected == null || replica.inUse.get() < selected.inUse.get()) {
+				selected = replica;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Validates a connection from each replica. Replicas that pass are put
+	 * back in the rotation, and those that fail are taken out.
+	 */
+	public void checkHealth() {
+		for (Replica replica : replicas) {
+			try (Connection connection = replica.dataSource.getConnection()) {
+				if (!connection.isValid(validationTimeout)) {
+					throw new SQLException("Connection is not valid");
+				}
+				replica.succeeded();
+			} catch (SQLException e) {
+				replica.failed(e);
+			}
+		}
+	}
+
+	private class Replica {
+
+		final DataSource dataSource;
+		final AtomicInteger inUse = new AtomicInteger();
+		// when (in nanoseconds) a failed replica can be tried again
+		volatile long retryTime;
+		volatile boolean down;
+
+		Replica(DataSource dataSource) {
+			this.dataSource = dataSource;
+		}
+
+		boolean isAvailable(long now) {
+			return !down || now - retryTime >= 0;
+		}
+
+		/**
+		 * Returns a connection from this replica. Only when <code>counted</code>
+		 * is the connection wrapped, to count it as in use until it is closed.
+		 */
+		Connection getConnection(boolean counted) throws SQLException {
+			Connection connection = dataSource.getConnection();
+			succeeded();
+			if (!counted) {
+				return connection;
+			}
+			inUse.incrementAndGet();
+			AtomicInteger closed = new AtomicInteger();
+			return (Connection) Proxy.newProxyInstance(
+					Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class },
+					(proxy, method, args) -> {
+						if ("close".equals(method.getName())
+								&& method.getParameterCount() == 0
+								&& closed.compareAndSet(0, 1)) {
+							inUse.decrementAndGet();
+						}
+						try {
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					});
+		}
+
+		void succeeded() {
+			if (down) {
+				LOGGER.info("Read replica is available again: {}", dataSource);
+				down = false;
+			}
+		}
+
+		void failed(SQLException e) {
+			if (!down) {
+				LOGGER.warn("Read replica is not available: {} ({})", dataSource, e.toString());
+			}
+			retryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryInterval);
+			down = true;
+		}
+
+	}
+
+}
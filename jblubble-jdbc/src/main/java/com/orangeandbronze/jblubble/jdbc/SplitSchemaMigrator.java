@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobstoreException;
+
+/**
+ * Copies blobs from a single table (with metadata and contents side by
+ * side, e.g. <code>lobs</code>) to a split schema (e.g.
+ * <code>lobs_meta</code> and <code>lobs_content</code>, see
+ * <code>create-lob-split-tables.sql</code>), so that a JDBC blobstore
+ * service with a {@link AbstractJdbcBlobstoreService#setContentTableName(String)
+ * content table} can take over. Blobs keep their IDs (and keys).
+ * <p>
+ * Blobs are copied in chunks of (up to) {@link #getChunkSize() chunk size}
+ * blobs, in the order of their IDs, with a commit after each chunk. Contents
+ * are copied by the database (with <code>INSERT ... SELECT</code>), without
+ * passing through the application. Since copying resumes after the last ID
+ * in the metadata table, an interrupted migration can simply be run again.
+ * Blobs created in the single table while migrating are copied by running it
+ * once more (e.g. after writes have been stopped).
+ * </p>
+ * <p>
+ * The single table is left as is. On PostgreSQL, the copied rows refer to
+ * the same large objects, so the single table should be dropped (which does
+ * not fire its <code>lo_unlink</code> rule), and not deleted from. The
+ * sequence of the metadata table should also be set past the copied IDs
+ * (e.g. with <code>setval</code>).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class SplitSchemaMigrator {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1000; // blobs
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final DataSource dataSource;
+	private String sourceTableName = AbstractJdbcBlobstoreService.DEFAULT_TABLE_NAME;
+	private String metaTableName = "lobs_meta";
+	private String contentTableName = "lobs_content";
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	public SplitSchemaMigrator(DataSource dataSource) {
+		if (dataSource == null) {
+			throw new IllegalArgumentException(
+					"Datasource cannot be null");
+		}
+		this.dataSource = dataSource;
+	}
+
+	public String getSourceTableName() {
+		return sourceTableName;
+	}
+
+	public void setSourceTableName(String sourceTableName) {
+		this.sourceTableName = sourceTableName;
+	}
+
+	public String getMetaTableName() {
+		return metaTableName;
+	}
+
+	public void setMetaTableName(String metaTableName) {
+		this.metaTableName = metaTableName;
+	}
+
+	public String getContentTableName() {
+		return contentTableName;
+	}
+
+	public void setContentTableName(String contentTableName) {
+		this.contentTableName = contentTableName;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Chunk size cannot be zero or less");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Copies the blobs that have not been copied yet (i.e. with IDs after the
+	 * last ID in the metadata table). The <code>inline_content</code> and
+	 * <code>date_deleted</code> columns are copied too, if the single table
+	 * has them (i.e. tables created before 1.2 do not).
+	 *
+	 * @return the number of copied blobs
+	 */
+	public long migrate() throws BlobstoreException {
+		long copied = 0;
+		try (Connection connection = dataSource.getConnection()) {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				Set<String> columnNames = getSourceColumnNames(connection);
+				String contentColumns = columnNames.contains("inline_content")
+						? "content, inline_content" : "content";
+				String metadataColumns = columnNames.contains("date_deleted")
+						? "id, name, content_type, size, date_created, md5_hash, date_deleted"
+						: "id, name, content_type, size, date_created, md5_hash";
+				String selectIdsSql = "SELECT id FROM " + sourceTableName
+						+ " WHERE id > ? ORDER BY id";
+				String copyMetadataSql = "INSERT INTO " + metaTableName
+						+ " (" + metadataColumns + ")"
+						+ " SELECT " + metadataColumns
+						+ " FROM " + sourceTableName + " WHERE id > ? AND id <= ?";
+				String copyContentSql = "INSERT INTO " + contentTableName
+						+ " (id, " + contentColumns + ")"
+						+ " SELECT id, " + contentColumns
+						+ " FROM " + sourceTableName + " WHERE id > ? AND id <= ?";
+				long lastId = getLastCopiedId(connection);
+				while (true) {
+					long firstId = lastId;
+					int count = 0;
+					try (PreparedStatement ps = connection.prepareStatement(selectIdsSql)) {
+						ps.setLong(1, firstId);
+						ps.setMaxRows(chunkSize);
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								lastId = rs.getLong(1);
+								count++;
+							}
+						}
+					}
+					if (count == 0) {
+						connection.commit();
+						break;
+					}
+					int rowCount;
+					try (PreparedStatement ps = connection.prepareStatement(copyMetadataSql)) {
+						ps.setLong(1, firstId);
+						ps.setLong(2, lastId);
+						rowCount = ps.executeUpdate();
+					}
+					try (PreparedStatement ps = connection.prepareStatement(copyContentSql)) {
+						ps.setLong(1, firstId);
+						ps.setLong(2, lastId);
+						ps.executeUpdate();
+					}
+					connection.commit();
+					copied += rowCount;
+					LOGGER.debug("Copied chunk of {} blobs (up to id {})", rowCount, lastId);
+					if (count < chunkSize) {
+						break;
+					}
+				}
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			throw new BlobstoreException(
+					"Error when migrating blobs (" + copied + " copied)", e);
+		}
+		LOGGER.info("Copied {} blobs from [{}] to [{}] and [{}]",
+				copied, sourceTableName, metaTableName, contentTableName);
+		return copied;
+	}
+
+	private long getLastCopiedId(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(
+						"SELECT MAX(id) FROM " + metaTableName)) {
+			rs.next();
+			long lastId = rs.getLong(1);
+			return rs.wasNull() ? Long.MIN_VALUE : lastId;
+		}
+	}
+
+	// in lower case
+	private Set<String> getSourceColumnNames(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(
+						"SELECT * FROM " + sourceTableName + " WHERE 1 = 0")) {
+			ResultSetMetaData metaData = rs.getMetaData();
+			Set<String> columnNames = new HashSet<>();
+			for (int i = 1; i <= metaData.getColumnCount(); i++) {
+				columnNames.add(metaData.getColumnName(i).toLowerCase(Locale.ENGLISH));
+			}
+			return columnNames;
+		}
+	}
+
+}
@@ -41,12 +41,14 @@ import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreReadCallback;
 import com.orangeandbronze.jblubble.BlobstoreService;
 import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
 import com.orangeandbronze.jblubble.jdbc.AbstractJdbcBlobstoreService;
+import com.orangeandbronze.jblubble.jdbc.BlobReadTrace;
 
 /**
  * A {@link BlobstoreService blobstore service} implementation using
@@ -91,60 +93,46 @@ public class SpringJdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 				@Override
 				public BlobKey doInConnection(Connection connection)
 						throws SQLException, DataAccessException {
-					try (PreparedStatement ps = connection.prepareStatement(
-								getInsertSql(),
-								Statement.RETURN_GENERATED_KEYS)) {
-						ps.setString(1, name);
-						ps.setString(2, contentType);
-						Blob content = connection.createBlob();
+					Blob content = connection.createBlob();
+					try {
+						long size;
+						String md5Hash = null;
+						OutputStream out = new BufferedOutputStream(
+								content.setBinaryStream(1L), getBufferSize());
 						try {
-							long size;
-							String md5Hash = null;
-							OutputStream out = new BufferedOutputStream(
-									content.setBinaryStream(1L), getBufferSize());
+							CountingOutputStream countingOutputStream =
+									new CountingOutputStream(out);
 							try {
-								CountingOutputStream countingOutputStream =
-										new CountingOutputStream(out);
+								MessageDigest md5;
 								try {
-									MessageDigest md5;
-									try {
-										md5 = MessageDigest.getInstance(MD5_ALGORITHM_NAME);
-										try (DigestOutputStream digestOutputStream =
-												new DigestOutputStream(countingOutputStream, md5)) {
-											size = callback.writeToOutputStream(
-													digestOutputStream);
-											if (size == -1L) {
-												size = countingOutputStream.getByteCount();
-											}
-											md5Hash = new String(encodeHex(md5.digest()));
+									md5 = MessageDigest.getInstance(MD5_ALGORITHM_NAME);
+									try (DigestOutputStream digestOutputStream =
+											new DigestOutputStream(countingOutputStream, md5)) {
+										size = callback.writeToOutputStream(
+												digestOutputStream);
+										if (size == -1L) {
+											size = countingOutputStream.getByteCount();
 										}
-									} catch (NoSuchAlgorithmException e) {
-										throw new BlobstoreException(e);
+										md5Hash = new String(encodeHex(md5.digest()));
 									}
-								} finally {
-									countingOutputStream.close();
+								} catch (NoSuchAlgorithmException e) {
+									throw new BlobstoreException(e);
 								}
 							} finally {
-								out.close();
-							}
-							ps.setBlob(3, content);
-							ps.setLong(4, size);
-							ps.setTimestamp(5, new java.sql.Timestamp(
-									new java.util.Date().getTime()));
-							ps.setString(6, md5Hash);
-							int rowCount = ps.executeUpdate();
-							if (rowCount == 0) {
-								throw new BlobstoreException(
-										"Creating blob failed, no rows created.");
+								countingOutputStream.close();
 							}
-							long generatedId = getGeneratedKey(ps);
-							return new BlobKey(String.valueOf(generatedId));
 						} finally {
-							content.free();
+							out.close();
 						}
+						long generatedId = isSplitSchema()
+								? insertMetadataAndContent(connection, name, contentType, content, size, md5Hash)
+								: insert(connection, name, contentType, content, size, md5Hash);
+						return new BlobKey(String.valueOf(generatedId));
 					} catch (IOException e) {
 						throw new BlobstoreException(
 								"Error when creating blob", e);
+					} finally {
+						content.free();
 					}
 				}
 			});
@@ -153,6 +141,77 @@ public class SpringJdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 		}
 	}
 
+	private long insert(Connection connection, String name, String contentType,
+			Blob content, long size, String md5Hash) throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(
+					getInsertSql(),
+					Statement.RETURN_GENERATED_KEYS)) {
+			ps.setString(1, name);
+			ps.setString(2, contentType);
+			ps.setBlob(3, content);
+			ps.setLong(4, size);
+			ps.setTimestamp(5, new java.sql.Timestamp(
+					new java.util.Date().getTime()));
+			ps.setString(6, md5Hash);
+			int rowCount = ps.executeUpdate();
+			if (rowCount == 0) {
+				throw new BlobstoreException(
+						"Creating blob failed, no rows created.");
+			}
+			return getGeneratedKey(ps);
+		}
+	}
+
+	/**
+	 * Inserts the metadata, and then the content (with the generated ID). If
+	 * there is no (Spring-managed) transaction, both are done in one.
+	 */
+	private long insertMetadataAndContent(Connection connection, String name, String contentType,
+			Blob content, long size, String md5Hash) throws SQLException {
+		boolean resetCommitMode = false;
+		if (connection.getAutoCommit()) {
+			connection.setAutoCommit(false);
+			resetCommitMode = true;
+		}
+		try {
+			long generatedId;
+			try (PreparedStatement ps = connection.prepareStatement(
+						getInsertMetadataSql(),
+						Statement.RETURN_GENERATED_KEYS)) {
+				ps.setString(1, name);
+				ps.setString(2, contentType);
+				ps.setLong(3, size);
+				ps.setTimestamp(4, new java.sql.Timestamp(
+						new java.util.Date().getTime()));
+				ps.setString(5, md5Hash);
+				if (ps.executeUpdate() == 0) {
+					throw new BlobstoreException(
+							"Creating blob failed, no rows created.");
+				}
+				generatedId = getGeneratedKey(ps);
+			}
+			try (PreparedStatement ps = connection.prepareStatement(
+						getInsertContentSql())) {
+				ps.setLong(1, generatedId);
+				ps.setBlob(2, content);
+				ps.executeUpdate();
+			}
+			if (resetCommitMode) {
+				connection.commit();
+			}
+			return generatedId;
+		} catch (SQLException | RuntimeException e) {
+			if (resetCommitMode) {
+				connection.rollback();
+			}
+			throw e;
+		} finally {
+			if (resetCommitMode) {
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+
 	@Override
 	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
 		try {
@@ -162,13 +221,7 @@ public class SpringJdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 						if (!rs.next()) {
 							return null;
 						}
-						return new BlobInfo(
-								blobKey,
-								rs.getString("name"),
-								rs.getString("content_type"),
-								rs.getLong("size"),
-								rs.getTimestamp("date_created"),
-								rs.getString("md5_hash"));
+						return toBlobInfo(blobKey, rs);
 					}, Long.valueOf(blobKey.stringValue()));
 		} catch (DataAccessException e) {
 			throw new BlobstoreException(e);
@@ -193,35 +246,32 @@ public class SpringJdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 		serveBlobInternal(blobKey, out, start, end, true);
 	}
 
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		serveContent(out, (contentOut) -> {
+			readBlobInternal(blobKey, callback, (blob) -> {
+				try (InputStream in = new BufferedInputStream(
+						blob.getBinaryStream(), getBufferSize())) {
+					copy(in, contentOut);
+				}
+			});
+		});
+	}
+
 	protected void serveBlobInternal(
-			BlobKey blobKey, OutputStream out, long start, long end, boolean useEnd) {
-		try {
-			jdbcTemplate.query(
-					getSelectContentByIdSql(),
-					(rs) -> {
-						if (!rs.next()) {
-							throw new BlobstoreException(
-									"Blob not found: " + blobKey);
-						}
-						Blob blob = rs.getBlob("content");
-						try {
-							long pos = start + 1;
-							long length = useEnd ? (end - start + 1) : blob.length();
-							try (InputStream in = new BufferedInputStream(
-									blob.getBinaryStream(pos, length), getBufferSize())) {
-								copy(in, out);
-							} catch (IOException ioe) {
-								throw new BlobstoreException(
-										"Error while reading blob", ioe);
-							}
-							return blob.length();
-						} finally {
-							blob.free();
-						}
-					}, Long.valueOf(blobKey.stringValue()));
-		} catch (DataAccessException e) {
-			throw new BlobstoreException(e);
-		}
+			BlobKey blobKey, OutputStream out, long start, long end, boolean useEnd)
+			throws IOException {
+		serveContent(out, (contentOut) -> {
+			readBlobInternal(blobKey, (blob) -> {
+				long pos = start + 1;
+				long length = useEnd ? (end - start + 1) : blob.length();
+				try (InputStream in = new BufferedInputStream(
+						blob.getBinaryStream(pos, length), getBufferSize())) {
+					copy(in, contentOut);
+				}
+			});
+		});
 	}
 
 	@Override
@@ -249,29 +299,96 @@ public class SpringJdbcBlobstoreService extends AbstractJdbcBlobstoreService {
 	@Override
 	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
 			throws IOException, BlobstoreException {
+		readBlobInternal(blobKey, (blob) -> {
+			try (InputStream in = blob.getBinaryStream()) {
+				callback.readInputStream(in);
+			}
+		});
+	}
+
+	interface BlobHandler {
+		void handleBlob(Blob blob) throws SQLException, IOException;
+	}
+
+	/**
+	 * Reads the blob with a connection from the JDBC template (i.e. the one
+	 * bound to the current transaction, if any), and traces each phase of
+	 * the read.
+	 */
+	protected void readBlobInternal(BlobKey blobKey, BlobHandler blobHandler)
+			throws BlobstoreException {
+		readBlobInternal(blobKey, null, blobHandler);
+	}
+
+	/**
+	 * Same as {@link #readBlobInternal(BlobKey, BlobHandler)}. If a blob info
+	 * call-back is given, the other fields are retrieved with the same query,
+	 * and passed to the call-back before the blob is handled.
+	 */
+	protected void readBlobInternal(BlobKey blobKey,
+			BlobInfoCallback blobInfoCallback, BlobHandler blobHandler)
+			throws BlobstoreException {
+		BlobReadTrace trace = new BlobReadTrace(blobKey);
 		try {
-			jdbcTemplate.query(
-					getSelectContentByIdSql(),
-					(rs) -> {
-						if (!rs.next()) {
-							throw new BlobstoreException(
-									"Blob not found: " + blobKey);
-						}
-						Blob blob = rs.getBlob("content");
-						try {
-							try (InputStream in = blob.getBinaryStream()) {
-								callback.readInputStream(in);
-								return true;
+			jdbcTemplate.execute(new ConnectionCallback<Void>() {
+				@Override
+				public Void doInConnection(Connection connection)
+						throws SQLException, DataAccessException {
+					trace.connectionAcquired();
+					try (PreparedStatement ps = connection.prepareStatement(
+							blobInfoCallback != null
+								? getSelectAllFieldsByIdSql()
+								: getSelectContentByIdSql())) {
+						ps.setLong(1, Long.valueOf(blobKey.stringValue()));
+						try (ResultSet rs = ps.executeQuery()) {
+							if (!rs.next()) {
+								if (blobInfoCallback == null) {
+									throw new BlobstoreException(
+											"Blob not found: " + blobKey);
+								}
+								trace.queryExecuted();
+								blobInfoRetrieved(blobInfoCallback, null);
+								return null;
+							}
+							trace.queryExecuted();
+							if (blobInfoCallback != null && !blobInfoRetrieved(
+									blobInfoCallback, toBlobInfo(blobKey, rs))) {
+								return null;
+							}
+							Blob blob = trace.blobOpened(rs.getBlob("content"));
+							try {
+								blobHandler.handleBlob(blob);
+								trace.blobRead();
 							} catch (IOException ioe) {
 								throw new BlobstoreException(
 										"Error while reading blob", ioe);
+							} finally {
+								blob.free();
 							}
-						} finally {
-							blob.free();
 						}
-					}, Long.valueOf(blobKey.stringValue()));
+					}
+					return null;
+				}
+			});
 		} catch (DataAccessException e) {
+			trace.failed(e);
 			throw new BlobstoreException(e);
+		} catch (RuntimeException e) {
+			trace.failed(e);
+			throw e;
+		} finally {
+			trace.connectionReleased();
+			readTraced(trace);
+		}
+	}
+
+	private static boolean blobInfoRetrieved(
+			BlobInfoCallback blobInfoCallback, BlobInfo blobInfo) {
+		try {
+			return blobInfoCallback.blobInfoRetrieved(blobInfo);
+		} catch (IOException ioe) {
+			throw new BlobstoreException(
+					"Error while handling blob info", ioe);
 		}
 	}
 
@@ -0,0 +1,28 @@
+DROP TABLE IF EXISTS lobs_content;
+DROP TABLE IF EXISTS lobs_meta;
+
+CREATE TABLE lobs_meta
+(
+  id bigserial NOT NULL,
+  name VARCHAR(255),
+  content_type VARCHAR(255),
+  "size" bigint NOT NULL,
+  date_created timestamp without time zone NOT NULL,
+  md5_hash VARCHAR(255),
+  date_deleted timestamp without time zone,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE lobs_content
+(
+  id bigint NOT NULL REFERENCES lobs_meta (id) ON DELETE CASCADE,
+  content OID,
+  PRIMARY KEY (id)
+);
+
+CREATE OR REPLACE RULE removelobscontent AS ON DELETE TO lobs_content
+  DO SELECT lo_unlink( OLD.content );
+
+CREATE INDEX lobs_meta_date_created_idx ON lobs_meta (date_created);
+CREATE INDEX lobs_meta_md5_hash_idx ON lobs_meta (md5_hash);
+CREATE INDEX lobs_meta_content_type_idx ON lobs_meta (content_type, id);
@@ -0,0 +1,25 @@
+DROP TABLE lobs_content IF EXISTS;
+DROP TABLE lobs_meta IF EXISTS;
+
+CREATE TABLE lobs_meta (
+	id bigint generated by default as identity (start with 1),
+	name varchar(255),
+	content_type varchar(255),
+	size bigint,
+	date_created TIMESTAMP,
+	md5_hash varchar(255),
+	date_deleted TIMESTAMP,
+	primary key (id)
+);
+
+CREATE TABLE lobs_content (
+	id bigint,
+	content BLOB,
+	inline_content varbinary(4096),
+	primary key (id),
+	foreign key (id) references lobs_meta (id) on delete cascade
+);
+
+CREATE INDEX lobs_meta_date_created_idx ON lobs_meta (date_created);
+CREATE INDEX lobs_meta_md5_hash_idx ON lobs_meta (md5_hash);
+CREATE INDEX lobs_meta_content_type_idx ON lobs_meta (content_type, id);
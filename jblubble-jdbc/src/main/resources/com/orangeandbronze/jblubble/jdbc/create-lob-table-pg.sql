@@ -9,9 +9,14 @@ CREATE TABLE lobs
   "size" bigint NOT NULL,
   date_created timestamp without time zone NOT NULL,
   md5_hash VARCHAR(255),
+  date_deleted timestamp without time zone,
   PRIMARY KEY (id)
 )
 WITH OIDS;
 
 CREATE OR REPLACE RULE removelobcontent AS ON DELETE TO lobs
   DO SELECT lo_unlink( OLD.content );
+
+CREATE INDEX lobs_date_created_idx ON lobs (date_created);
+CREATE INDEX lobs_md5_hash_idx ON lobs (md5_hash);
+CREATE INDEX lobs_content_type_idx ON lobs (content_type, id);
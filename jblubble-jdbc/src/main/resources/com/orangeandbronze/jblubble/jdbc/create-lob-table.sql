@@ -8,5 +8,11 @@ CREATE TABLE lobs (
 	size bigint,
 	date_created TIMESTAMP, 
 	md5_hash varchar(255),
+	inline_content varbinary(4096),
+	date_deleted TIMESTAMP,
 	primary key (id)
 );
+
+CREATE INDEX lobs_date_created_idx ON lobs (date_created);
+CREATE INDEX lobs_md5_hash_idx ON lobs (md5_hash);
+CREATE INDEX lobs_content_type_idx ON lobs (content_type, id);
@@ -0,0 +1,20 @@
+DROP TABLE IF EXISTS lob_chunks;
+DROP TABLE IF EXISTS lob_upload_sessions;
+
+CREATE TABLE lob_upload_sessions
+(
+  id VARCHAR(36) NOT NULL,
+  name VARCHAR(255),
+  content_type VARCHAR(255),
+  date_created timestamp without time zone NOT NULL,
+  PRIMARY KEY (id)
+);
+
+CREATE TABLE lob_chunks
+(
+  session_id VARCHAR(36) NOT NULL REFERENCES lob_upload_sessions (id) ON DELETE CASCADE,
+  chunk_offset bigint NOT NULL,
+  "size" bigint NOT NULL,
+  content bytea NOT NULL,
+  PRIMARY KEY (session_id, chunk_offset)
+);
@@ -0,0 +1,19 @@
+DROP TABLE lob_chunks IF EXISTS;
+DROP TABLE lob_upload_sessions IF EXISTS;
+
+CREATE TABLE lob_upload_sessions (
+	id varchar(36),
+	name varchar(255),
+	content_type varchar(255),
+	date_created TIMESTAMP,
+	primary key (id)
+);
+
+CREATE TABLE lob_chunks (
+	session_id varchar(36),
+	chunk_offset bigint,
+	size bigint,
+	content BLOB,
+	primary key (session_id, chunk_offset),
+	foreign key (session_id) references lob_upload_sessions (id) on delete cascade
+);
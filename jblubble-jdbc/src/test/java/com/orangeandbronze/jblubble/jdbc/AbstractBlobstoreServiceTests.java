@@ -3,12 +3,18 @@ package com.orangeandbronze.jblubble.jdbc;
 import static org.junit.Assert.*;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
@@ -23,6 +29,7 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
 import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreReadCallback;
@@ -97,6 +104,185 @@ public abstract class AbstractBlobstoreServiceTests {
 		blobstoreService.delete(blobKeys);
 	}
 
+	@Test
+	public void deleteInChunks() throws Exception {
+		AbstractJdbcBlobstoreService service = (AbstractJdbcBlobstoreService) blobstoreService;
+		service.setDeleteChunkSize(2);
+		try {
+			List<BlobKey> blobKeys = new LinkedList<>();
+			for (int i = 0; i < 5; i++) {
+				blobKeys.add(service.createBlob(
+						new ByteArrayInputStream(new byte[i]), "purge-" + i + ".tmp", "text/plain"));
+			}
+			BlobKey keptBlobKey = createBlob("sample-image.png");
+			long count = countBlobs();
+			assertEquals(0, service.deleteOlderThan(new Date(0)));
+			assertEquals(0, service.deleteWhere("purge-%", "image/png"));
+			assertEquals(5, service.deleteWhere("purge-%.tmp", null));
+			assertEquals(count - 5, countBlobs());
+			assertNull(service.getBlobInfo(blobKeys.get(0)));
+			assertNotNull(service.getBlobInfo(keptBlobKey));
+
+			blobKeys.clear();
+			for (int i = 0; i < 3; i++) {
+				blobKeys.add(createBlob("sample-image.png"));
+			}
+			blobKeys.add(keptBlobKey);
+			assertEquals(4, service.delete(blobKeys));
+			assertEquals(count - 6, countBlobs());
+
+			createBlob("sample-image.png");
+			assertTrue(service.deleteOlderThan(new Date(System.currentTimeMillis() + 60000)) >= 1);
+			assertEquals(0, countBlobs());
+		} finally {
+			service.setDeleteChunkSize(AbstractJdbcBlobstoreService.DEFAULT_DELETE_CHUNK_SIZE);
+		}
+	}
+
+	@Test
+	public void iterateBlobKeysInChunks() throws Exception {
+		AbstractJdbcBlobstoreService service = (AbstractJdbcBlobstoreService) blobstoreService;
+		service.setDeleteChunkSize(2);
+		List<BlobKey> blobKeys = new LinkedList<>();
+		try {
+			for (int i = 0; i < 3; i++) {
+				blobKeys.add(createBlob("sample-image.png"));
+			}
+			List<BlobKey> iteratedKeys = new LinkedList<>();
+			for (BlobKey blobKey : service.getBlobKeys()) {
+				iteratedKeys.add(blobKey);
+			}
+			assertEquals(countBlobs(), iteratedKeys.size());
+			assertTrue(iteratedKeys.containsAll(blobKeys));
+		} finally {
+			service.setDeleteChunkSize(AbstractJdbcBlobstoreService.DEFAULT_DELETE_CHUNK_SIZE);
+			service.delete(blobKeys);
+		}
+	}
+
+	@Test
+	public void listBlobInfosInPages() throws Exception {
+		List<BlobKey> blobKeys = new LinkedList<>();
+		try {
+			for (int i = 0; i < 5; i++) {
+				blobKeys.add(blobstoreService.createBlob(
+						new ByteArrayInputStream(new byte[i]), "page-" + i + ".bin", "application/x-page"));
+			}
+			BlobInfoQuery query = new BlobInfoQuery(null, 2);
+			query.setContentType("application/x-page");
+			List<BlobKey> listedKeys = new LinkedList<>();
+			List<BlobInfo> page;
+			while (!(page = blobstoreService.listBlobInfos(query)).isEmpty()) {
+				assertTrue(page.size() <= 2);
+				for (BlobInfo blobInfo : page) {
+					assertEquals("application/x-page", blobInfo.getContentType());
+					listedKeys.add(blobInfo.getBlobKey());
+				}
+				query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+			}
+			assertEquals(blobKeys, listedKeys);
+
+			query = new BlobInfoQuery();
+			query.setContentType("application/x-page");
+			query.setCreatedBefore(new Date(0));
+			assertTrue(blobstoreService.listBlobInfos(query).isEmpty());
+			query.setCreatedBefore(null);
+			query.setCreatedFrom(new Date(0));
+			List<BlobKey> firstThree = new LinkedList<>();
+			assertEquals(blobKeys.get(2), blobstoreService.listBlobInfos(query,
+					(blobInfo) -> firstThree.add(blobInfo.getBlobKey()) && firstThree.size() < 3));
+			assertEquals(blobKeys.subList(0, 3), firstThree);
+		} finally {
+			blobstoreService.delete(blobKeys.toArray(new BlobKey[blobKeys.size()]));
+		}
+	}
+
+	@Test
+	public void softDeleteAndReclaim() throws Exception {
+		AbstractJdbcBlobstoreService service = (AbstractJdbcBlobstoreService) blobstoreService;
+		service.setSoftDelete(true);
+		try {
+			BlobKey blobKey = createBlob("sample-image.png");
+			long count = countBlobs();
+			assertArrayEquals(new int[] { 1 }, service.delete(blobKey));
+			assertNull(service.getBlobInfo(blobKey));
+			try {
+				service.serveBlob(blobKey, new ByteArrayOutputStream());
+				fail("Expecting soft deleted blob to be not found");
+			} catch (BlobstoreException e) {
+				// expected
+			}
+			assertArrayEquals(new int[] { 0 }, service.delete(blobKey));
+			assertEquals(count, countBlobs());
+			assertEquals(0, service.reclaimDeleted(new Date(0)));
+			assertEquals(1, service.reclaimDeleted(new Date(System.currentTimeMillis() + 60000)));
+			assertEquals(count - 1, countBlobs());
+		} finally {
+			service.setSoftDelete(false);
+		}
+	}
+
+	@Test
+	public void softDeleteInChunks() throws Exception {
+		AbstractJdbcBlobstoreService service = (AbstractJdbcBlobstoreService) blobstoreService;
+		service.setSoftDelete(true);
+		service.setDeleteChunkSize(2);
+		try {
+			List<BlobKey> blobKeys = new LinkedList<>();
+			for (int i = 0; i < 5; i++) {
+				blobKeys.add(service.createBlob(
+						new ByteArrayInputStream(new byte[i]), "purge-" + i + ".tmp", "text/plain"));
+			}
+			BlobKey keptBlobKey = createBlob("sample-image.png");
+			long count = countBlobs();
+			assertEquals(5, service.deleteWhere("purge-%.tmp", null));
+			assertEquals(count, countBlobs());
+			assertNull(service.getBlobInfo(blobKeys.get(0)));
+			assertNotNull(service.getBlobInfo(keptBlobKey));
+			// already marked
+			assertEquals(0, service.deleteWhere("purge-%.tmp", null));
+
+			assertTrue(service.deleteOlderThan(new Date(System.currentTimeMillis() + 60000)) >= 1);
+			assertEquals(count, countBlobs());
+			assertNull(service.getBlobInfo(keptBlobKey));
+			assertEquals(count, service.reclaimDeleted(new Date(System.currentTimeMillis() + 60000)));
+			assertEquals(0, countBlobs());
+		} finally {
+			service.setSoftDelete(false);
+			service.setDeleteChunkSize(AbstractJdbcBlobstoreService.DEFAULT_DELETE_CHUNK_SIZE);
+		}
+	}
+
+	@Test
+	public void serveBlobWithBlobInfo() throws Exception {
+		blobKey = createBlob("sample-image.png");
+		BlobInfo expected = blobstoreService.getBlobInfo(blobKey);
+		List<BlobInfo> blobInfos = new LinkedList<>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, (blobInfo) -> {
+			// called before the contents are written
+			assertEquals(0, out.size());
+			blobInfos.add(blobInfo);
+			return true;
+		}, out);
+		assertEquals(Collections.singletonList(expected), blobInfos);
+		assertEquals(expected.getSize(), out.size());
+
+		out.reset();
+		blobstoreService.serveBlob(blobKey, (blobInfo) -> false, out);
+		assertEquals(0, out.size());
+
+		BlobKey deletedBlobKey = createBlob("sample-image.png");
+		blobstoreService.delete(deletedBlobKey);
+		blobInfos.clear();
+		blobstoreService.serveBlob(deletedBlobKey, (blobInfo) -> {
+			blobInfos.add(blobInfo);
+			return true;
+		}, out);
+		assertEquals(Collections.singletonList(null), blobInfos);
+		assertEquals(0, out.size());
+	}
+
 	protected BlobKey createBlob(String inputFileName) throws BlobstoreException, IOException {
 		BlobKey blobKey;
 		InputStream in = AbstractBlobstoreServiceTests.class.getResourceAsStream(inputFileName);
@@ -0,0 +1,147 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+import javax.sql.DataSource;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreService;
+
+@ContextConfiguration
+@RunWith(SpringJUnit4ClassRunner.class)
+public class HsqldbBlobstoreServiceTests extends AbstractBlobstoreServiceTests {
+
+	@Autowired
+	private DataSource dataSource;
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private HsqldbBlobstoreService blobstoreService;
+
+	@Override
+	protected BlobstoreService createBlobstoreService() {
+		blobstoreService = new HsqldbBlobstoreService(dataSource);
+		blobstoreService.setLogSize(200);
+		blobstoreService.setCheckpointInterval(3);
+		blobstoreService.configureDatabase();
+		return blobstoreService;
+	}
+
+	@Override
+	protected long countBlobs() {
+		return jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM " + blobstoreService.getTableName(),
+				Long.class);
+	}
+
+	@Override
+	protected PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(42).nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void contentIsWrittenInChunks() throws Exception {
+		blobstoreService.setLobChunkSize(1000);
+		byte[] content = randomBytes(10500);
+		blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(content), "chunks.bin", "application/octet-stream");
+		BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+		assertEquals(content.length, blobInfo.getSize());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		assertArrayEquals(content, out.toByteArray());
+	}
+
+	@Test
+	public void splitSchema() throws Exception {
+		HsqldbBlobstoreService splitSchemaService = new HsqldbBlobstoreService(dataSource);
+		splitSchemaService.setTableName("lobs_meta");
+		splitSchemaService.setContentTableName("lobs_content");
+		splitSchemaService.configureDatabase();
+		byte[] content = randomBytes(3000);
+		BlobKey splitKey = splitSchemaService.createBlob(
+				new ByteArrayInputStream(content), "split.bin", "application/octet-stream");
+		try {
+			assertEquals(content.length, splitSchemaService.getBlobInfo(splitKey).getSize());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			splitSchemaService.serveBlob(splitKey, out);
+			assertArrayEquals(content, out.toByteArray());
+		} finally {
+			splitSchemaService.delete(splitKey);
+		}
+	}
+
+	@Test
+	public void configureLobStoreOfNewDatabase() throws Exception {
+		JDBCDataSource newDataSource = new JDBCDataSource();
+		newDataSource.setUrl("jdbc:hsqldb:mem:hsqldb-lob-settings");
+		newDataSource.setUser("SA");
+		try (Connection connection = newDataSource.getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE lobs (id bigint generated by default as identity (start with 1), "
+					+ "name varchar(255), content_type varchar(255), content BLOB, size bigint, "
+					+ "date_created TIMESTAMP, md5_hash varchar(255), date_deleted TIMESTAMP, "
+					+ "PRIMARY KEY (id))");
+			HsqldbBlobstoreService newBlobstoreService = new HsqldbBlobstoreService(newDataSource);
+			newBlobstoreService.setLobScale(4);
+			newBlobstoreService.setLobCompressed(true);
+			newBlobstoreService.configureDatabase();
+			try (ResultSet rs = statement.executeQuery(
+					"SELECT property_value FROM information_schema.system_properties "
+					+ "WHERE property_name IN ('hsqldb.lob_file_scale', 'hsqldb.lob_compressed') "
+					+ "ORDER BY property_name")) {
+				assertTrue(rs.next());
+				assertEquals("true", rs.getString(1));
+				assertTrue(rs.next());
+				assertEquals("4", rs.getString(1));
+			}
+			byte[] content = new byte[100000]; // compressible
+			BlobKey newKey = newBlobstoreService.createBlob(
+					new ByteArrayInputStream(content), "zeros.bin", "application/octet-stream");
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			newBlobstoreService.serveBlob(newKey, out);
+			assertArrayEquals(content, out.toByteArray());
+		} finally {
+			try (Connection connection = newDataSource.getConnection();
+					Statement statement = connection.createStatement()) {
+				statement.execute("SHUTDOWN");
+			}
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void inlineStorageIsNotSupported() throws Exception {
+		blobstoreService.setInlineThreshold(1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void lobScaleMustBeSupportedByHsqldb() throws Exception {
+		blobstoreService.setLobScale(3);
+	}
+
+}
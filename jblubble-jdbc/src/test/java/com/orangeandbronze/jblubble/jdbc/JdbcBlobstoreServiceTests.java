@@ -1,7 +1,18 @@
 package com.orangeandbronze.jblubble.jdbc;
 
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.List;
+
 import javax.sql.DataSource;
 
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -9,6 +20,8 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.PlatformTransactionManager;
 
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreService;
 import com.orangeandbronze.jblubble.jdbc.JdbcBlobstoreService;
 
@@ -41,5 +54,132 @@ public class JdbcBlobstoreServiceTests extends AbstractBlobstoreServiceTests {
 	protected PlatformTransactionManager getTransactionManager() {
 		return transactionManager;
 	}
-	
+
+	@Test
+	public void readTracesArePassedToListener() throws Exception {
+		List<BlobReadTrace> traces = new LinkedList<>();
+		blobstoreService.setReadTraceListener(traces::add);
+		try {
+			blobKey = createBlob("sample-image.png");
+			long size = blobstoreService.getBlobInfo(blobKey).getSize();
+			blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream());
+			assertEquals(1, traces.size());
+			BlobReadTrace trace = traces.get(0);
+			assertEquals(blobKey, trace.getBlobKey());
+			assertNull(trace.getFailure());
+			assertEquals(size, trace.getBytesRead());
+			assertTrue(trace.getAcquireTime() >= 0);
+			assertTrue(trace.getQueryTime() >= 0);
+			assertTrue(trace.getOpenTime() >= 0);
+			assertTrue(trace.getFirstByteTime() >= 0);
+			assertTrue(trace.getStreamTime() >= 0);
+			assertTrue(trace.getFreeTime() >= 0);
+			assertTrue(trace.getConnectionHoldTime() >= trace.getStreamTime());
+
+			try {
+				blobstoreService.serveBlob(new BlobKey("-1"), new ByteArrayOutputStream());
+				fail("Expecting exception");
+			} catch (BlobstoreException e) {
+				// expected
+			}
+			assertEquals(2, traces.size());
+			assertNotNull(traces.get(1).getFailure());
+			assertEquals(-1, traces.get(1).getOpenTime());
+		} finally {
+			blobstoreService.setReadTraceListener(null);
+		}
+	}
+
+	@Test
+	public void spillBufferingReleasesConnectionBeforeWriting() throws Exception {
+		File spillDirectory = Files.createTempDirectory("spill").toFile();
+		List<BlobReadTrace> traces = new LinkedList<>();
+		blobstoreService.setReadTraceListener(traces::add);
+		blobstoreService.setSpillBuffering(true);
+		blobstoreService.setSpillThreshold(1024); // spill to file
+		blobstoreService.setSpillDirectory(spillDirectory);
+		try {
+			blobKey = createBlob("sample-image.png");
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			blobstoreService.readBlob(blobKey, (in) -> {
+				IOUtils.copy(in, expected);
+			});
+			traces.clear();
+			ByteArrayOutputStream actual = new ByteArrayOutputStream() {
+				@Override
+				public synchronized void write(byte[] b, int off, int len) {
+					// connection has been released (and traced) before writing
+					assertEquals(1, traces.size());
+					super.write(b, off, len);
+				}
+			};
+			blobstoreService.serveBlob(blobKey, actual);
+			assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+			assertEquals(0, spillDirectory.list().length);
+		} finally {
+			blobstoreService.setReadTraceListener(null);
+			blobstoreService.setSpillBuffering(false);
+			spillDirectory.delete();
+		}
+	}
+
+	@Test
+	public void smallBlobsAreStoredInline() throws Exception {
+		blobstoreService.setInlineThreshold(1024);
+		try {
+			byte[] small = "Hello, world!".getBytes("UTF-8");
+			BlobKey smallKey = blobstoreService.createBlob(
+					new ByteArrayInputStream(small), "hello.txt", "text/plain");
+			BlobKey emptyKey = blobstoreService.createBlob(
+					new ByteArrayInputStream(new byte[0]), "empty.txt", "text/plain");
+			blobKey = createBlob("sample-image.png");
+			try {
+				assertEquals(Long.valueOf(1), jdbcTemplate.queryForObject(
+						"SELECT count(*) FROM " + blobstoreService.getTableName()
+						+ " WHERE content IS NULL AND inline_content IS NOT NULL AND id = ?",
+						Long.class, Long.valueOf(smallKey.stringValue())));
+				assertEquals(Long.valueOf(1), jdbcTemplate.queryForObject(
+						"SELECT count(*) FROM " + blobstoreService.getTableName()
+						+ " WHERE content IS NOT NULL AND inline_content IS NULL AND id = ?",
+						Long.class, Long.valueOf(blobKey.stringValue())));
+
+				assertEquals(small.length, blobstoreService.getBlobInfo(smallKey).getSize());
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				blobstoreService.serveBlob(smallKey, out);
+				assertArrayEquals(small, out.toByteArray());
+				out.reset();
+				blobstoreService.serveBlob(smallKey, out, 7, 11);
+				assertEquals("world", out.toString("UTF-8"));
+				out.reset();
+				blobstoreService.serveBlob(emptyKey, out);
+				assertEquals(0, out.size());
+				blobstoreService.readBlob(smallKey, (in) -> {
+					assertArrayEquals(small, IOUtils.toByteArray(in));
+				});
+
+				out.reset();
+				blobstoreService.serveBlob(blobKey, out);
+				assertEquals(blobstoreService.getBlobInfo(blobKey).getSize(), out.size());
+			} finally {
+				blobstoreService.delete(smallKey, emptyKey);
+			}
+		} finally {
+			blobstoreService.setInlineThreshold(0);
+		}
+	}
+
+	@Test
+	public void sqlIsFormattedOncePerTableName() throws Exception {
+		String sql = blobstoreService.getSelectNonContentFieldsByIdSql();
+		assertSame(sql, blobstoreService.getSelectNonContentFieldsByIdSql());
+		assertTrue(blobstoreService.getDeleteByIdSql().contains(" lobs "));
+		blobstoreService.setTableName("other_lobs");
+		try {
+			assertTrue(blobstoreService.getSelectNonContentFieldsByIdSql().contains(" other_lobs "));
+			assertTrue(blobstoreService.getDeleteByIdSql().contains(" other_lobs "));
+		} finally {
+			blobstoreService.setTableName(AbstractJdbcBlobstoreService.DEFAULT_TABLE_NAME);
+		}
+	}
+
 }
@@ -0,0 +1,31 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import javax.sql.DataSource;
+
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.UploadSessionService;
+
+@ContextConfiguration
+@RunWith(SpringJUnit4ClassRunner.class)
+public class JdbcUploadSessionServiceTests extends AbstractUploadSessionServiceTests {
+
+	@Autowired
+	private DataSource dataSource;
+
+	@Override
+	protected BlobstoreService createBlobstoreService() {
+		return new JdbcBlobstoreService(dataSource);
+	}
+
+	@Override
+	protected UploadSessionService createUploadSessionService(
+			BlobstoreService blobstoreService) {
+		return new JdbcUploadSessionService(dataSource, blobstoreService);
+	}
+
+}
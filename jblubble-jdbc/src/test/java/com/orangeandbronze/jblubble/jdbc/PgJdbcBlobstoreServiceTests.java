@@ -1,7 +1,12 @@
 package com.orangeandbronze.jblubble.jdbc;
 
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
 import javax.sql.DataSource;
 
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -36,9 +41,48 @@ public class PgJdbcBlobstoreServiceTests extends AbstractBlobstoreServiceTests {
 				Long.class);
 	}
 
+	@Test
+	public void keepsLargeObjectsOfGivenColumns() throws Exception {
+		PgJdbcBlobstoreService service = (PgJdbcBlobstoreService) blobstoreService;
+		jdbcTemplate.execute("CREATE TABLE photos (id INT, photo OID)");
+		try {
+			jdbcTemplate.update("INSERT INTO photos VALUES (1, lo_create(0))");
+			assertTrue(service.countOrphanedLargeObjects(Collections.emptyList()) >= 1);
+			service.unlinkOrphanedLargeObjects(Collections.singleton("photos.photo"));
+			assertEquals(0, service.countOrphanedLargeObjects(Collections.singleton("photos.photo")));
+			assertEquals(1, (int) jdbcTemplate.queryForObject(
+					"SELECT COUNT(*) FROM photos p JOIN pg_largeobject_metadata m ON m.oid = p.photo",
+					Integer.class));
+		} finally {
+			jdbcTemplate.execute("DROP TABLE photos");
+			service.unlinkOrphanedLargeObjects(Collections.emptyList());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidReferencingColumn() throws Exception {
+		((PgJdbcBlobstoreService) blobstoreService).countOrphanedLargeObjects(
+				Collections.singleton("photos; DROP TABLE lobs"));
+	}
+
 	@Override
 	protected PlatformTransactionManager getTransactionManager() {
 		return transactionManager;
 	}
-	
+
+	@Test
+	public void collectOrphanedLargeObjects() throws Exception {
+		PgJdbcBlobstoreService service = (PgJdbcBlobstoreService) blobstoreService;
+		blobKey = createBlob("sample-image.png");
+		// a large object without a row
+		jdbcTemplate.queryForObject("SELECT lo_create(0)", Long.class);
+		long orphans = service.countOrphanedLargeObjects(Collections.emptyList());
+		assertTrue(orphans >= 1);
+		// counting does not unlink
+		assertEquals(orphans, service.countOrphanedLargeObjects(Collections.emptyList()));
+		assertTrue(service.unlinkOrphanedLargeObjects(Collections.emptyList()) >= 1);
+		assertEquals(0, service.countOrphanedLargeObjects(Collections.emptyList()));
+		assertNotNull(service.getBlobInfo(blobKey));
+	}
+
 }
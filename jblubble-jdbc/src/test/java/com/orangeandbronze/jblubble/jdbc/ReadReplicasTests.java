@@ -0,0 +1,172 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+
+public class ReadReplicasTests {
+
+	private EmbeddedDatabase database1;
+	private EmbeddedDatabase database2;
+	private TestDataSource replica1;
+	private TestDataSource replica2;
+
+	@Before
+	public void setUp() throws Exception {
+		database1 = createDatabase("replica1");
+		database2 = createDatabase("replica2");
+		replica1 = new TestDataSource(database1);
+		replica2 = new TestDataSource(database2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		database1.shutdown();
+		database2.shutdown();
+	}
+
+	@Test
+	public void selectsReplicasRoundRobin() throws Exception {
+		ReadReplicas readReplicas = new ReadReplicas(replica1, replica2);
+		for (int i = 0; i < 4; i++) {
+			try (Connection connection = readReplicas.getConnection()) {
+				// not wrapped, since connections in use are not counted
+				assertFalse(Proxy.isProxyClass(connection.getClass()));
+			}
+		}
+		assertEquals(2, replica1.connections);
+		assertEquals(2, replica2.connections);
+	}
+
+	@Test
+	public void selectsLeastLoadedReplica() throws Exception {
+		ReadReplicas readReplicas = new ReadReplicas(replica1, replica2);
+		readReplicas.setSelection(ReadReplicas.Selection.LEAST_LOADED);
+		Connection connection = readReplicas.getConnection();
+		assertEquals(1, replica1.connections);
+		// replica1 is still in use
+		readReplicas.getConnection().close();
+		readReplicas.getConnection().close();
+		assertEquals(2, replica2.connections);
+		connection.close();
+		connection.close(); // closing again does not count
+		readReplicas.getConnection().close();
+		readReplicas.getConnection().close();
+		assertEquals(2, replica1.connections);
+		assertEquals(3, replica2.connections);
+	}
+
+	@Test
+	public void skipsFailedReplicaUntilRetry() throws Exception {
+		replica1.failing = true;
+		ReadReplicas readReplicas = new ReadReplicas(replica1, replica2);
+		readReplicas.setRetryInterval(60000);
+		for (int i = 0; i < 3; i++) {
+			try (Connection connection = readReplicas.getConnection()) {
+				assertNotNull(connection);
+			}
+		}
+		assertEquals(1, replica1.connections);
+		assertEquals(3, replica2.connections);
+		assertEquals(1, readReplicas.getAvailableCount());
+
+		replica2.failing = true;
+		assertNull(readReplicas.getConnection());
+		assertEquals(0, readReplicas.getAvailableCount());
+
+		// replica1 is back
+		replica1.failing = false;
+		readReplicas.checkHealth();
+		assertEquals(1, readReplicas.getAvailableCount());
+		try (Connection connection = readReplicas.getConnection()) {
+			assertNotNull(connection);
+		}
+	}
+
+	@Test
+	public void readsRecentlyWrittenBlobsFromPrimary() throws Exception {
+		EmbeddedDatabase primary = createDatabase("primary");
+		EmbeddedDatabase replica = createDatabase("replica");
+		try {
+			JdbcBlobstoreService blobstoreService = new JdbcBlobstoreService(primary);
+			ReadReplicas readReplicas = new ReadReplicas(replica);
+			blobstoreService.setReadReplicas(readReplicas);
+			BlobKey blobKey = blobstoreService.createBlob(
+					new ByteArrayInputStream(new byte[] { 1, 2, 3 }),
+					"sample.bin", "application/octet-stream");
+			assertTrue(readReplicas.isRecentlyWritten(blobKey));
+			assertNotNull(blobstoreService.getBlobInfo(blobKey));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			blobstoreService.serveBlob(blobKey, out);
+			assertArrayEquals(new byte[] { 1, 2, 3 }, out.toByteArray());
+
+			// The (empty) replica has not caught up
+			readReplicas.setReadYourWritesWindow(0);
+			assertFalse(readReplicas.isRecentlyWritten(blobKey));
+			assertNull(blobstoreService.getBlobInfo(blobKey));
+			try {
+				blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream());
+				fail("Expecting blob to be missing from replica");
+			} catch (BlobstoreException e) {
+				// expected
+			}
+		} finally {
+			primary.shutdown();
+			replica.shutdown();
+		}
+	}
+
+	private EmbeddedDatabase createDatabase(String name) {
+		return new EmbeddedDatabaseBuilder()
+				.setType(EmbeddedDatabaseType.HSQL)
+				.setName(getClass().getSimpleName() + "-" + name)
+				.addScript("classpath:/com/orangeandbronze/jblubble/jdbc/create-lob-table.sql")
+				.build();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNoReplicas() throws Exception {
+		new ReadReplicas();
+	}
+
+	/**
+	 * Counts the connections requested, and fails when told to.
+	 */
+	private static class TestDataSource extends DelegatingDataSource {
+
+		int connections;
+		boolean failing;
+
+		TestDataSource(DataSource dataSource) {
+			super(dataSource);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			connections++;
+			if (failing) {
+				throw new SQLException("Connection refused");
+			}
+			return super.getConnection();
+		}
+
+	}
+
+}
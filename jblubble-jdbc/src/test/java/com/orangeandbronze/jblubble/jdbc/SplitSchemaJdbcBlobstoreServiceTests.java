@@ -0,0 +1,151 @@
+package com.orangeandbronze.jblubble.jdbc;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreService;
+
+@ContextConfiguration
+@RunWith(SpringJUnit4ClassRunner.class)
+public class SplitSchemaJdbcBlobstoreServiceTests extends AbstractBlobstoreServiceTests {
+
+	@Autowired
+	private DataSource dataSource;
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	private JdbcBlobstoreService blobstoreService;
+
+	@Override
+	protected BlobstoreService createBlobstoreService() {
+		blobstoreService = new JdbcBlobstoreService(dataSource);
+		blobstoreService.setTableName("lobs_meta");
+		blobstoreService.setContentTableName("lobs_content");
+		return blobstoreService;
+	}
+
+	@Override
+	protected long countBlobs() {
+		return jdbcTemplate.queryForObject(
+				"SELECT count(*) FROM " + blobstoreService.getTableName(),
+				Long.class);
+	}
+
+	@Override
+	protected PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	@Test
+	public void contentIsStoredAndDeletedSeparately() throws Exception {
+		blobstoreService.setInlineThreshold(1024);
+		try {
+			BlobKey smallKey = blobstoreService.createBlob(
+					new ByteArrayInputStream("Hello".getBytes("UTF-8")), "hello.txt", "text/plain");
+			blobKey = createBlob("sample-image.png");
+			try {
+				assertEquals(Long.valueOf(2), jdbcTemplate.queryForObject(
+						"SELECT count(*) FROM lobs_content WHERE id IN (?, ?)", Long.class,
+						Long.valueOf(smallKey.stringValue()), Long.valueOf(blobKey.stringValue())));
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				blobstoreService.serveBlob(smallKey, out);
+				assertEquals("Hello", out.toString("UTF-8"));
+			} finally {
+				blobstoreService.delete(smallKey);
+			}
+			assertEquals(Long.valueOf(0), jdbcTemplate.queryForObject(
+					"SELECT count(*) FROM lobs_content WHERE id = ?", Long.class,
+					Long.valueOf(smallKey.stringValue())));
+		} finally {
+			blobstoreService.setInlineThreshold(0);
+		}
+	}
+
+	@Test
+	public void migrateFromSingleTable() throws Exception {
+		jdbcTemplate.update("DELETE FROM lobs_meta");
+		JdbcBlobstoreService singleTableService = new JdbcBlobstoreService(dataSource);
+		List<BlobKey> blobKeys = new LinkedList<>();
+		for (int i = 0; i < 5; i++) {
+			blobKeys.add(singleTableService.createBlob(
+					new ByteArrayInputStream(new byte[] { (byte) i }), "blob-" + i + ".bin", "application/octet-stream"));
+		}
+		try {
+			SplitSchemaMigrator migrator = new SplitSchemaMigrator(dataSource);
+			migrator.setChunkSize(2);
+			assertEquals(5, migrator.migrate());
+			assertEquals(0, migrator.migrate());
+			for (int i = 0; i < blobKeys.size(); i++) {
+				BlobKey blobKey = blobKeys.get(i);
+				BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+				assertEquals(singleTableService.getBlobInfo(blobKey), blobInfo);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				blobstoreService.serveBlob(blobKey, out);
+				assertArrayEquals(new byte[] { (byte) i }, out.toByteArray());
+			}
+			// new blobs get IDs after the copied ones
+			blobKey = createBlob("sample-image.png");
+			assertFalse(blobKeys.contains(blobKey));
+		} finally {
+			singleTableService.delete(blobKeys.toArray(new BlobKey[blobKeys.size()]));
+			blobstoreService.delete(blobKeys.toArray(new BlobKey[blobKeys.size()]));
+		}
+	}
+
+	@Test
+	public void migrateFromSingleTableCreatedBefore12() throws Exception {
+		jdbcTemplate.update("DELETE FROM lobs_meta");
+		// without the inline_content and date_deleted columns
+		jdbcTemplate.execute("CREATE TABLE old_lobs ("
+				+ " id bigint generated by default as identity (start with 1),"
+				+ " name varchar(255),"
+				+ " content_type varchar(255),"
+				+ " content BLOB,"
+				+ " size bigint,"
+				+ " date_created TIMESTAMP,"
+				+ " md5_hash varchar(255),"
+				+ " primary key (id))");
+		try {
+			for (int i = 1; i <= 3; i++) {
+				jdbcTemplate.update("INSERT INTO old_lobs"
+						+ " (id, name, content_type, content, size, date_created, md5_hash)"
+						+ " VALUES (?, ?, ?, ?, 1, CURRENT_TIMESTAMP, NULL)",
+						i, "blob-" + i + ".bin", "application/octet-stream",
+						new byte[] { (byte) i });
+			}
+			SplitSchemaMigrator migrator = new SplitSchemaMigrator(dataSource);
+			migrator.setSourceTableName("old_lobs");
+			migrator.setChunkSize(2);
+			assertEquals(3, migrator.migrate());
+			for (int i = 1; i <= 3; i++) {
+				BlobKey blobKey = new BlobKey(String.valueOf(i));
+				assertEquals("blob-" + i + ".bin", blobstoreService.getBlobInfo(blobKey).getName());
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				blobstoreService.serveBlob(blobKey, out);
+				assertArrayEquals(new byte[] { (byte) i }, out.toByteArray());
+			}
+		} finally {
+			jdbcTemplate.update("DELETE FROM lobs_meta");
+			jdbcTemplate.execute("DROP TABLE old_lobs");
+		}
+	}
+
+}
@@ -1,5 +1,12 @@
 package com.orangeandbronze.jblubble.jdbc.springframework;
 
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -7,8 +14,11 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.PlatformTransactionManager;
 
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreService;
 import com.orangeandbronze.jblubble.jdbc.AbstractBlobstoreServiceTests;
+import com.orangeandbronze.jblubble.jdbc.BlobReadTrace;
 import com.orangeandbronze.jblubble.jdbc.springframework.SpringJdbcBlobstoreService;
 
 @ContextConfiguration("SpringJdbcBlobstoreServiceTests-context.xml")
@@ -39,4 +49,39 @@ public class SpringJdbcBlobstoreServiceTests extends AbstractBlobstoreServiceTes
 		return transactionManager;
 	}
 
+	@Test
+	public void readTracesArePassedToListener() throws Exception {
+		List<BlobReadTrace> traces = new LinkedList<>();
+		springJdbcBlobstoreService.setReadTraceListener(traces::add);
+		try {
+			blobKey = createBlob("sample-image.png");
+			long size = blobstoreService.getBlobInfo(blobKey).getSize();
+			blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream());
+			assertEquals(1, traces.size());
+			BlobReadTrace trace = traces.get(0);
+			assertEquals(blobKey, trace.getBlobKey());
+			assertNull(trace.getFailure());
+			assertEquals(size, trace.getBytesRead());
+			assertTrue(trace.getAcquireTime() >= 0);
+			assertTrue(trace.getQueryTime() >= 0);
+			assertTrue(trace.getOpenTime() >= 0);
+			assertTrue(trace.getFirstByteTime() >= 0);
+			assertTrue(trace.getStreamTime() >= 0);
+			assertTrue(trace.getFreeTime() >= 0);
+			assertTrue(trace.getConnectionHoldTime() >= trace.getStreamTime());
+
+			try {
+				blobstoreService.serveBlob(new BlobKey("-1"), new ByteArrayOutputStream());
+				fail("Expecting exception");
+			} catch (BlobstoreException e) {
+				// expected
+			}
+			assertEquals(2, traces.size());
+			assertNotNull(traces.get(1).getFailure());
+			assertEquals(-1, traces.get(1).getOpenTime());
+		} finally {
+			springJdbcBlobstoreService.setReadTraceListener(null);
+		}
+	}
+
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobTransferExecutors;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+
+/**
+ * {@link ReactiveBlobstoreService} that bridges to a (blocking)
+ * {@link BlobstoreService} (e.g. a JDBC blobstore). Each transfer runs on a
+ * thread of the given executor (e.g. from
+ * {@link BlobTransferExecutors#newTransferExecutor(int)}), and blocks there (not
+ * on the subscriber's thread) while waiting for I/O or for demand.
+ * <p>
+ * The bridge is bounded. When publishing, a chunk is read from the blobstore
+ * only after the subscriber has requested it, so at most one chunk is held
+ * per transfer. When creating a blob, at most <code>prefetch</code> buffers
+ * are requested ahead of the blobstore.
+ * </p>
+ * <p>
+ * Since the transfer holds its connection until it completes (or is
+ * cancelled), a slow subscriber holds a connection too.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class BridgedReactiveBlobstoreService implements ReactiveBlobstoreService {
+
+	public static final int DEFAULT_CHUNK_SIZE = 0x10000; // 64 kilobytes
+	public static final int DEFAULT_PREFETCH = 4;
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final BlobstoreService delegate;
+	private final Executor executor;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int prefetch = DEFAULT_PREFETCH;
+
+	public BridgedReactiveBlobstoreService(
+			BlobstoreService delegate, Executor executor) {
+		if (delegate == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException(
+					"Executor cannot be null");
+		}
+		this.delegate = delegate;
+		this.executor = executor;
+	}
+
+	public BlobstoreService getDelegate() {
+		return delegate;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the size of each published buffer (except the last).
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Chunk size cannot be zero or less");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Sets the number of buffers requested (from the content publisher) ahead
+	 * of the blobstore when creating a blob.
+	 */
+	public void setPrefetch(int prefetch) {
+		if (prefetch <= 0) {
+			throw new IllegalArgumentException(
+					"Prefetch cannot be zero or less");
+		}
+		this.prefetch = prefetch;
+	}
+
+	@Override
+	public CompletableFuture<BlobKey> createBlob(
+			Flow.Publisher<ByteBuffer> content, String name, String contentType) {
+		PublisherInputStream in = new PublisherInputStream(prefetch);
+		content.subscribe(in);
+		CompletableFuture<BlobKey> result = new CompletableFuture<>();
+		executor.execute(() -> {
+			try (PublisherInputStream closeable = in) {
+				result.complete(delegate.createBlob(in, name, contentType));
+			} catch (IOException e) {
+				result.completeExceptionally(new BlobstoreException(e));
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public Flow.Publisher<ByteBuffer> publishBlob(BlobKey blobKey) {
+		return (subscriber) -> subscriber.onSubscribe(
+				new ReadSubscription(subscriber, blobKey, 0, -1));
+	}
+
+	@Override
+	public Flow.Publisher<ByteBuffer> publishBlob(BlobKey blobKey, long start, long end) {
+		if (start < 0) {
+			throw new IllegalArgumentException(
+					"Start cannot be negative");
+		}
+		if (end < start) {
+			throw new IllegalArgumentException(
+					"End cannot be less than start");
+		}
+		return (subscriber) -> subscriber.onSubscribe(
+				new ReadSubscription(subscriber, blobKey, start, end));
+	}
+
+	/**
+	 * Thrown (on the transfer thread) to stop serving a blob once the
+	 * subscription is cancelled.
+	 */
+	private static class CancelledException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/**
+	 * Serves the blob (on the transfer thread) into an output stream that
+	 * publishes a chunk whenever one is filled, and blocks until the
+	 * subscriber has requested it.
+	 */
+	private class ReadSubscription extends OutputStream implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final BlobKey blobKey;
+		private final long start;
+		private final long end;
+		// guards demand, started, cancelled and error
+		private final Lock lock = new ReentrantLock();
+		private final Condition demanded = lock.newCondition();
+		private long demand;
+		private boolean started;
+		private boolean cancelled;
+		private Throwable error;
+		private byte[] chunk;
+		private int count;
+
+		ReadSubscription(Flow.Subscriber<? super ByteBuffer> subscriber,
+				BlobKey blobKey, long start, long end) {
+			this.subscriber = subscriber;
+			this.blobKey = blobKey;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public void request(long n) {
+			boolean starting;
+			lock.lock();
+			try {
+				if (cancelled) {
+					return;
+				}
+				if (n <= 0) {
+					// signalled on the transfer thread (rule 3.9)
+					error = new IllegalArgumentException(
+							"Number of requested buffers cannot be zero or less");
+					cancelled = true;
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+				starting = !started;
+				started = true;
+				demanded.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (starting) {
+				executor.execute(this::serve);
+			}
+		}
+
+		@Override
+		public void cancel() {
+			lock.lock();
+			try {
+				cancelled = true;
+				demanded.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void serve() {
+			try {
+				if (isCancelled()) {
+					throw new CancelledException();
+				}
+				if (end < 0) {
+					delegate.serveBlob(blobKey, this, start);
+				} else {
+					delegate.serveBlob(blobKey, this, start, end);
+				}
+				if (count > 0) {
+					publish();
+				}
+				if (!isCancelled()) {
+					subscriber.onComplete();
+				}
+			} catch (CancelledException e) {
+				LOGGER.debug("Publishing [{}] cancelled", blobKey);
+			} catch (IOException | RuntimeException e) {
+				if (!isCancelled()) {
+					subscriber.onError(e);
+				}
+			}
+			Throwable error = getError();
+			if (error != null) {
+				subscriber.onError(error);
+			}
+		}
+
+		private boolean isCancelled() {
+			lock.lock();
+			try {
+				return cancelled;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private Throwable getError() {
+			lock.lock();
+			try {
+				return error;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (chunk == null) {
+					chunk = new byte[chunkSize];
+				}
+				int n = Math.min(len, chunk.length - count);
+				System.arraycopy(b, off, chunk, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == chunk.length) {
+					publish();
+				}
+			}
+		}
+
+		/**
+		 * Waits for demand, and publishes the current chunk.
+		 */
+		private void publish() throws IOException {
+			lock.lock();
+			try {
+				while (demand == 0 && !cancelled) {
+					demanded.await();
+				}
+				if (cancelled) {
+					throw new CancelledException();
+				}
+				demand--;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+			chunk = null;
+			count = 0;
+			subscriber.onNext(buffer);
+		}
+
+	}
+
+}
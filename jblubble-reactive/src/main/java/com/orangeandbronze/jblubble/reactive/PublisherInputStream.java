@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Subscriber that makes the published buffers available as an input stream
+ * (to be read by a blocking blobstore). It requests <code>prefetch</code>
+ * buffers, and then one more whenever a buffer has been read entirely, so no
+ * more than <code>prefetch</code> buffers are held at a time.
+ * <p>
+ * Closing the stream before the publisher completes cancels the
+ * subscription.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+class PublisherInputStream extends InputStream implements Flow.Subscriber<ByteBuffer> {
+
+	private final int prefetch;
+	// guards all the fields below
+	private final Lock lock = new ReentrantLock();
+	private final Condition signalled = lock.newCondition();
+	private final Queue<ByteBuffer> buffers = new ArrayDeque<>();
+	private Flow.Subscription subscription;
+	private ByteBuffer current;
+	private boolean completed;
+	private boolean closed;
+	private Throwable error;
+
+	PublisherInputStream(int prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		lock.lock();
+		try {
+			if (this.subscription != null || closed) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		} finally {
+			lock.unlock();
+		}
+		subscription.request(prefetch);
+	}
+
+	@Override
+	public void onNext(ByteBuffer buffer) {
+		lock.lock();
+		try {
+			if (!closed) {
+				buffers.add(buffer);
+				signalled.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		lock.lock();
+		try {
+			error = throwable;
+			signalled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void onComplete() {
+		lock.lock();
+		try {
+			completed = true;
+			signalled.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		ByteBuffer buffer = nextBuffer();
+		return buffer != null ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer buffer = nextBuffer();
+		if (buffer == null) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	/**
+	 * Returns a buffer with remaining bytes, waiting for one if needed, or
+	 * <code>null</code> once the publisher has completed.
+	 */
+	private ByteBuffer nextBuffer() throws IOException {
+		Flow.Subscription replenished = null;
+		lock.lock();
+		try {
+			while (current == null || !current.hasRemaining()) {
+				if (closed) {
+					throw new IOException("Stream closed");
+				}
+				if (current != null) {
+					current = null;
+					replenished = subscription;
+					break;
+				}
+				if (!buffers.isEmpty()) {
+					current = buffers.poll();
+				} else if (error != null) {
+					throw new IOException("Content publisher failed", error);
+				} else if (completed) {
+					return null;
+				} else {
+					signalled.await();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			lock.unlock();
+		}
+		if (replenished != null) {
+			// outside the lock, since it may call onNext right away
+			replenished.request(1);
+			return nextBuffer();
+		}
+		return current;
+	}
+
+	@Override
+	public void close() {
+		Flow.Subscription cancelled;
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			cancelled = completed || error != null ? null : subscription;
+			buffers.clear();
+			current = null;
+		} finally {
+			lock.unlock();
+		}
+		if (cancelled != null) {
+			cancelled.cancel();
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+
+/**
+ * Reactive (non-blocking) facade of a blobstore. Blob contents are
+ * published as a {@link Flow.Publisher} of {@link ByteBuffer}s, and are only
+ * read as the subscriber {@link Flow.Subscription#request(long) requests}
+ * them (i.e. with backpressure). New blobs are created from a publisher, which
+ * is only requested as the contents are stored.
+ * <p>
+ * Each buffer is handed over to the subscriber (or to the blobstore), and is
+ * not used again by the one who passed it.
+ * </p>
+ * <p>
+ * Errors (e.g. a blob that is not found) are signalled through
+ * {@link Flow.Subscriber#onError(Throwable)}, or by completing the returned
+ * future exceptionally (usually with a {@link BlobstoreException}).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public interface ReactiveBlobstoreService {
+
+	/**
+	 * Creates a blob from the given content publisher. The publisher is
+	 * subscribed to right away.
+	 *
+	 * @param content
+	 *            the blob contents
+	 * @param name
+	 *            the name of the blob
+	 * @param contentType
+	 *            the content type of the blob
+	 * @return a future that completes with the key of the new blob, once all
+	 *         its contents have been stored
+	 */
+	CompletableFuture<BlobKey> createBlob(
+			Flow.Publisher<ByteBuffer> content, String name, String contentType);
+
+	/**
+	 * Returns a publisher of the contents of the given blob. Each subscriber
+	 * reads the contents on its own.
+	 *
+	 * @param blobKey
+	 *            the key of the blob to read
+	 */
+	Flow.Publisher<ByteBuffer> publishBlob(BlobKey blobKey);
+
+	/**
+	 * Returns a publisher of the given byte range of the contents of the given
+	 * blob.
+	 *
+	 * @param blobKey
+	 *            the key of the blob to read
+	 * @param start
+	 *            the first byte to publish (zero-based)
+	 * @param end
+	 *            the last byte to publish (inclusive)
+	 */
+	Flow.Publisher<ByteBuffer> publishBlob(BlobKey blobKey, long start, long end);
+
+}
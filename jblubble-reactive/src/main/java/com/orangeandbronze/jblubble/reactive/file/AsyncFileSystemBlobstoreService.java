@@ -0,0 +1,703 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreReadCallback;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+import com.orangeandbronze.jblubble.reactive.ReactiveBlobstoreService;
+
+/**
+ * {@link BlobstoreService Blobstore service} implementation using the file
+ * system (with NIO.2 {@link Path}s), that reads and writes contents with
+ * {@link AsynchronousFileChannel}s.
+ * <p>
+ * As a {@link ReactiveBlobstoreService}, contents are transferred by
+ * completion handlers (see {@link FileChannelPublisher} and
+ * {@link FileChannelSubscriber}), and no thread is blocked while a read or
+ * write is in progress. Completion handlers run on the
+ * {@link #setChannelExecutor(ExecutorService) channel executor}, so a few
+ * threads can keep many transfers in flight. The (blocking)
+ * {@link BlobstoreService} methods wait for each read or write to complete,
+ * and transfer through direct buffers from a {@link DirectBufferPool}.
+ * </p>
+ * <p>
+ * When the size of a new blob is known up front, the usable space is
+ * checked, and the content file is extended to that size before the
+ * contents are written (see {@link #createBlob(InputStream, String, String,
+ * long)}).
+ * </p>
+ * <p>
+ * The files are laid out like those of the <code>FileSystemBlobstoreService</code>
+ * of the sample: contents in a <code>.dat</code> file, and metadata in a
+ * <code>.properties</code> file with the same name. The (small) metadata
+ * file is written once the contents have been written.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class AsyncFileSystemBlobstoreService
+		implements BlobstoreService, ReactiveBlobstoreService {
+
+	public static final int DEFAULT_CHUNK_SIZE = 0x10000; // 64 kilobytes
+	public static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+
+	private static final String CONTENT_FILE_EXTENSION = ".dat";
+	private static final String META_FILE_EXTENSION = ".properties";
+	private static final String MD5_ALGORITHM_NAME = "MD5";
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final Path rootDirectory;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private DirectBufferPool bufferPool =
+			new DirectBufferPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_BUFFERS);
+	private ExecutorService channelExecutor;
+
+	public AsyncFileSystemBlobstoreService(Path rootDirectory) {
+		if (rootDirectory == null || !Files.isDirectory(rootDirectory)) {
+			throw new IllegalArgumentException(
+					"Root directory cannot be null, and must be a directory");
+		}
+		this.rootDirectory = rootDirectory;
+	}
+
+	public Path getRootDirectory() {
+		return rootDirectory;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the size of each published buffer (except the last).
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Chunk size cannot be zero or less");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public DirectBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets the pool of direct buffers used by the (blocking)
+	 * {@link BlobstoreService} methods. The pool can be shared with other
+	 * services.
+	 */
+	public void setBufferPool(DirectBufferPool bufferPool) {
+		if (bufferPool == null) {
+			throw new IllegalArgumentException(
+					"Buffer pool cannot be null");
+		}
+		this.bufferPool = bufferPool;
+	}
+
+	public ExecutorService getChannelExecutor() {
+		return channelExecutor;
+	}
+
+	/**
+	 * Sets the executor that runs the completion handlers of the channels
+	 * (e.g. a small fixed thread pool). By default (<code>null</code>), the
+	 * default thread pool of {@link AsynchronousFileChannel} is used.
+	 */
+	public void setChannelExecutor(ExecutorService channelExecutor) {
+		this.channelExecutor = channelExecutor;
+	}
+
+	protected String generateUniqueId() {
+		return UUID.randomUUID().toString();
+	}
+
+	protected Path getContentFile(String uniqueId) {
+		return rootDirectory.resolve(uniqueId + CONTENT_FILE_EXTENSION);
+	}
+
+	protected Path getMetaFile(String uniqueId) {
+		return rootDirectory.resolve(uniqueId + META_FILE_EXTENSION);
+	}
+
+	protected AsynchronousFileChannel openChannel(Path file, OpenOption... options)
+			throws IOException {
+		return AsynchronousFileChannel.open(file,
+				new HashSet<>(Arrays.asList(options)), channelExecutor);
+	}
+
+	@Override
+	public BlobKey createBlob(InputStream in, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return createBlob(in, name, contentType, -1);
+	}
+
+	/**
+	 * Creates a blob whose size is known up front. The content file is
+	 * extended to the expected size before the contents are written, so that
+	 * its size is changed only once, and a blob that would not fit fails
+	 * before any of it is written. If fewer bytes are written, the file is
+	 * truncated. Note that Java has no portable way to reserve the disk
+	 * blocks of a file (like <code>fallocate</code>), so on file systems
+	 * with sparse files, blocks are still allocated as they are written.
+	 *
+	 * @param expectedSize
+	 *            the expected size (in bytes), or <code>-1</code> if not
+	 *            known
+	 */
+	public BlobKey createBlob(InputStream in, String name, String contentType,
+			long expectedSize) throws IOException, BlobstoreException {
+		byte[] bytes = new byte[bufferPool.getBufferSize()];
+		return createBlob((out) -> {
+			int len;
+			while ((len = in.read(bytes)) != -1) {
+				out.write(bytes, 0, len);
+			}
+			return -1L;
+		}, name, contentType, expectedSize);
+	}
+
+	@Override
+	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+			throws IOException, BlobstoreException {
+		return createBlob(callback, name, contentType, -1);
+	}
+
+	protected BlobKey createBlob(BlobstoreWriteCallback callback,
+			String name, String contentType, long expectedSize)
+			throws IOException, BlobstoreException {
+		checkUsableSpace(expectedSize);
+		String uniqueId = generateUniqueId();
+		Path contentFile = getContentFile(uniqueId);
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance(MD5_ALGORITHM_NAME);
+		} catch (NoSuchAlgorithmException e) {
+			throw new BlobstoreException(e);
+		}
+		long size;
+		try (AsynchronousFileChannel channel = openChannel(contentFile,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			try {
+				await(preallocate(channel, expectedSize));
+				ChannelOutputStream out = new ChannelOutputStream(channel);
+				try (DigestOutputStream digestOutputStream = new DigestOutputStream(out, md5)) {
+					size = callback.writeToOutputStream(digestOutputStream);
+				}
+				if (size == -1L) {
+					size = out.position;
+				}
+				if (out.position < expectedSize) {
+					channel.truncate(out.position);
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				Files.deleteIfExists(contentFile);
+				throw e;
+			}
+		}
+		try {
+			writeMetaFile(uniqueId, name, contentType, size,
+					new String(encodeHex(md5.digest())));
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(contentFile);
+			throw e;
+		}
+		return new BlobKey(uniqueId);
+	}
+
+	@Override
+	public CompletableFuture<BlobKey> createBlob(
+			Flow.Publisher<ByteBuffer> content, String name, String contentType) {
+		return createBlob(content, name, contentType, -1);
+	}
+
+	/**
+	 * Creates a blob whose size is known up front (see
+	 * {@link #createBlob(InputStream, String, String, long)}).
+	 *
+	 * @param expectedSize
+	 *            the expected size (in bytes), or <code>-1</code> if not
+	 *            known
+	 */
+	public CompletableFuture<BlobKey> createBlob(Flow.Publisher<ByteBuffer> content,
+			String name, String contentType, long expectedSize) {
+		String uniqueId = generateUniqueId();
+		Path contentFile = getContentFile(uniqueId);
+		MessageDigest md5;
+		AsynchronousFileChannel channel;
+		try {
+			checkUsableSpace(expectedSize);
+			md5 = MessageDigest.getInstance(MD5_ALGORITHM_NAME);
+			channel = openChannel(contentFile,
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+		} catch (NoSuchAlgorithmException | IOException | RuntimeException e) {
+			return CompletableFuture.failedFuture(e instanceof BlobstoreException
+					? e : new BlobstoreException(e));
+		}
+		FileChannelSubscriber subscriber = new FileChannelSubscriber(channel, md5);
+		return preallocate(channel, expectedSize).thenCompose((preallocated) -> {
+			content.subscribe(subscriber);
+			return subscriber.getResult();
+		}).handle((size, error) -> {
+			try {
+				if (error != null) {
+					Throwable cause = error instanceof CompletionException
+							&& error.getCause() != null ? error.getCause() : error;
+					throw cause instanceof BlobstoreException
+							? (BlobstoreException) cause : new BlobstoreException(cause);
+				}
+				if (size < expectedSize) {
+					channel.truncate(size);
+				}
+				channel.close();
+				writeMetaFile(uniqueId, name, contentType, size,
+						new String(encodeHex(md5.digest())));
+				return new BlobKey(uniqueId);
+			} catch (IOException | RuntimeException e) {
+				closeQuietly(channel);
+				deleteQuietly(contentFile);
+				throw new CompletionException(e instanceof BlobstoreException
+						? e : new BlobstoreException(e));
+			}
+		});
+	}
+
+	/**
+	 * Throws an exception if a blob of the expected size would not fit.
+	 */
+	protected void checkUsableSpace(long expectedSize) throws BlobstoreException {
+		if (expectedSize <= 0) {
+			return;
+		}
+		try {
+			long usableSpace = Files.getFileStore(rootDirectory).getUsableSpace();
+			if (usableSpace < expectedSize) {
+				throw new BlobstoreException("Not enough usable space for "
+						+ expectedSize + " bytes (only " + usableSpace + " bytes)");
+			}
+		} catch (IOException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	/**
+	 * Extends the (empty) file of the given channel to the expected size, by
+	 * writing its last byte.
+	 */
+	protected CompletableFuture<Void> preallocate(
+			AsynchronousFileChannel channel, long expectedSize) {
+		CompletableFuture<Void> preallocated = new CompletableFuture<>();
+		if (expectedSize <= 0) {
+			preallocated.complete(null);
+			return preallocated;
+		}
+		channel.write(ByteBuffer.allocate(1), expectedSize - 1, null,
+				new CompletionHandler<Integer, Void>() {
+					@Override
+					public void completed(Integer result, Void attachment) {
+						preallocated.complete(null);
+					}
+
+					@Override
+					public void failed(Throwable exc, Void attachment) {
+						preallocated.completeExceptionally(exc);
+					}
+				});
+		return preallocated;
+	}
+
+	protected void writeMetaFile(String uniqueId,
+			String name, String contentType, long size, String md5Hash)
+			throws IOException {
+		Path metaFile = getMetaFile(uniqueId);
+		try (OutputStream meta = Files.newOutputStream(metaFile)) {
+			Properties props = new Properties();
+			putIfNotNull(props, "name", name);
+			putIfNotNull(props, "contentType", contentType);
+			props.put("size", String.valueOf(size));
+			props.put("dateCreated", String.valueOf(new Date().getTime()));
+			putIfNotNull(props, "md5Hash", md5Hash);
+			props.store(meta, null);
+		} catch (IOException | RuntimeException e) {
+			deleteQuietly(metaFile);
+			throw e;
+		}
+	}
+
+	// Properties cannot have null values
+	private static void putIfNotNull(Properties props, String key, String value) {
+		if (value != null) {
+			props.put(key, value);
+		}
+	}
+
+	@Override
+	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
+		try (InputStream meta = Files.newInputStream(getMetaFile(blobKey.stringValue()))) {
+			Properties props = new Properties();
+			props.load(meta);
+			return new BlobInfo(blobKey,
+					props.getProperty("name"),
+					props.getProperty("contentType"),
+					Long.valueOf(props.getProperty("size")),
+					new Date(Long.valueOf(props.getProperty("dateCreated"))),
+					props.getProperty("md5Hash"));
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (Exception e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	@Override
+	public Flow.Publisher<ByteBuffer> publishBlob(BlobKey blobKey) {
+		return new FileChannelPublisher(getContentFile(blobKey.stringValue()),
+				0, Long.MAX_VALUE, chunkSize, channelExecutor);
+	}
+
+	@Override
+	public Flow.Publisher<ByteBuffer> publishBlob(BlobKey blobKey, long start, long end) {
+		if (end < start) {
+			throw new IllegalArgumentException(
+					"End cannot be less than start");
+		}
+		return new FileChannelPublisher(getContentFile(blobKey.stringValue()),
+				start, end + 1, chunkSize, channelExecutor);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out)
+			throws IOException, BlobstoreException {
+		serveBlobInternal(blobKey, out, 0, Long.MAX_VALUE);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start)
+			throws IOException, BlobstoreException {
+		serveBlobInternal(blobKey, out, start, Long.MAX_VALUE);
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		serveBlobInternal(blobKey, out, start, end + 1);
+	}
+
+	/**
+	 * Opens the content file before reading the metadata, so that a blob that
+	 * is deleted in between is either served entirely, or not found.
+	 */
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		AsynchronousFileChannel channel;
+		try {
+			channel = openChannel(
+					getContentFile(blobKey.stringValue()), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			callback.blobInfoRetrieved(null);
+			return;
+		}
+		try {
+			if (callback.blobInfoRetrieved(getBlobInfo(blobKey))) {
+				copy(channel, 0, Long.MAX_VALUE, out);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	protected void serveBlobInternal(BlobKey blobKey, OutputStream out, long start, long end)
+			throws IOException, BlobstoreException {
+		try (AsynchronousFileChannel channel = openChannel(
+				getContentFile(blobKey.stringValue()), StandardOpenOption.READ)) {
+			copy(channel, start, end, out);
+		} catch (NoSuchFileException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	/**
+	 * Copies the bytes from the given position up to (but not including) the
+	 * given end (or the end of the file) to the given output stream.
+	 */
+	protected void copy(AsynchronousFileChannel channel, long position, long end,
+			OutputStream out) throws IOException {
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			byte[] bytes = new byte[buffer.capacity()];
+			while (position < end) {
+				buffer.clear();
+				if (end - position < buffer.capacity()) {
+					buffer.limit((int) (end - position));
+				}
+				int len = await(channel.read(buffer, position));
+				if (len == -1) {
+					break;
+				}
+				buffer.flip();
+				buffer.get(bytes, 0, len);
+				out.write(bytes, 0, len);
+				position += len;
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	@Override
+	public int[] delete(BlobKey... blobKeys) throws BlobstoreException {
+		int[] updateCounts = new int[blobKeys.length];
+		try {
+			for (int i = 0; i < blobKeys.length; i++) {
+				String uniqueId = blobKeys[i].stringValue();
+				// content first, so that it is no longer served
+				updateCounts[i] += Files.deleteIfExists(getContentFile(uniqueId)) ? 1 : 0;
+				updateCounts[i] += Files.deleteIfExists(getMetaFile(uniqueId)) ? 1 : 0;
+			}
+		} catch (IOException e) {
+			throw new BlobstoreException(e);
+		}
+		return updateCounts;
+	}
+
+	@Override
+	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
+			throws IOException, BlobstoreException {
+		try (AsynchronousFileChannel channel = openChannel(
+				getContentFile(blobKey.stringValue()), StandardOpenOption.READ);
+				ChannelInputStream in = new ChannelInputStream(channel)) {
+			callback.readInputStream(in);
+		} catch (NoSuchFileException e) {
+			throw new BlobstoreException(e);
+		}
+	}
+
+	/**
+	 * Waits for the given read or write (or other operation) to complete.
+	 */
+	protected static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+	}
+
+	private void closeQuietly(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to close channel", e);
+		}
+	}
+
+	private void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to delete [{}]", file, e);
+		}
+	}
+
+	/**
+	 * Writes to a channel through a pooled direct buffer, which is written
+	 * whenever it is full (and when closed). Closing the stream does not close
+	 * the channel.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+
+		private final AsynchronousFileChannel channel;
+		private ByteBuffer buffer = bufferPool.acquire();
+		private long position;
+
+		ChannelOutputStream(AsynchronousFileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkNotClosed();
+			while (len > 0) {
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+				if (!buffer.hasRemaining()) {
+					writeBuffer();
+				}
+			}
+		}
+
+		private void writeBuffer() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += await(channel.write(buffer, position));
+			}
+			buffer.clear();
+		}
+
+		private void checkNotClosed() throws IOException {
+			if (buffer == null) {
+				throw new IOException("Stream closed");
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (buffer == null) {
+				return;
+			}
+			try {
+				writeBuffer();
+			} finally {
+				bufferPool.release(buffer);
+				buffer = null;
+			}
+		}
+
+	}
+
+	/**
+	 * Reads from a channel through a pooled direct buffer. Closing the stream
+	 * does not close the channel.
+	 */
+	private class ChannelInputStream extends InputStream {
+
+		private final AsynchronousFileChannel channel;
+		private ByteBuffer buffer = bufferPool.acquire();
+		private long position;
+		private boolean endOfFile;
+
+		ChannelInputStream(AsynchronousFileChannel channel) {
+			this.channel = channel;
+			buffer.flip(); // nothing read yet
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * Reads into the buffer if it has no remaining bytes. Returns
+		 * <code>false</code> at the end of the file.
+		 */
+		private boolean fill() throws IOException {
+			if (buffer == null) {
+				throw new IOException("Stream closed");
+			}
+			while (!buffer.hasRemaining()) {
+				if (endOfFile) {
+					return false;
+				}
+				buffer.clear();
+				int len = await(channel.read(buffer, position));
+				buffer.flip();
+				if (len == -1) {
+					endOfFile = true;
+				} else {
+					position += len;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void close() {
+			if (buffer != null) {
+				bufferPool.release(buffer);
+				buffer = null;
+			}
+		}
+
+	}
+
+	private static final char[] HEX_CHARS =
+			{'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+	private static char[] encodeHex(byte[] bytes) {
+		char chars[] = new char[32];
+		for (int i = 0; i < chars.length; i = i + 2) {
+			byte b = bytes[i / 2];
+			chars[i] = HEX_CHARS[(b >>> 0x4) & 0xf];
+			chars[i + 1] = HEX_CHARS[b & 0xf];
+		}
+		return chars;
+	}
+
+}
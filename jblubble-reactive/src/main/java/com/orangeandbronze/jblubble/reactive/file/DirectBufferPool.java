@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive.file;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of the same size.
+ * <p>
+ * File channels only transfer to and from direct buffers. A heap buffer is
+ * first copied to a temporary direct buffer, which is cached per thread (and
+ * is not cached at all for virtual threads). With many transfers on many
+ * threads, that is a lot of native memory (or a lot of allocations). Pooled
+ * buffers are shared, and the number of pooled buffers is bounded.
+ * </p>
+ * <p>
+ * When the pool is empty, a new buffer is allocated. When the pool is full,
+ * a released buffer is left to the garbage collector.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class DirectBufferPool {
+
+	private final int bufferSize;
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	public DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException(
+					"Buffer size cannot be zero or less");
+		}
+		if (maxPooledBuffers <= 0) {
+			throw new IllegalArgumentException(
+					"Maximum number of pooled buffers cannot be zero or less");
+		}
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns the number of buffers that are in the pool (i.e. not acquired).
+	 */
+	public int getPooledBuffers() {
+		return buffers.size();
+	}
+
+	/**
+	 * Returns a cleared buffer from the pool (or a new one, if the pool is
+	 * empty).
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Returns the given buffer to the pool. It should no longer be used by
+	 * the caller.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobstoreException;
+
+/**
+ * Publishes (a byte range of) a file, read with an
+ * {@link AsynchronousFileChannel}. A read is only started when the subscriber
+ * has requested a buffer, and no thread waits while it is in progress. Each
+ * subscriber opens the file on its own.
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class FileChannelPublisher implements Flow.Publisher<ByteBuffer> {
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final Path path;
+	private final long start;
+	private final long end;
+	private final int chunkSize;
+	private final ExecutorService executor;
+
+	/**
+	 * @param path
+	 *            the file to publish
+	 * @param start
+	 *            the first byte to publish
+	 * @param end
+	 *            the byte after the last byte to publish (exclusive), or
+	 *            {@link Long#MAX_VALUE} to publish until the end of the file
+	 * @param chunkSize
+	 *            the size of each buffer (except the last)
+	 */
+	public FileChannelPublisher(Path path, long start, long end, int chunkSize) {
+		this(path, start, end, chunkSize, null);
+	}
+
+	/**
+	 * @param path
+	 *            the file to publish
+	 * @param start
+	 *            the first byte to publish
+	 * @param end
+	 *            the byte after the last byte to publish (exclusive), or
+	 *            {@link Long#MAX_VALUE} to publish until the end of the file
+	 * @param chunkSize
+	 *            the size of each buffer (except the last)
+	 * @param executor
+	 *            runs the completion handlers of the channel, or
+	 *            <code>null</code> to use the default thread pool of
+	 *            {@link AsynchronousFileChannel}
+	 */
+	public FileChannelPublisher(Path path, long start, long end, int chunkSize,
+			ExecutorService executor) {
+		if (path == null) {
+			throw new IllegalArgumentException(
+					"Path cannot be null");
+		}
+		if (start < 0) {
+			throw new IllegalArgumentException(
+					"Start cannot be negative");
+		}
+		if (end < start) {
+			throw new IllegalArgumentException(
+					"End cannot be less than start");
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Chunk size cannot be zero or less");
+		}
+		this.path = path;
+		this.start = start;
+		this.end = end;
+		this.chunkSize = chunkSize;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		AsynchronousFileChannel channel;
+		try {
+			channel = AsynchronousFileChannel.open(path,
+					Collections.singleton(StandardOpenOption.READ), executor);
+		} catch (IOException | RuntimeException e) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(e instanceof NoSuchFileException
+					? new BlobstoreException("File not found: " + path, e) : e);
+			return;
+		}
+		subscriber.onSubscribe(new FileChannelSubscription(subscriber, channel));
+	}
+
+	/**
+	 * Reads a buffer whenever there is demand and no read in progress. The
+	 * read is completed on a thread of the channel, which then publishes the
+	 * buffer and starts the next read (if there is still demand).
+	 */
+	private class FileChannelSubscription
+			implements Flow.Subscription, CompletionHandler<Integer, ByteBuffer> {
+
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final AsynchronousFileChannel channel;
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicBoolean reading = new AtomicBoolean();
+		private volatile boolean done;
+		private long position = start;
+
+		FileChannelSubscription(Flow.Subscriber<? super ByteBuffer> subscriber,
+				AsynchronousFileChannel channel) {
+			this.subscriber = subscriber;
+			this.channel = channel;
+		}
+
+		@Override
+		public void request(long n) {
+			if (done) {
+				return;
+			}
+			if (n <= 0) {
+				if (reading.compareAndSet(false, true)) {
+					terminate(new IllegalArgumentException(
+							"Number of requested buffers cannot be zero or less"));
+				} else {
+					// a read is in progress, stop after it
+					demand.set(Long.MIN_VALUE);
+				}
+				return;
+			}
+			demand.getAndUpdate((d) -> d < 0 ? d : d + n < 0 ? Long.MAX_VALUE : d + n);
+			readIfDemanded();
+		}
+
+		@Override
+		public void cancel() {
+			done = true;
+			close();
+		}
+
+		/**
+		 * Starts a read if there is demand and no read is in progress. If
+		 * another thread holds the right to read, it will check the demand
+		 * again after its read.
+		 */
+		private void readIfDemanded() {
+			while (!done && demand.get() != 0 && reading.compareAndSet(false, true)) {
+				if (demand.get() < 0) {
+					terminate(new IllegalArgumentException(
+							"Number of requested buffers cannot be zero or less"));
+					return;
+				}
+				if (demand.get() == 0) {
+					reading.set(false);
+					continue;
+				}
+				if (position >= end) {
+					complete();
+					return;
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(
+						(int) Math.min(chunkSize, end - position));
+				try {
+					channel.read(buffer, position, buffer, this);
+				} catch (RuntimeException e) {
+					terminate(e);
+				}
+				return;
+			}
+		}
+
+		@Override
+		public void completed(Integer result, ByteBuffer buffer) {
+			if (done) {
+				return;
+			}
+			if (result == -1) {
+				complete();
+				return;
+			}
+			position += result;
+			buffer.flip();
+			demand.getAndUpdate((d) -> d > 0 && d != Long.MAX_VALUE ? d - 1 : d);
+			subscriber.onNext(buffer);
+			reading.set(false);
+			readIfDemanded();
+		}
+
+		@Override
+		public void failed(Throwable exc, ByteBuffer buffer) {
+			if (done) {
+				LOGGER.debug("Read of [{}] failed after cancel", path, exc);
+				return;
+			}
+			terminate(exc);
+		}
+
+		private void complete() {
+			done = true;
+			close();
+			subscriber.onComplete();
+		}
+
+		private void terminate(Throwable throwable) {
+			done = true;
+			close();
+			subscriber.onError(throwable);
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close [{}]", path, e);
+			}
+		}
+
+	}
+
+}
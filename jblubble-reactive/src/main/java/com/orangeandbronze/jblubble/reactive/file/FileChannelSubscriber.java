@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.reactive.file;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the published buffers to an {@link AsynchronousFileChannel}, one at
+ * a time. The next buffer is only requested after the previous one has been
+ * written, so the publisher cannot run ahead of the disk. The written bytes
+ * are counted and hashed along the way.
+ * <p>
+ * The channel is not closed by this subscriber.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ * @since 1.2
+ */
+public class FileChannelSubscriber
+		implements Flow.Subscriber<ByteBuffer>, CompletionHandler<Integer, ByteBuffer> {
+
+	private final AsynchronousFileChannel channel;
+	private final MessageDigest digest;
+	private final CompletableFuture<Long> result = new CompletableFuture<>();
+	private Flow.Subscription subscription;
+	private long position;
+	// guards writing and upstreamCompleted
+	private final Lock lock = new ReentrantLock();
+	private boolean writing;
+	private boolean upstreamCompleted;
+
+	/**
+	 * @param channel
+	 *            the channel to write to (from position zero)
+	 * @param digest
+	 *            updated with the written bytes, or <code>null</code>
+	 */
+	public FileChannelSubscriber(AsynchronousFileChannel channel, MessageDigest digest) {
+		if (channel == null) {
+			throw new IllegalArgumentException(
+					"Channel cannot be null");
+		}
+		this.channel = channel;
+		this.digest = digest;
+	}
+
+	/**
+	 * Returns a future that completes with the number of written bytes once
+	 * the publisher has completed and all buffers have been written.
+	 */
+	public CompletableFuture<Long> getResult() {
+		return result;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(ByteBuffer buffer) {
+		if (result.isDone()) {
+			return;
+		}
+		if (digest != null) {
+			digest.update(buffer.duplicate());
+		}
+		lock.lock();
+		try {
+			writing = true;
+		} finally {
+			lock.unlock();
+		}
+		write(buffer);
+	}
+
+	private void write(ByteBuffer buffer) {
+		try {
+			channel.write(buffer, position, buffer, this);
+		} catch (RuntimeException e) {
+			failed(e, buffer);
+		}
+	}
+
+	@Override
+	public void completed(Integer written, ByteBuffer buffer) {
+		position += written;
+		if (buffer.hasRemaining()) {
+			write(buffer);
+			return;
+		}
+		boolean completing;
+		lock.lock();
+		try {
+			writing = false;
+			completing = upstreamCompleted;
+		} finally {
+			lock.unlock();
+		}
+		if (completing) {
+			result.complete(position);
+		} else {
+			subscription.request(1);
+		}
+	}
+
+	@Override
+	public void failed(Throwable exc, ByteBuffer buffer) {
+		subscription.cancel();
+		result.completeExceptionally(exc);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		result.completeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		boolean completing;
+		lock.lock();
+		try {
+			upstreamCompleted = true;
+			completing = !writing;
+		} finally {
+			lock.unlock();
+		}
+		if (completing) {
+			result.complete(position);
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.orangeandbronze.jblubble.reactive;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.jdbc.JdbcBlobstoreService;
+
+public class BridgedReactiveBlobstoreServiceTests {
+
+	private EmbeddedDatabase dataSource;
+	private ExecutorService executor;
+	private BridgedReactiveBlobstoreService blobstoreService;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws Exception {
+		dataSource = new EmbeddedDatabaseBuilder()
+				.setType(EmbeddedDatabaseType.HSQL)
+				.addScript("classpath:/com/orangeandbronze/jblubble/jdbc/create-lob-table.sql")
+				.build();
+		executor = Executors.newCachedThreadPool();
+		blobstoreService = new BridgedReactiveBlobstoreService(
+				new JdbcBlobstoreService(dataSource), executor);
+		blobstoreService.setChunkSize(1000);
+		content = new byte[10500];
+		new Random(42).nextBytes(content);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		dataSource.shutdown();
+	}
+
+	private BlobKey createBlob(byte[] content) throws Exception {
+		CompletableFuture<BlobKey> future;
+		try (SubmissionPublisher<ByteBuffer> publisher =
+				new SubmissionPublisher<>(executor, 2)) {
+			future = blobstoreService.createBlob(publisher, "test.bin", "application/octet-stream");
+			for (int i = 0; i < content.length; i += 777) {
+				publisher.submit(ByteBuffer.wrap(
+						Arrays.copyOfRange(content, i, Math.min(content.length, i + 777))));
+			}
+		}
+		return future.get(10, TimeUnit.SECONDS);
+	}
+
+	private long countBlobs() {
+		return new JdbcTemplate(dataSource).queryForObject(
+				"SELECT COUNT(*) FROM lobs", Long.class);
+	}
+
+	@Test
+	public void createAndPublishBlob() throws Exception {
+		BlobKey blobKey = createBlob(content);
+		BlobInfo blobInfo = blobstoreService.getDelegate().getBlobInfo(blobKey);
+		assertEquals(content.length, blobInfo.getSize());
+
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey).subscribe(subscriber);
+		subscriber.request(Long.MAX_VALUE);
+		assertTrue(subscriber.await());
+		assertTrue(subscriber.isCompleted());
+		assertArrayEquals(content, subscriber.getBytes());
+		assertEquals(11, subscriber.getReceived());
+	}
+
+	@Test
+	public void publishesOnlyWhatIsRequested() throws Exception {
+		BlobKey blobKey = createBlob(content);
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey).subscribe(subscriber);
+		Thread.sleep(100);
+		assertEquals(0, subscriber.getReceived());
+		subscriber.request(2);
+		Thread.sleep(200);
+		assertEquals(2, subscriber.getReceived());
+		assertFalse(subscriber.isCompleted());
+		subscriber.cancel();
+		Thread.sleep(100);
+		assertEquals(2, subscriber.getReceived());
+		assertFalse(subscriber.isCompleted());
+	}
+
+	@Test
+	public void publishRange() throws Exception {
+		BlobKey blobKey = createBlob(content);
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey, 500, 2999).subscribe(subscriber);
+		subscriber.request(Long.MAX_VALUE);
+		assertTrue(subscriber.await());
+		assertArrayEquals(Arrays.copyOfRange(content, 500, 3000), subscriber.getBytes());
+	}
+
+	@Test
+	public void publishNonExistingBlob() throws Exception {
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(new BlobKey("-1")).subscribe(subscriber);
+		subscriber.request(1);
+		assertTrue(subscriber.await());
+		assertTrue(subscriber.getError() instanceof BlobstoreException);
+	}
+
+	@Test
+	public void failedPublisherCreatesNoBlob() throws Exception {
+		long count = countBlobs();
+		SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>(executor, 2);
+		CompletableFuture<BlobKey> future = blobstoreService.createBlob(
+				publisher, "test.bin", "application/octet-stream");
+		publisher.submit(ByteBuffer.wrap(content));
+		publisher.closeExceptionally(new IllegalStateException("Upload aborted"));
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("Expecting failed publisher to fail creating blob");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BlobstoreException);
+		}
+		assertEquals(count, countBlobs());
+	}
+
+}
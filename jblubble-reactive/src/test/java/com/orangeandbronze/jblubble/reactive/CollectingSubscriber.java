@@ -0,0 +1,79 @@
+package com.orangeandbronze.jblubble.reactive;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the published buffers, and only requests what the test asks for.
+ */
+public class CollectingSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final AtomicInteger received = new AtomicInteger();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private volatile Flow.Subscription subscription;
+	private volatile Throwable error;
+	private volatile boolean completed;
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+	}
+
+	@Override
+	public void onNext(ByteBuffer buffer) {
+		synchronized (bytes) {
+			byte[] b = new byte[buffer.remaining()];
+			buffer.get(b);
+			bytes.write(b, 0, b.length);
+		}
+		received.incrementAndGet();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		error = throwable;
+		terminated.countDown();
+	}
+
+	@Override
+	public void onComplete() {
+		completed = true;
+		terminated.countDown();
+	}
+
+	public void request(long n) {
+		subscription.request(n);
+	}
+
+	public void cancel() {
+		subscription.cancel();
+	}
+
+	public int getReceived() {
+		return received.get();
+	}
+
+	public byte[] getBytes() {
+		synchronized (bytes) {
+			return bytes.toByteArray();
+		}
+	}
+
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	public boolean await() throws InterruptedException {
+		return terminated.await(10, TimeUnit.SECONDS);
+	}
+
+}
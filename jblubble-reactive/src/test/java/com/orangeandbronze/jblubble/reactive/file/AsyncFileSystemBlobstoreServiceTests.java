@@ -0,0 +1,260 @@
+package com.orangeandbronze.jblubble.reactive.file;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.reactive.CollectingSubscriber;
+
+public class AsyncFileSystemBlobstoreServiceTests {
+
+	private Path rootDirectory;
+	private ExecutorService executor;
+	private AsyncFileSystemBlobstoreService blobstoreService;
+	private byte[] content;
+
+	@Before
+	public void setUp() throws Exception {
+		rootDirectory = Files.createTempDirectory("async");
+		executor = Executors.newCachedThreadPool();
+		blobstoreService = new AsyncFileSystemBlobstoreService(rootDirectory);
+		blobstoreService.setChunkSize(1000);
+		content = new byte[10500];
+		new Random(42).nextBytes(content);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		try (Stream<Path> files = Files.list(rootDirectory)) {
+			files.forEach((file) -> file.toFile().delete());
+		}
+		Files.delete(rootDirectory);
+	}
+
+	private BlobKey createBlob(byte[] content) throws Exception {
+		CompletableFuture<BlobKey> future;
+		try (SubmissionPublisher<ByteBuffer> publisher =
+				new SubmissionPublisher<>(executor, 2)) {
+			future = blobstoreService.createBlob(publisher, "test.bin", "application/octet-stream");
+			for (int i = 0; i < content.length; i += 777) {
+				publisher.submit(ByteBuffer.wrap(
+						Arrays.copyOfRange(content, i, Math.min(content.length, i + 777))));
+			}
+		}
+		return future.get(10, TimeUnit.SECONDS);
+	}
+
+	private long getContentFileSize(BlobKey blobKey) throws Exception {
+		return Files.size(rootDirectory.resolve(blobKey.stringValue() + ".dat"));
+	}
+
+	private long countFiles() throws Exception {
+		try (Stream<Path> files = Files.list(rootDirectory)) {
+			return files.count();
+		}
+	}
+
+	@Test
+	public void createAndPublishBlob() throws Exception {
+		BlobKey blobKey = createBlob(content);
+		BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+		assertEquals("test.bin", blobInfo.getName());
+		assertEquals(content.length, blobInfo.getSize());
+		StringBuilder md5Hash = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+			md5Hash.append(String.format("%02x", b));
+		}
+		assertEquals(md5Hash.toString(), blobInfo.getMd5Hash());
+
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey).subscribe(subscriber);
+		subscriber.request(Long.MAX_VALUE);
+		assertTrue(subscriber.await());
+		assertTrue(subscriber.isCompleted());
+		assertArrayEquals(content, subscriber.getBytes());
+		assertEquals(11, subscriber.getReceived());
+
+		assertArrayEquals(new int[] { 2 }, blobstoreService.delete(blobKey));
+		assertNull(blobstoreService.getBlobInfo(blobKey));
+	}
+
+	@Test
+	public void publishesOnlyWhatIsRequested() throws Exception {
+		BlobKey blobKey = createBlob(content);
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey).subscribe(subscriber);
+		Thread.sleep(100);
+		assertEquals(0, subscriber.getReceived());
+		subscriber.request(2);
+		Thread.sleep(200);
+		assertEquals(2, subscriber.getReceived());
+		assertFalse(subscriber.isCompleted());
+		subscriber.request(Long.MAX_VALUE);
+		assertTrue(subscriber.await());
+		assertArrayEquals(content, subscriber.getBytes());
+	}
+
+	@Test
+	public void publishRange() throws Exception {
+		BlobKey blobKey = createBlob(content);
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey, 500, 2999).subscribe(subscriber);
+		subscriber.request(Long.MAX_VALUE);
+		assertTrue(subscriber.await());
+		assertArrayEquals(Arrays.copyOfRange(content, 500, 3000), subscriber.getBytes());
+	}
+
+	@Test
+	public void publishNonExistingBlob() throws Exception {
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(new BlobKey("missing")).subscribe(subscriber);
+		assertTrue(subscriber.await());
+		assertTrue(subscriber.getError() instanceof BlobstoreException);
+	}
+
+	@Test
+	public void createBlobWithoutNameAndContentType() throws Exception {
+		CompletableFuture<BlobKey> future;
+		try (SubmissionPublisher<ByteBuffer> publisher =
+				new SubmissionPublisher<>(executor, 2)) {
+			future = blobstoreService.createBlob(publisher, null, null);
+			publisher.submit(ByteBuffer.wrap(content));
+		}
+		BlobKey blobKey = future.get(10, TimeUnit.SECONDS);
+		BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+		assertNull(blobInfo.getName());
+		assertNull(blobInfo.getContentType());
+		assertEquals(content.length, blobInfo.getSize());
+
+		blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(content), null, null, content.length);
+		assertNull(blobstoreService.getBlobInfo(blobKey).getName());
+		assertEquals(4, countFiles());
+	}
+
+	@Test
+	public void failedPublisherCreatesNoBlob() throws Exception {
+		SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>(executor, 2);
+		CompletableFuture<BlobKey> future = blobstoreService.createBlob(
+				publisher, "test.bin", "application/octet-stream");
+		publisher.submit(ByteBuffer.wrap(content));
+		publisher.closeExceptionally(new IllegalStateException("Upload aborted"));
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("Expecting failed publisher to fail creating blob");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BlobstoreException);
+		}
+		assertEquals(0, countFiles());
+	}
+
+	@Test
+	public void createAndServeBlobThroughPooledBuffers() throws Exception {
+		DirectBufferPool bufferPool = new DirectBufferPool(1000, 2);
+		blobstoreService.setBufferPool(bufferPool);
+		BlobKey blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(content), "test.bin", "application/octet-stream");
+		assertEquals(1, bufferPool.getPooledBuffers());
+		assertEquals(content.length, blobstoreService.getBlobInfo(blobKey).getSize());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		assertArrayEquals(content, out.toByteArray());
+		out.reset();
+		blobstoreService.serveBlob(blobKey, out, 9000);
+		assertArrayEquals(Arrays.copyOfRange(content, 9000, content.length), out.toByteArray());
+		out.reset();
+		blobstoreService.serveBlob(blobKey, out, 500, 2999);
+		assertArrayEquals(Arrays.copyOfRange(content, 500, 3000), out.toByteArray());
+
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		blobstoreService.readBlob(blobKey, (in) -> {
+			byte[] bytes = new byte[300];
+			int len;
+			while ((len = in.read(bytes)) != -1) {
+				read.write(bytes, 0, len);
+			}
+		});
+		assertArrayEquals(content, read.toByteArray());
+		assertEquals(1, bufferPool.getPooledBuffers());
+
+		AtomicReference<BlobInfo> retrieved = new AtomicReference<>();
+		blobstoreService.serveBlob(new BlobKey("missing"), (blobInfo) -> {
+			retrieved.set(blobInfo);
+			return true;
+		}, out);
+		assertNull(retrieved.get());
+	}
+
+	@Test
+	public void preallocateExpectedSize() throws Exception {
+		BlobKey blobKey = blobstoreService.createBlob(new ByteArrayInputStream(content),
+				"test.bin", "application/octet-stream", content.length);
+		assertEquals(content.length, getContentFileSize(blobKey));
+
+		// fewer bytes than expected
+		blobKey = blobstoreService.createBlob(new ByteArrayInputStream(content),
+				"test.bin", "application/octet-stream", content.length + 5000);
+		assertEquals(content.length, getContentFileSize(blobKey));
+		assertEquals(content.length, blobstoreService.getBlobInfo(blobKey).getSize());
+
+		CompletableFuture<BlobKey> future;
+		try (SubmissionPublisher<ByteBuffer> publisher =
+				new SubmissionPublisher<>(executor, 2)) {
+			future = blobstoreService.createBlob(publisher,
+					"test.bin", "application/octet-stream", content.length + 5000);
+			publisher.submit(ByteBuffer.wrap(content));
+		}
+		blobKey = future.get(10, TimeUnit.SECONDS);
+		assertEquals(content.length, getContentFileSize(blobKey));
+		CollectingSubscriber subscriber = new CollectingSubscriber();
+		blobstoreService.publishBlob(blobKey).subscribe(subscriber);
+		subscriber.request(Long.MAX_VALUE);
+		assertTrue(subscriber.await());
+		assertArrayEquals(content, subscriber.getBytes());
+	}
+
+	@Test
+	public void expectedSizeThatDoesNotFit() throws Exception {
+		try {
+			blobstoreService.createBlob(new ByteArrayInputStream(content),
+					"test.bin", "application/octet-stream", Long.MAX_VALUE);
+			fail("Expecting blob that does not fit to fail");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		try {
+			blobstoreService.createBlob(new SubmissionPublisher<>(),
+					"test.bin", "application/octet-stream", Long.MAX_VALUE)
+					.get(10, TimeUnit.SECONDS);
+			fail("Expecting blob that does not fit to fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BlobstoreException);
+		}
+		assertEquals(0, countFiles());
+	}
+
+}
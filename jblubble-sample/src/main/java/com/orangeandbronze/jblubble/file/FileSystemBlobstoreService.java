@@ -15,26 +15,62 @@
  */
 package com.orangeandbronze.jblubble.file;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoCallback;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreReadCallback;
 import com.orangeandbronze.jblubble.BlobstoreService;
 import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+import com.orangeandbronze.jblubble.UploadSessionService;
 
 /**
  * {@link BlobstoreService Blobstore service} implementation using the file
@@ -43,15 +79,40 @@ import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
  * BLOB contents are stored in one file, and meta data is stored in another
  * file. Both files have the same name, but have different extensions.
  * </p>
+ * <p>
+ * Upload sessions are staged in an <code>uploads</code> sub-directory. Chunks
+ * are written in place (at their offsets) to one file, and the MD5 hash is
+ * computed as the received bytes become contiguous. Committing a session
+ * moves the file, and does not read the contents again.
+ * </p>
+ * <p>
+ * With {@link #setSoftDelete(boolean) soft delete}, deleted blobs are moved
+ * to a <code>deleted</code> sub-directory, and are removed later by
+ * {@link #reclaimDeleted(Date)}.
+ * </p>
  *
  * @author Lorenzo Dee
  */
-public class FileSystemBlobstoreService implements BlobstoreService {
+public class FileSystemBlobstoreService implements BlobstoreService, UploadSessionService {
 
 	public static final int DEFAULT_BUFFER_SIZE = 0x1000; // 4096 bytes, or 4 kilobytes
 
+	private static final String CONTENT_FILE_EXTENSION = ".dat";
+	private static final String META_FILE_EXTENSION = ".properties";
+	private static final int INDEX_RECORD_LENGTH = 37; // ID and a line feed
+	// as generated by generateUniqueId()
+	private static final Pattern SESSION_ID_PATTERN = Pattern.compile(
+			"[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
 	private final File rootDirectory;
 	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private boolean softDelete;
+	private final Lock indexLock = new ReentrantLock();
+	private long lastIdTime;
+	private int idSequence;
+	private final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
 
 	public FileSystemBlobstoreService(File rootDirectory) {
 		if (rootDirectory == null || !rootDirectory.isDirectory()) {
@@ -77,6 +138,19 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 		this.bufferSize = bufferSize;
 	}
 
+	public boolean isSoftDelete() {
+		return softDelete;
+	}
+
+	/**
+	 * Sets whether {@link #delete(BlobKey...)} only moves the files of blobs
+	 * to the {@link #getDeletedDirectory() deleted directory} (which is
+	 * quick, even for large files), instead of deleting them.
+	 */
+	public void setSoftDelete(boolean softDelete) {
+		this.softDelete = softDelete;
+	}
+
 	protected void copy(InputStream in, OutputStream out) throws IOException {
 		byte[] buffer = new byte[getBufferSize()];
 		int len;
@@ -88,16 +162,11 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 	protected void copy(InputStream in, OutputStream out, long length) throws IOException {
 		byte[] buffer = new byte[getBufferSize()];
 		int len;
-		long total = 0L;
-		while ((len = in.read(buffer)) != -1) {
-			total += len;
-			if (total > length) {
-				len = (int) (length);
-			}
+		long remaining = length;
+		while (remaining > 0 && (len = in.read(
+				buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
 			out.write(buffer, 0, len);
-			if (total > length) {
-				break;
-			}
+			remaining -= len;
 		}
 	}
 
@@ -113,7 +182,7 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 	@Override
 	public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
 			throws IOException, BlobstoreException {
-		String uniqueId = generateUniqueId();
+		String uniqueId = generateBlobId();
 		File contentFile = createContentFile(uniqueId);
 		String md5Hash = null;
 		long size;
@@ -135,43 +204,138 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 				} catch (NoSuchAlgorithmException e) {
 					throw new BlobstoreException(e);
 				}
-				callback.writeToOutputStream(out);
 			}
 		} catch (IOException e) {
 			contentFile.delete();
 			throw e;
 		}
-		File metaFile = createMetaFile(uniqueId);
+		writeMetaFile(uniqueId, name, contentType, size, md5Hash);
+		return new BlobKey(uniqueId);
+	}
+
+	protected void writeMetaFile(String uniqueId,
+			String name, String contentType, long size, String md5Hash)
+			throws IOException {
+		Properties props = new Properties();
+		putIfNotNull(props, "name", name);
+		putIfNotNull(props, "contentType", contentType);
+		props.put("size", String.valueOf(size));
+		props.put("dateCreated", String.valueOf(new Date().getTime()));
+		putIfNotNull(props, "md5Hash", md5Hash);
+		writeProperties(createMetaFile(uniqueId), props);
+	}
+
+	protected BlobInfo readMetaFile(BlobKey blobKey) throws IOException {
+		Properties props = readProperties(getMetaFile(blobKey));
+		String name = props.getProperty("name");
+		String contentType = props.getProperty("contentType");
+		long size = Long.valueOf(props.getProperty("size"));
+		Date dateCreated = new Date(Long.valueOf(props.getProperty("dateCreated")));
+		String md5Hash = props.getProperty("md5Hash");
+		return new BlobInfo(
+				blobKey, name, contentType, size, dateCreated, md5Hash);
+	}
+
+	/**
+	 * Writes the given properties to the given (meta) file. The file is
+	 * deleted if it cannot be completely written.
+	 */
+	protected void writeProperties(File file, Properties props)
+			throws IOException {
 		try {
-			// TODO Refactor to method to write/read meta file
-			// BlobInfo blobInfo = new BlobInfo(blobKey, name, contentType, size, dateCreated, md5Hash);
-			// writeMetaFile(uniqueId, blobInfo);
-			try (FileOutputStream meta = new FileOutputStream(metaFile)) {
-				Properties props = new Properties();
-				props.put("name", name);
-				props.put("contentType", contentType);
-				props.put("size", String.valueOf(size));
-				props.put("dateCreated", String.valueOf(new Date().getTime()));
-				props.put("md5Hash", md5Hash);
-				props.store(meta, null);
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				props.store(out, null);
 			}
-			return new BlobKey(uniqueId);
 		} catch (IOException e) {
-			metaFile.delete();
+			file.delete();
 			throw e;
 		}
 	}
 
+	protected Properties readProperties(File file) throws IOException {
+		Properties props = new Properties();
+		try (FileInputStream in = new FileInputStream(file)) {
+			props.load(in);
+		}
+		return props;
+	}
+
+	private static void putIfNotNull(Properties props, String key, String value) {
+		if (value != null) {
+			props.put(key, value);
+		}
+	}
+
 	protected String generateUniqueId() {
 		return UUID.randomUUID().toString();
 	}
 
+	protected File getIndexFile() {
+		return new File(getRootDirectory(), "index");
+	}
+
+	/**
+	 * Generates the ID of a new blob, and appends it to the
+	 * {@link #getIndexFile() index}. IDs look like UUIDs, but start with the
+	 * time they were generated (and a sequence number), so that they are
+	 * appended in order, and the index can be binary searched for the key to
+	 * {@link #listBlobInfos(BlobInfoQuery, BlobInfoCallback) list} after.
+	 * The index is only appended to by this service (i.e. the root directory
+	 * should not be shared with another instance).
+	 */
+	protected String generateBlobId() throws IOException {
+		indexLock.lock();
+		try {
+			File indexFile = getIndexFile();
+			if (lastIdTime == 0 && indexFile.length() >= INDEX_RECORD_LENGTH) {
+				// continue after the last ID, even if the clock went back
+				try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+					String lastId = readIndexRecord(index,
+							index.length() / INDEX_RECORD_LENGTH - 1);
+					lastIdTime = Long.parseLong(lastId.substring(0, 8) + lastId.substring(9, 13), 16);
+					idSequence = Integer.parseInt(lastId.substring(14, 18), 16);
+				} catch (NumberFormatException e) {
+					// not generated by this method
+				}
+			}
+			long time = System.currentTimeMillis();
+			if (time > lastIdTime) {
+				idSequence = 0;
+			} else if (idSequence < 0xffff) {
+				time = lastIdTime;
+				idSequence++;
+			} else {
+				time = lastIdTime + 1;
+				idSequence = 0;
+			}
+			lastIdTime = time;
+			long random = ThreadLocalRandom.current().nextLong();
+			String id = String.format("%08x-%04x-%04x-%04x-%012x",
+					time >>> 16, time & 0xffff, idSequence,
+					(random >>> 48) & 0xffff, random & 0xffffffffffffL);
+			try (FileOutputStream index = new FileOutputStream(indexFile, true)) {
+				index.write((id + "\n").getBytes(StandardCharsets.US_ASCII));
+			}
+			return id;
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	private static String readIndexRecord(RandomAccessFile index, long record)
+			throws IOException {
+		byte[] bytes = new byte[INDEX_RECORD_LENGTH - 1];
+		index.seek(record * INDEX_RECORD_LENGTH);
+		index.readFully(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
 	protected File getContentFile(BlobKey blobKey) {
 		return createContentFile(blobKey.stringValue());
 	}
 
 	protected File createContentFile(String uniqueId) {
-		return new File(getRootDirectory(), uniqueId + ".dat");
+		return new File(getRootDirectory(), uniqueId + CONTENT_FILE_EXTENSION);
 	}
 
 	protected File getMetaFile(BlobKey blobKey) {
@@ -179,30 +343,17 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 	}
 
 	protected File createMetaFile(String uniqueId) {
-		return new File(getRootDirectory(), uniqueId + ".properties");
+		return new File(getRootDirectory(), uniqueId + META_FILE_EXTENSION);
 	}
 
 	protected String toFileName(String uniqueId) {
-		return uniqueId + ".dat";
+		return uniqueId + CONTENT_FILE_EXTENSION;
 	}
 
 	@Override
 	public BlobInfo getBlobInfo(BlobKey blobKey) throws BlobstoreException {
 		try {
-			File metaFile = getMetaFile(blobKey);
-			// TODO Refactor to method to write/read meta file
-			// BlobInfo blobInfo = readMetaFile(uniqueId);
-			try (FileInputStream meta = new FileInputStream(metaFile)) {
-				Properties props = new Properties();
-				props.load(meta);
-				String name = props.getProperty("name");
-				String contentType = props.getProperty("contentType");
-				long size = Long.valueOf(props.getProperty("size"));
-				Date dateCreated = new Date(Long.valueOf(props.getProperty("dateCreated")));
-				String md5Hash = props.getProperty("md5Hash");
-				return new BlobInfo(
-						blobKey, name, contentType, size, dateCreated, md5Hash);
-			}
+			return readMetaFile(blobKey);
 		} catch (FileNotFoundException e) {
 			return null;
 		} catch (Exception e) {
@@ -228,6 +379,29 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 		serveBlobInternal(blobKey, out, start, end, true);
 	}
 
+	/**
+	 * Opens the content file before reading the metadata, so that a blob that
+	 * is deleted in between is either served entirely, or not found.
+	 */
+	@Override
+	public void serveBlob(BlobKey blobKey, BlobInfoCallback callback, OutputStream out)
+			throws IOException, BlobstoreException {
+		FileInputStream in;
+		try {
+			in = new FileInputStream(getContentFile(blobKey));
+		} catch (FileNotFoundException e) {
+			callback.blobInfoRetrieved(null);
+			return;
+		}
+		try {
+			if (callback.blobInfoRetrieved(getBlobInfo(blobKey))) {
+				copy(in, out);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 	protected void serveBlobInternal(
 			BlobKey blobKey, OutputStream out, long start, long end, boolean useEnd)
 			throws IOException, BlobstoreException {
@@ -235,10 +409,10 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 			File contentFile = getContentFile(blobKey);
 			try (FileInputStream in = new FileInputStream(contentFile)) {
 				if (start > 0) {
-					in.skip(start - 1);
+					in.getChannel().position(start);
 				}
 				if (useEnd) {
-					copy(in, out, end);
+					copy(in, out, end - start + 1);
 				} else {
 					copy(in, out);
 				}
@@ -253,12 +427,239 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 		int[] updateCounts = new int[blobKeys.length];
 		for (int i = 0; i < blobKeys.length; i++) {
 			updateCounts[i] = 0;
-			updateCounts[i] += getContentFile(blobKeys[i]).delete() ? 1 : 0;
-			updateCounts[i] += getMetaFile(blobKeys[i]).delete() ? 1 : 0;
+			if (isSoftDelete()) {
+				// content first, so that it is no longer served
+				updateCounts[i] += moveToDeletedDirectory(getContentFile(blobKeys[i])) ? 1 : 0;
+				updateCounts[i] += moveToDeletedDirectory(getMetaFile(blobKeys[i])) ? 1 : 0;
+			} else {
+				updateCounts[i] += getContentFile(blobKeys[i]).delete() ? 1 : 0;
+				updateCounts[i] += getMetaFile(blobKeys[i]).delete() ? 1 : 0;
+			}
 		}
 		return updateCounts;
 	}
 
+	protected File getDeletedDirectory() {
+		return new File(getRootDirectory(), "deleted");
+	}
+
+	/**
+	 * Moves the given file to the {@link #getDeletedDirectory() deleted
+	 * directory}. Its last modified time is set to when it was deleted.
+	 */
+	protected boolean moveToDeletedDirectory(File file) throws BlobstoreException {
+		if (!file.exists()) {
+			return false;
+		}
+		File deletedDirectory = getDeletedDirectory();
+		if (!deletedDirectory.isDirectory() && !deletedDirectory.mkdirs()) {
+			throw new BlobstoreException(
+					"Unable to create deleted directory [" + deletedDirectory + "]");
+		}
+		File deletedFile = new File(deletedDirectory, file.getName());
+		try {
+			Files.move(file.toPath(), deletedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return false; // deleted in the meantime
+		} catch (IOException e) {
+			throw new BlobstoreException(e);
+		}
+		deletedFile.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * Removes the files of blobs that were {@link #isSoftDelete() soft
+	 * deleted} before the given date.
+	 *
+	 * @return the number of removed blobs
+	 */
+	public long reclaimDeleted(Date deletedBefore) {
+		if (deletedBefore == null) {
+			throw new IllegalArgumentException(
+					"Date cannot be null");
+		}
+		File[] files = getDeletedDirectory().listFiles();
+		if (files == null) {
+			return 0;
+		}
+		long reclaimed = 0;
+		for (File file : files) {
+			if (file.lastModified() < deletedBefore.getTime()) {
+				if (file.delete()) {
+					if (file.getName().endsWith(CONTENT_FILE_EXTENSION)) {
+						reclaimed++;
+					}
+				} else {
+					LOGGER.warn("Unable to delete [{}]", file);
+				}
+			}
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Schedules {@link #reclaimDeleted(Date) reclamation} in the background,
+	 * with the given delay between runs. Each run removes the blobs that were
+	 * soft deleted before it started.
+	 */
+	public ScheduledFuture<?> scheduleReclaiming(
+			ScheduledExecutorService executor, long delay, TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try {
+				long reclaimed = reclaimDeleted(new Date());
+				LOGGER.info("Reclaimed {} deleted blob(s)", reclaimed);
+			} catch (RuntimeException e) {
+				LOGGER.error("Error while reclaiming deleted blobs", e);
+			}
+		}, delay, delay, unit);
+	}
+
+	/**
+	 * Returns the keys of all blobs, e.g. to sweep for orphans (see
+	 * <code>OrphanCollector</code> in <code>jblubble-common</code>). The
+	 * root directory is read lazily, and is closed once all keys have been
+	 * iterated.
+	 */
+	public Iterable<BlobKey> getBlobKeys() {
+		return () -> {
+			DirectoryStream<Path> directoryStream;
+			try {
+				directoryStream = Files.newDirectoryStream(
+						getRootDirectory().toPath(), "*" + CONTENT_FILE_EXTENSION);
+			} catch (IOException e) {
+				throw new BlobstoreException(e);
+			}
+			Iterator<Path> paths = directoryStream.iterator();
+			return new Iterator<BlobKey>() {
+				@Override
+				public boolean hasNext() {
+					boolean hasNext = paths.hasNext();
+					if (!hasNext) {
+						try {
+							directoryStream.close();
+						} catch (IOException e) {
+							LOGGER.warn("Unable to close directory stream", e);
+						}
+					}
+					return hasNext;
+				}
+
+				@Override
+				public BlobKey next() {
+					String fileName = paths.next().getFileName().toString();
+					return new BlobKey(fileName.substring(
+							0, fileName.length() - CONTENT_FILE_EXTENSION.length()));
+				}
+			};
+		};
+	}
+
+	/**
+	 * Lists blobs in the order of their keys, by reading the
+	 * {@link #getIndexFile() index} (instead of the root directory). The key
+	 * to list after is found by binary search, and the index is then read
+	 * sequentially. The meta file of each indexed blob is read, and blobs
+	 * that were deleted are skipped. Blobs created before there was an index
+	 * are not listed.
+	 */
+	@Override
+	public BlobKey listBlobInfos(BlobInfoQuery query, BlobInfoCallback callback)
+			throws IOException, BlobstoreException {
+		File indexFile = getIndexFile();
+		BlobKey lastKey = null;
+		try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+			long records = index.length() / INDEX_RECORD_LENGTH;
+			long record = 0;
+			if (query.getAfterKey() != null) {
+				// first record after the key
+				String afterId = query.getAfterKey().stringValue();
+				long high = records;
+				while (record < high) {
+					long middle = (record + high) >>> 1;
+					if (readIndexRecord(index, middle).compareTo(afterId) <= 0) {
+						record = middle + 1;
+					} else {
+						high = middle;
+					}
+				}
+			}
+			index.seek(record * INDEX_RECORD_LENGTH);
+			try (InputStream in = new BufferedInputStream(
+					Channels.newInputStream(index.getChannel()), getBufferSize())) {
+				byte[] bytes = new byte[INDEX_RECORD_LENGTH];
+				int listed = 0;
+				for (; record < records; record++) {
+					if (IOUtils.read(in, bytes) < bytes.length) {
+						break;
+					}
+					BlobKey blobKey = new BlobKey(
+							new String(bytes, 0, bytes.length - 1, StandardCharsets.US_ASCII));
+					BlobInfo blobInfo = getBlobInfo(blobKey);
+					if (blobInfo == null || !query.matches(blobInfo)) {
+						continue;
+					}
+					lastKey = blobKey;
+					listed++;
+					if (!callback.blobInfoRetrieved(blobInfo)
+							|| (query.getLimit() > 0 && listed == query.getLimit())) {
+						break;
+					}
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// no blobs created yet
+		}
+		return lastKey;
+	}
+
+	/**
+	 * Finds (and optionally deletes) the files of incomplete blobs. These are
+	 * content files without meta files (e.g. when {@link #createBlob(
+	 * BlobstoreWriteCallback, String, String) createBlob} failed to write the
+	 * meta file), and meta files without content files. Only files last
+	 * modified before the given date are considered, so that blobs that are
+	 * still being created (or committed from an upload session) are left
+	 * alone.
+	 *
+	 * @return the number of files of incomplete blobs
+	 */
+	public long collectIncompleteBlobs(Date modifiedBefore, boolean deleting)
+			throws BlobstoreException {
+		if (modifiedBefore == null) {
+			throw new IllegalArgumentException(
+					"Date cannot be null");
+		}
+		long incomplete = 0;
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(
+				getRootDirectory().toPath(),
+				"*{" + CONTENT_FILE_EXTENSION + "," + META_FILE_EXTENSION + "}")) {
+			for (Path path : directoryStream) {
+				File file = path.toFile();
+				String fileName = file.getName();
+				File otherFile;
+				if (fileName.endsWith(CONTENT_FILE_EXTENSION)) {
+					otherFile = createMetaFile(fileName.substring(
+							0, fileName.length() - CONTENT_FILE_EXTENSION.length()));
+				} else {
+					otherFile = createContentFile(fileName.substring(
+							0, fileName.length() - META_FILE_EXTENSION.length()));
+				}
+				if (otherFile.exists() || file.lastModified() >= modifiedBefore.getTime()) {
+					continue;
+				}
+				incomplete++;
+				LOGGER.info("Incomplete blob file [{}] ({} bytes)", file, file.length());
+				if (deleting && !file.delete()) {
+					LOGGER.warn("Unable to delete [{}]", file);
+				}
+			}
+		} catch (IOException e) {
+			throw new BlobstoreException(e);
+		}
+		return incomplete;
+	}
+
 	@Override
 	public void readBlob(BlobKey blobKey, BlobstoreReadCallback callback)
 			throws IOException, BlobstoreException {
@@ -272,6 +673,302 @@ public class FileSystemBlobstoreService implements BlobstoreService {
 		}
 	}
 
+	protected File getUploadDirectory() {
+		return new File(getRootDirectory(), "uploads");
+	}
+
+	/**
+	 * Checks that the given session ID (e.g. from a client) is a UUID, as
+	 * issued by {@link #openSession(String, String)}, before it is used in a
+	 * file name. This keeps IDs like <code>../</code><em>blob-id</em> from
+	 * referring to files outside the upload directory.
+	 */
+	protected void checkSessionId(String sessionId) throws BlobstoreException {
+		if (sessionId == null || !SESSION_ID_PATTERN.matcher(sessionId).matches()) {
+			throw new BlobstoreException(
+					"Upload session not found: " + sessionId);
+		}
+	}
+
+	protected File createUploadContentFile(String sessionId) {
+		checkSessionId(sessionId);
+		return new File(getUploadDirectory(), sessionId + ".part");
+	}
+
+	protected File createUploadMetaFile(String sessionId) {
+		checkSessionId(sessionId);
+		return new File(getUploadDirectory(), sessionId + ".properties");
+	}
+
+	/**
+	 * The file where the offset and length of each received chunk is logged,
+	 * so that sessions survive restarts.
+	 */
+	protected File createUploadChunksFile(String sessionId) {
+		checkSessionId(sessionId);
+		return new File(getUploadDirectory(), sessionId + ".chunks");
+	}
+
+	@Override
+	public String openSession(String name, String contentType) throws BlobstoreException {
+		String sessionId = generateUniqueId();
+		try {
+			Files.createDirectories(getUploadDirectory().toPath());
+			Properties props = new Properties();
+			putIfNotNull(props, "name", name);
+			putIfNotNull(props, "contentType", contentType);
+			writeProperties(createUploadMetaFile(sessionId), props);
+			createUploadContentFile(sessionId).createNewFile();
+			createUploadChunksFile(sessionId).createNewFile();
+		} catch (IOException e) {
+			deleteUploadFiles(sessionId);
+			throw new BlobstoreException("Error when opening upload session", e);
+		}
+		uploadSessions.put(sessionId, new UploadSession());
+		return sessionId;
+	}
+
+	@Override
+	public void appendChunk(String sessionId, long offset, byte[] bytes)
+			throws IOException, BlobstoreException {
+		if (offset < 0) {
+			throw new IllegalArgumentException(
+					"Offset cannot be negative");
+		}
+		if (bytes == null) {
+			throw new IllegalArgumentException(
+					"Bytes cannot be null");
+		}
+		UploadSession session = getUploadSession(sessionId);
+		// Chunks are written in parallel, but not while committing
+		session.lock.readLock().lock();
+		try {
+			session.checkNotEnded(sessionId);
+			File contentFile = createUploadContentFile(sessionId);
+			try (FileChannel channel = FileChannel.open(
+					contentFile.toPath(), StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, offset + buffer.position());
+				}
+			}
+			session.chunksLock.lock();
+			try {
+				try (Writer chunks = new FileWriter(
+						createUploadChunksFile(sessionId), true)) {
+					chunks.write(offset + " " + bytes.length + "\n");
+				}
+				session.addChunk(offset, bytes.length);
+				session.updateDigest(contentFile, offset, bytes);
+			} finally {
+				session.chunksLock.unlock();
+			}
+		} finally {
+			session.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long getUploadedLength(String sessionId) throws BlobstoreException {
+		UploadSession session = getUploadSession(sessionId);
+		session.chunksLock.lock();
+		try {
+			session.checkNotEnded(sessionId);
+			return session.getContiguousLength();
+		} finally {
+			session.chunksLock.unlock();
+		}
+	}
+
+	@Override
+	public BlobKey commit(String sessionId) throws IOException, BlobstoreException {
+		UploadSession session = getUploadSession(sessionId);
+		session.lock.writeLock().lock();
+		try {
+			session.checkNotEnded(sessionId);
+			long size = session.getContiguousLength();
+			if (session.hasGaps()) {
+				throw new BlobstoreException(
+						"Upload session has missing chunks after byte "
+								+ size + ": " + sessionId);
+			}
+			File contentFile = createUploadContentFile(sessionId);
+			// Only when the session was re-loaded (e.g. after a restart)
+			// are the contents read again here
+			session.updateDigest(contentFile, size, new byte[0]);
+			String md5Hash = new String(encodeHex(session.md5.digest()));
+			Properties props = readProperties(createUploadMetaFile(sessionId));
+			String uniqueId = generateBlobId();
+			// Touched before it is moved (which keeps the time it was last
+			// modified), so that it is not collected as an incomplete blob
+			// before its meta file is written
+			if (!contentFile.setLastModified(System.currentTimeMillis())) {
+				throw new IOException("Unable to touch [" + contentFile + "]");
+			}
+			Files.move(contentFile.toPath(), createContentFile(uniqueId).toPath());
+			try {
+				writeMetaFile(uniqueId, props.getProperty("name"),
+						props.getProperty("contentType"), size, md5Hash);
+			} catch (IOException e) {
+				createContentFile(uniqueId).delete();
+				throw e;
+			}
+			session.ended = true;
+			uploadSessions.remove(sessionId);
+			deleteUploadFiles(sessionId);
+			return new BlobKey(uniqueId);
+		} finally {
+			session.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void abort(String sessionId) throws BlobstoreException {
+		checkSessionId(sessionId);
+		UploadSession session = uploadSessions.get(sessionId);
+		if (session != null) {
+			session.lock.writeLock().lock();
+			try {
+				session.ended = true;
+				uploadSessions.remove(sessionId);
+			} finally {
+				session.lock.writeLock().unlock();
+			}
+		}
+		deleteUploadFiles(sessionId);
+	}
+
+	private UploadSession getUploadSession(String sessionId) throws BlobstoreException {
+		checkSessionId(sessionId);
+		UploadSession session = uploadSessions.get(sessionId);
+		if (session != null) {
+			return session;
+		}
+		File chunksFile = createUploadChunksFile(sessionId);
+		if (!chunksFile.exists()) {
+			throw new BlobstoreException(
+					"Upload session not found: " + sessionId);
+		}
+		// Re-load session (e.g. after a restart) from its log of chunks
+		session = new UploadSession();
+		try (BufferedReader chunks = new BufferedReader(new FileReader(chunksFile))) {
+			String line;
+			while ((line = chunks.readLine()) != null) {
+				String[] offsetAndLength = line.split(" ");
+				if (offsetAndLength.length == 2) {
+					session.addChunk(
+							Long.parseLong(offsetAndLength[0]),
+							Long.parseLong(offsetAndLength[1]));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			throw new BlobstoreException("Error when loading upload session", e);
+		}
+		UploadSession existing = uploadSessions.putIfAbsent(sessionId, session);
+		return existing != null ? existing : session;
+	}
+
+	private void deleteUploadFiles(String sessionId) {
+		createUploadContentFile(sessionId).delete();
+		createUploadMetaFile(sessionId).delete();
+		createUploadChunksFile(sessionId).delete();
+	}
+
+	/**
+	 * State of an upload session. The received byte ranges (merged) are
+	 * kept, and the MD5 hash is updated as soon as bytes become contiguous.
+	 */
+	private class UploadSession {
+
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+		// guards the chunks file, ranges and digest (not a monitor, so that
+		// virtual threads are not pinned while writing)
+		final Lock chunksLock = new ReentrantLock();
+		// start (inclusive) to end (exclusive) of received bytes
+		final TreeMap<Long, Long> ranges = new TreeMap<>();
+		final MessageDigest md5;
+		long hashedLength;
+		volatile boolean ended;
+
+		UploadSession() {
+			try {
+				md5 = MessageDigest.getInstance(MD5_ALGORITHM_NAME);
+			} catch (NoSuchAlgorithmException e) {
+				throw new BlobstoreException(e);
+			}
+		}
+
+		void checkNotEnded(String sessionId) {
+			if (ended) {
+				throw new BlobstoreException(
+						"Upload session not found: " + sessionId);
+			}
+		}
+
+		void addChunk(long offset, long length) {
+			if (length == 0) {
+				return;
+			}
+			long start = offset;
+			long end = offset + length;
+			Map.Entry<Long, Long> before = ranges.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+			}
+			Map.Entry<Long, Long> next;
+			while ((next = ranges.ceilingEntry(start)) != null
+					&& next.getKey() <= end) {
+				end = Math.max(end, next.getValue());
+				ranges.remove(next.getKey());
+			}
+			ranges.put(start, end);
+		}
+
+		long getContiguousLength() {
+			Long end = ranges.get(0L);
+			return end != null ? end : 0;
+		}
+
+		boolean hasGaps() {
+			return ranges.size() > (ranges.containsKey(0L) ? 1 : 0);
+		}
+
+		/**
+		 * Updates the hash up to the contiguous length. The bytes of the
+		 * given chunk are used (if they fall in the range to be hashed).
+		 * Otherwise, they are read from the given file.
+		 */
+		void updateDigest(File contentFile, long offset, byte[] bytes) throws IOException {
+			long contiguousLength = getContiguousLength();
+			if (hashedLength >= contiguousLength) {
+				return;
+			}
+			if (offset <= hashedLength && hashedLength < offset + bytes.length) {
+				int from = (int) (hashedLength - offset);
+				int to = (int) Math.min(bytes.length, contiguousLength - offset);
+				md5.update(bytes, from, to - from);
+				hashedLength = offset + to;
+			}
+			if (hashedLength < contiguousLength) {
+				try (RandomAccessFile file = new RandomAccessFile(contentFile, "r")) {
+					file.seek(hashedLength);
+					byte[] buffer = new byte[getBufferSize()];
+					while (hashedLength < contiguousLength) {
+						int len = file.read(buffer, 0, (int) Math.min(
+								buffer.length, contiguousLength - hashedLength));
+						if (len == -1) {
+							throw new IOException("Upload content file is too short");
+						}
+						md5.update(buffer, 0, len);
+						hashedLength += len;
+					}
+				}
+			}
+		}
+
+	}
+
 	protected static final String MD5_ALGORITHM_NAME = "MD5";
 
 	protected static final char[] HEX_CHARS =
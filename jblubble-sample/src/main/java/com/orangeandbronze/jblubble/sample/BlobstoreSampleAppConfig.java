@@ -16,6 +16,9 @@
 package com.orangeandbronze.jblubble.sample;
 
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
@@ -33,6 +36,7 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import com.orangeandbronze.jblubble.BlobstoreService;
 import com.orangeandbronze.jblubble.jdbc.JdbcBlobstoreService;
+import com.orangeandbronze.jblubble.servlet.BlobServingHandler;
 
 @Configuration
 @EnableTransactionManagement
@@ -51,7 +55,23 @@ public class BlobstoreSampleAppConfig {
 
 	@Bean
 	public BlobstoreService blobstoreService() {
-		return new JdbcBlobstoreService(dataSource());
+		JdbcBlobstoreService blobstoreService = new JdbcBlobstoreService(dataSource());
+		// Release connections before writing to (possibly slow) clients
+		blobstoreService.setSpillBuffering(true);
+		// Mark deleted blobs (e.g. replaced photos), and remove them later
+		blobstoreService.setSoftDelete(true);
+		blobstoreService.scheduleReclaiming(reclaimingExecutor(), 1, TimeUnit.HOURS);
+		return blobstoreService;
+	}
+
+	@Bean(destroyMethod = "shutdownNow")
+	public ScheduledExecutorService reclaimingExecutor() {
+		return Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@Bean
+	public BlobServingHandler blobServingHandler() {
+		return new BlobServingHandler(blobstoreService());
 	}
 
 	@Bean
@@ -23,6 +23,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
@@ -39,13 +40,12 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
-import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
-import com.orangeandbronze.jblubble.BlobInfo;
 import com.orangeandbronze.jblubble.BlobKey;
 import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.servlet.BlobServingHandler;
 
 @RequestMapping("/" + PersonController.PATH)
 @Controller
@@ -62,6 +62,9 @@ public class PersonController {
 	@Autowired
 	private BlobstoreService blobstoreService;
 
+	@Autowired
+	private BlobServingHandler blobServingHandler;
+
 	// Ideally, persistence should NOT be part of the presentation layer.
 	// But since this is just an example, we've simplified things here.
 	// private PersonService service;
@@ -176,22 +179,18 @@ public class PersonController {
 	}
 
 	@RequestMapping(method = RequestMethod.GET, value = "/{id}/photo")
-	public void servePhoto(@PathVariable("id") String id, WebRequest webRequest, HttpServletResponse response)
+	public void servePhoto(@PathVariable("id") String id,
+			HttpServletRequest request, HttpServletResponse response)
 			throws BlobstoreException, IOException {
 		Person person = getPersonById(id);
 		if (person != null) {
 			BlobKey photoId = person.getPhotoId();
 			if (photoId != null) {
-				BlobInfo blobInfo = blobstoreService.getBlobInfo(photoId);
-				if (webRequest.checkNotModified(blobInfo.getDateCreated().getTime())) {
-					return;
-				}
-				response.setContentType(blobInfo.getContentType());
-				// In Servlet API 3.1, use #setContentLengthLong(long)
-				response.setContentLength((int) blobInfo.getSize());
-				response.setDateHeader("Last-Modified", blobInfo.getDateCreated().getTime());
-				// response.addHeader("Cache-Control", "must-revalidate, max-age=3600");
-				blobstoreService.serveBlob(photoId, response.getOutputStream());
+				// The person's photo can be replaced, so the client has to
+				// revalidate (cheap, since the ETag is checked without
+				// reading the blob contents).
+				response.setHeader("Cache-Control", "no-cache");
+				blobServingHandler.serveBlob(photoId, request, response);
 				return;
 			}
 		}
@@ -16,18 +16,16 @@
 package com.orangeandbronze.jblubble.sample;
 
 import java.io.IOException;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.Part;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,21 +33,29 @@ import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
 import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobTransferExecutors;
 import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.servlet.AsyncBlobServingHandler;
+import com.orangeandbronze.jblubble.servlet.BlobServingHandler;
+import com.orangeandbronze.jblubble.servlet.StreamingUploadHandler;
 
-@WebServlet(value=UploadServlet.PATH + "/*", name="uploads-servlet")
-@MultipartConfig
+@WebServlet(value=UploadServlet.PATH + "/*", name="uploads-servlet", asyncSupported=true)
 @SuppressWarnings("serial")
 public class UploadServlet extends HttpServlet {
 
 	public static final String PATH = "/uploads";
+	private static final int PAGE_SIZE = 20;
+	private static final int MAX_TRANSFER_THREADS = 20;
 
 	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
 
 	private WebApplicationContext applicationContext;
 	private BlobstoreService blobstoreService;
-	private List<BlobKey> blobKeys;
+	private BlobServingHandler blobServingHandler;
+	private ExecutorService transferExecutor;
+	private StreamingUploadHandler streamingUploadHandler;
 
 	@Override
 	public void init(ServletConfig config) throws ServletException {
@@ -57,7 +63,22 @@ public class UploadServlet extends HttpServlet {
 		applicationContext = WebApplicationContextUtils.getWebApplicationContext(
 				config.getServletContext());
 		blobstoreService = applicationContext.getBean(BlobstoreService.class);
-		blobKeys = new LinkedList<>();
+		// Each upload (and download) runs on a virtual thread (if available),
+		// or else on one of a bounded number of platform threads
+		transferExecutor = BlobTransferExecutors.newTransferExecutor(MAX_TRANSFER_THREADS);
+		// Serve blobs with non-blocking writes, so that slow clients
+		// do not hold on to container threads
+		blobServingHandler = new AsyncBlobServingHandler(blobstoreService, transferExecutor);
+		// Stream uploads straight into the blobstore (no @MultipartConfig),
+		// while the request body is read with non-blocking reads.
+		streamingUploadHandler = new StreamingUploadHandler(
+				blobstoreService, transferExecutor);
+	}
+
+	@Override
+	public void destroy() {
+		transferExecutor.shutdown();
+		super.destroy();
 	}
 
 	@Override
@@ -74,45 +95,28 @@ public class UploadServlet extends HttpServlet {
 							"/WEB-INF/views/uploads/create.jsp");
 			requestDispatcher.forward(request, response);
 		} else if (pathInfo.length() > 1) {
+			// Conditional requests (e.g. If-None-Match) are handled by
+			// blobServingHandler with the same metadata lookup
 			BlobKey blobKey = new BlobKey(pathInfo.substring(1));
-			BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
-			response.setContentType(blobInfo.getContentType());
-			// In Servlet API 3.1, use #setContentLengthLong(long)
-			response.setContentLength((int) blobInfo.getSize());
-			response.setDateHeader(
-					"Last-Modified", blobInfo.getDateCreated().getTime());
-			blobstoreService.serveBlob(blobKey, response.getOutputStream());
+			blobServingHandler.serveBlob(blobKey, request, response);
 		} else {
-			// else show links to blobs that were previously uploaded (if any)
+			// else show links to blobs that were previously uploaded (if any),
+			// one page at a time (the next page starts after the last key)
 			RequestDispatcher requestDispatcher =
 					request.getRequestDispatcher(
 							"/WEB-INF/views/uploads/index.jsp");
-			List<BlobInfo> blobInfos = new LinkedList<>();
-			for (BlobKey blobKey : blobKeys) {
-				blobInfos.add(blobstoreService.getBlobInfo(blobKey));
-			}
-			request.setAttribute("blobstoreService", blobstoreService);
-			request.setAttribute("blobKeys", blobKeys);
+			String after = request.getParameter("after");
+			List<BlobInfo> blobInfos = blobstoreService.listBlobInfos(
+					new BlobInfoQuery(after != null ? new BlobKey(after) : null, PAGE_SIZE));
 			request.setAttribute("blobInfos", blobInfos);
+			if (blobInfos.size() == PAGE_SIZE) {
+				request.setAttribute("nextKey",
+						blobInfos.get(blobInfos.size() - 1).getBlobKey());
+			}
 			requestDispatcher.forward(request, response);
 		}
 	}
 
-	@Override
-	protected long getLastModified(HttpServletRequest request) {
-		String pathInfo = request.getPathInfo();
-		if (pathInfo == null) {
-			pathInfo = "/";
-		}
-		if (!"/create".equals(pathInfo) && pathInfo.length() > 1) {
-			LOGGER.debug("GET Last-Modified {}{}", PATH, pathInfo);
-			BlobKey blobKey = new BlobKey(pathInfo.substring(1));
-			BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
-			return blobInfo.getDateCreated().getTime();
-		}
-		return super.getLastModified(request);
-	}
-
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
@@ -121,26 +125,14 @@ public class UploadServlet extends HttpServlet {
 			pathInfo = "/";
 		}
 		LOGGER.debug("POST {}{}", PATH, pathInfo);
-		Part part = request.getPart("file");
-		if (part != null) {
-			BlobKey blobKey = blobstoreService.createBlob(
-					part.getInputStream(),
-					getFileName(part),
-					part.getContentType());
-			LOGGER.debug("Created blob, generated key [{}]", blobKey);
-			blobKeys.add(blobKey);
-		}
-		response.sendRedirect(
-				request.getServletContext().getContextPath() + "/uploads");
-	}
-
-	private String getFileName(Part part) {
-		for (String cd : part.getHeader("content-disposition").split(";")) {
-			if (cd.trim().startsWith("filename")) {
-				return cd.substring(cd.indexOf('=') + 1).trim().replace("\"", "");
-			}
-		}
-		return null;
+		streamingUploadHandler.handleUpload(request, response, "file",
+				(blobKey, req, res) -> {
+					if (blobKey != null) {
+						LOGGER.debug("Created blob, generated key [{}]", blobKey);
+					}
+					res.sendRedirect(
+							getServletContext().getContextPath() + "/uploads");
+				});
 	}
 
 }
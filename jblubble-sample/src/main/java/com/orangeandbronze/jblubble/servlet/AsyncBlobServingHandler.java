@@ -0,0 +1,374 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+
+/**
+ * {@link BlobServingHandler} that writes the response body using Servlet 3.1
+ * non-blocking I/O. The request is put into asynchronous mode, and the blob
+ * is read on the given {@link Executor executor} (not on a container thread),
+ * a {@link #setChunkSize(int) chunk} at a time, with one
+ * {@link BlobstoreService#serveBlob(BlobKey, java.io.OutputStream, long, long)}
+ * call per chunk. The next chunk is only read when the
+ * {@link ServletOutputStream output stream} {@link ServletOutputStream#isReady()
+ * is ready} (i.e. when the container calls {@link WriteListener#onWritePossible()}).
+ * This way, no thread (container or executor) and no connection is held while
+ * waiting for a slow client, and a small executor can serve many slow clients.
+ * The cost is one read (e.g. one query) per chunk, so use larger chunks for
+ * blobstores where each read is expensive.
+ * <p>
+ * If reading the blob fails before the response is committed, a
+ * <code>500 Internal Server Error</code> is sent instead. Afterwards, the
+ * response cannot be completed normally (it would be shorter than its
+ * <code>Content-Length</code>, and the client would take it as complete). So,
+ * the request is dispatched back to the servlet, and the failure is rethrown
+ * by <code>serveBlob</code> (which the servlet calls again), so that the
+ * container aborts the connection.
+ * </p>
+ * <p>
+ * The servlet (and its filters) must support asynchronous processing.
+ * Otherwise, this falls back to writing on the calling thread.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ */
+public class AsyncBlobServingHandler extends BlobServingHandler {
+
+	public static final int DEFAULT_CHUNK_SIZE = 0x10000; // 64 kilobytes
+
+	/**
+	 * Request attribute that holds the failure of a transfer that was
+	 * dispatched back to the servlet.
+	 */
+	public static final String TRANSFER_FAILURE_ATTRIBUTE =
+			AsyncBlobServingHandler.class.getName() + ".TRANSFER_FAILURE";
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	private final Executor executor;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private long asyncTimeout = 0;
+
+	/**
+	 * @param blobstoreService
+	 *            the blobstore service to serve blobs from
+	 * @param executor
+	 *            the executor that reads the blobs (e.g. from
+	 *            {@link com.orangeandbronze.jblubble.BlobTransferExecutors})
+	 */
+	public AsyncBlobServingHandler(BlobstoreService blobstoreService, Executor executor) {
+		super(blobstoreService);
+		if (executor == null) {
+			throw new IllegalArgumentException(
+					"Executor cannot be null");
+		}
+		this.executor = executor;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets the number of bytes read (and buffered, per transfer) at a time,
+	 * before they are written to the output stream.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException(
+					"Chunk size cannot be zero or less");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public long getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	/**
+	 * Sets the timeout (in milliseconds) of the entire transfer. Zero or less
+	 * means no timeout (the default), in which case clients that go away are
+	 * detected through write errors.
+	 */
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	@Override
+	public void serveBlob(BlobKey blobKey,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		rethrowTransferFailure(request);
+		super.serveBlob(blobKey, request, response);
+	}
+
+	@Override
+	public void serveBlob(BlobInfo blobInfo,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		rethrowTransferFailure(request);
+		super.serveBlob(blobInfo, request, response);
+	}
+
+	/**
+	 * Rethrows the failure of a transfer that was dispatched back to the
+	 * servlet (after the response was committed), so that the container
+	 * aborts the connection.
+	 */
+	protected void rethrowTransferFailure(HttpServletRequest request) throws IOException {
+		Object failure = request.getAttribute(TRANSFER_FAILURE_ATTRIBUTE);
+		if (failure instanceof Throwable) {
+			request.removeAttribute(TRANSFER_FAILURE_ATTRIBUTE);
+			throw new IOException(
+					"Blob transfer failed after response was committed", (Throwable) failure);
+		}
+	}
+
+	/**
+	 * Only when the response would be written on the calling thread anyway.
+	 */
+	@Override
+	protected boolean isSingleFetchApplicable(HttpServletRequest request) {
+		return super.isSingleFetchApplicable(request)
+				&& (!request.isAsyncSupported() || "HEAD".equals(request.getMethod()));
+	}
+
+	@Override
+	protected void writeContent(BlobKey blobKey, List<ContentPart> parts, byte[] trailer,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		if (!request.isAsyncSupported() || "HEAD".equals(request.getMethod())) {
+			LOGGER.debug("Serving [{}] synchronously", blobKey);
+			super.writeContent(blobKey, parts, trailer, request, response);
+			return;
+		}
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(asyncTimeout);
+		Transfer transfer = new Transfer(blobKey, parts, trailer,
+				asyncContext, response, response.getOutputStream());
+		transfer.out.setWriteListener(transfer);
+		transfer.schedule();
+	}
+
+	/**
+	 * Ends a transfer that failed while reading the blob. Sends a
+	 * <code>500 Internal Server Error</code> if the response has not been
+	 * committed yet. Otherwise, dispatches the request back to the servlet
+	 * with the failure (see {@link #rethrowTransferFailure(HttpServletRequest)}),
+	 * instead of completing the response normally.
+	 */
+	protected void abortTransfer(AsyncContext asyncContext,
+			HttpServletResponse response, Throwable failure) throws IOException {
+		if (!response.isCommitted()) {
+			response.reset();
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			asyncContext.complete();
+		} else {
+			asyncContext.getRequest().setAttribute(TRANSFER_FAILURE_ATTRIBUTE, failure);
+			asyncContext.dispatch();
+		}
+	}
+
+	/**
+	 * Reads the content parts a chunk at a time (on the executor), and writes
+	 * each chunk to the output stream, for as long as it is ready. When it is
+	 * not, the transfer returns (instead of waiting), and is run again when
+	 * the container calls {@link #onWritePossible()}.
+	 */
+	private class Transfer implements WriteListener, Runnable {
+
+		private final BlobKey blobKey;
+		private final List<ContentPart> parts;
+		private final byte[] trailer;
+		private final AsyncContext asyncContext;
+		private final HttpServletResponse response;
+		final ServletOutputStream out;
+		private final ChunkBuffer buffer = new ChunkBuffer(getChunkSize());
+		// runs (and callbacks) since the transfer last ran, so that only one
+		// runs at a time, and a callback during a run is not missed
+		private final AtomicInteger signals = new AtomicInteger();
+		private volatile Throwable writeError;
+		// only changed while running (i.e. by one thread at a time)
+		private int partIndex;
+		private long position = -1; // header of the part not written yet
+		private boolean done;
+
+		Transfer(BlobKey blobKey, List<ContentPart> parts, byte[] trailer,
+				AsyncContext asyncContext, HttpServletResponse response,
+				ServletOutputStream out) {
+			this.blobKey = blobKey;
+			this.parts = parts;
+			this.trailer = trailer;
+			this.asyncContext = asyncContext;
+			this.response = response;
+			this.out = out;
+		}
+
+		/**
+		 * Runs the transfer on the executor, unless it is already running (in
+		 * which case it runs once more before it returns).
+		 */
+		void schedule() {
+			if (signals.getAndIncrement() == 0) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					done = true;
+					try {
+						abortTransfer(asyncContext, response, e);
+					} catch (IOException | RuntimeException ex) {
+						LOGGER.error("Error while aborting transfer of blob [" + blobKey + "]", ex);
+					}
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int seen = signals.get();
+			do {
+				if (!done) {
+					transfer();
+				}
+			} while ((seen = signals.addAndGet(-seen)) > 0);
+		}
+
+		private void transfer() {
+			try {
+				while (writeError == null && out.isReady()) {
+					if (buffer.size() == 0 && !fill()) {
+						done = true;
+						asyncContext.complete();
+						return;
+					}
+					try {
+						out.write(buffer.array(), 0, buffer.size());
+					} catch (IOException e) {
+						writeError = e;
+						break;
+					}
+					buffer.reset();
+				}
+			} catch (IOException | RuntimeException e) {
+				if (writeError == null) {
+					done = true;
+					LOGGER.error("Error while serving blob [" + blobKey + "]", e);
+					try {
+						abortTransfer(asyncContext, response, e);
+					} catch (IOException | RuntimeException ex) {
+						LOGGER.error("Error while aborting transfer of blob [" + blobKey + "]", ex);
+					}
+					return;
+				}
+			}
+			if (writeError != null) {
+				done = true;
+				LOGGER.debug("Error while writing blob [{}]: {}", blobKey, writeError.toString());
+				asyncContext.complete();
+			}
+		}
+
+		/**
+		 * Reads the next chunk (part headers, byte ranges and trailer) into
+		 * the buffer.
+		 *
+		 * @return <code>false</code> if there is nothing left to read
+		 */
+		private boolean fill() throws IOException {
+			while (buffer.size() < getChunkSize() && partIndex <= parts.size()) {
+				if (partIndex == parts.size()) {
+					if (trailer != null) {
+						buffer.write(trailer);
+					}
+					partIndex++;
+					break;
+				}
+				ContentPart part = parts.get(partIndex);
+				ByteRange range = part.getRange();
+				if (position < 0) {
+					if (part.getHeader() != null) {
+						buffer.write(part.getHeader());
+					}
+					position = range.getStart();
+				}
+				long end = Math.min(range.getEnd(),
+						position + getChunkSize() - buffer.size() - 1);
+				if (position <= end) {
+					int size = buffer.size();
+					blobstoreService.serveBlob(blobKey, buffer, position, end);
+					if (buffer.size() - size != end - position + 1) {
+						throw new IOException("Blob is shorter than expected: " + blobKey);
+					}
+					position = end + 1;
+				}
+				if (position > range.getEnd()) {
+					partIndex++;
+					position = -1;
+				}
+			}
+			return buffer.size() > 0;
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			schedule();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			writeError = t;
+			schedule();
+		}
+
+	}
+
+	/**
+	 * Gives access to the buffered bytes, so that they are written without
+	 * being copied first.
+	 */
+	private static class ChunkBuffer extends ByteArrayOutputStream {
+
+		ChunkBuffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+	}
+
+}
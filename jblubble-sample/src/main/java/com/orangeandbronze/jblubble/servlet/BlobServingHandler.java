@@ -0,0 +1,430 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+
+/**
+ * Serves blobs over HTTP with support for byte ranges. Only the requested
+ * byte ranges are read from the {@link BlobstoreService blobstore service}
+ * (via {@link BlobstoreService#serveBlob(BlobKey, java.io.OutputStream, long, long)}).
+ * <p>
+ * A single range results in a <code>206 Partial Content</code> response with
+ * a <code>Content-Range</code> header. Several ranges result in a
+ * <code>multipart/byteranges</code> response. Overlapping and adjacent ranges
+ * are coalesced first. Ranges are only honored if the <code>If-Range</code>
+ * header (if any) still matches the blob.
+ * </p>
+ * <p>
+ * Since blobs are immutable, a strong <code>ETag</code> is derived from the
+ * stored {@link BlobInfo#getMd5Hash() MD5 hash}, and conditional requests
+ * (<code>If-None-Match</code> and <code>If-Modified-Since</code>) are
+ * answered with <code>304 Not Modified</code> using only the metadata that was
+ * already retrieved. By default, responses are marked as cacheable forever.
+ * </p>
+ * <p>
+ * This can be used from a plain servlet, or from a Spring MVC controller
+ * that has access to the {@link HttpServletRequest} and
+ * {@link HttpServletResponse}.
+ * </p>
+ *
+ * @author Lorenzo Dee
+ */
+public class BlobServingHandler {
+
+	public static final int DEFAULT_MAX_RANGES = 16;
+	public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	public static final String DEFAULT_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	private static final String CRLF = "\r\n";
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	protected final BlobstoreService blobstoreService;
+	private int maxRanges = DEFAULT_MAX_RANGES;
+	private String cacheControl = DEFAULT_CACHE_CONTROL;
+
+	public BlobServingHandler(BlobstoreService blobstoreService) {
+		if (blobstoreService == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		this.blobstoreService = blobstoreService;
+	}
+
+	public int getMaxRanges() {
+		return maxRanges;
+	}
+
+	/**
+	 * Sets the maximum number of ranges honored in a single request (after
+	 * coalescing). Requests with more ranges are served the entire blob.
+	 */
+	public void setMaxRanges(int maxRanges) {
+		if (maxRanges <= 0) {
+			throw new IllegalArgumentException(
+					"Max ranges cannot be zero or less");
+		}
+		this.maxRanges = maxRanges;
+	}
+
+	public String getCacheControl() {
+		return cacheControl;
+	}
+
+	/**
+	 * Sets the <code>Cache-Control</code> header value of served blobs, or
+	 * <code>null</code> to not set one. This is not used when the caller has
+	 * already set a <code>Cache-Control</code> header on the response (e.g.
+	 * when the URL does not always refer to the same blob).
+	 */
+	public void setCacheControl(String cacheControl) {
+		this.cacheControl = cacheControl;
+	}
+
+	/**
+	 * Serves the blob with the given key. Responds with
+	 * <code>404 Not Found</code> if no such blob exists.
+	 * <p>
+	 * When the {@link #isSingleFetchApplicable(HttpServletRequest) entire blob
+	 * is requested}, its metadata and contents are retrieved with one call
+	 * (via
+	 * {@link BlobstoreService#serveBlob(BlobKey, com.orangeandbronze.jblubble.BlobInfoCallback, java.io.OutputStream)}).
+	 * </p>
+	 */
+	public void serveBlob(BlobKey blobKey,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		if (isSingleFetchApplicable(request)) {
+			blobstoreService.serveBlob(blobKey, (blobInfo) -> {
+				if (blobInfo == null) {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+					return false;
+				}
+				if (!prepareResponse(blobInfo, request, response)) {
+					return false;
+				}
+				response.setContentType(getContentType(blobInfo));
+				response.setContentLengthLong(blobInfo.getSize());
+				return true;
+			}, response.getOutputStream());
+			return;
+		}
+		BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+		if (blobInfo == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		serveBlob(blobInfo, request, response);
+	}
+
+	/**
+	 * Returns <code>true</code> if the blob's metadata and contents can be
+	 * retrieved with one call, and written on the calling thread. This is the
+	 * case when no byte ranges are requested.
+	 */
+	protected boolean isSingleFetchApplicable(HttpServletRequest request) {
+		return request.getHeader("Range") == null;
+	}
+
+	/**
+	 * Serves the blob described by the given metadata. Use this when the
+	 * {@link BlobInfo} has already been retrieved, to avoid retrieving it
+	 * again.
+	 */
+	public void serveBlob(BlobInfo blobInfo,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		if (!prepareResponse(blobInfo, request, response)) {
+			return;
+		}
+		long length = blobInfo.getSize();
+		List<ByteRange> ranges = null;
+		if (isRangeApplicable(blobInfo, request)) {
+			ranges = ByteRange.parseRanges(request.getHeader("Range"), length);
+			if (ranges != null) {
+				// so that each byte is read (and sent) once
+				ranges = ByteRange.coalesceRanges(ranges);
+			}
+			if (ranges != null && ranges.size() > getMaxRanges()) {
+				LOGGER.debug("Ignoring {} ranges for blob [{}]",
+						ranges.size(), blobInfo.getBlobKey());
+				ranges = null;
+			}
+		}
+		if (ranges == null) {
+			serveEntireBlob(blobInfo, request, response);
+		} else if (ranges.isEmpty()) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.sendError(
+					HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		} else if (ranges.size() == 1) {
+			serveSingleRange(blobInfo, ranges.get(0), request, response);
+		} else {
+			serveMultipleRanges(blobInfo, ranges, request, response);
+		}
+	}
+
+	/**
+	 * Sets the headers that apply to every response for the given blob (i.e.
+	 * validators and caching), and answers conditional requests.
+	 *
+	 * @return <code>false</code> if the response is complete (e.g.
+	 *         <code>304 Not Modified</code>)
+	 */
+	protected boolean prepareResponse(BlobInfo blobInfo,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		String eTag = getETag(blobInfo);
+		response.setHeader("Accept-Ranges", "bytes");
+		if (eTag != null) {
+			response.setHeader("ETag", eTag);
+		}
+		if (blobInfo.getDateCreated() != null) {
+			response.setDateHeader(
+					"Last-Modified", blobInfo.getDateCreated().getTime());
+		}
+		if (getCacheControl() != null && !response.containsHeader("Cache-Control")) {
+			response.setHeader("Cache-Control", getCacheControl());
+		}
+		if (isNotModified(blobInfo, request)) {
+			LOGGER.debug("Not modified [{}]", blobInfo.getBlobKey());
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a strong entity tag for the given blob, or <code>null</code> if
+	 * it has no MD5 hash. Since blobs are immutable, the hash of the contents
+	 * is a suitable validator.
+	 */
+	protected String getETag(BlobInfo blobInfo) {
+		String md5Hash = blobInfo.getMd5Hash();
+		return md5Hash != null ? "\"" + md5Hash + "\"" : null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the client's cached copy is still valid.
+	 * <code>If-None-Match</code> takes precedence over
+	 * <code>If-Modified-Since</code>, which is only evaluated when the former
+	 * is absent.
+	 */
+	protected boolean isNotModified(BlobInfo blobInfo, HttpServletRequest request) {
+		String method = request.getMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			return false;
+		}
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			String eTag = getETag(blobInfo);
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if ("*".equals(candidate)) {
+					return true;
+				}
+				// weak comparison
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2);
+				}
+				if (candidate.equals(eTag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (blobInfo.getDateCreated() == null) {
+			return false;
+		}
+		try {
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			// HTTP dates have a resolution of one second
+			return ifModifiedSince != -1
+					&& blobInfo.getDateCreated().getTime() / 1000 <= ifModifiedSince / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if a <code>Range</code> header should be
+	 * honored. This is the case when there is no <code>If-Range</code>
+	 * header, or when it matches the blob's (strong) entity tag or last
+	 * modified date.
+	 */
+	protected boolean isRangeApplicable(BlobInfo blobInfo, HttpServletRequest request) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("W/")) {
+			// weak entity tags cannot be used for ranges
+			return false;
+		}
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals(getETag(blobInfo));
+		}
+		if (blobInfo.getDateCreated() == null) {
+			return false;
+		}
+		try {
+			long ifRangeDate = request.getDateHeader("If-Range");
+			// HTTP dates have a resolution of one second
+			return ifRangeDate / 1000 == blobInfo.getDateCreated().getTime() / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	protected String getContentType(BlobInfo blobInfo) {
+		return blobInfo.getContentType() != null
+				? blobInfo.getContentType() : DEFAULT_CONTENT_TYPE;
+	}
+
+	protected void serveEntireBlob(BlobInfo blobInfo,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		response.setContentType(getContentType(blobInfo));
+		response.setContentLengthLong(blobInfo.getSize());
+		List<ContentPart> parts = new ArrayList<>(1);
+		if (blobInfo.getSize() > 0) {
+			parts.add(new ContentPart(
+					null, new ByteRange(0, blobInfo.getSize() - 1)));
+		}
+		writeContent(blobInfo.getBlobKey(), parts, null, request, response);
+	}
+
+	protected void serveSingleRange(BlobInfo blobInfo, ByteRange range,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType(getContentType(blobInfo));
+		response.setHeader("Content-Range", range.toContentRange(blobInfo.getSize()));
+		response.setContentLengthLong(range.getLength());
+		writeContent(blobInfo.getBlobKey(),
+				Collections.singletonList(new ContentPart(null, range)),
+				null, request, response);
+	}
+
+	protected void serveMultipleRanges(BlobInfo blobInfo, List<ByteRange> ranges,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		String boundary = generateBoundary();
+		String contentType = getContentType(blobInfo);
+		long length = blobInfo.getSize();
+		// Compute the length of the entire multipart body up front
+		long contentLength = 0;
+		List<ContentPart> parts = new ArrayList<>(ranges.size());
+		for (ByteRange range : ranges) {
+			ContentPart part = new ContentPart(
+					partHeader(boundary, contentType, range, length), range);
+			contentLength += part.getHeader().length;
+			contentLength += range.getLength();
+			parts.add(part);
+		}
+		byte[] closingBoundary = closingBoundary(boundary);
+		contentLength += closingBoundary.length;
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(contentLength);
+		writeContent(blobInfo.getBlobKey(), parts, closingBoundary, request, response);
+	}
+
+	/**
+	 * Writes the response body. Each part's header (if any) is written
+	 * before its byte range of the blob, and the trailer (if any) is written
+	 * last. Status and headers have already been set at this point.
+	 * <p>
+	 * This implementation writes everything on the calling thread.
+	 * </p>
+	 */
+	protected void writeContent(BlobKey blobKey, List<ContentPart> parts, byte[] trailer,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, BlobstoreException {
+		ServletOutputStream out = response.getOutputStream();
+		for (ContentPart part : parts) {
+			if (part.getHeader() != null) {
+				out.write(part.getHeader());
+			}
+			ByteRange range = part.getRange();
+			blobstoreService.serveBlob(blobKey, out, range.getStart(), range.getEnd());
+		}
+		if (trailer != null) {
+			out.write(trailer);
+		}
+	}
+
+	protected String generateBoundary() {
+		return UUID.randomUUID().toString().replace("-", "");
+	}
+
+	private static byte[] partHeader(
+			String boundary, String contentType, ByteRange range, long length) {
+		return (CRLF + "--" + boundary + CRLF
+				+ "Content-Type: " + contentType + CRLF
+				+ "Content-Range: " + range.toContentRange(length) + CRLF
+				+ CRLF).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] closingBoundary(String boundary) {
+		return (CRLF + "--" + boundary + "--" + CRLF)
+				.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * A part of the response body: a byte range of the blob, optionally
+	 * preceded by a header (as in <code>multipart/byteranges</code>).
+	 */
+	protected static class ContentPart {
+
+		private final byte[] header;
+		private final ByteRange range;
+
+		public ContentPart(byte[] header, ByteRange range) {
+			this.header = header;
+			this.range = range;
+		}
+
+		public byte[] getHeader() {
+			return header;
+		}
+
+		public ByteRange getRange() {
+			return range;
+		}
+
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands over bytes from a writer to a reader thread through a queue of
+ * chunks. The reader blocks when the queue is empty. The writer never
+ * blocks, so that it can write from a servlet container's non-blocking I/O
+ * callbacks. Instead, it stops writing when the pipe {@link #isFull() is
+ * full}, and registers a {@link #whenNotFull(Runnable) call-back} to resume
+ * once the reader has made room.
+ * <p>
+ * Unlike {@link java.io.PipedInputStream}, the writer does not have to be a
+ * single (live) thread. If the writer {@link #fail(Throwable) fails}, the
+ * reader gets an {@link IOException} (instead of a normal end of stream), so
+ * that partially received contents are never mistaken for complete ones. If
+ * the reader goes away first, whatever is written afterwards is discarded
+ * (the reader reports its own failure).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ */
+public class BoundedPipe {
+
+	private static final byte[] END_OF_STREAM = new byte[0];
+
+	private final int capacity;
+	// not a monitor, so that virtual threads are not pinned while waiting
+	private final Lock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	// guarded by lock
+	private final Deque<byte[]> queue = new ArrayDeque<>();
+	private Runnable notFullCallback;
+	private Throwable failure;
+	private boolean readerClosed;
+	private final InputStream inputStream = new PipeInputStream();
+
+	/**
+	 * @param capacity
+	 *            the number of queued chunks at which the pipe is full
+	 */
+	public BoundedPipe(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException(
+					"Capacity cannot be zero or less");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Copies and queues the given bytes, even if the pipe is full (i.e. a
+	 * writer that checks {@link #isFull()} before each read of its own
+	 * input queues at most one input buffer more than the capacity).
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (len > 0) {
+			put(Arrays.copyOfRange(b, off, off + len));
+		}
+	}
+
+	/**
+	 * Signals the (normal) end of the stream to the reader.
+	 */
+	public void close() {
+		put(END_OF_STREAM);
+	}
+
+	/**
+	 * Signals an abnormal end of the stream. The reader will get an
+	 * {@link IOException} instead of the end of the stream.
+	 */
+	public void fail(Throwable cause) {
+		lock.lock();
+		try {
+			failure = cause;
+			queue.clear();
+			queue.add(END_OF_STREAM);
+			notFullCallback = null;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the pipe has as many queued chunks as its
+	 * capacity (or more), and the reader has not gone away.
+	 */
+	public boolean isFull() {
+		lock.lock();
+		try {
+			return !readerClosed && queue.size() >= capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Registers the given call-back if the pipe {@link #isFull() is full}.
+	 * It is then called once (on the reader's thread) when the reader takes
+	 * a chunk and there is room again, or when the reader goes away.
+	 *
+	 * @return <code>true</code> if the pipe is full (and the call-back was
+	 *         registered), or <code>false</code> if there is room (and the
+	 *         call-back is not called)
+	 */
+	public boolean whenNotFull(Runnable callback) {
+		lock.lock();
+		try {
+			if (readerClosed || queue.size() < capacity) {
+				return false;
+			}
+			notFullCallback = callback;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	private void put(byte[] chunk) {
+		lock.lock();
+		try {
+			if (readerClosed || failure != null) {
+				return;
+			}
+			queue.add(chunk);
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private class PipeInputStream extends InputStream {
+
+		private byte[] chunk;
+		private int position;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (chunk == null || position == chunk.length) {
+				if (chunk == END_OF_STREAM) {
+					return -1;
+				}
+				chunk = take();
+				position = 0;
+				if (chunk == END_OF_STREAM) {
+					lock.lock();
+					try {
+						if (failure != null) {
+							throw new IOException("Writer failed", failure);
+						}
+					} finally {
+						lock.unlock();
+					}
+					return -1;
+				}
+			}
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		private byte[] take() throws IOException {
+			byte[] taken;
+			Runnable callback = null;
+			lock.lock();
+			try {
+				while (queue.isEmpty()) {
+					notEmpty.await();
+				}
+				taken = queue.poll();
+				if (notFullCallback != null && queue.size() < capacity) {
+					callback = notFullCallback;
+					notFullCallback = null;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+			if (callback != null) {
+				callback.run();
+			}
+			return taken;
+		}
+
+		@Override
+		public void close() throws IOException {
+			Runnable callback;
+			lock.lock();
+			try {
+				readerClosed = true;
+				queue.clear();
+				callback = notFullCallback;
+				notFullCallback = null;
+			} finally {
+				lock.unlock();
+			}
+			// so that the writer discards the rest
+			if (callback != null) {
+				callback.run();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A byte range of a blob as requested by an HTTP <code>Range</code> header.
+ * Both start and end indices are inclusive (as in
+ * <code>bytes=0-499</code> for the first 500 bytes).
+ *
+ * @author Lorenzo Dee
+ */
+public final class ByteRange {
+
+	private static final String BYTES_UNIT = "bytes=";
+
+	private final long start;
+	private final long end;
+
+	public ByteRange(long start, long end) {
+		if (start < 0 || end < start) {
+			throw new IllegalArgumentException(
+					"Invalid byte range: " + start + "-" + end);
+		}
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Returns the value of a <code>Content-Range</code> header for this byte
+	 * range (e.g. <code>bytes 0-499/1234</code>).
+	 *
+	 * @param totalLength
+	 *            the total length of the blob
+	 * @return the value of a <code>Content-Range</code> header
+	 */
+	public String toContentRange(long totalLength) {
+		return "bytes " + start + "-" + end + "/" + totalLength;
+	}
+
+	/**
+	 * Parses the value of an HTTP <code>Range</code> header against a blob of
+	 * the given length. Open-ended (<code>500-</code>) and suffix
+	 * (<code>-500</code>) ranges are resolved, and ranges that extend past the
+	 * end of the blob are truncated.
+	 *
+	 * @param rangeHeader
+	 *            the value of the <code>Range</code> header
+	 * @param length
+	 *            the total length of the blob
+	 * @return the satisfiable byte ranges (empty if none are satisfiable), or
+	 *         <code>null</code> if the header is missing or syntactically
+	 *         invalid (in which case it should be ignored)
+	 */
+	public static List<ByteRange> parseRanges(String rangeHeader, long length) {
+		if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT)) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<>();
+		for (String spec : rangeHeader.substring(BYTES_UNIT.length()).split(",")) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long start, end;
+			try {
+				if (dash == 0) {
+					// suffix range, i.e. the last N bytes
+					long suffixLength = Long.parseLong(spec.substring(1));
+					if (suffixLength <= 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffixLength);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						end = length - 1;
+					} else {
+						end = Long.parseLong(spec.substring(dash + 1));
+						if (end < start) {
+							// last-byte-pos less than first-byte-pos
+							return null;
+						}
+						end = Math.min(end, length - 1);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (start < 0) {
+				return null;
+			}
+			if (start >= length || end < start) {
+				// not satisfiable, but other ranges might be
+				continue;
+			}
+			ranges.add(new ByteRange(start, end));
+		}
+		return Collections.unmodifiableList(ranges);
+	}
+
+	/**
+	 * Coalesces ranges that overlap or are adjacent (e.g.
+	 * <code>0-499</code> and <code>500-999</code>) into one, as allowed by
+	 * RFC 7233 (section 4.1), regardless of the order in which they were
+	 * requested. The coalesced ranges are in ascending order.
+	 *
+	 * @param ranges
+	 *            the byte ranges (e.g. from
+	 *            {@link #parseRanges(String, long)})
+	 * @return the coalesced byte ranges
+	 */
+	public static List<ByteRange> coalesceRanges(List<ByteRange> ranges) {
+		if (ranges.size() <= 1) {
+			return ranges;
+		}
+		List<ByteRange> sortedRanges = new ArrayList<>(ranges);
+		sortedRanges.sort((r1, r2) -> Long.compare(r1.start, r2.start));
+		List<ByteRange> coalescedRanges = new ArrayList<>(sortedRanges.size());
+		ByteRange current = sortedRanges.get(0);
+		for (ByteRange range : sortedRanges.subList(1, sortedRanges.size())) {
+			if (range.start <= current.end + 1) {
+				if (range.end > current.end) {
+					current = new ByteRange(current.start, range.end);
+				}
+			} else {
+				coalescedRanges.add(current);
+				current = range;
+			}
+		}
+		coalescedRanges.add(current);
+		return Collections.unmodifiableList(coalescedRanges);
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (int) (end ^ (end >>> 32));
+		result = prime * result + (int) (start ^ (start >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ByteRange other = (ByteRange) obj;
+		if (end != other.end)
+			return false;
+		if (start != other.start)
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return start + "-" + end;
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Push-style parser of <code>multipart/form-data</code> (RFC 2046) bodies.
+ * Bytes are {@link #parse(byte[], int, int) fed} as they arrive, and part
+ * contents are passed on to a {@link Listener listener} without buffering
+ * entire parts. At most a delimiter's worth of bytes (or the headers of a
+ * part) is held back between calls.
+ *
+ * @author Lorenzo Dee
+ */
+public class MultipartStreamParser {
+
+	public static final int DEFAULT_MAX_HEADER_SIZE = 0x2000; // 8 kilobytes
+
+	/**
+	 * Receives the parts of a multipart body as they are parsed.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the headers of a part have been parsed.
+		 *
+		 * @param headers
+		 *            the part headers, with lower-case names
+		 */
+		void startPart(Map<String, String> headers) throws IOException;
+
+		/**
+		 * Called with (a portion of) the contents of the current part. The
+		 * given array is reused after this method returns.
+		 */
+		void partData(byte[] b, int off, int len) throws IOException;
+
+		void endPart() throws IOException;
+
+	}
+
+	private enum State { PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE }
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] CRLF_CRLF = { '\r', '\n', '\r', '\n' };
+
+	private final Listener listener;
+	private final byte[] delimiter;
+	private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+
+	private State state = State.PREAMBLE;
+	private byte[] buffer;
+	private int start;
+	private int end;
+
+	public MultipartStreamParser(String boundary, Listener listener) {
+		if (boundary == null || boundary.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Boundary cannot be null or empty");
+		}
+		if (listener == null) {
+			throw new IllegalArgumentException(
+					"Listener cannot be null");
+		}
+		this.listener = listener;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buffer = new byte[Math.max(0x1000, delimiter.length * 2)];
+		// The first delimiter need not be preceded by CRLF
+		buffer[end++] = '\r';
+		buffer[end++] = '\n';
+	}
+
+	/**
+	 * Returns the boundary parameter of a <code>multipart/*</code> content
+	 * type, or <code>null</code> if there is none.
+	 */
+	public static String getBoundary(String contentType) {
+		if (contentType == null
+				|| !contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/")) {
+			return null;
+		}
+		return getParameter(contentType, "boundary");
+	}
+
+	/**
+	 * Returns a parameter of a header value (e.g. <code>filename</code> of
+	 * <code>Content-Disposition: form-data; name="file"; filename="a.png"</code>),
+	 * or <code>null</code> if there is no such parameter.
+	 */
+	public static String getParameter(String headerValue, String name) {
+		if (headerValue == null) {
+			return null;
+		}
+		for (String param : headerValue.split(";")) {
+			param = param.trim();
+			int eq = param.indexOf('=');
+			if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+				String value = param.substring(eq + 1).trim();
+				if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		if (maxHeaderSize <= 0) {
+			throw new IllegalArgumentException(
+					"Max header size cannot be zero or less");
+		}
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	/**
+	 * Returns <code>true</code> if the closing delimiter has been parsed.
+	 */
+	public boolean isFinished() {
+		return state == State.EPILOGUE;
+	}
+
+	/**
+	 * Parses the next bytes of the multipart body.
+	 *
+	 * @throws IOException
+	 *             if the listener throws one, or if the body is malformed
+	 */
+	public void parse(byte[] b, int off, int len) throws IOException {
+		if (state == State.EPILOGUE) {
+			return; // ignore epilogue
+		}
+		append(b, off, len);
+		boolean progress = true;
+		while (progress) {
+			switch (state) {
+			case PREAMBLE:
+				progress = parsePreamble();
+				break;
+			case DELIMITER:
+				progress = parseDelimiterSuffix();
+				break;
+			case HEADERS:
+				progress = parseHeaders();
+				break;
+			case BODY:
+				progress = parseBody();
+				break;
+			default:
+				start = end;
+				progress = false;
+			}
+		}
+	}
+
+	/**
+	 * Signals the end of the multipart body.
+	 *
+	 * @throws IOException
+	 *             if the closing delimiter was not reached
+	 */
+	public void finish() throws IOException {
+		if (state != State.EPILOGUE) {
+			throw new IOException("Unexpected end of multipart body");
+		}
+	}
+
+	private boolean parsePreamble() {
+		int i = indexOf(delimiter);
+		if (i < 0) {
+			// discard, but keep what could be the start of a delimiter
+			start = Math.max(start, end - (delimiter.length - 1));
+			return false;
+		}
+		start = i + delimiter.length;
+		state = State.DELIMITER;
+		return true;
+	}
+
+	private boolean parseDelimiterSuffix() throws IOException {
+		if (end - start < 2) {
+			return false;
+		}
+		if (buffer[start] == '-' && buffer[start + 1] == '-') {
+			state = State.EPILOGUE;
+			start = end;
+			return false;
+		}
+		// skip transport padding (if any) up to the CRLF
+		int i = indexOf(CRLF);
+		if (i < 0) {
+			checkHeaderSize();
+			return false;
+		}
+		start = i + CRLF.length;
+		state = State.HEADERS;
+		return true;
+	}
+
+	private boolean parseHeaders() throws IOException {
+		if (end - start < 2) {
+			return false;
+		}
+		Map<String, String> headers = new LinkedHashMap<>();
+		if (buffer[start] == '\r' && buffer[start + 1] == '\n') {
+			// no headers
+			start += 2;
+		} else {
+			int i = indexOf(CRLF_CRLF);
+			if (i < 0) {
+				checkHeaderSize();
+				return false;
+			}
+			String lines = new String(buffer, start, i - start, StandardCharsets.UTF_8);
+			for (String line : lines.split("\r\n")) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					headers.put(
+							line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+							line.substring(colon + 1).trim());
+				}
+			}
+			start = i + CRLF_CRLF.length;
+		}
+		listener.startPart(headers);
+		state = State.BODY;
+		return true;
+	}
+
+	private boolean parseBody() throws IOException {
+		int i = indexOf(delimiter);
+		if (i < 0) {
+			// pass on everything that cannot be the start of a delimiter
+			int safeEnd = end - (delimiter.length - 1);
+			if (safeEnd > start) {
+				listener.partData(buffer, start, safeEnd - start);
+				start = safeEnd;
+			}
+			return false;
+		}
+		if (i > start) {
+			listener.partData(buffer, start, i - start);
+		}
+		start = i + delimiter.length;
+		listener.endPart();
+		state = State.DELIMITER;
+		return true;
+	}
+
+	private void checkHeaderSize() throws IOException {
+		if (end - start > maxHeaderSize) {
+			throw new IOException("Multipart headers exceed " + maxHeaderSize + " bytes");
+		}
+	}
+
+	private void append(byte[] b, int off, int len) {
+		if (end + len > buffer.length) {
+			int remaining = end - start;
+			byte[] target = buffer;
+			if (remaining + len > buffer.length) {
+				target = new byte[Math.max(buffer.length * 2, remaining + len)];
+			}
+			System.arraycopy(buffer, start, target, 0, remaining);
+			buffer = target;
+			start = 0;
+			end = remaining;
+		}
+		System.arraycopy(b, off, buffer, end, len);
+		end += len;
+	}
+
+	private int indexOf(byte[] pattern) {
+		outer:
+		for (int i = start; i <= end - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (buffer[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.orangeandbronze.jblubble.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+
+/**
+ * Handles <code>multipart/form-data</code> uploads without spooling them to
+ * disk or memory first (as {@link javax.servlet.annotation.MultipartConfig}
+ * does). The request body is read with Servlet 3.1 non-blocking I/O
+ * ({@link ReadListener}) and parsed as it arrives. The contents of the file
+ * part are handed over through a {@link BoundedPipe bounded pipe} to
+ * {@link BlobstoreService#createBlob(BlobstoreWriteCallback, String, String)},
+ * which runs on the given {@link Executor executor}.
+ * <p>
+ * If the pipe is full (i.e. the blobstore is slower than the client),
+ * reading the request body stops, and resumes (on the thread that creates
+ * the blob) once there is room. So, no container thread is held while
+ * waiting for either the client or the blobstore.
+ * </p>
+ * <p>
+ * If the request fails (e.g. a truncated body), it is answered with a
+ * <code>400 Bad Request</code>, even though the blobstore fails too (since it
+ * is given incomplete contents). Failures of the blobstore alone are
+ * answered with a <code>500 Internal Server Error</code>.
+ * </p>
+ * <p>
+ * Only the first part with the given name is stored. Other parts are
+ * skipped. The servlet must support asynchronous processing, and must
+ * <em>not</em> be configured for multipart (otherwise, the container may
+ * have already consumed the request body).
+ * </p>
+ *
+ * @author Lorenzo Dee
+ */
+public class StreamingUploadHandler {
+
+	public static final int DEFAULT_BUFFER_SIZE = 0x2000; // 8 kilobytes
+	public static final int DEFAULT_PIPE_CAPACITY = 16; // chunks
+
+	/**
+	 * Call-back interface to write the response once the upload has been
+	 * stored. This is not called on a container thread, so the servlet
+	 * context should not be looked up via the request.
+	 */
+	@FunctionalInterface
+	public interface UploadCallback {
+
+		/**
+		 * @param blobKey
+		 *            the key of the stored blob, or <code>null</code> if the
+		 *            request had no such part
+		 */
+		void uploadCompleted(BlobKey blobKey,
+				HttpServletRequest request, HttpServletResponse response)
+				throws IOException;
+
+	}
+
+	private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+	protected final BlobstoreService blobstoreService;
+	private final Executor executor;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private int pipeCapacity = DEFAULT_PIPE_CAPACITY;
+
+	public StreamingUploadHandler(BlobstoreService blobstoreService, Executor executor) {
+		if (blobstoreService == null) {
+			throw new IllegalArgumentException(
+					"Blobstore service cannot be null");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException(
+					"Executor cannot be null");
+		}
+		this.blobstoreService = blobstoreService;
+		this.executor = executor;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException(
+					"Buffer size cannot be zero or less");
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	public int getPipeCapacity() {
+		return pipeCapacity;
+	}
+
+	/**
+	 * Sets the number of chunks (of up to {@link #getBufferSize() buffer size}
+	 * bytes each) that can be in transit between the request body and the
+	 * blobstore.
+	 */
+	public void setPipeCapacity(int pipeCapacity) {
+		if (pipeCapacity <= 0) {
+			throw new IllegalArgumentException(
+					"Pipe capacity cannot be zero or less");
+		}
+		this.pipeCapacity = pipeCapacity;
+	}
+
+	/**
+	 * Starts reading the upload asynchronously. This returns immediately. The
+	 * call-back is invoked (on some other thread) once the blob has been
+	 * stored. If the upload fails, an error status is sent instead.
+	 *
+	 * @param partName
+	 *            the name of the (file) part to store
+	 */
+	public void handleUpload(HttpServletRequest request, HttpServletResponse response,
+			String partName, UploadCallback callback) throws IOException {
+		String boundary = MultipartStreamParser.getBoundary(request.getContentType());
+		if (boundary == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					"Expecting a multipart request");
+			return;
+		}
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0);
+		StreamingUpload upload = new StreamingUpload(
+				asyncContext, request, response, partName, callback);
+		upload.parser = new MultipartStreamParser(boundary, upload);
+		request.getInputStream().setReadListener(upload);
+	}
+
+	private class StreamingUpload implements ReadListener, MultipartStreamParser.Listener {
+
+		private final AsyncContext asyncContext;
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private final ServletInputStream in;
+		private final String partName;
+		private final UploadCallback callback;
+		private final byte[] buffer = new byte[getBufferSize()];
+		private final CompletableFuture<BlobKey> blobKeyFuture = new CompletableFuture<>();
+		private final CompletableFuture<Void> allDataRead = new CompletableFuture<>();
+		private final AtomicBoolean completed = new AtomicBoolean();
+
+		MultipartStreamParser parser;
+		private volatile BoundedPipe pipe;
+		private volatile boolean inFilePart;
+		private volatile boolean failed;
+
+		StreamingUpload(AsyncContext asyncContext,
+				HttpServletRequest request, HttpServletResponse response,
+				String partName, UploadCallback callback) throws IOException {
+			this.asyncContext = asyncContext;
+			this.request = request;
+			this.response = response;
+			this.in = request.getInputStream();
+			this.partName = partName;
+			this.callback = callback;
+			CompletableFuture.allOf(blobKeyFuture, allDataRead)
+					.whenComplete((v, t) -> complete());
+		}
+
+		// ReadListener
+
+		@Override
+		public void onDataAvailable() throws IOException {
+			readAvailable();
+		}
+
+		/**
+		 * Reads (and parses) the request body for as long as it is ready, and
+		 * the pipe is not full. If it is full, this is called again (by the
+		 * pipe's reader) once there is room. Since the request body was still
+		 * ready, the container does not call {@link #onDataAvailable()} in
+		 * the meantime.
+		 */
+		private void readAvailable() {
+			try {
+				int len;
+				while (!pausedUntilNotFull() && in.isReady() && (len = in.read(buffer)) != -1) {
+					if (failed) {
+						continue; // discard the rest
+					}
+					try {
+						parser.parse(buffer, 0, len);
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		private boolean pausedUntilNotFull() {
+			return !failed && inFilePart && pipe.whenNotFull(this::readAvailable);
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			if (failed) {
+				return;
+			}
+			try {
+				parser.finish();
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			if (pipe == null) {
+				// no such part
+				blobKeyFuture.complete(null);
+			}
+			allDataRead.complete(null);
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			fail(t);
+		}
+
+		// MultipartStreamParser.Listener
+
+		@Override
+		public void startPart(Map<String, String> headers) throws IOException {
+			String contentDisposition = headers.get("content-disposition");
+			inFilePart = pipe == null && partName.equals(
+					MultipartStreamParser.getParameter(contentDisposition, "name"));
+			if (inFilePart) {
+				pipe = new BoundedPipe(getPipeCapacity());
+				createBlob(pipe.getInputStream(),
+						MultipartStreamParser.getParameter(contentDisposition, "filename"),
+						headers.get("content-type"));
+			}
+		}
+
+		@Override
+		public void partData(byte[] b, int off, int len) throws IOException {
+			if (inFilePart) {
+				// discarded if the blobstore has failed (which it reports)
+				pipe.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void endPart() throws IOException {
+			if (inFilePart) {
+				pipe.close();
+				inFilePart = false;
+			}
+		}
+
+		private void createBlob(InputStream pipeIn, String name, String contentType) {
+			executor.execute(() -> {
+				try {
+					BlobKey blobKey = blobstoreService.createBlob((out) -> {
+						byte[] b = new byte[getBufferSize()];
+						int len;
+						while ((len = pipeIn.read(b)) != -1) {
+							out.write(b, 0, len);
+						}
+						return -1L;
+					}, name, contentType);
+					LOGGER.debug("Created blob [{}] from streaming upload", blobKey);
+					blobKeyFuture.complete(blobKey);
+				} catch (IOException | RuntimeException e) {
+					blobKeyFuture.completeExceptionally(e);
+				} finally {
+					try {
+						pipeIn.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			});
+		}
+
+		private void fail(Throwable t) {
+			if (failed) {
+				return;
+			}
+			failed = true;
+			if (pipe != null) {
+				pipe.fail(t);
+			} else {
+				blobKeyFuture.complete(null);
+			}
+			allDataRead.completeExceptionally(t);
+		}
+
+		private void complete() {
+			if (!completed.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				Throwable requestFailure = getFailure(allDataRead);
+				Throwable blobstoreFailure = getFailure(blobKeyFuture);
+				if (requestFailure == null && blobstoreFailure == null) {
+					callback.uploadCompleted(blobKeyFuture.join(), request, response);
+				} else {
+					if (blobstoreFailure == null) {
+						BlobKey blobKey = blobKeyFuture.join();
+						if (blobKey != null) {
+							// the request failed after the blob was stored
+							blobstoreService.delete(blobKey);
+						}
+					}
+					// a failed request also fails the blobstore (with the
+					// incomplete contents), so it is reported first
+					Throwable cause = requestFailure != null ? requestFailure : blobstoreFailure;
+					LOGGER.warn("Streaming upload failed: {}", cause.toString());
+					if (!response.isCommitted()) {
+						response.sendError(requestFailure != null
+								? HttpServletResponse.SC_BAD_REQUEST
+								: HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error("Error while completing streaming upload", e);
+			} finally {
+				asyncContext.complete();
+			}
+		}
+
+		// of a completed future
+		private Throwable getFailure(CompletableFuture<?> future) {
+			try {
+				future.join();
+				return null;
+			} catch (CompletionException e) {
+				return e.getCause();
+			} catch (CancellationException e) {
+				return e;
+			}
+		}
+
+	}
+
+}
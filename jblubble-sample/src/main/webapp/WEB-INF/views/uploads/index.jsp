@@ -18,5 +18,8 @@
 	</c:forEach>
 </table>
 </c:if>
+<c:if test="${not empty nextKey}">
+<p><a href="<c:url value='/uploads'><c:param name='after' value='${nextKey}' /></c:url>">Next</a></p>
+</c:if>
 </body>
 </html>
@@ -3,12 +3,16 @@ package com.orangeandbronze.jblubble.file;
 import static org.junit.Assert.*;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
@@ -94,6 +98,36 @@ public abstract class AbstractBlobstoreServiceTests {
 		blobstoreService.delete(blobKeys);
 	}
 
+	@Test
+	public void serveBlobWithBlobInfo() throws Exception {
+		blobKey = createBlob("sample-image.png");
+		BlobInfo expected = blobstoreService.getBlobInfo(blobKey);
+		List<BlobInfo> blobInfos = new LinkedList<>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, (blobInfo) -> {
+			// called before the contents are written
+			assertEquals(0, out.size());
+			blobInfos.add(blobInfo);
+			return true;
+		}, out);
+		assertEquals(Collections.singletonList(expected), blobInfos);
+		assertEquals(expected.getSize(), out.size());
+
+		out.reset();
+		blobstoreService.serveBlob(blobKey, (blobInfo) -> false, out);
+		assertEquals(0, out.size());
+
+		BlobKey deletedBlobKey = createBlob("sample-image.png");
+		blobstoreService.delete(deletedBlobKey);
+		blobInfos.clear();
+		blobstoreService.serveBlob(deletedBlobKey, (blobInfo) -> {
+			blobInfos.add(blobInfo);
+			return true;
+		}, out);
+		assertEquals(Collections.singletonList(null), blobInfos);
+		assertEquals(0, out.size());
+	}
+
 	protected BlobKey createBlob(String inputFileName) throws BlobstoreException, IOException {
 		BlobKey blobKey;
 		InputStream in = AbstractBlobstoreServiceTests.class.getResourceAsStream(inputFileName);
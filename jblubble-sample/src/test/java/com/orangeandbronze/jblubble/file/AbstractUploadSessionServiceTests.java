@@ -0,0 +1,160 @@
+package com.orangeandbronze.jblubble.file;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.UploadSessionService;
+
+public abstract class AbstractUploadSessionServiceTests {
+
+	protected BlobstoreService blobstoreService;
+	protected UploadSessionService uploadSessionService;
+	protected BlobKey blobKey;
+	private byte[] contents;
+
+	protected abstract BlobstoreService createBlobstoreService();
+
+	protected abstract UploadSessionService createUploadSessionService(
+			BlobstoreService blobstoreService);
+
+	@Before
+	public void setUp() throws Exception {
+		blobstoreService = createBlobstoreService();
+		uploadSessionService = createUploadSessionService(blobstoreService);
+		assertNotNull(uploadSessionService);
+		contents = new byte[100000];
+		new Random(42).nextBytes(contents);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (blobKey != null) {
+			blobstoreService.delete(blobKey);
+		}
+	}
+
+	private byte[] chunk(int from, int to) {
+		return Arrays.copyOfRange(contents, from, to);
+	}
+
+	private void assertBlobContents(byte[] expected) throws Exception {
+		BlobInfo blobInfo = blobstoreService.getBlobInfo(blobKey);
+		assertEquals("sample.bin", blobInfo.getName());
+		assertEquals("application/octet-stream", blobInfo.getContentType());
+		assertEquals(expected.length, blobInfo.getSize());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey, out);
+		assertArrayEquals(expected, out.toByteArray());
+		StringBuilder md5Hash = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("MD5").digest(expected)) {
+			md5Hash.append(String.format("%02x", b));
+		}
+		assertEquals(md5Hash.toString(), blobInfo.getMd5Hash());
+	}
+
+	@Test
+	public void uploadChunksInOrder() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		assertEquals(0, uploadSessionService.getUploadedLength(sessionId));
+		for (int offset = 0; offset < contents.length; offset += 30000) {
+			uploadSessionService.appendChunk(sessionId, offset,
+					chunk(offset, Math.min(offset + 30000, contents.length)));
+		}
+		assertEquals(contents.length, uploadSessionService.getUploadedLength(sessionId));
+		blobKey = uploadSessionService.commit(sessionId);
+		assertBlobContents(contents);
+	}
+
+	@Test
+	public void resumeAfterGap() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		uploadSessionService.appendChunk(sessionId, 0, chunk(0, 40000));
+		// chunk from 40000 to 70000 was lost
+		uploadSessionService.appendChunk(sessionId, 70000, chunk(70000, 100000));
+		assertEquals(40000, uploadSessionService.getUploadedLength(sessionId));
+		try {
+			uploadSessionService.commit(sessionId);
+			fail("Expecting failure due to missing chunk");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		// re-sent chunks overlap with what was already received
+		uploadSessionService.appendChunk(sessionId, 30000, chunk(30000, 80000));
+		uploadSessionService.appendChunk(sessionId, 70000, chunk(70000, 100000));
+		assertEquals(contents.length, uploadSessionService.getUploadedLength(sessionId));
+		blobKey = uploadSessionService.commit(sessionId);
+		assertBlobContents(contents);
+	}
+
+	@Test
+	public void uploadChunksInParallel() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new LinkedList<>();
+			for (int offset = contents.length - 10000; offset >= 0; offset -= 10000) {
+				final int from = offset;
+				futures.add(executor.submit(() -> {
+					uploadSessionService.appendChunk(sessionId, from, chunk(from, from + 10000));
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		blobKey = uploadSessionService.commit(sessionId);
+		assertBlobContents(contents);
+	}
+
+	@Test
+	public void commitEmptySession() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		blobKey = uploadSessionService.commit(sessionId);
+		assertBlobContents(new byte[0]);
+	}
+
+	@Test(expected = BlobstoreException.class)
+	public void sessionEndsAfterCommit() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		uploadSessionService.appendChunk(sessionId, 0, chunk(0, 100));
+		blobKey = uploadSessionService.commit(sessionId);
+		uploadSessionService.getUploadedLength(sessionId);
+	}
+
+	@Test(expected = BlobstoreException.class)
+	public void abortDiscardsChunks() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		uploadSessionService.appendChunk(sessionId, 0, chunk(0, 100));
+		uploadSessionService.abort(sessionId);
+		// aborting again does nothing
+		uploadSessionService.abort(sessionId);
+		uploadSessionService.appendChunk(sessionId, 100, chunk(100, 200));
+	}
+
+}
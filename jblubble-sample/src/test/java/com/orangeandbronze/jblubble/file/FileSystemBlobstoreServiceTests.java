@@ -1,9 +1,22 @@
 package com.orangeandbronze.jblubble.file;
 
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
 
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobInfoQuery;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
 import com.orangeandbronze.jblubble.BlobstoreService;
 
 public class FileSystemBlobstoreServiceTests extends AbstractBlobstoreServiceTests {
@@ -28,4 +41,94 @@ public class FileSystemBlobstoreServiceTests extends AbstractBlobstoreServiceTes
 		}
 	}
 
+	@Test
+	public void softDeleteAndReclaim() throws Exception {
+		blobstoreService.setSoftDelete(true);
+		BlobKey blobKey = createBlob("sample-image.png");
+		long count = countBlobs();
+		assertArrayEquals(new int[] { 2 }, blobstoreService.delete(blobKey));
+		assertEquals(count - 1, countBlobs());
+		assertNull(blobstoreService.getBlobInfo(blobKey));
+		try {
+			blobstoreService.serveBlob(blobKey, new ByteArrayOutputStream());
+			fail("Expecting soft deleted blob to be not found");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		assertArrayEquals(new int[] { 0 }, blobstoreService.delete(blobKey));
+		File deletedContentFile = new File(
+				blobstoreService.getDeletedDirectory(), blobKey.stringValue() + ".dat");
+		assertTrue(deletedContentFile.exists());
+		assertEquals(0, blobstoreService.reclaimDeleted(new Date(0)));
+		assertTrue(blobstoreService.reclaimDeleted(
+				new Date(System.currentTimeMillis() + 60000)) >= 1);
+		assertFalse(deletedContentFile.exists());
+	}
+
+	@Test
+	public void listBlobInfosFromIndex() throws Exception {
+		File rootDirectory = Files.createTempDirectory("listing").toFile();
+		FileSystemBlobstoreService blobstoreService = new FileSystemBlobstoreService(rootDirectory);
+		List<BlobKey> blobKeys = new LinkedList<>();
+		for (int i = 0; i < 5; i++) {
+			blobKeys.add(blobstoreService.createBlob(
+					new ByteArrayInputStream(new byte[i]), "page-" + i + ".bin",
+					i % 2 == 0 ? "application/x-even" : "application/x-odd"));
+		}
+		try {
+			blobstoreService.delete(blobKeys.remove(3));
+			BlobInfoQuery query = new BlobInfoQuery(null, 2);
+			List<BlobKey> listedKeys = new LinkedList<>();
+			List<BlobInfo> page;
+			while (!(page = blobstoreService.listBlobInfos(query)).isEmpty()) {
+				assertTrue(page.size() <= 2);
+				for (BlobInfo blobInfo : page) {
+					listedKeys.add(blobInfo.getBlobKey());
+				}
+				query.setAfterKey(page.get(page.size() - 1).getBlobKey());
+			}
+			assertEquals(blobKeys, listedKeys);
+
+			query = new BlobInfoQuery(blobKeys.get(0), 0);
+			query.setContentType("application/x-even");
+			listedKeys.clear();
+			for (BlobInfo blobInfo : blobstoreService.listBlobInfos(query)) {
+				listedKeys.add(blobInfo.getBlobKey());
+			}
+			assertEquals(blobKeys.subList(2, 4), listedKeys);
+		} finally {
+			blobstoreService.delete(blobKeys.toArray(new BlobKey[blobKeys.size()]));
+		}
+	}
+
+	@Test
+	public void collectIncompleteBlobs() throws Exception {
+		File rootDirectory = Files.createTempDirectory("incomplete").toFile();
+		FileSystemBlobstoreService blobstoreService = new FileSystemBlobstoreService(rootDirectory);
+		BlobKey blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(new byte[10]), "complete.bin", "application/octet-stream");
+		File strayContentFile = new File(rootDirectory, "stray.dat");
+		File strayMetaFile = new File(rootDirectory, "stray-meta.properties");
+		assertTrue(strayContentFile.createNewFile());
+		assertTrue(strayMetaFile.createNewFile());
+		try {
+			List<BlobKey> blobKeys = new LinkedList<>();
+			blobstoreService.getBlobKeys().forEach(blobKeys::add);
+			assertTrue(blobKeys.contains(blobKey));
+			assertTrue(blobKeys.contains(new BlobKey("stray")));
+
+			long later = System.currentTimeMillis() + 60000;
+			assertEquals(0, blobstoreService.collectIncompleteBlobs(new Date(0), true));
+			assertEquals(2, blobstoreService.collectIncompleteBlobs(new Date(later), false));
+			assertTrue(strayContentFile.exists());
+			assertEquals(2, blobstoreService.collectIncompleteBlobs(new Date(later), true));
+			assertFalse(strayContentFile.exists());
+			assertFalse(strayMetaFile.exists());
+			assertNotNull(blobstoreService.getBlobInfo(blobKey));
+		} finally {
+			blobstoreService.delete(blobKey);
+			rootDirectory.delete();
+		}
+	}
+
 }
@@ -0,0 +1,103 @@
+package com.orangeandbronze.jblubble.file;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreService;
+import com.orangeandbronze.jblubble.UploadSessionService;
+
+public class FileSystemUploadSessionServiceTests extends AbstractUploadSessionServiceTests {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Override
+	protected BlobstoreService createBlobstoreService() {
+		File rootDirectory = new File("./target");
+		return new FileSystemBlobstoreService(rootDirectory);
+	}
+
+	@Override
+	protected UploadSessionService createUploadSessionService(
+			BlobstoreService blobstoreService) {
+		return (FileSystemBlobstoreService) blobstoreService;
+	}
+
+	@Test
+	public void resumeAfterRestart() throws Exception {
+		String sessionId = uploadSessionService.openSession(
+				"sample.bin", "application/octet-stream");
+		uploadSessionService.appendChunk(sessionId, 0, new byte[] { 1, 2, 3 });
+		uploadSessionService.appendChunk(sessionId, 5, new byte[] { 6 });
+		// a new instance has no sessions in memory
+		FileSystemBlobstoreService restarted =
+				(FileSystemBlobstoreService) createBlobstoreService();
+		assertEquals(3, restarted.getUploadedLength(sessionId));
+		restarted.appendChunk(sessionId, 3, new byte[] { 4, 5 });
+		blobKey = restarted.commit(sessionId);
+		assertEquals(6, blobstoreService.getBlobInfo(blobKey).getSize());
+		assertEquals("6ac1e56bc78f031059be7be854522c4c",
+				blobstoreService.getBlobInfo(blobKey).getMd5Hash());
+	}
+
+	@Test
+	public void commitIsNotCollectedAsIncompleteBlob() throws Exception {
+		long now = System.currentTimeMillis();
+		FileSystemBlobstoreService service = new FileSystemBlobstoreService(
+				temporaryFolder.getRoot()) {
+			@Override
+			protected void writeMetaFile(String uniqueId, String name, String contentType,
+					long size, String md5Hash) throws IOException {
+				// collected while the upload session is being committed
+				assertEquals(0, collectIncompleteBlobs(new Date(now - 60000), true));
+				super.writeMetaFile(uniqueId, name, contentType, size, md5Hash);
+			}
+		};
+		String sessionId = service.openSession(
+				"sample.bin", "application/octet-stream");
+		service.appendChunk(sessionId, 0, new byte[] { 1, 2, 3 });
+		// uploaded a while ago
+		for (File file : new File(temporaryFolder.getRoot(), "uploads").listFiles()) {
+			assertTrue(file.setLastModified(now - 3600000));
+		}
+		BlobKey committedKey = service.commit(sessionId);
+		assertEquals(3, service.getBlobInfo(committedKey).getSize());
+	}
+
+	@Test
+	public void sessionIdsOutsideUploadDirectoryAreRejected() throws Exception {
+		blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(new byte[10]), "stored.bin", "application/octet-stream");
+		String sessionId = "../" + blobKey.stringValue();
+		try {
+			uploadSessionService.abort(sessionId);
+			fail("Expecting session ID to be rejected");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		try {
+			uploadSessionService.appendChunk(sessionId, 0, new byte[1]);
+			fail("Expecting session ID to be rejected");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		try {
+			uploadSessionService.getUploadedLength(null);
+			fail("Expecting session ID to be rejected");
+		} catch (BlobstoreException e) {
+			// expected
+		}
+		assertEquals(10, blobstoreService.getBlobInfo(blobKey).getSize());
+	}
+
+}
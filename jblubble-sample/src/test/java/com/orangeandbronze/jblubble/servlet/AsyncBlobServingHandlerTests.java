@@ -0,0 +1,254 @@
+package com.orangeandbronze.jblubble.servlet;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.file.FileSystemBlobstoreService;
+
+public class AsyncBlobServingHandlerTests {
+
+	/**
+	 * Output stream of a slow client: it is not ready after each write, until
+	 * the test (as the container) calls the write listener.
+	 */
+	private static class SlowClientOutputStream extends ServletOutputStream {
+
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		final AtomicBoolean callbackPending = new AtomicBoolean();
+		volatile boolean ready = true;
+		volatile WriteListener writeListener;
+
+		@Override
+		public boolean isReady() {
+			if (ready) {
+				return true;
+			}
+			callbackPending.set(true);
+			return false;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			this.writeListener = writeListener;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			assertTrue("Writing while not ready", ready);
+			content.write(b, off, len);
+			ready = false;
+		}
+
+	}
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private byte[] content;
+	private AtomicInteger rangeReads;
+	// range reads that succeed before the rest fail
+	private volatile int failAfter;
+	private ThreadPoolExecutor executor;
+	private AsyncBlobServingHandler handler;
+	private BlobKey blobKey;
+	private MockHttpServletRequest request;
+	private SlowClientOutputStream out;
+	private MockHttpServletResponse response;
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[200000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		rangeReads = new AtomicInteger();
+		failAfter = -1;
+		FileSystemBlobstoreService blobstoreService = new FileSystemBlobstoreService(
+				temporaryFolder.getRoot()) {
+			@Override
+			public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+					throws IOException, BlobstoreException {
+				if (rangeReads.incrementAndGet() > failAfter && failAfter >= 0) {
+					throw new BlobstoreException("Connection lost");
+				}
+				super.serveBlob(blobKey, out, start, end);
+			}
+		};
+		blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(content), "bytes.bin", "application/octet-stream");
+		executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+		handler = new AsyncBlobServingHandler(blobstoreService, executor);
+		handler.setChunkSize(8192);
+		request = new MockHttpServletRequest("GET", "/blobs/" + blobKey.stringValue());
+		request.setAsyncSupported(true);
+		out = new SlowClientOutputStream();
+		response = new MockHttpServletResponse() {
+			@Override
+			public ServletOutputStream getOutputStream() {
+				return out;
+			}
+
+			@Override
+			public boolean isCommitted() {
+				return super.isCommitted() || out.content.size() > 0;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+
+	private MockAsyncContext asyncContext() {
+		return (MockAsyncContext) request.getAsyncContext();
+	}
+
+	/**
+	 * Calls the write listener (as the container would) whenever the output
+	 * stream has become not ready, until the transfer is completed or
+	 * dispatched.
+	 */
+	private void runContainer() throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (request.isAsyncStarted() && asyncContext().getDispatchedPath() == null) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Transfer did not complete");
+			}
+			if (out.callbackPending.compareAndSet(true, false)) {
+				out.ready = true;
+				out.writeListener.onWritePossible();
+			} else {
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	@Test
+	public void servesBlobAChunkAtATime() throws Exception {
+		handler.serveBlob(blobKey, request, response);
+		assertTrue(request.isAsyncStarted());
+		runContainer();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(content.length, response.getContentLengthLong());
+		assertArrayEquals(content, out.content.toByteArray());
+		assertEquals((content.length + 8191) / 8192, rangeReads.get());
+		assertNull(asyncContext().getDispatchedPath());
+	}
+
+	@Test
+	public void readsOnlyWhenWritePossible() throws Exception {
+		handler.serveBlob(blobKey, request, response);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!out.callbackPending.get() || executor.getActiveCount() > 0) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		// no thread waits for the slow client
+		Thread.sleep(100);
+		assertEquals(0, executor.getActiveCount());
+		assertEquals(1, rangeReads.get());
+		assertEquals(8192, out.content.size());
+		runContainer();
+		assertArrayEquals(content, out.content.toByteArray());
+	}
+
+	@Test
+	public void servesEachRange() throws Exception {
+		request.addHeader("Range", "bytes=0-99999,150000-");
+		handler.serveBlob(blobKey, request, response);
+		runContainer();
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals(response.getContentLengthLong(), out.content.size());
+		String body = new String(out.content.toByteArray(), "ISO-8859-1");
+		assertTrue(body.contains(new String(content, 0, 100000, "ISO-8859-1")));
+		assertTrue(body.contains(new String(content, 150000, 50000, "ISO-8859-1")));
+	}
+
+	@Test
+	public void failureBeforeCommitSendsError() throws Exception {
+		failAfter = 0;
+		handler.serveBlob(blobKey, request, response);
+		runContainer();
+		assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getStatus());
+		assertEquals(0, out.content.size());
+		assertNull(asyncContext().getDispatchedPath());
+	}
+
+	@Test
+	public void failureAfterCommitIsRethrownOnDispatch() throws Exception {
+		failAfter = 5;
+		handler.serveBlob(blobKey, request, response);
+		runContainer();
+		// not completed normally, with a short body
+		assertNotNull(asyncContext().getDispatchedPath());
+		assertTrue(out.content.size() < content.length);
+		assertArrayEquals(Arrays.copyOf(content, out.content.size()), out.content.toByteArray());
+
+		try {
+			handler.serveBlob(blobKey, request, new MockHttpServletResponse());
+			fail("Expecting failure to be rethrown");
+		} catch (IOException e) {
+			assertTrue(e.getCause() instanceof BlobstoreException);
+		}
+		assertNull(request.getAttribute(AsyncBlobServingHandler.TRANSFER_FAILURE_ATTRIBUTE));
+	}
+
+	@Test
+	public void writeErrorStopsReading() throws Exception {
+		handler.serveBlob(blobKey, request, response);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!out.callbackPending.get()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		// client went away
+		out.writeListener.onError(new IOException("Connection reset"));
+		while (request.isAsyncStarted()) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		assertTrue(out.content.size() < content.length);
+		assertNull(asyncContext().getDispatchedPath());
+	}
+
+	@Test
+	public void servesSynchronouslyWithoutAsyncSupport() throws Exception {
+		request.setAsyncSupported(false);
+		out.ready = true;
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		handler.serveBlob(blobKey, request, response);
+		assertFalse(request.isAsyncStarted());
+		assertArrayEquals(content, response.getContentAsByteArray());
+	}
+
+}
@@ -0,0 +1,252 @@
+package com.orangeandbronze.jblubble.servlet;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.orangeandbronze.jblubble.BlobInfo;
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.file.FileSystemBlobstoreService;
+
+public class BlobServingHandlerTests {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private String content;
+	private AtomicInteger rangeReads;
+	private BlobServingHandler handler;
+	private BlobKey blobKey;
+	private MockHttpServletRequest request;
+	private MockHttpServletResponse response;
+
+	@Before
+	public void setUp() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("0123456789");
+		}
+		content = sb.toString();
+		rangeReads = new AtomicInteger();
+		FileSystemBlobstoreService blobstoreService = new FileSystemBlobstoreService(
+				temporaryFolder.getRoot()) {
+			@Override
+			public void serveBlob(BlobKey blobKey, OutputStream out, long start, long end)
+					throws IOException, BlobstoreException {
+				rangeReads.incrementAndGet();
+				super.serveBlob(blobKey, out, start, end);
+			}
+		};
+		blobKey = blobstoreService.createBlob(
+				new ByteArrayInputStream(content.getBytes(StandardCharsets.ISO_8859_1)),
+				"digits.txt", "text/plain");
+		handler = new BlobServingHandler(blobstoreService);
+		request = new MockHttpServletRequest("GET", "/blobs/" + blobKey.stringValue());
+		response = new MockHttpServletResponse();
+	}
+
+	private void serveBlob() throws Exception {
+		handler.serveBlob(blobKey, request, response);
+	}
+
+	@Test
+	public void servesEntireBlob() throws Exception {
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals("text/plain", response.getContentType());
+		assertEquals(1000, response.getContentLengthLong());
+		assertEquals("bytes", response.getHeader("Accept-Ranges"));
+		assertEquals(content, response.getContentAsString());
+	}
+
+	@Test
+	public void notFound() throws Exception {
+		handler.serveBlob(new BlobKey("missing"), request, response);
+		assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+	}
+
+	@Test
+	public void servesSingleRange() throws Exception {
+		request.addHeader("Range", "bytes=10-14");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("bytes 10-14/1000", response.getHeader("Content-Range"));
+		assertEquals(5, response.getContentLengthLong());
+		assertEquals("01234", response.getContentAsString());
+		assertEquals(1, rangeReads.get());
+	}
+
+	@Test
+	public void servesMultipleRanges() throws Exception {
+		request.addHeader("Range", "bytes=0-1,-3");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		String contentType = response.getContentType();
+		assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+		String boundary = contentType.substring(contentType.indexOf('=') + 1);
+		String expected = "\r\n--" + boundary + "\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Range: bytes 0-1/1000\r\n"
+				+ "\r\n"
+				+ "01"
+				+ "\r\n--" + boundary + "\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Range: bytes 997-999/1000\r\n"
+				+ "\r\n"
+				+ "789"
+				+ "\r\n--" + boundary + "--\r\n";
+		assertEquals(expected, response.getContentAsString());
+		assertEquals(expected.length(), response.getContentLengthLong());
+	}
+
+	@Test
+	public void coalescesOverlappingAndAdjacentRanges() throws Exception {
+		request.addHeader("Range", "bytes=20-29,0-9,5-14,15-19");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("bytes 0-29/1000", response.getHeader("Content-Range"));
+		assertEquals(content.substring(0, 30), response.getContentAsString());
+		assertEquals(1, rangeReads.get());
+	}
+
+	@Test
+	public void unsatisfiableRange() throws Exception {
+		request.addHeader("Range", "bytes=1000-1999");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+				response.getStatus());
+		assertEquals("bytes */1000", response.getHeader("Content-Range"));
+		assertEquals(0, rangeReads.get());
+	}
+
+	@Test
+	public void tooManyRangesServeEntireBlob() throws Exception {
+		handler.setMaxRanges(2);
+		request.addHeader("Range", "bytes=0-0,2-2,4-4");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(content, response.getContentAsString());
+	}
+
+	@Test
+	public void servesBlobInfoThatWasAlreadyRetrieved() throws Exception {
+		BlobInfo blobInfo = handler.blobstoreService.getBlobInfo(blobKey);
+		request.addHeader("Range", "bytes=-1");
+		handler.serveBlob(blobInfo, request, response);
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("9", response.getContentAsString());
+	}
+
+	private String eTag() {
+		return "\"" + handler.blobstoreService.getBlobInfo(blobKey).getMd5Hash() + "\"";
+	}
+
+	@Test
+	public void setsValidators() throws Exception {
+		serveBlob();
+		assertEquals(eTag(), response.getHeader("ETag"));
+		assertNotNull(response.getHeader("Last-Modified"));
+		assertEquals(BlobServingHandler.DEFAULT_CACHE_CONTROL, response.getHeader("Cache-Control"));
+	}
+
+	@Test
+	public void ifNoneMatchStrongETagIsNotModified() throws Exception {
+		request.addHeader("If-None-Match", "\"other\", " + eTag());
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+		assertEquals(eTag(), response.getHeader("ETag"));
+	}
+
+	@Test
+	public void ifNoneMatchWeakETagIsNotModified() throws Exception {
+		request.addHeader("If-None-Match", "W/" + eTag());
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	@Test
+	public void ifNoneMatchMismatchServesBlob() throws Exception {
+		request.addHeader("If-None-Match", "\"other\"");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(content, response.getContentAsString());
+	}
+
+	@Test
+	public void ifModifiedSince() throws Exception {
+		request.addHeader("If-Modified-Since", System.currentTimeMillis() + 3600000);
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+
+		request = new MockHttpServletRequest("GET", "/blobs/" + blobKey.stringValue());
+		response = new MockHttpServletResponse();
+		request.addHeader("If-Modified-Since", System.currentTimeMillis() - 3600000);
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(content, response.getContentAsString());
+	}
+
+	@Test
+	public void ifModifiedSinceIsIgnoredWithIfNoneMatch() throws Exception {
+		// the date alone would be not modified
+		request.addHeader("If-Modified-Since", System.currentTimeMillis() + 3600000);
+		request.addHeader("If-None-Match", "\"other\"");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(content, response.getContentAsString());
+
+		request = new MockHttpServletRequest("GET", "/blobs/" + blobKey.stringValue());
+		response = new MockHttpServletResponse();
+		// the date alone would be modified
+		request.addHeader("If-Modified-Since", System.currentTimeMillis() - 3600000);
+		request.addHeader("If-None-Match", eTag());
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+	}
+
+	@Test
+	public void ifRangeMatchServesRange() throws Exception {
+		request.addHeader("Range", "bytes=0-4");
+		request.addHeader("If-Range", eTag());
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("01234", response.getContentAsString());
+	}
+
+	@Test
+	public void ifRangeMismatchServesEntireBlob() throws Exception {
+		request.addHeader("Range", "bytes=0-4");
+		request.addHeader("If-Range", "\"other\"");
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertNull(response.getHeader("Content-Range"));
+		assertEquals(content, response.getContentAsString());
+	}
+
+	@Test
+	public void ifRangeWeakETagServesEntireBlob() throws Exception {
+		request.addHeader("Range", "bytes=0-4");
+		request.addHeader("If-Range", "W/" + eTag());
+		serveBlob();
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(content, response.getContentAsString());
+	}
+
+}
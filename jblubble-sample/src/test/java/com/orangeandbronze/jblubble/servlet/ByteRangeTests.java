@@ -0,0 +1,78 @@
+package com.orangeandbronze.jblubble.servlet;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTests {
+
+	@Test
+	public void missingOrOtherUnitIsIgnored() throws Exception {
+		assertNull(ByteRange.parseRanges(null, 100));
+		assertNull(ByteRange.parseRanges("items=0-9", 100));
+	}
+
+	@Test
+	public void singleRange() throws Exception {
+		List<ByteRange> ranges = ByteRange.parseRanges("bytes=0-499", 1000);
+		assertEquals(Arrays.asList(new ByteRange(0, 499)), ranges);
+		assertEquals(500, ranges.get(0).getLength());
+		assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+	}
+
+	@Test
+	public void openEndedAndSuffixRanges() throws Exception {
+		assertEquals(Arrays.asList(new ByteRange(900, 999)),
+				ByteRange.parseRanges("bytes=900-", 1000));
+		assertEquals(Arrays.asList(new ByteRange(800, 999)),
+				ByteRange.parseRanges("bytes=-200", 1000));
+		// suffix longer than the blob means the entire blob
+		assertEquals(Arrays.asList(new ByteRange(0, 999)),
+				ByteRange.parseRanges("bytes=-5000", 1000));
+	}
+
+	@Test
+	public void endPastLengthIsTruncated() throws Exception {
+		assertEquals(Arrays.asList(new ByteRange(500, 999)),
+				ByteRange.parseRanges("bytes=500-5000", 1000));
+	}
+
+	@Test
+	public void multipleRanges() throws Exception {
+		assertEquals(Arrays.asList(new ByteRange(0, 0), new ByteRange(999, 999)),
+				ByteRange.parseRanges("bytes=0-0, -1", 1000));
+	}
+
+	@Test
+	public void unsatisfiableRanges() throws Exception {
+		assertTrue(ByteRange.parseRanges("bytes=1000-1999", 1000).isEmpty());
+		assertTrue(ByteRange.parseRanges("bytes=0-9", 0).isEmpty());
+		// satisfiable ranges are kept
+		assertEquals(Arrays.asList(new ByteRange(0, 9)),
+				ByteRange.parseRanges("bytes=0-9,2000-", 1000));
+	}
+
+	@Test
+	public void invalidSyntaxIsIgnored() throws Exception {
+		assertNull(ByteRange.parseRanges("bytes=9-0", 1000));
+		assertNull(ByteRange.parseRanges("bytes=abc", 1000));
+		assertNull(ByteRange.parseRanges("bytes=1-2-3", 1000));
+	}
+
+	@Test
+	public void coalescesOverlappingAndAdjacentRanges() throws Exception {
+		assertEquals(Arrays.asList(new ByteRange(0, 29), new ByteRange(40, 49)),
+				ByteRange.coalesceRanges(Arrays.asList(new ByteRange(40, 49),
+						new ByteRange(20, 29), new ByteRange(0, 9), new ByteRange(5, 19))));
+		// ranges contained in another
+		assertEquals(Arrays.asList(new ByteRange(0, 99)),
+				ByteRange.coalesceRanges(Arrays.asList(new ByteRange(0, 99), new ByteRange(10, 19))));
+		// gaps are kept
+		assertEquals(Arrays.asList(new ByteRange(0, 9), new ByteRange(11, 19)),
+				ByteRange.coalesceRanges(Arrays.asList(new ByteRange(11, 19), new ByteRange(0, 9))));
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.orangeandbronze.jblubble.servlet;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultipartStreamParserTests {
+
+	private static final String BOUNDARY = "----boundary42";
+
+	private static class Part {
+		Map<String, String> headers;
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		boolean ended;
+	}
+
+	private List<Part> parts;
+	private MultipartStreamParser parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parts = new LinkedList<>();
+		parser = new MultipartStreamParser(BOUNDARY, new MultipartStreamParser.Listener() {
+			@Override
+			public void startPart(Map<String, String> headers) {
+				Part part = new Part();
+				part.headers = headers;
+				parts.add(part);
+			}
+
+			@Override
+			public void partData(byte[] b, int off, int len) {
+				Part part = parts.get(parts.size() - 1);
+				assertFalse(part.ended);
+				part.content.write(b, off, len);
+			}
+
+			@Override
+			public void endPart() {
+				parts.get(parts.size() - 1).ended = true;
+			}
+		});
+	}
+
+	private static byte[] body(String... lines) {
+		return String.join("\r\n", lines).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] twoParts() {
+		return body(
+				"--" + BOUNDARY,
+				"Content-Disposition: form-data; name=\"title\"",
+				"",
+				"Hello",
+				"--" + BOUNDARY,
+				"Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"",
+				"Content-Type: text/plain",
+				"",
+				"line one\r\nline two\r\n--not-a-boundary",
+				"--" + BOUNDARY + "--",
+				"");
+	}
+
+	private void assertTwoParts() throws Exception {
+		assertTrue(parser.isFinished());
+		assertEquals(2, parts.size());
+		assertEquals("form-data; name=\"title\"",
+				parts.get(0).headers.get("content-disposition"));
+		assertEquals("Hello", parts.get(0).content.toString("ISO-8859-1"));
+		assertTrue(parts.get(0).ended);
+		assertEquals("text/plain", parts.get(1).headers.get("content-type"));
+		assertEquals("line one\r\nline two\r\n--not-a-boundary",
+				parts.get(1).content.toString("ISO-8859-1"));
+		assertTrue(parts.get(1).ended);
+	}
+
+	@Test
+	public void parsesEntireBody() throws Exception {
+		byte[] body = twoParts();
+		parser.parse(body, 0, body.length);
+		parser.finish();
+		assertTwoParts();
+	}
+
+	@Test
+	public void parsesBodyFedOneByteAtATime() throws Exception {
+		byte[] body = twoParts();
+		for (int i = 0; i < body.length; i++) {
+			parser.parse(body, i, 1);
+		}
+		parser.finish();
+		assertTwoParts();
+	}
+
+	@Test
+	public void ignoresPreambleAndEpilogue() throws Exception {
+		byte[] body = body(
+				"This is the preamble",
+				"--" + BOUNDARY,
+				"",
+				"content",
+				"--" + BOUNDARY + "--",
+				"This is the epilogue");
+		parser.parse(body, 0, body.length);
+		parser.finish();
+		assertEquals(1, parts.size());
+		assertTrue(parts.get(0).headers.isEmpty());
+		assertEquals("content", parts.get(0).content.toString("ISO-8859-1"));
+	}
+
+	@Test(expected=IOException.class)
+	public void failsWithoutClosingDelimiter() throws Exception {
+		byte[] body = body(
+				"--" + BOUNDARY,
+				"Content-Disposition: form-data; name=\"file\"",
+				"",
+				"truncated content");
+		parser.parse(body, 0, body.length);
+		assertFalse(parts.get(0).ended);
+		parser.finish();
+	}
+
+	@Test(expected=IOException.class)
+	public void failsWhenHeadersAreTooLarge() throws Exception {
+		parser.setMaxHeaderSize(16);
+		byte[] body = body(
+				"--" + BOUNDARY,
+				"Content-Disposition: form-data; name=\"file\"");
+		parser.parse(body, 0, body.length);
+	}
+
+	@Test
+	public void getsBoundaryAndParameters() throws Exception {
+		assertEquals("abc", MultipartStreamParser.getBoundary(
+				"multipart/form-data; boundary=abc"));
+		assertEquals("a b", MultipartStreamParser.getBoundary(
+				"Multipart/Form-Data; boundary=\"a b\""));
+		assertNull(MultipartStreamParser.getBoundary("text/plain; boundary=abc"));
+		assertNull(MultipartStreamParser.getBoundary(null));
+		String contentDisposition = "form-data; name=\"file\"; filename=\"a.png\"";
+		assertEquals("file", MultipartStreamParser.getParameter(contentDisposition, "name"));
+		assertEquals("a.png", MultipartStreamParser.getParameter(contentDisposition, "filename"));
+		assertNull(MultipartStreamParser.getParameter(contentDisposition, "size"));
+	}
+
+}
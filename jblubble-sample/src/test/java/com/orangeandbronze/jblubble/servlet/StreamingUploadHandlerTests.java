@@ -0,0 +1,224 @@
+package com.orangeandbronze.jblubble.servlet;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.orangeandbronze.jblubble.BlobKey;
+import com.orangeandbronze.jblubble.BlobstoreException;
+import com.orangeandbronze.jblubble.BlobstoreWriteCallback;
+import com.orangeandbronze.jblubble.file.FileSystemBlobstoreService;
+
+public class StreamingUploadHandlerTests {
+
+	private static final String BOUNDARY = "----boundary42";
+
+	/**
+	 * Input stream of a fast client: it is always ready, and hands out the
+	 * body a few bytes at a time. Reaching the end is recorded, so that the
+	 * test (as the container) can call the read listener.
+	 */
+	private static class FastClientInputStream extends ServletInputStream {
+
+		private final byte[] body;
+		private int position;
+		volatile boolean finished;
+		volatile ReadListener readListener;
+
+		FastClientInputStream(byte[] body) {
+			this.body = body;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return finished;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			this.readListener = readListener;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (position == body.length) {
+				finished = true;
+				return -1;
+			}
+			int n = Math.min(Math.min(len, 1000), body.length - position);
+			System.arraycopy(body, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+	}
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private byte[] content;
+	private CountDownLatch blobstoreStarted;
+	private volatile boolean blobstoreFails;
+	private FileSystemBlobstoreService blobstoreService;
+	private ExecutorService executor;
+	private StreamingUploadHandler handler;
+	private MockHttpServletRequest request;
+	private MockHttpServletResponse response;
+	private FastClientInputStream in;
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[100000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		blobstoreStarted = new CountDownLatch(1);
+		blobstoreService = new FileSystemBlobstoreService(temporaryFolder.getRoot()) {
+			@Override
+			public BlobKey createBlob(BlobstoreWriteCallback callback, String name, String contentType)
+					throws IOException, BlobstoreException {
+				try {
+					// a slow blobstore
+					blobstoreStarted.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (blobstoreFails) {
+					throw new BlobstoreException("Connection lost");
+				}
+				return super.createBlob(callback, name, contentType);
+			}
+		};
+		executor = Executors.newCachedThreadPool();
+		handler = new StreamingUploadHandler(blobstoreService, executor);
+		handler.setBufferSize(1024);
+		handler.setPipeCapacity(4);
+		response = new MockHttpServletResponse();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		blobstoreStarted.countDown();
+		executor.shutdownNow();
+	}
+
+	private void setUpRequest(byte[] body) {
+		in = new FastClientInputStream(body);
+		request = new MockHttpServletRequest("POST", "/upload") {
+			@Override
+			public ServletInputStream getInputStream() {
+				return in;
+			}
+		};
+		request.setAsyncSupported(true);
+		request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+	}
+
+	private byte[] body() throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(String.join("\r\n",
+				"--" + BOUNDARY,
+				"Content-Disposition: form-data; name=\"file\"; filename=\"bytes.bin\"",
+				"Content-Type: application/octet-stream",
+				"", "").getBytes(StandardCharsets.ISO_8859_1));
+		body.write(content);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		return body.toByteArray();
+	}
+
+	/**
+	 * Calls the read listener (as the container would) once the end of the
+	 * request body has been read, and waits until the upload is completed.
+	 */
+	private void runContainer() throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!in.isFinished()) {
+			assertTrue("Request body was not read", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		in.readListener.onAllDataRead();
+		while (request.isAsyncStarted()) {
+			assertTrue("Upload did not complete", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void stopsReadingWhilePipeIsFull() throws Exception {
+		setUpRequest(body());
+		AtomicReference<BlobKey> blobKey = new AtomicReference<>();
+		handler.handleUpload(request, response, "file",
+				(key, request, response) -> blobKey.set(key));
+		// the container thread is not held by the slow blobstore
+		Future<?> onDataAvailable = executor.submit(() -> {
+			in.readListener.onDataAvailable();
+			return null;
+		});
+		onDataAvailable.get(5, TimeUnit.SECONDS);
+		assertFalse(in.isFinished());
+
+		blobstoreStarted.countDown();
+		runContainer();
+		assertNotNull(blobKey.get());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobstoreService.serveBlob(blobKey.get(), out);
+		assertArrayEquals(content, out.toByteArray());
+	}
+
+	@Test
+	public void truncatedBodyIsBadRequest() throws Exception {
+		byte[] body = body();
+		setUpRequest(Arrays.copyOf(body, body.length / 2));
+		handler.handleUpload(request, response, "file",
+				(key, request, response) -> fail("Expecting upload to fail"));
+		blobstoreStarted.countDown();
+		in.readListener.onDataAvailable();
+		runContainer();
+		assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+	}
+
+	@Test
+	public void blobstoreFailureIsServerError() throws Exception {
+		blobstoreFails = true;
+		setUpRequest(body());
+		handler.handleUpload(request, response, "file",
+				(key, request, response) -> fail("Expecting upload to fail"));
+		blobstoreStarted.countDown();
+		in.readListener.onDataAvailable();
+		runContainer();
+		assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response.getStatus());
+	}
+
+}